@@ -18,9 +18,14 @@ package org.smssecure.smssecure;
 
 import android.app.Application;
 import android.content.Context;
+import android.support.annotation.NonNull;
 
 import org.smssecure.smssecure.crypto.PRNGFixes;
 import org.smssecure.smssecure.dependencies.InjectableType;
+import org.smssecure.smssecure.jobs.AttachmentFormatUpgradeJob;
+import org.smssecure.smssecure.jobs.FragmentSweepJob;
+import org.smssecure.smssecure.jobs.PriorityJobManager;
+import org.smssecure.smssecure.jobs.PriorityJobManager.Lane;
 import org.smssecure.smssecure.jobs.persistence.EncryptingJobSerializer;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirementProvider;
 import org.smssecure.smssecure.jobs.requirements.MediaNetworkRequirementProvider;
@@ -33,6 +38,8 @@ import org.whispersystems.libsignal.logging.SignalProtocolLoggerProvider;
 import org.whispersystems.libsignal.util.AndroidSignalProtocolLogger;
 
 import java.security.Security;
+import java.util.LinkedList;
+import java.util.List;
 
 import dagger.ObjectGraph;
 
@@ -46,10 +53,10 @@ import dagger.ObjectGraph;
  */
 public class ApplicationContext extends Application implements DependencyInjector {
 
-  private JobManager  jobManager;
-  private ObjectGraph objectGraph;
+  private PriorityJobManager jobManager;
+  private ObjectGraph        objectGraph;
 
-  private MediaNetworkRequirementProvider mediaNetworkRequirementProvider = new MediaNetworkRequirementProvider();
+  private final List<MediaNetworkRequirementProvider> mediaNetworkRequirementProviders = new LinkedList<>();
 
   public static ApplicationContext getInstance(Context context) {
     return (ApplicationContext)context.getApplicationContext();
@@ -61,6 +68,8 @@ public class ApplicationContext extends Application implements DependencyInjecto
     initializeRandomNumberFix();
     initializeLogging();
     initializeJobManager();
+    initializeAttachmentFormatUpgrade();
+    initializeFragmentSweep();
   }
 
   @Override
@@ -70,7 +79,7 @@ public class ApplicationContext extends Application implements DependencyInjecto
     }
   }
 
-  public JobManager getJobManager() {
+  public PriorityJobManager getJobManager() {
     return jobManager;
   }
 
@@ -83,20 +92,41 @@ public class ApplicationContext extends Application implements DependencyInjecto
   }
 
   private void initializeJobManager() {
-    this.jobManager = JobManager.newBuilder(this)
-                                .withName("SilenceJobs")
-                                .withDependencyInjector(this)
-                                .withJobSerializer(new EncryptingJobSerializer())
-                                .withRequirementProviders(new MasterSecretRequirementProvider(this),
-                                                          new ServiceRequirementProvider(this),
-                                                          new NetworkRequirementProvider(this),
-                                                          mediaNetworkRequirementProvider)
-                                .withConsumerThreads(5)
-                                .build();
+    this.jobManager = new PriorityJobManager(this, this, new PriorityJobManager.JobManagerFactory() {
+      @Override
+      public @NonNull JobManager create(@NonNull Lane lane, @NonNull DependencyInjector injector) {
+        // A provider only notifies a single listener, so each lane needs its own.
+        MediaNetworkRequirementProvider mediaNetworkRequirementProvider = new MediaNetworkRequirementProvider();
+        mediaNetworkRequirementProviders.add(mediaNetworkRequirementProvider);
+
+        return JobManager.newBuilder(ApplicationContext.this)
+                         .withName(lane.getName())
+                         .withDependencyInjector(injector)
+                         .withJobSerializer(new EncryptingJobSerializer())
+                         .withRequirementProviders(new MasterSecretRequirementProvider(ApplicationContext.this),
+                                                   new ServiceRequirementProvider(ApplicationContext.this),
+                                                   new NetworkRequirementProvider(ApplicationContext.this),
+                                                   mediaNetworkRequirementProvider)
+                         .withConsumerThreads(lane.getConsumerThreads())
+                         .build();
+      }
+    });
+  }
+
+  private void initializeAttachmentFormatUpgrade() {
+    if (!SilencePreferences.isChunkedPartsUpgraded(this)) {
+      jobManager.add(new AttachmentFormatUpgradeJob(this));
+    }
+  }
+
+  private void initializeFragmentSweep() {
+    jobManager.add(new FragmentSweepJob(this));
   }
 
   public void notifyMediaControlEvent() {
-    mediaNetworkRequirementProvider.notifyMediaControlEvent();
+    for (MediaNetworkRequirementProvider provider : mediaNetworkRequirementProviders) {
+      provider.notifyMediaControlEvent();
+    }
   }
 
 }
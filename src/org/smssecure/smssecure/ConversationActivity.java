@@ -1146,7 +1146,7 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
       @Override
       protected Void doInBackground(Long... params) {
         DatabaseFactory.getThreadDatabase(ConversationActivity.this).setRead(params[0]);
-        MessageNotifier.updateNotification(ConversationActivity.this, masterSecret);
+        MessageNotifier.updateNotificationForThreads(ConversationActivity.this, masterSecret, params[0]);
         return null;
       }
     }.execute(threadId);
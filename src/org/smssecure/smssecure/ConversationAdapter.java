@@ -36,6 +36,7 @@ import org.smssecure.smssecure.util.Conversions;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.CursorRecyclerViewAdapter;
 import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.DecryptionPrefetcher;
 import org.smssecure.smssecure.database.MmsSmsColumns;
 import org.smssecure.smssecure.database.MmsSmsDatabase;
 import org.smssecure.smssecure.database.SmsDatabase;
@@ -79,6 +80,8 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
   private final Map<String,SoftReference<MessageRecord>> messageRecordCache =
       Collections.synchronizedMap(new LRUCache<String, SoftReference<MessageRecord>>(MAX_CACHE_SIZE));
 
+  private static final int PREFETCH_WINDOW = 30;
+
   private static final int MESSAGE_TYPE_OUTGOING       = 0;
   private static final int MESSAGE_TYPE_INCOMING       = 1;
   private static final int MESSAGE_TYPE_UPDATE         = 2;
@@ -96,6 +99,9 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
   private final @NonNull  Calendar          calendar;
   private final @NonNull  MessageDigest     digest;
 
+  private final @Nullable DecryptionPrefetcher prefetcher;
+  private                 int                  lastPrefetchPosition = -1;
+
   protected static class ViewHolder extends RecyclerView.ViewHolder {
     public <V extends View & BindableConversationItem> ViewHolder(final @NonNull V itemView) {
       super(itemView);
@@ -143,6 +149,7 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
       this.db            = null;
       this.calendar      = Calendar.getInstance();
       this.digest        = MessageDigest.getInstance("SHA1");
+      this.prefetcher    = null;
     } catch (NoSuchAlgorithmException nsae) {
       throw new AssertionError("SHA1 isn't supported!");
     }
@@ -165,8 +172,10 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
       this.db            = DatabaseFactory.getMmsSmsDatabase(context);
       this.calendar      = Calendar.getInstance();
       this.digest        = MessageDigest.getInstance("SHA1");
+      this.prefetcher    = new DecryptionPrefetcher(masterSecret, PREFETCH_WINDOW);
 
       setHasStableIds(true);
+      prefetchFrom(cursor);
     } catch (NoSuchAlgorithmException nsae) {
       throw new AssertionError("SHA1 isn't supported!");
     }
@@ -175,15 +184,31 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
   @Override
   public void changeCursor(Cursor cursor) {
     messageRecordCache.clear();
+    lastPrefetchPosition = -1;
+    prefetchFrom(cursor);
     super.changeCursor(cursor);
   }
 
   @Override
   public void onBindItemViewHolder(ViewHolder viewHolder, @NonNull Cursor cursor) {
     long          start         = System.currentTimeMillis();
+    int           position      = cursor.getPosition();
     MessageRecord messageRecord = getMessageRecord(cursor);
 
     viewHolder.getView().bind(masterSecret, messageRecord, locale, batchSelected, recipients);
+
+    if (prefetcher != null && Math.abs(position - lastPrefetchPosition) > PREFETCH_WINDOW / 2) {
+      lastPrefetchPosition = position;
+      cursor.moveToPosition(position);
+      prefetcher.prefetchAround(cursor);
+    }
+  }
+
+  private void prefetchFrom(@Nullable Cursor cursor) {
+    if (prefetcher != null && cursor != null) {
+      lastPrefetchPosition = 0;
+      prefetcher.prefetch(cursor, 0, PREFETCH_WINDOW * 2);
+    }
   }
 
   @Override
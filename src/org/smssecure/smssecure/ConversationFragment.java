@@ -83,7 +83,9 @@ public class ConversationFragment extends Fragment
 {
   private static final String TAG = ConversationFragment.class.getSimpleName();
 
-  private static final long   PARTIAL_CONVERSATION_LIMIT = 500L;
+  private static final int    CONVERSATION_PAGE_SIZE = 100;
+  private static final int    LOAD_MORE_THRESHOLD    = CONVERSATION_PAGE_SIZE / 4;
+  private static final String LOADED_SINCE_EXTRA     = "loaded_since";
 
   private final ActionModeCallback actionModeCallback     = new ActionModeCallback();
   private final ItemClickListener  selectionClickListener = new ConversationFragmentItemClickListener();
@@ -94,6 +96,9 @@ public class ConversationFragment extends Fragment
   private Recipients                  recipients;
   private long                        threadId;
   private long                        lastSeen;
+  private long                        oldestLoaded;
+  private boolean                     hasMore;
+  private boolean                     loadingMore;
   private boolean                     firstLoad;
   private ActionMode                  actionMode;
   private Locale                      locale;
@@ -134,9 +139,7 @@ public class ConversationFragment extends Fragment
     loadMoreView.setOnClickListener(new OnClickListener() {
       @Override
       public void onClick(View v) {
-        Bundle args = new Bundle();
-        args.putLong("limit", 0);
-        getLoaderManager().restartLoader(0, args, ConversationFragment.this);
+        loadMore();
       }
     });
     return view;
@@ -182,6 +185,16 @@ public class ConversationFragment extends Fragment
     getLoaderManager().restartLoader(0, Bundle.EMPTY, this);
   }
 
+  private void loadMore() {
+    if (hasMore && !loadingMore) {
+      Bundle args = new Bundle();
+      args.putLong(LOADED_SINCE_EXTRA, oldestLoaded);
+
+      loadingMore = true;
+      getLoaderManager().restartLoader(0, args, this);
+    }
+  }
+
   private void initializeResources() {
     this.recipients     = RecipientFactory.getRecipientsForIds(getActivity(), getActivity().getIntent().getLongArrayExtra("recipients"), true);
     this.threadId       = this.getActivity().getIntent().getLongExtra("thread_id", -1);
@@ -398,7 +411,8 @@ public class ConversationFragment extends Fragment
 
   @Override
   public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-    return new ConversationLoader(getActivity(), threadId, args.getLong("limit", PARTIAL_CONVERSATION_LIMIT), lastSeen);
+    return new ConversationLoader(getActivity(), threadId, CONVERSATION_PAGE_SIZE,
+                                  args.getLong(LOADED_SINCE_EXTRA, -1), lastSeen);
   }
 
 
@@ -407,8 +421,12 @@ public class ConversationFragment extends Fragment
     Log.w(TAG, "onLoadFinished");
     ConversationLoader loader = (ConversationLoader)cursorLoader;
 
+    this.hasMore      = loader.hasMore();
+    this.oldestLoaded = loader.getOldestDateReceived();
+    this.loadingMore  = false;
+
     if (list.getAdapter() != null) {
-      if (cursor.getCount() >= PARTIAL_CONVERSATION_LIMIT && loader.hasLimit()) {
+      if (hasMore) {
         getListAdapter().setFooterView(loadMoreView);
       } else {
         getListAdapter().setFooterView(null);
@@ -495,6 +513,10 @@ public class ConversationFragment extends Fragment
         bindScrollHeader(conversationDateHeader, positionId);
       }
 
+      if (dy < 0 && positionId >= list.getAdapter().getItemCount() - LOAD_MORE_THRESHOLD) {
+        loadMore();
+      }
+
       wasAtBottom           = currentlyAtBottom;
       wasAtZoomScrollHeight = currentlyAtZoomScrollHeight;
       lastPositionId        = positionId;
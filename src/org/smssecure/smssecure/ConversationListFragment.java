@@ -589,7 +589,7 @@ public class ConversationListFragment extends Fragment
 
             if (!read) {
               DatabaseFactory.getThreadDatabase(getActivity()).setRead(threadId);
-              MessageNotifier.updateNotification(getActivity(), masterSecret);
+              MessageNotifier.updateNotificationForThreads(getActivity(), masterSecret, threadId);
             }
           }
 
@@ -599,7 +599,7 @@ public class ConversationListFragment extends Fragment
 
             if (!read) {
               DatabaseFactory.getThreadDatabase(getActivity()).setUnread(threadId);
-              MessageNotifier.updateNotification(getActivity(), masterSecret);
+              MessageNotifier.updateNotificationForThreads(getActivity(), masterSecret, threadId);
             }
           }
         }.execute(threadId);
@@ -28,6 +28,8 @@ import android.widget.ProgressBar;
 
 import org.smssecure.smssecure.crypto.IdentityKeyUtil;
 import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.crypto.storage.SilencePreKeyStore;
+import org.smssecure.smssecure.crypto.storage.SilenceSessionStore;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.MmsDatabase;
 import org.smssecure.smssecure.database.MmsDatabase.Reader;
@@ -58,6 +60,7 @@ public class DatabaseUpgradeActivity extends BaseActivity {
   public static final int NO_V1_VERSION                        = 83;
   public static final int SIGNED_PREKEY_VERSION                = 83;
   public static final int NO_DECRYPT_QUEUE_VERSION             = 84;
+  public static final int PROTOCOL_STORE_VERSION               = 143;
 
   private static final SortedSet<Integer> UPGRADE_VERSIONS = new TreeSet<Integer>() {{
     add(NO_MORE_KEY_EXCHANGE_PREFIX_VERSION);
@@ -67,6 +70,7 @@ public class DatabaseUpgradeActivity extends BaseActivity {
     add(NO_V1_VERSION);
     add(SIGNED_PREKEY_VERSION);
     add(NO_DECRYPT_QUEUE_VERSION);
+    add(PROTOCOL_STORE_VERSION);
   }};
 
   private MasterSecret masterSecret;
@@ -203,6 +207,11 @@ public class DatabaseUpgradeActivity extends BaseActivity {
         }
       }
 
+      if (params[0] < PROTOCOL_STORE_VERSION) {
+        new SilenceSessionStore(context, masterSecret).migrateSessionFiles();
+        new SilencePreKeyStore(context, masterSecret).migratePreKeyFiles();
+      }
+
       return null;
     }
 
@@ -15,11 +15,15 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Toast;
 
+import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.Subscribe;
+import org.greenrobot.eventbus.ThreadMode;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.EncryptedBackupExporter;
 import org.smssecure.smssecure.database.NoExternalStorageException;
 import org.smssecure.smssecure.database.PlaintextBackupExporter;
 import org.smssecure.smssecure.database.PlaintextBackupImporter;
+import org.smssecure.smssecure.events.ExportProgressEvent;
 import org.smssecure.smssecure.service.ApplicationMigrationService;
 
 import java.io.IOException;
@@ -33,6 +37,7 @@ public class ImportExportFragment extends Fragment {
 
   private MasterSecret   masterSecret;
   private ProgressDialog progressDialog;
+  private ProgressDialog exportProgressDialog;
 
   @Override
   public void onCreate(Bundle bundle) {
@@ -234,15 +239,27 @@ public class ImportExportFragment extends Fragment {
     }
 }
 
+  @Subscribe(threadMode = ThreadMode.MAIN)
+  public void onEventMainThread(ExportProgressEvent event) {
+    if (exportProgressDialog != null && event.total > 0) {
+      exportProgressDialog.setMax(event.total);
+      exportProgressDialog.setProgress(event.complete);
+    }
+  }
+
   private class ExportPlaintextTask extends AsyncTask<Void, Void, Integer> {
-    private ProgressDialog dialog;
 
     @Override
     protected void onPreExecute() {
-      dialog = ProgressDialog.show(getActivity(),
-                                   getActivity().getString(R.string.ExportFragment_exporting),
-                                   getActivity().getString(R.string.ExportFragment_exporting_plaintext_to_storage),
-                                   true, false);
+      exportProgressDialog = new ProgressDialog(getActivity());
+      exportProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+      exportProgressDialog.setCancelable(false);
+      exportProgressDialog.setIndeterminate(false);
+      exportProgressDialog.setTitle(R.string.ExportFragment_exporting);
+      exportProgressDialog.setMessage(getActivity().getString(R.string.ExportFragment_exporting_plaintext_to_storage));
+      exportProgressDialog.show();
+
+      EventBus.getDefault().register(ImportExportFragment.this);
     }
 
     @Override
@@ -263,8 +280,12 @@ public class ImportExportFragment extends Fragment {
     protected void onPostExecute(Integer result) {
       Context context = getActivity();
 
-      if (dialog != null)
-        dialog.dismiss();
+      EventBus.getDefault().unregister(ImportExportFragment.this);
+
+      if (exportProgressDialog != null) {
+        exportProgressDialog.dismiss();
+        exportProgressDialog = null;
+      }
 
       if (context == null)
         return;
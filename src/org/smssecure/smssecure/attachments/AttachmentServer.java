@@ -110,6 +110,7 @@ public class AttachmentServer implements Runnable {
     private final @NonNull String auth;
 
     private long       cbSkip;
+    private long       cbEnd = -1;
     private Properties parameters;
     private Properties request;
     private Properties requestHeaders;
@@ -164,10 +165,12 @@ public class AttachmentServer implements Runnable {
         range = range.substring(6);
         int charPos = range.indexOf('-');
         if (charPos > 0) {
+          String end = range.substring(charPos + 1).trim();
+          if (end.length() > 0) cbEnd = Long.parseLong(end);
           range = range.substring(0, charPos);
         }
         cbSkip = Long.parseLong(range);
-        Log.i(TAG, "range found!! " + cbSkip);
+        Log.i(TAG, "range found!! " + cbSkip + "-" + cbEnd);
       }
 
       if (!"GET".equals(request.get("method"))) {
@@ -188,17 +191,25 @@ public class AttachmentServer implements Runnable {
     }
 
     protected void execute() throws IOException {
+      long fileSize  = attachment.getSize();
+      long lastByte  = cbEnd >= 0 && cbEnd < fileSize ? cbEnd : fileSize - 1;
+      long remaining = lastByte - cbSkip + 1;
+
+      if (cbSkip > lastByte && (cbSkip > 0 || fileSize > 0)) {
+        sendRangeNotSatisfiable(fileSize);
+        return;
+      }
+
       InputStream inputStream = PartAuthority.getAttachmentStream(context, masterSecret, attachment.getDataUri());
-      long        fileSize    = attachment.getSize();
 
       String headers = "";
-      if (cbSkip > 0) {// It is a seek or skip request if there's a Range
+      if (cbSkip > 0 || lastByte < fileSize - 1) {// It is a seek or skip request if there's a Range
         // header
         headers += "HTTP/1.1 206 Partial Content\r\n";
         headers += "Content-Type: " + attachment.getContentType() + "\r\n";
         headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + (fileSize - cbSkip) + "\r\n";
-        headers += "Content-Range: bytes " + cbSkip + "-" + (fileSize - 1) + "/" + fileSize + "\r\n";
+        headers += "Content-Length: " + remaining + "\r\n";
+        headers += "Content-Range: bytes " + cbSkip + "-" + lastByte + "/" + fileSize + "\r\n";
         headers += "Connection: Keep-Alive\r\n";
         headers += "\r\n";
       } else {
@@ -218,13 +229,16 @@ public class AttachmentServer implements Runnable {
         output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
         output.write(headers.getBytes());
 
+        // DecryptingPartInputStream seeks directly to the requested block
         inputStream.skip(cbSkip);
-//        dataSource.skipFully(data, cbSkip);//try to skip as much as possible
 
         // Loop as long as there's stuff to send and client has not closed
         int cbRead;
-        while (!client.isClosed() && (cbRead = inputStream.read(buff, 0, buff.length)) != -1) {
+        while (!client.isClosed() && remaining > 0 &&
+               (cbRead = inputStream.read(buff, 0, (int)Math.min(buff.length, remaining))) != -1)
+        {
           output.write(buff, 0, cbRead);
+          remaining -= cbRead;
         }
       }
       catch (SocketException socketException) {
@@ -249,6 +263,22 @@ public class AttachmentServer implements Runnable {
       }
     }
 
+    private void sendRangeNotSatisfiable(long fileSize) throws IOException {
+      Log.w(TAG, "Range " + cbSkip + "-" + cbEnd + " not satisfiable for " + fileSize + " bytes");
+
+      String headers = "HTTP/1.1 416 Range Not Satisfiable\r\n" +
+                       "Content-Range: bytes */" + fileSize + "\r\n" +
+                       "Content-Length: 0\r\n" +
+                       "Connection: close\r\n" +
+                       "\r\n";
+
+      try {
+        client.getOutputStream().write(headers.getBytes());
+      } finally {
+        client.close();
+      }
+    }
+
     /**
      * Find byte index separating header from body. It must be the last byte of
      * the first two sequential new lines.
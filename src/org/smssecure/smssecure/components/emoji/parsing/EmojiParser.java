@@ -24,11 +24,16 @@ package org.smssecure.smssecure.components.emoji.parsing;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Based in part on code from emoji-java
+ *
+ * Finds the longest emoji at each position in one left-to-right pass over
+ * the text. Characters that can't start an emoji are skipped with a single
+ * lookup, and a match attempt walks the trie at most as far as the longest
+ * emoji before the scan resumes after it.
  */
 public class EmojiParser {
 
@@ -39,48 +44,54 @@ public class EmojiParser {
   }
 
   public @NonNull List<Candidate> findCandidates(@Nullable CharSequence text) {
-    List<Candidate> results = new LinkedList<>();
+    List<Candidate> results = new ArrayList<>();
 
     if (text == null) return results;
 
-    for (int i = 0; i < text.length(); i++) {
-      int emojiEnd = getEmojiEndPos(text, i);
+    int length = text.length();
+    int i      = 0;
 
-      if (emojiEnd != -1) {
-        EmojiDrawInfo drawInfo = emojiTree.getEmoji(text, i, emojiEnd);
+    while (i < length) {
+      if (!emojiTree.isEmojiStart(text.charAt(i))) {
+        i++;
+        continue;
+      }
 
-        if (emojiEnd + 2 <= text.length()) {
-          if (Fitzpatrick.fitzpatrickFromUnicode(text, emojiEnd) != null) {
-            emojiEnd += 2;
-          }
-        }
+      int           node     = EmojiTree.ROOT;
+      int           emojiEnd = -1;
+      EmojiDrawInfo drawInfo = null;
 
-        results.add(new Candidate(i, emojiEnd, drawInfo));
+      for (int j = i; j < length; j++) {
+        node = emojiTree.getChild(node, text.charAt(j));
 
-        i = emojiEnd - 1;
-      }
-    }
+        if (node == EmojiTree.NO_NODE) break;
 
-    return results;
-  }
+        EmojiDrawInfo match = emojiTree.getEmoji(node);
 
-  private int getEmojiEndPos(CharSequence text, int startPos) {
-    int best = -1;
+        if (match != null) {
+          emojiEnd = j + 1;
+          drawInfo = match;
+        }
+      }
 
-    for (int j = startPos + 1; j <= text.length(); j++) {
-      EmojiTree.Matches status = emojiTree.isEmoji(text, startPos, j);
+      if (emojiEnd == -1) {
+        i++;
+        continue;
+      }
 
-      if (status.exactMatch()) {
-        best = j;
-      } else if (status.impossibleMatch()) {
-        return best;
+      if (emojiEnd + 2 <= text.length() && Fitzpatrick.fitzpatrickFromUnicode(text, emojiEnd) != null) {
+        emojiEnd += 2;
       }
+
+      results.add(new Candidate(i, emojiEnd, drawInfo));
+
+      i = emojiEnd;
     }
 
-    return best;
+    return results;
   }
 
-  public class Candidate {
+  public static class Candidate {
 
     private final int           startIndex;
     private final int           endIndex;
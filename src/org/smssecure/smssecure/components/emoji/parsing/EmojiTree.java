@@ -22,107 +22,128 @@ package org.smssecure.smssecure.components.emoji.parsing;
 
 import android.support.annotation.Nullable;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Based in part on code from emoji-java
+ *
+ * The trie is packed into arrays indexed by node: the children of a node are
+ * kept as a sorted char array with a parallel array of child nodes, so a step
+ * is a binary search without any boxing. A bitmap over the first character
+ * of every emoji lets the parser reject ordinary text in constant time.
  */
 public class EmojiTree {
 
-  private final EmojiTreeNode root = new EmojiTreeNode();
+  static final int ROOT    = 0;
+  static final int NO_NODE = -1;
+
+  private final long[] firstChars = new long[(Character.MAX_VALUE + 1) / 64];
+
+  private char[][]        childChars = new char[256][];
+  private int[][]         childNodes = new int[256][];
+  private EmojiDrawInfo[] emoji      = new EmojiDrawInfo[256];
+  private int             nodeCount  = 1;
 
   public void add(String emojiEncoding, EmojiDrawInfo emoji) {
-    EmojiTreeNode tree = root;
+    if (emojiEncoding.isEmpty()) return;
 
-    for (char c: emojiEncoding.toCharArray()) {
-      if (!tree.hasChild(c)) {
-        tree.addChild(c);
-      }
+    int node = ROOT;
 
-      tree = tree.getChild(c);
-    }
+    for (int i = 0; i < emojiEncoding.length(); i++) {
+      char c     = emojiEncoding.charAt(i);
+      int  child = getChild(node, c);
 
-    tree.setEmoji(emoji);
-  }
+      if (child == NO_NODE) {
+        child = addChild(node, c);
+      }
 
-  public Matches isEmoji(CharSequence sequence, int startPosition, int endPosition) {
-    if (sequence == null) {
-      return Matches.POSSIBLY;
+      node = child;
     }
 
-    EmojiTreeNode tree = root;
+    char first = emojiEncoding.charAt(0);
+    firstChars[first >>> 6] |= 1L << first;
 
-    for (int i=startPosition; i<endPosition; i++) {
-      char character = sequence.charAt(i);
+    this.emoji[node] = emoji;
+  }
 
-      if (!tree.hasChild(character)) {
-        return Matches.IMPOSSIBLE;
-      }
+  public @Nullable EmojiDrawInfo getEmoji(CharSequence unicode, int startPosition, int endPosition) {
+    int node = ROOT;
 
-      tree = tree.getChild(character);
+    for (int i = startPosition; i < endPosition && node != NO_NODE; i++) {
+      node = getChild(node, unicode.charAt(i));
     }
 
-    return tree.isEndOfEmoji() ? Matches.EXACTLY : Matches.POSSIBLY;
+    return node != NO_NODE ? emoji[node] : null;
   }
 
-  public @Nullable EmojiDrawInfo getEmoji(CharSequence unicode, int startPosition, int endPostiion) {
-    EmojiTreeNode tree = root;
+  boolean isEmojiStart(char c) {
+    return (firstChars[c >>> 6] & (1L << c)) != 0;
+  }
 
-    for (int i=startPosition; i<endPostiion; i++) {
-      char character = unicode.charAt(i);
+  /**
+   * @return the child of node reached by c, or {@link #NO_NODE}.
+   */
+  int getChild(int node, char c) {
+    char[] chars = childChars[node];
 
-      if (!tree.hasChild(character)) {
-        return null;
-      }
+    if (chars == null) return NO_NODE;
 
-      tree = tree.getChild(character);
-    }
+    int low  = 0;
+    int high = chars.length - 1;
 
-    return tree.getEmoji();
-  }
+    while (low <= high) {
+      int  middle = (low + high) >>> 1;
+      char value  = chars[middle];
 
+      if      (value < c) low  = middle + 1;
+      else if (value > c) high = middle - 1;
+      else                return childNodes[node][middle];
+    }
 
-  private static class EmojiTreeNode {
+    return NO_NODE;
+  }
 
-    private Map<Character, EmojiTreeNode> children = new HashMap<>();
-    private EmojiDrawInfo emoji;
+  /**
+   * @return the emoji that ends at node, or null if it is only a prefix.
+   */
+  @Nullable EmojiDrawInfo getEmoji(int node) {
+    return emoji[node];
+  }
 
-    public void setEmoji(EmojiDrawInfo emoji) {
-      this.emoji = emoji;
-    }
+  private int addChild(int node, char c) {
+    if (nodeCount == emoji.length) {
+      int capacity = emoji.length * 2;
 
-    public @Nullable EmojiDrawInfo getEmoji() {
-      return emoji;
+      childChars = Arrays.copyOf(childChars, capacity);
+      childNodes = Arrays.copyOf(childNodes, capacity);
+      emoji      = Arrays.copyOf(emoji, capacity);
     }
 
-    boolean hasChild(char child) {
-      return children.containsKey(child);
-    }
+    int    child    = nodeCount++;
+    char[] chars    = childChars[node];
+    int[]  nodes    = childNodes[node];
+    int    count    = chars == null ? 0 : chars.length;
+    int    position = 0;
 
-    void addChild(char child) {
-      children.put(child, new EmojiTreeNode());
-    }
+    while (position < count && chars[position] < c) position++;
 
-    EmojiTreeNode getChild(char child) {
-      return children.get(child);
-    }
+    char[] newChars = new char[count + 1];
+    int[]  newNodes = new int[count + 1];
 
-    boolean isEndOfEmoji() {
-      return emoji != null;
+    if (count > 0) {
+      System.arraycopy(chars, 0, newChars, 0, position);
+      System.arraycopy(nodes, 0, newNodes, 0, position);
+      System.arraycopy(chars, position, newChars, position + 1, count - position);
+      System.arraycopy(nodes, position, newNodes, position + 1, count - position);
     }
-  }
 
-  public enum Matches {
-    EXACTLY, POSSIBLY, IMPOSSIBLE;
+    newChars[position] = c;
+    newNodes[position] = child;
 
-    public boolean exactMatch() {
-      return this == EXACTLY;
-    }
+    childChars[node] = newChars;
+    childNodes[node] = newNodes;
 
-    public boolean impossibleMatch() {
-      return this == IMPOSSIBLE;
-    }
+    return child;
   }
 
 }
@@ -0,0 +1,201 @@
+package org.smssecure.smssecure.crypto;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Encoding for the version 2 on-disk "part" format.
+ *
+ * The format is:
+ *
+ * 1) A 12 byte header: magic, version and plaintext chunk size.
+ * 2) One or more chunk records, each of which is:
+ *    a) 16 byte random IV.
+ *    b) AES-CBC(chunk plaintext)
+ *    c) HMAC-SHA1 of the header, the chunk index, a last-chunk flag, a and b.
+ *
+ * Every chunk except the last holds exactly chunk-size bytes of plaintext, so
+ * chunk records have a fixed length and can be located, authenticated and
+ * decrypted independently.  The last chunk is always flagged, which detects
+ * truncation at a chunk boundary.
+ */
+class ChunkedPartCodec {
+
+  static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+  static final int HEADER_LENGTH      = 12;
+
+  private static final int MAGIC      = 0x53505254;
+  private static final int VERSION    = 2;
+  private static final int IV_LENGTH  = 16;
+  private static final int MAC_LENGTH = 20;
+
+  private static final ThreadLocal<CipherState> cipherState = new ThreadLocal<CipherState>() {
+    @Override
+    protected CipherState initialValue() {
+      return new CipherState();
+    }
+  };
+
+  private final MasterSecret masterSecret;
+  private final byte[]       header;
+  private final int          chunkSize;
+
+  ChunkedPartCodec(@NonNull MasterSecret masterSecret, int chunkSize) {
+    this.masterSecret = masterSecret;
+    this.chunkSize    = chunkSize;
+    this.header       = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(VERSION).putInt(chunkSize).array();
+  }
+
+  static boolean isChunkedPart(@NonNull File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+
+    try {
+      return readChunkSize(in) > 0;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads a header from the start of {@code in}.
+   *
+   * @return The chunk size, or -1 if the stream doesn't start with a version 2 header.
+   */
+  static int readChunkSize(@NonNull InputStream in) throws IOException {
+    byte[] header = new byte[HEADER_LENGTH];
+    int    offset = 0;
+
+    while (offset < header.length) {
+      int read = in.read(header, offset, header.length - offset);
+
+      if (read == -1) return -1;
+      offset += read;
+    }
+
+    return parseChunkSize(header);
+  }
+
+  static int parseChunkSize(@NonNull byte[] header) {
+    ByteBuffer buffer    = ByteBuffer.wrap(header);
+    int        magic     = buffer.getInt();
+    int        version   = buffer.getInt();
+    int        chunkSize = buffer.getInt();
+
+    if (magic != MAGIC || version != VERSION) return -1;
+    if (chunkSize <= 0 || chunkSize % IV_LENGTH != 0) return -1;
+
+    return chunkSize;
+  }
+
+  byte[] getHeader() {
+    return header.clone();
+  }
+
+  int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * @return The length of a full chunk record on disk.
+   */
+  int getRecordLength() {
+    return IV_LENGTH + chunkSize + IV_LENGTH + MAC_LENGTH;
+  }
+
+  long getRecordOffset(long chunkIndex) {
+    return HEADER_LENGTH + chunkIndex * getRecordLength();
+  }
+
+  byte[] encryptChunk(long chunkIndex, boolean last, byte[] plaintext, int length) throws IOException {
+    try {
+      CipherState state  = cipherState.get();
+      Cipher      cipher = state.encryptingCipher;
+      Mac         mac    = state.hmac;
+
+      cipher.init(Cipher.ENCRYPT_MODE, masterSecret.getEncryptionKey());
+      mac.init(masterSecret.getMacKey());
+
+      byte[] iv     = cipher.getIV();
+      byte[] record = new byte[IV_LENGTH + cipher.getOutputSize(length) + MAC_LENGTH];
+
+      System.arraycopy(iv, 0, record, 0, IV_LENGTH);
+      int encrypted = cipher.doFinal(plaintext, 0, length, record, IV_LENGTH);
+
+      updateMacPrefix(mac, chunkIndex, last);
+      mac.update(record, 0, IV_LENGTH + encrypted);
+      mac.doFinal(record, IV_LENGTH + encrypted);
+
+      return record;
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Authenticates and decrypts a single chunk record.
+   *
+   * @return The chunk's plaintext.
+   */
+  byte[] decryptChunk(long chunkIndex, boolean last, byte[] record, int length) throws IOException {
+    if (length < IV_LENGTH + IV_LENGTH + MAC_LENGTH) {
+      throw new IOException("Chunk shorter than crypto overhead!");
+    }
+
+    try {
+      CipherState state  = cipherState.get();
+      Cipher      cipher = state.decryptingCipher;
+      Mac         mac    = state.hmac;
+
+      mac.init(masterSecret.getMacKey());
+      updateMacPrefix(mac, chunkIndex, last);
+      mac.update(record, 0, length - MAC_LENGTH);
+
+      byte[] ourMac   = mac.doFinal();
+      byte[] theirMac = new byte[MAC_LENGTH];
+      System.arraycopy(record, length - MAC_LENGTH, theirMac, 0, MAC_LENGTH);
+
+      if (!MessageDigest.isEqual(ourMac, theirMac)) {
+        throw new IOException("MAC doesn't match on chunk " + chunkIndex + "! Potential tampering?");
+      }
+
+      cipher.init(Cipher.DECRYPT_MODE, masterSecret.getEncryptionKey(), new IvParameterSpec(record, 0, IV_LENGTH));
+      return cipher.doFinal(record, IV_LENGTH, length - IV_LENGTH - MAC_LENGTH);
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private void updateMacPrefix(Mac mac, long chunkIndex, boolean last) {
+    mac.update(header);
+    mac.update(ByteBuffer.allocate(9).putLong(chunkIndex).put((byte)(last ? 1 : 0)).array());
+  }
+
+  private static class CipherState {
+    private final Cipher encryptingCipher;
+    private final Cipher decryptingCipher;
+    private final Mac    hmac;
+
+    private CipherState() {
+      try {
+        this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        this.hmac             = Mac.getInstance("HmacSHA1");
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
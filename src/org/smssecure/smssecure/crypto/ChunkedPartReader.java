@@ -0,0 +1,169 @@
+package org.smssecure.smssecure.crypto;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads plaintext out of a version 2 chunked part.  The next few chunks are
+ * read, authenticated and decrypted ahead of the consumer on a shared
+ * worker pool, and a seek only needs to decrypt the chunk it lands in.
+ */
+class ChunkedPartReader {
+
+  private static final int READ_AHEAD   = 3;
+  private static final int THREAD_COUNT = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 3));
+
+  private static final ExecutorService executor;
+
+  static {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 30, TimeUnit.SECONDS,
+                                                     new LinkedBlockingQueue<Runnable>(),
+                                                     new ThreadFactory() {
+                                                       @Override
+                                                       public Thread newThread(@NonNull Runnable runnable) {
+                                                         Thread thread = new Thread(runnable, "ChunkedPartReader");
+                                                         thread.setDaemon(true);
+                                                         return thread;
+                                                       }
+                                                     });
+    pool.allowCoreThreadTimeOut(true);
+    executor = pool;
+  }
+
+  private final FileChannel                channel;
+  private final ChunkedPartCodec           codec;
+  private final long                       fileLength;
+  private final long                       chunkCount;
+  private final LinkedList<Future<byte[]>> pending = new LinkedList<>();
+
+  private long   nextChunk;
+  private long   scheduledChunk;
+  private byte[] current;
+  private int    currentOffset;
+  private long   position;
+
+  ChunkedPartReader(@NonNull FileChannel channel, @NonNull ChunkedPartCodec codec, long fileLength)
+      throws IOException
+  {
+    this.channel    = channel;
+    this.codec      = codec;
+    this.fileLength = fileLength;
+
+    long dataLength = fileLength - ChunkedPartCodec.HEADER_LENGTH;
+    this.chunkCount = (dataLength + codec.getRecordLength() - 1) / codec.getRecordLength();
+
+    if (chunkCount <= 0) {
+      throw new IOException("Chunked part has no chunks!");
+    }
+  }
+
+  int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+
+    while (current == null || currentOffset == current.length) {
+      if (nextChunk >= chunkCount) return -1;
+
+      current       = takeChunk();
+      currentOffset = 0;
+    }
+
+    int copied = Math.min(length, current.length - currentOffset);
+    System.arraycopy(current, currentOffset, buffer, offset, copied);
+
+    currentOffset += copied;
+    position      += copied;
+
+    return copied;
+  }
+
+  long getPosition() {
+    return position;
+  }
+
+  void seek(long plaintextOffset) throws IOException {
+    long target     = Math.max(0, plaintextOffset);
+    long chunkIndex = target / codec.getChunkSize();
+
+    cancelPending();
+
+    if (chunkIndex >= chunkCount) {
+      nextChunk      = chunkCount;
+      scheduledChunk = chunkCount;
+      current        = null;
+      position       = target;
+      return;
+    }
+
+    nextChunk      = chunkIndex;
+    scheduledChunk = chunkIndex;
+    current        = takeChunk();
+    currentOffset  = (int)Math.min(target - chunkIndex * codec.getChunkSize(), current.length);
+    position       = chunkIndex * codec.getChunkSize() + currentOffset;
+  }
+
+  void close() {
+    cancelPending();
+  }
+
+  private byte[] takeChunk() throws IOException {
+    while (scheduledChunk < chunkCount && scheduledChunk < nextChunk + READ_AHEAD) {
+      pending.add(executor.submit(new ChunkCallable(scheduledChunk++)));
+    }
+
+    Future<byte[]> future = pending.removeFirst();
+    nextChunk++;
+
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+      else                                     throw new IOException(e.getCause());
+    }
+  }
+
+  private void cancelPending() {
+    for (Future<byte[]> future : pending) {
+      future.cancel(false);
+    }
+
+    pending.clear();
+  }
+
+  private class ChunkCallable implements Callable<byte[]> {
+
+    private final long chunkIndex;
+
+    private ChunkCallable(long chunkIndex) {
+      this.chunkIndex = chunkIndex;
+    }
+
+    @Override
+    public byte[] call() throws IOException {
+      long       recordOffset = codec.getRecordOffset(chunkIndex);
+      int        recordLength = (int)Math.min(codec.getRecordLength(), fileLength - recordOffset);
+      ByteBuffer record       = ByteBuffer.allocate(recordLength);
+
+      while (record.hasRemaining()) {
+        if (channel.read(record, recordOffset + record.position()) == -1) {
+          throw new IOException("Unexpected end of chunked part!");
+        }
+      }
+
+      return codec.decryptChunk(chunkIndex, chunkIndex == chunkCount - 1, record.array(), recordLength);
+    }
+  }
+}
@@ -20,10 +20,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.lang.System;
 
 import javax.crypto.BadPaddingException;
@@ -40,6 +43,23 @@ import android.util.Log;
 /**
  * Class for streaming an encrypted MMS "part" off the disk.
  *
+ * Both the chunked format written by {@link EncryptingPartOutputStream}
+ * (see {@link ChunkedPartCodec}) and the original single-stream format are
+ * understood, and the format is detected from the file's header.  Chunked
+ * parts are authenticated chunk by chunk and decrypted ahead of the reader
+ * in parallel.  The rest of this comment applies to the original format.
+ *
+ * The stream supports cheap random access: {@link #skip(long)} and
+ * {@link #seek(long)} reposition the underlying file at the ciphertext
+ * block containing the target offset and re-key the cipher with the
+ * preceding ciphertext block as IV, so a seek costs at most one block of
+ * throwaway decryption.  Since the MAC covers the whole file, a stream that
+ * reads from the start checks it at the end, while the first seek past the
+ * first block checks it up front with a single pass over the ciphertext.
+ * Parts whose MAC has been checked are remembered by path, length and
+ * modification time, so that the streams opened for later range requests
+ * on the same part don't check it again.
+ *
  * @author Moxie Marlinspike
  */
 
@@ -50,25 +70,51 @@ public class DecryptingPartInputStream extends FileInputStream {
   private static final int IV_LENGTH  = 16;
   private static final int MAC_LENGTH = 20;
 
+  private static final int MAX_VERIFIED_PARTS = 64;
+
+  private static final Map<String, Boolean> verifiedParts = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+      return size() > MAX_VERIFIED_PARTS;
+    }
+  };
+
+  private final SecretKeySpec     encryptionKey;
+  private final ChunkedPartReader chunkedReader;
+  private final String            partKey;
+
   private Cipher cipher;
   private Mac mac;
 
   private boolean done;
+  private boolean verifyMac;
+  private boolean macVerified;
   private long totalDataSize;
   private long totalRead;
+  private long position;
   private byte[] overflowBuffer;
 
   public DecryptingPartInputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
     super(file);
     try {
+      chunkedReader = getChunkedReader(file, masterSecret);
+      encryptionKey = masterSecret.getEncryptionKey();
+      partKey       = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+
+      if (chunkedReader != null) {
+        return;
+      }
+
       if (file.length() <= IV_LENGTH + MAC_LENGTH)
         throw new FileNotFoundException("Part shorter than crypto overhead!");
 
       done          = false;
+      verifyMac     = true;
       mac           = initializeMac(masterSecret.getMacKey());
       cipher        = initializeCipher(masterSecret.getEncryptionKey());
       totalDataSize = file.length() - cipher.getBlockSize() - mac.getMacLength();
       totalRead     = 0;
+      position      = 0;
     } catch (InvalidKeyException ike) {
       Log.w(TAG, ike);
       throw new FileNotFoundException("Invalid key!");
@@ -80,6 +126,16 @@ public class DecryptingPartInputStream extends FileInputStream {
     }
   }
 
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int    read;
+
+    while ((read = read(buffer, 0, 1)) == 0);
+
+    return read == -1 ? -1 : buffer[0] & 0xff;
+  }
+
   @Override
   public int read(byte[] buffer) throws IOException {
     return read(buffer, 0, buffer.length);
@@ -87,12 +143,23 @@ public class DecryptingPartInputStream extends FileInputStream {
 
   @Override
   public int read(byte[] buffer, int offset, int length) throws IOException {
-    if (totalRead != totalDataSize)
-      return readIncremental(buffer, offset, length);
+    if (chunkedReader != null) {
+      return chunkedReader.read(buffer, offset, length);
+    }
+
+    int read;
+
+    if (overflowBuffer != null)
+      read = readOverflow(buffer, offset, length);
+    else if (totalRead != totalDataSize)
+      read = readIncremental(buffer, offset, length);
     else if (!done)
-      return readFinal(buffer, offset, length);
+      read = readFinal(buffer, offset, length);
     else
       return -1;
+
+    position += read;
+    return read;
   }
 
   @Override
@@ -102,37 +169,198 @@ public class DecryptingPartInputStream extends FileInputStream {
 
   @Override
   public long skip(long byteCount) throws IOException {
-    long skipped = 0L;
-    while (skipped < byteCount) {
-      byte[] buf  = new byte[Math.min(4096, (int)(byteCount-skipped))];
-      int    read = read(buf);
+    if (byteCount <= 0) return 0;
+
+    long start = getPosition();
+    seek(start + byteCount);
+
+    return getPosition() - start;
+  }
+
+  /**
+   * Repositions the stream at the given plaintext offset, decrypting at most
+   * one cipher block to get there.
+   */
+  public void seek(long plaintextOffset) throws IOException {
+    if (chunkedReader != null) {
+      chunkedReader.seek(plaintextOffset);
+      return;
+    }
+
+    int  blockSize    = cipher.getBlockSize();
+    long target       = Math.max(0, Math.min(plaintextOffset, totalDataSize));
+    long blockIndex   = target / blockSize;
+    long cipherOffset = blockIndex * blockSize;
+
+    if (blockIndex == 0 && position == 0 && !done) {
+      discard(target);
+      return;
+    }
+
+    try {
+      byte[] iv = new byte[blockSize];
+
+      getChannel().position(IV_LENGTH + cipherOffset - blockSize);
+      readFully(iv);
+
+      cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+
+      if (blockIndex == 0) {
+        mac.reset();
+        mac.update(iv);
+        verifyMac = true;
+      } else {
+        verifyWholeMac();
+        verifyMac = false;
+      }
+
+      totalRead      = cipherOffset;
+      position       = cipherOffset;
+      overflowBuffer = null;
+      done           = false;
+
+      discard(target - cipherOffset);
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (chunkedReader != null) chunkedReader.close();
+    super.close();
+  }
+
+  /**
+   * @return true if the part at {@code file} is in the original single-stream format.
+   */
+  public static boolean isLegacyFormat(File file) throws IOException {
+    return !ChunkedPartCodec.isChunkedPart(file);
+  }
 
-      skipped += read;
+  private long getPosition() {
+    return chunkedReader != null ? chunkedReader.getPosition() : position;
+  }
+
+  private ChunkedPartReader getChunkedReader(File file, MasterSecret masterSecret) throws IOException {
+    long fileLength = file.length();
+
+    if (fileLength > ChunkedPartCodec.HEADER_LENGTH) {
+      byte[] header = new byte[ChunkedPartCodec.HEADER_LENGTH];
+      readFully(header);
+
+      int chunkSize = ChunkedPartCodec.parseChunkSize(header);
+
+      if (chunkSize > 0) {
+        return new ChunkedPartReader(getChannel(), new ChunkedPartCodec(masterSecret, chunkSize), fileLength);
+      }
+
+      getChannel().position(0);
     }
 
-    return skipped;
+    return null;
+  }
+
+  private void discard(long byteCount) throws IOException {
+    byte[] buffer = new byte[Math.min(4096, (int)Math.max(byteCount, 1))];
+
+    while (byteCount > 0) {
+      int read = read(buffer, 0, (int)Math.min(buffer.length, byteCount));
+
+      if (read == -1) return;
+      byteCount -= read;
+    }
+  }
+
+  /**
+   * Checks the MAC over the IV and all of the ciphertext without moving the
+   * stream, so that reads after a seek are covered by it too.
+   */
+  private void verifyWholeMac() throws IOException {
+    if (macVerified) return;
+
+    synchronized (verifiedParts) {
+      if (verifiedParts.containsKey(partKey)) {
+        macVerified = true;
+        return;
+      }
+    }
+
+    ByteBuffer buffer   = ByteBuffer.allocate(4096);
+    long       macStart = IV_LENGTH + totalDataSize;
+    long       offset   = 0;
+
+    mac.reset();
+
+    while (offset < macStart) {
+      buffer.clear();
+      buffer.limit((int)Math.min(buffer.capacity(), macStart - offset));
+
+      int read = getChannel().read(buffer, offset);
+      if (read == -1) throw new IOException("Part truncated!");
+
+      mac.update(buffer.array(), 0, read);
+      offset += read;
+    }
+
+    ByteBuffer theirMac = ByteBuffer.allocate(mac.getMacLength());
+
+    while (theirMac.hasRemaining()) {
+      if (getChannel().read(theirMac, macStart + theirMac.position()) == -1) {
+        throw new IOException("Part truncated!");
+      }
+    }
+
+    if (!Arrays.equals(mac.doFinal(), theirMac.array()))
+      throw new IOException("MAC doesn't match! Potential tampering?");
+
+    setMacVerified();
+  }
+
+  private void setMacVerified() {
+    macVerified = true;
+
+    synchronized (verifiedParts) {
+      verifiedParts.put(partKey, true);
+    }
+  }
+
+  private int readOverflow(byte[] buffer, int offset, int length) {
+    int copied = Math.min(length, overflowBuffer.length);
+    System.arraycopy(overflowBuffer, 0, buffer, offset, copied);
+
+    if (copied == overflowBuffer.length) overflowBuffer = null;
+    else                                 overflowBuffer = Arrays.copyOfRange(overflowBuffer, copied, overflowBuffer.length);
+
+    return copied;
   }
 
   private int readFinal(byte[] buffer, int offset, int length) throws IOException {
     try {
-      int flourish = cipher.doFinal(buffer, offset);
-      //mac.update(buffer, offset, flourish);
+      byte[] flourish = cipher.doFinal();
 
       byte[] ourMac   = mac.doFinal();
       byte[] theirMac = new byte[mac.getMacLength()];
       readFully(theirMac);
 
-      if (!Arrays.equals(ourMac, theirMac))
+      if (verifyMac && !Arrays.equals(ourMac, theirMac))
         throw new IOException("MAC doesn't match! Potential tampering?");
 
+      if (verifyMac) setMacVerified();
+
       done = true;
-      return flourish;
+
+      int copied = Math.min(length, flourish.length);
+      System.arraycopy(flourish, 0, buffer, offset, copied);
+
+      if (copied < flourish.length) {
+        overflowBuffer = Arrays.copyOfRange(flourish, copied, flourish.length);
+      }
+
+      return copied;
     } catch (IllegalBlockSizeException e) {
       Log.w(TAG, e);
       throw new IOException("Illegal block size exception!");
-    } catch (ShortBufferException e) {
-      Log.w(TAG, e);
-      throw new IOException("Short buffer exception!");
     } catch (BadPaddingException e) {
       Log.w(TAG, e);
       throw new IOException("Bad padding exception!");
@@ -20,49 +20,53 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
 
 import android.util.Log;
 
 /**
  * A class for streaming an encrypted MMS "part" to disk.
  *
+ * Parts are written in the chunked format described in {@link ChunkedPartCodec},
+ * which {@link DecryptingPartInputStream} reads alongside the original
+ * single-stream format.
+ *
  * @author Moxie Marlinspike
  */
 
 public class EncryptingPartOutputStream extends FileOutputStream {
 
-  private Cipher cipher;
-  private Mac mac;
+  private final ChunkedPartCodec codec;
+  private final byte[]           chunk;
+
+  private int     chunkLength;
+  private long    chunkIndex;
   private boolean closed;
 
   public EncryptingPartOutputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
+    this(file, masterSecret, ChunkedPartCodec.DEFAULT_CHUNK_SIZE);
+  }
+
+  EncryptingPartOutputStream(File file, MasterSecret masterSecret, int chunkSize) throws FileNotFoundException {
     super(file);
 
     try {
-      mac    = initializeMac(masterSecret.getMacKey());
-      cipher = initializeCipher(mac, masterSecret.getEncryptionKey());
+      codec  = new ChunkedPartCodec(masterSecret, chunkSize);
+      chunk  = new byte[chunkSize];
       closed = false;
+
+      byte[] header = codec.getHeader();
+      super.write(header, 0, header.length);
     } catch (IOException ioe) {
       Log.w("EncryptingPartOutputStream", ioe);
-      throw new FileNotFoundException("Couldn't write IV");
-    } catch (InvalidKeyException e) {
-      throw new AssertionError(e);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (NoSuchPaddingException e) {
-      throw new AssertionError(e);
+      throw new FileNotFoundException("Couldn't write header");
     }
   }
 
+  @Override
+  public void write(int oneByte) throws IOException {
+    write(new byte[] {(byte)oneByte}, 0, 1);
+  }
+
   @Override
   public void write(byte[] buffer) throws IOException {
     this.write(buffer, 0, buffer.length);
@@ -70,53 +74,35 @@ public class EncryptingPartOutputStream extends FileOutputStream {
 
   @Override
   public void write(byte[] buffer, int offset, int length) throws IOException {
-    byte[] encryptedBuffer = cipher.update(buffer, offset, length);
+    while (length > 0) {
+      if (chunkLength == chunk.length) {
+        writeChunk(false);
+      }
 
-    if (encryptedBuffer != null) {
-      mac.update(encryptedBuffer);
-      super.write(encryptedBuffer, 0, encryptedBuffer.length);
+      int copied = Math.min(length, chunk.length - chunkLength);
+      System.arraycopy(buffer, offset, chunk, chunkLength, copied);
+
+      chunkLength += copied;
+      offset      += copied;
+      length      -= copied;
     }
   }
 
   @Override
   public void close() throws IOException {
-    try {
-      if (!closed) {
-        byte[] encryptedRemainder = cipher.doFinal();
-        mac.update(encryptedRemainder);
-
-        byte[] macBytes = mac.doFinal();
-
-        super.write(encryptedRemainder, 0, encryptedRemainder.length);
-        super.write(macBytes, 0, macBytes.length);
-
-        closed = true;
-      }
-
-      super.close();
-    } catch (BadPaddingException bpe) {
-      throw new AssertionError(bpe);
-    } catch (IllegalBlockSizeException e) {
-      throw new AssertionError(e);
+    if (!closed) {
+      writeChunk(true);
+      closed = true;
     }
-  }
 
-  private Mac initializeMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
-    Mac hmac = Mac.getInstance("HmacSHA1");
-    hmac.init(key);
-
-    return hmac;
+    super.close();
   }
 
-  private Cipher initializeCipher(Mac mac, SecretKeySpec key) throws IOException, InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
-    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    cipher.init(Cipher.ENCRYPT_MODE, key);
-
-    byte[] ivBytes = cipher.getIV();
-    mac.update(ivBytes);
-    super.write(ivBytes, 0, ivBytes.length);
+  private void writeChunk(boolean last) throws IOException {
+    byte[] record = codec.encryptChunk(chunkIndex++, last, chunk, chunkLength);
+    super.write(record, 0, record.length);
 
-    return cipher;
+    chunkLength = 0;
   }
 
 }
@@ -21,21 +21,18 @@ import android.support.annotation.NonNull;
 import android.util.Log;
 
 import org.smssecure.smssecure.util.Base64;
-import org.smssecure.smssecure.util.Hex;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECPrivateKey;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
@@ -50,25 +47,63 @@ import javax.crypto.spec.SecretKeySpec;
  * 2) AES-CBC(plaintext)
  * 3) HMAC-SHA1 of 1 and 2
  *
+ * Instances hold no mutable state of their own: the underlying Cipher and
+ * Mac objects are kept per-thread, so a single MasterCipher (see
+ * {@link #getInstance(MasterSecret)}) may be shared freely between threads.
+ * Clearing the instance retires every thread's Cipher and Mac, so none of
+ * them keeps using the old key material.
+ *
  * @author Moxie Marlinspike
  */
 
 public class MasterCipher {
 
+  private static final int BLOCK_SIZE = 16;
+
+  private static final AtomicInteger          generation  = new AtomicInteger();
+  private static final ThreadLocal<CipherState> cipherState = new ThreadLocal<>();
+
+  private static volatile MasterCipher cachedInstance;
+
   private final MasterSecret masterSecret;
-  private final Cipher encryptingCipher;
-  private final Cipher decryptingCipher;
-  private final Mac hmac;
 
   public MasterCipher(MasterSecret masterSecret) {
-    try {
-      this.masterSecret = masterSecret;
-      this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.hmac             = Mac.getInstance("HmacSHA1");
-    } catch (NoSuchPaddingException | NoSuchAlgorithmException nspe) {
-      throw new AssertionError(nspe);
+    this.masterSecret = masterSecret;
+  }
+
+  /**
+   * Returns a shared MasterCipher for the given secret, creating a new
+   * one only when the secret has changed since the last call.
+   */
+  public static MasterCipher getInstance(@NonNull MasterSecret masterSecret) {
+    MasterCipher instance = cachedInstance;
+
+    if (instance == null || instance.masterSecret != masterSecret) {
+      instance       = new MasterCipher(masterSecret);
+      cachedInstance = instance;
     }
+
+    return instance;
+  }
+
+  /**
+   * Drops the shared instance, called when the master secret is cleared.
+   */
+  public static void clearInstance() {
+    cachedInstance = null;
+    generation.incrementAndGet();
+    cipherState.remove();
+  }
+
+  private static CipherState getCipherState() {
+    CipherState state = cipherState.get();
+
+    if (state == null || state.generation != generation.get()) {
+      state = new CipherState(generation.get());
+      cipherState.set(state);
+    }
+
+    return state;
   }
 
   public byte[] encryptKey(ECPrivateKey privateKey) {
@@ -94,26 +129,90 @@ public class MasterCipher {
   }
 
   public byte[] decryptBytes(@NonNull byte[] decodedBody) throws InvalidMessageException {
+    byte[] output = new byte[getMaxDecryptedLength(decodedBody.length)];
+    int    length = decryptBytes(decodedBody, 0, decodedBody.length, output, 0);
+
+    if (length == output.length) return output;
+
+    byte[] trimmed = new byte[length];
+    System.arraycopy(output, 0, trimmed, 0, length);
+
+    return trimmed;
+  }
+
+  /**
+   * Verifies and decrypts {@code length} bytes of {@code input} starting at
+   * {@code offset} directly into {@code output}, without any intermediate
+   * copies of the ciphertext.
+   *
+   * @return The number of plaintext bytes written to {@code output}.
+   */
+  public int decryptBytes(@NonNull byte[] input, int offset, int length,
+                          @NonNull byte[] output, int outputOffset)
+      throws InvalidMessageException
+  {
     try {
-      Mac mac              = getMac(masterSecret.getMacKey());
-      byte[] encryptedBody = verifyMacBody(mac, decodedBody);
+      CipherState state         = getCipherState();
+      Mac         mac           = state.getMac(masterSecret.getMacKey());
+      int         macLength     = mac.getMacLength();
+
+      if (length < macLength) {
+        throw new InvalidMessageException("length(encrypted body + MAC) < length(MAC)");
+      }
+
+      int encryptedLength = length - macLength;
+
+      if (encryptedLength < BLOCK_SIZE) {
+        throw new InvalidMessageException("length(encrypted body) < length(IV)");
+      }
+
+      mac.update(input, offset, encryptedLength);
+      byte[] localMac = mac.doFinal();
+
+      if (!isEqual(localMac, input, offset + encryptedLength)) {
+        throw new InvalidMessageException("MAC doesen't match.");
+      }
 
-      Cipher cipher        = getDecryptingCipher(masterSecret.getEncryptionKey(), encryptedBody);
+      Cipher cipher = state.getDecryptingCipher(masterSecret.getEncryptionKey(), input, offset);
 
-      return getDecryptedBody(cipher, encryptedBody);
+      return cipher.doFinal(input, offset + BLOCK_SIZE, encryptedLength - BLOCK_SIZE, output, outputOffset);
     } catch (GeneralSecurityException ge) {
       throw new InvalidMessageException(ge);
     }
   }
 
+  /**
+   * @return An upper bound on the plaintext length for a ciphertext (IV + body + MAC)
+   *         of {@code encryptedLength} bytes, suitable for sizing a reusable output buffer.
+   */
+  public static int getMaxDecryptedLength(int encryptedLength) {
+    return Math.max(0, encryptedLength - BLOCK_SIZE);
+  }
+
   public byte[] encryptBytes(byte[] body) {
     try {
-      Cipher cipher              = getEncryptingCipher(masterSecret.getEncryptionKey());
-      Mac    mac                 = getMac(masterSecret.getMacKey());
+      CipherState state  = getCipherState();
+      Cipher      cipher = state.getEncryptingCipher(masterSecret.getEncryptionKey());
+      Mac         mac    = state.getMac(masterSecret.getMacKey());
+      byte[]      iv     = cipher.getIV();
+
+      int    encryptedLength = cipher.getOutputSize(body.length);
+      byte[] encryptedAndMac = new byte[iv.length + encryptedLength + mac.getMacLength()];
+
+      System.arraycopy(iv, 0, encryptedAndMac, 0, iv.length);
+      int bodyLength = cipher.doFinal(body, 0, body.length, encryptedAndMac, iv.length);
 
-      byte[] encryptedBody       = getEncryptedBody(cipher, body);
+      mac.update(encryptedAndMac, 0, iv.length + bodyLength);
+      mac.doFinal(encryptedAndMac, iv.length + bodyLength);
 
-      return getMacBody(mac, encryptedBody);
+      if (iv.length + bodyLength + mac.getMacLength() == encryptedAndMac.length) {
+        return encryptedAndMac;
+      }
+
+      byte[] trimmed = new byte[iv.length + bodyLength + mac.getMacLength()];
+      System.arraycopy(encryptedAndMac, 0, trimmed, 0, trimmed.length);
+
+      return trimmed;
     } catch (GeneralSecurityException ge) {
       Log.w("bodycipher", ge);
       return null;
@@ -123,15 +222,12 @@ public class MasterCipher {
 
   public boolean verifyMacFor(String content, byte[] theirMac) {
     byte[] ourMac = getMacFor(content);
-    Log.w("MasterCipher", "Our Mac: " + Hex.toString(ourMac));
-    Log.w("MasterCipher", "Thr Mac: " + Hex.toString(theirMac));
-    return Arrays.equals(ourMac, theirMac);
+    return MessageDigest.isEqual(ourMac, theirMac);
   }
 
   public byte[] getMacFor(String content) {
-    Log.w("MasterCipher", "Macing: " + content);
     try {
-      Mac mac = getMac(masterSecret.getMacKey());
+      Mac mac = getCipherState().getMac(masterSecret.getMacKey());
       return mac.doFinal(content.getBytes());
     } catch (GeneralSecurityException ike) {
       throw new AssertionError(ike);
@@ -148,74 +244,73 @@ public class MasterCipher {
   }
 
   private String encryptAndEncodeBytes(byte[] bytes) {
-    byte[] encryptedAndMacBody = encryptBytes(bytes);
-    return Base64.encodeBytes(encryptedAndMacBody);
-  }
-
-  private byte[] verifyMacBody(@NonNull Mac hmac, @NonNull byte[] encryptedAndMac) throws InvalidMessageException {
-    if (encryptedAndMac.length < hmac.getMacLength()) {
-      throw new InvalidMessageException("length(encrypted body + MAC) < length(MAC)");
-    }
-
-    byte[] encrypted = new byte[encryptedAndMac.length - hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, 0, encrypted, 0, encrypted.length);
-
-    byte[] remoteMac = new byte[hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, encryptedAndMac.length - remoteMac.length, remoteMac, 0, remoteMac.length);
-
-    byte[] localMac  = hmac.doFinal(encrypted);
-
-    if (!Arrays.equals(remoteMac, localMac))
-      throw new InvalidMessageException("MAC doesen't match.");
-
-    return encrypted;
-  }
-
-  private byte[] getDecryptedBody(Cipher cipher, byte[] encryptedBody) throws IllegalBlockSizeException, BadPaddingException {
-    return cipher.doFinal(encryptedBody, cipher.getBlockSize(), encryptedBody.length - cipher.getBlockSize());
+    byte[] encryptedAndMac = encryptBytes(bytes);
+    return Base64.encodeBytes(encryptedAndMac);
   }
 
-  private byte[] getEncryptedBody(Cipher cipher, byte[] body) throws IllegalBlockSizeException, BadPaddingException {
-    byte[] encrypted = cipher.doFinal(body);
-    byte[] iv        = cipher.getIV();
-
-    byte[] ivAndBody = new byte[iv.length + encrypted.length];
-    System.arraycopy(iv, 0, ivAndBody, 0, iv.length);
-    System.arraycopy(encrypted, 0, ivAndBody, iv.length, encrypted.length);
+  private static boolean isEqual(byte[] ourMac, byte[] input, int theirMacOffset) {
+    int result = 0;
 
-    return ivAndBody;
-  }
-
-  private Mac getMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
-    //		Mac hmac = Mac.getInstance("HmacSHA1");
-    hmac.init(key);
+    for (int i = 0; i < ourMac.length; i++) {
+      result |= ourMac[i] ^ input[theirMacOffset + i];
+    }
 
-    return hmac;
+    return result == 0;
   }
 
-  private byte[] getMacBody(Mac hmac, byte[] encryptedBody) {
-    byte[] mac             = hmac.doFinal(encryptedBody);
-    byte[] encryptedAndMac = new byte[encryptedBody.length + mac.length];
+  /**
+   * Per-thread Cipher/Mac pair.  The Mac is only re-keyed when a different
+   * key is handed in, since doFinal() leaves it ready for the same key.
+   * A state from before the last {@link #clearInstance()} is replaced
+   * rather than reused.
+   */
+  private static class CipherState {
+
+    private final int    generation;
+    private final Cipher encryptingCipher;
+    private final Cipher decryptingCipher;
+    private final Mac    hmac;
+
+    private SecretKeySpec macKey;
+
+    private CipherState(int generation) {
+      this.generation = generation;
+
+      try {
+        this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        this.hmac             = Mac.getInstance("HmacSHA1");
+      } catch (NoSuchPaddingException | NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
 
-    System.arraycopy(encryptedBody, 0, encryptedAndMac, 0, encryptedBody.length);
-    System.arraycopy(mac, 0, encryptedAndMac, encryptedBody.length, mac.length);
+    private Mac getMac(SecretKeySpec key) throws InvalidKeyException {
+      if (macKey != key) {
+        macKey = null;
+        hmac.init(key);
+        macKey = key;
+      } else {
+        hmac.reset();
+      }
 
-    return encryptedAndMac;
-  }
+      return hmac;
+    }
 
-  private Cipher getDecryptingCipher(SecretKeySpec key, byte[] encryptedBody) throws InvalidKeyException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher      = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    IvParameterSpec iv = new IvParameterSpec(encryptedBody, 0, decryptingCipher.getBlockSize());
-    decryptingCipher.init(Cipher.DECRYPT_MODE, key, iv);
+    private Cipher getDecryptingCipher(SecretKeySpec key, byte[] input, int offset)
+        throws GeneralSecurityException
+    {
+      IvParameterSpec iv = new IvParameterSpec(input, offset, BLOCK_SIZE);
+      decryptingCipher.init(Cipher.DECRYPT_MODE, key, iv);
 
-    return decryptingCipher;
-  }
+      return decryptingCipher;
+    }
 
-  private Cipher getEncryptingCipher(SecretKeySpec key) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    encryptingCipher.init(Cipher.ENCRYPT_MODE, key);
+    private Cipher getEncryptingCipher(SecretKeySpec key) throws InvalidKeyException {
+      encryptingCipher.init(Cipher.ENCRYPT_MODE, key);
 
-    return encryptingCipher;
+      return encryptingCipher;
+    }
   }
 
 }
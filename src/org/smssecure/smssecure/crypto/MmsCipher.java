@@ -84,12 +84,16 @@ public class MmsCipher {
     }
   }
 
-  public SendReq encrypt(Context context, SendReq message)
+  public SendReq encrypt(Context context, SendReq message, PduComposer.PartDataSource partDataSource)
       throws NoSessionException, RecipientFormattingException, UndeliverableMessageException
   {
     EncodedStringValue[] encodedRecipient = message.getTo();
     String               recipientString  = encodedRecipient[0].getString();
-    byte[]               pduBytes         = new PduComposer(context, message).make();
+    PduComposer          composer         = new PduComposer(context, message);
+
+    composer.setPartDataSource(partDataSource);
+
+    byte[] pduBytes = composer.make();
 
     if (pduBytes == null) {
       throw new UndeliverableMessageException("PDU composition failed, null payload");
@@ -49,7 +49,7 @@ public class PreKeyUtil {
   public static final int BATCH_SIZE = 100;
 
   public static List<PreKeyRecord> generatePreKeys(Context context, MasterSecret masterSecret) {
-    PreKeyStore        preKeyStore    = new SilencePreKeyStore(context, masterSecret);
+    SilencePreKeyStore preKeyStore    = new SilencePreKeyStore(context, masterSecret);
     List<PreKeyRecord> records        = new LinkedList<>();
     int                preKeyIdOffset = getNextPreKeyId(context);
 
@@ -58,10 +58,11 @@ public class PreKeyUtil {
       ECKeyPair    keyPair  = Curve.generateKeyPair();
       PreKeyRecord record   = new PreKeyRecord(preKeyId, keyPair);
 
-      preKeyStore.storePreKey(preKeyId, record);
       records.add(record);
     }
 
+    preKeyStore.storePreKeys(records);
+
     setNextPreKeyId(context, (preKeyIdOffset + BATCH_SIZE + 1) % Medium.MAX_VALUE);
     return records;
   }
@@ -0,0 +1,113 @@
+package org.smssecure.smssecure.crypto.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decrypted session records, written through by {@link SilenceSessionStore}
+ * so that loading a session or asking whether one exists doesn't have to
+ * read and decrypt it every time.
+ *
+ * Sessions are keyed by recipient id and device id, so every spelling of a number that
+ * resolves to the same recipient shares one entry. Records are kept in their
+ * serialized form and parsed again on each load, since callers mutate the
+ * records they are handed. Whether a session exists and has a sender chain
+ * is tracked separately for every session seen, which is all that
+ * {@link SilenceSessionStore#containsSession} needs.
+ *
+ * Since it holds decrypted key material, it must be cleared whenever the
+ * master secret is.
+ */
+public class SessionRecordCache {
+
+  private static final int MAX_RECORDS = 128;
+  private static final int LOCK_COUNT  = 16;
+
+  private static final byte NO_SESSION                = 0;
+  private static final byte SESSION                   = 1;
+  private static final byte SESSION_WITH_SENDER_CHAIN = 2;
+
+  private static final SessionRecordCache instance = new SessionRecordCache();
+
+  private final Object[]          locks  = new Object[LOCK_COUNT];
+  private final Map<String, Byte> states = new HashMap<>();
+
+  private final LinkedHashMap<String, byte[]> records = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+      return size() > MAX_RECORDS;
+    }
+  };
+
+  public static SessionRecordCache getInstance() {
+    return instance;
+  }
+
+  private SessionRecordCache() {
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * @return the lock that guards reads and writes of the named session.
+   */
+  @NonNull Object getLock(@NonNull String name) {
+    return locks[(name.hashCode() & 0x7fffffff) % LOCK_COUNT];
+  }
+
+  synchronized @Nullable byte[] getRecord(@NonNull String name) {
+    return records.get(name);
+  }
+
+  /**
+   * @return true if the session is known not to exist.
+   */
+  synchronized boolean isMissing(@NonNull String name) {
+    Byte state = states.get(name);
+    return state != null && state == NO_SESSION;
+  }
+
+  /**
+   * @return whether the session exists and has a sender chain, or null if
+   *         the session hasn't been seen yet.
+   */
+  synchronized @Nullable Boolean hasSenderChain(@NonNull String name) {
+    Byte state = states.get(name);
+
+    if (state == null) return null;
+    else               return state == SESSION_WITH_SENDER_CHAIN;
+  }
+
+  synchronized void put(@NonNull String name, @NonNull byte[] record, boolean hasSenderChain) {
+    records.put(name, record);
+    states.put(name, hasSenderChain ? SESSION_WITH_SENDER_CHAIN : SESSION);
+  }
+
+  /**
+   * Records whether an existing session has a sender chain, without caching
+   * the record itself.
+   */
+  synchronized void putSenderChain(@NonNull String name, boolean hasSenderChain) {
+    states.put(name, hasSenderChain ? SESSION_WITH_SENDER_CHAIN : SESSION);
+  }
+
+  synchronized void putMissing(@NonNull String name) {
+    records.remove(name);
+    states.put(name, NO_SESSION);
+  }
+
+  synchronized void remove(@NonNull String name) {
+    records.remove(name);
+    states.remove(name);
+  }
+
+  public synchronized void clear() {
+    records.clear();
+    states.clear();
+  }
+}
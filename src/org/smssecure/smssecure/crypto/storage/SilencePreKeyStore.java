@@ -5,6 +5,9 @@ import android.util.Log;
 
 import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.ProtocolStoreDatabase;
+import org.smssecure.smssecure.database.ProtocolStoreDatabase.Record;
 import org.whispersystems.libsignal.InvalidKeyIdException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
@@ -16,9 +19,6 @@ import org.smssecure.smssecure.util.Conversions;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -29,158 +29,241 @@ public class SilencePreKeyStore implements PreKeyStore, SignedPreKeyStore {
 
 
   private static final int    CURRENT_VERSION_MARKER = 1;
-  private static final Object FILE_LOCK              = new Object();
+  private static final long   LOCAL_RECIPIENT_ID     = 0;
   private static final String TAG                    = SilencePreKeyStore.class.getSimpleName();
 
-  private final Context      context;
-  private final MasterSecret masterSecret;
+  private static final Object FILE_LOCK = new Object();
+
+  private static volatile boolean signedPreKeyFilesMigrated;
+
+  private final Context               context;
+  private final MasterSecret          masterSecret;
+  private final ProtocolStoreDatabase database;
 
   public SilencePreKeyStore(Context context, MasterSecret masterSecret) {
     this.context      = context;
     this.masterSecret = masterSecret;
+    this.database     = DatabaseFactory.getProtocolStoreDatabase(context);
   }
 
   @Override
   public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
-    synchronized (FILE_LOCK) {
-      try {
-        return new PreKeyRecord(loadSerializedRecord(getPreKeyFile(preKeyId)));
-      } catch (IOException | InvalidMessageException e) {
-        Log.w(TAG, e);
-        throw new InvalidKeyIdException(e);
-      }
+    try {
+      return new PreKeyRecord(loadSerializedRecord(ProtocolStoreDatabase.TYPE_PREKEY, preKeyId));
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      throw new InvalidKeyIdException(e);
     }
   }
 
   @Override
   public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
-    synchronized (FILE_LOCK) {
-      try {
-        return new SignedPreKeyRecord(loadSerializedRecord(getSignedPreKeyFile(signedPreKeyId)));
-      } catch (IOException | InvalidMessageException e) {
-        Log.w(TAG, e);
-        throw new InvalidKeyIdException(e);
-      }
+    try {
+      return new SignedPreKeyRecord(loadSerializedRecord(ProtocolStoreDatabase.TYPE_SIGNED_PREKEY, signedPreKeyId));
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      throw new InvalidKeyIdException(e);
     }
   }
 
   @Override
   public List<SignedPreKeyRecord> loadSignedPreKeys() {
-    synchronized (FILE_LOCK) {
-      File                     directory = getSignedPreKeyDirectory();
-      List<SignedPreKeyRecord> results   = new LinkedList<>();
+    List<SignedPreKeyRecord> results = new LinkedList<>();
 
-      for (File signedPreKeyFile : directory.listFiles()) {
-        try {
-          results.add(new SignedPreKeyRecord(loadSerializedRecord(signedPreKeyFile)));
-        } catch (IOException | InvalidMessageException e) {
-          Log.w(TAG, e);
-        }
-      }
+    if (!signedPreKeyFilesMigrated) {
+      migrateSignedPreKeyFiles();
+    }
 
-      return results;
+    for (byte[] serialized : database.getRecords(masterSecret, ProtocolStoreDatabase.TYPE_SIGNED_PREKEY, LOCAL_RECIPIENT_ID)) {
+      try {
+        results.add(new SignedPreKeyRecord(serialized));
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
     }
+
+    return results;
   }
 
   @Override
   public void storePreKey(int preKeyId, PreKeyRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
-        storeSerializedRecord(getPreKeyFile(preKeyId), record.serialize());
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
+    database.setRecord(masterSecret, new Record(ProtocolStoreDatabase.TYPE_PREKEY, LOCAL_RECIPIENT_ID,
+                                                preKeyId, record.serialize(), false));
+  }
+
+  /**
+   * Stores a batch of prekeys in a single transaction.
+   */
+  public void storePreKeys(List<PreKeyRecord> records) {
+    List<Record> rows = new LinkedList<>();
+
+    for (PreKeyRecord record : records) {
+      rows.add(new Record(ProtocolStoreDatabase.TYPE_PREKEY, LOCAL_RECIPIENT_ID,
+                          record.getId(), record.serialize(), false));
     }
+
+    database.setRecords(masterSecret, rows);
   }
 
   @Override
   public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
-        storeSerializedRecord(getSignedPreKeyFile(signedPreKeyId), record.serialize());
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
-    }
+    database.setRecord(masterSecret, new Record(ProtocolStoreDatabase.TYPE_SIGNED_PREKEY, LOCAL_RECIPIENT_ID,
+                                                signedPreKeyId, record.serialize(), false));
   }
 
   @Override
   public boolean containsPreKey(int preKeyId) {
-    File record = getPreKeyFile(preKeyId);
-    return record.exists();
+    return database.containsRecord(ProtocolStoreDatabase.TYPE_PREKEY, LOCAL_RECIPIENT_ID, preKeyId) ||
+           getRecordFile(ProtocolStoreDatabase.TYPE_PREKEY, preKeyId).exists();
   }
 
   @Override
   public boolean containsSignedPreKey(int signedPreKeyId) {
-    File record = getSignedPreKeyFile(signedPreKeyId);
-    return record.exists();
+    return database.containsRecord(ProtocolStoreDatabase.TYPE_SIGNED_PREKEY, LOCAL_RECIPIENT_ID, signedPreKeyId) ||
+           getRecordFile(ProtocolStoreDatabase.TYPE_SIGNED_PREKEY, signedPreKeyId).exists();
   }
 
 
   @Override
   public void removePreKey(int preKeyId) {
-    File record = getPreKeyFile(preKeyId);
-    record.delete();
+    removeRecord(ProtocolStoreDatabase.TYPE_PREKEY, preKeyId);
   }
 
   @Override
   public void removeSignedPreKey(int signedPreKeyId) {
-    File record = getSignedPreKeyFile(signedPreKeyId);
-    record.delete();
+    removeRecord(ProtocolStoreDatabase.TYPE_SIGNED_PREKEY, signedPreKeyId);
   }
 
-  private byte[] loadSerializedRecord(File recordFile)
-      throws IOException, InvalidMessageException
-  {
-    MasterCipher masterCipher  = new MasterCipher(masterSecret);
-    FileInputStream fin           = new FileInputStream(recordFile);
-    int             recordVersion = readInteger(fin);
-
-    if (recordVersion != CURRENT_VERSION_MARKER) {
-      throw new AssertionError("Invalid version: " + recordVersion);
-    }
+  /**
+   * Moves the prekeys and signed prekeys kept one file each in the prekey
+   * directories into the protocol store database, then deletes the files.
+   * The files holding the next key ids are left where they are. Records
+   * that haven't been moved yet are still found in their files.
+   */
+  public void migratePreKeyFiles() {
+    migrateRecordFiles(PREKEY_DIRECTORY, ProtocolStoreDatabase.TYPE_PREKEY);
+    migrateSignedPreKeyFiles();
+  }
 
-    return masterCipher.decryptBytes(readBlob(fin));
+  /**
+   * Signed prekeys are only ever listed, so they are moved on the first
+   * listing. Once a pass has succeeded no new files appear, and the
+   * directory isn't listed again.
+   */
+  private void migrateSignedPreKeyFiles() {
+    migrateRecordFiles(SIGNED_PREKEY_DIRECTORY, ProtocolStoreDatabase.TYPE_SIGNED_PREKEY);
+    signedPreKeyFilesMigrated = true;
   }
 
-  private void storeSerializedRecord(File file, byte[] serialized) throws IOException {
-    MasterCipher     masterCipher = new MasterCipher(masterSecret);
-    RandomAccessFile recordFile   = new RandomAccessFile(file, "rw");
-    FileChannel      out          = recordFile.getChannel();
+  private void migrateRecordFiles(String directoryName, int type) {
+    synchronized (FILE_LOCK) {
+      File[]       files    = new File(context.getFilesDir(), directoryName).listFiles();
+      List<Record> records  = new LinkedList<>();
+      List<File>   migrated = new LinkedList<>();
+
+      if (files == null) return;
+
+      for (File file : files) {
+        try {
+          int recordId = Integer.parseInt(file.getName());
+
+          records.add(new Record(type, LOCAL_RECIPIENT_ID, recordId, loadSerializedRecord(file), false));
+          migrated.add(file);
+        } catch (NumberFormatException e) {
+          Log.w(TAG, "Skipping " + file.getName());
+        } catch (IOException | InvalidMessageException e) {
+          Log.w(TAG, e);
+          migrated.add(file);
+        }
+      }
+
+      if (migrated.isEmpty()) return;
+
+      database.setRecords(masterSecret, records);
 
-    out.position(0);
-    writeInteger(CURRENT_VERSION_MARKER, out);
-    writeBlob(masterCipher.encryptBytes(serialized), out);
-    out.truncate(out.position());
-    recordFile.close();
+      for (File file : migrated) {
+        if (!file.delete()) Log.w(TAG, "Failed to delete " + file.getName());
+      }
+
+      Log.w(TAG, "Migrated " + records.size() + " records from " + directoryName);
+    }
   }
 
-  private File getPreKeyFile(int preKeyId) {
-    return new File(getPreKeyDirectory(), String.valueOf(preKeyId));
+  private byte[] loadSerializedRecord(int type, int recordId) throws IOException {
+    byte[] serialized = database.getRecord(masterSecret, type, LOCAL_RECIPIENT_ID, recordId);
+
+    if (serialized == null) {
+      serialized = importRecordFile(type, recordId);
+    }
+
+    if (serialized == null) {
+      throw new IOException("No record for " + recordId);
+    }
+
+    return serialized;
   }
 
-  private File getSignedPreKeyFile(int signedPreKeyId) {
-    return new File(getSignedPreKeyDirectory(), String.valueOf(signedPreKeyId));
+  /**
+   * Moves a record that hasn't been migrated yet from its file into the
+   * database.
+   *
+   * @return the serialized record, or null if there is no readable file.
+   */
+  private byte[] importRecordFile(int type, int recordId) {
+    synchronized (FILE_LOCK) {
+      File file = getRecordFile(type, recordId);
+
+      if (!file.exists()) return null;
+
+      try {
+        byte[] serialized = loadSerializedRecord(file);
+        database.setRecord(masterSecret, new Record(type, LOCAL_RECIPIENT_ID, recordId, serialized, false));
+        return serialized;
+      } catch (IOException | InvalidMessageException e) {
+        Log.w(TAG, e);
+        return null;
+      } finally {
+        if (!file.delete()) Log.w(TAG, "Failed to delete " + file.getName());
+      }
+    }
   }
 
-  private File getPreKeyDirectory() {
-    return getRecordsDirectory(PREKEY_DIRECTORY);
+  private void removeRecord(int type, int recordId) {
+    synchronized (FILE_LOCK) {
+      File file = getRecordFile(type, recordId);
+
+      database.deleteRecord(type, LOCAL_RECIPIENT_ID, recordId);
+
+      if (file.exists() && !file.delete()) {
+        Log.w(TAG, "Failed to delete " + file.getName());
+      }
+    }
   }
 
-  private File getSignedPreKeyDirectory() {
-    return getRecordsDirectory(SIGNED_PREKEY_DIRECTORY);
+  private File getRecordFile(int type, int recordId) {
+    String directoryName = type == ProtocolStoreDatabase.TYPE_SIGNED_PREKEY ? SIGNED_PREKEY_DIRECTORY
+                                                                            : PREKEY_DIRECTORY;
+
+    return new File(new File(context.getFilesDir(), directoryName), String.valueOf(recordId));
   }
 
-  private File getRecordsDirectory(String directoryName) {
-    File directory = new File(context.getFilesDir(), directoryName);
+  private byte[] loadSerializedRecord(File recordFile)
+      throws IOException, InvalidMessageException
+  {
+    MasterCipher    masterCipher  = MasterCipher.getInstance(masterSecret);
+    FileInputStream fin           = new FileInputStream(recordFile);
+
+    try {
+      int recordVersion = readInteger(fin);
 
-    if (!directory.exists()) {
-      if (!directory.mkdirs()) {
-        Log.w(TAG, "PreKey directory creation failed!");
+      if (recordVersion != CURRENT_VERSION_MARKER) {
+        throw new IOException("Invalid version: " + recordVersion);
       }
-    }
 
-    return directory;
+      return masterCipher.decryptBytes(readBlob(fin));
+    } finally {
+      fin.close();
+    }
   }
 
   private byte[] readBlob(FileInputStream in) throws IOException {
@@ -191,22 +274,12 @@ public class SilencePreKeyStore implements PreKeyStore, SignedPreKeyStore {
     return blobBytes;
   }
 
-  private void writeBlob(byte[] blobBytes, FileChannel out) throws IOException {
-    writeInteger(blobBytes.length, out);
-    out.write(ByteBuffer.wrap(blobBytes));
-  }
-
   private int readInteger(FileInputStream in) throws IOException {
     byte[] integer = new byte[4];
     in.read(integer, 0, integer.length);
     return Conversions.byteArrayToInt(integer);
   }
 
-  private void writeInteger(int value, FileChannel out) throws IOException {
-    byte[] valueBytes = Conversions.intToByteArray(value);
-    out.write(ByteBuffer.wrap(valueBytes));
-  }
-
 
 
 }
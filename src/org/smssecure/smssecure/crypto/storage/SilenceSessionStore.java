@@ -5,7 +5,9 @@ import android.util.Log;
 
 import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
-import org.smssecure.smssecure.recipients.Recipient;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.ProtocolStoreDatabase;
+import org.smssecure.smssecure.database.ProtocolStoreDatabase.Record;
 import org.smssecure.smssecure.recipients.RecipientFactory;
 import org.smssecure.smssecure.util.Conversions;
 import org.whispersystems.libsignal.SignalProtocolAddress;
@@ -17,11 +19,10 @@ import org.whispersystems.libsignal.state.SessionStore;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
 
@@ -29,142 +30,294 @@ public class SilenceSessionStore implements SessionStore {
 
   private static final String TAG                   = SilenceSessionStore.class.getSimpleName();
   private static final String SESSIONS_DIRECTORY_V2 = "sessions-v2";
-  private static final Object FILE_LOCK             = new Object();
 
   private static final int SINGLE_STATE_VERSION   = 1;
   private static final int ARCHIVE_STATES_VERSION = 2;
   private static final int CURRENT_VERSION        = 2;
 
-  private final Context      context;
-  private final MasterSecret masterSecret;
+  private final Context               context;
+  private final MasterSecret          masterSecret;
+  private final ProtocolStoreDatabase database;
+  private final SessionRecordCache    cache = SessionRecordCache.getInstance();
 
   public SilenceSessionStore(Context context, MasterSecret masterSecret) {
     this.context      = context.getApplicationContext();
     this.masterSecret = masterSecret;
+    this.database     = DatabaseFactory.getProtocolStoreDatabase(context);
   }
 
   @Override
   public SessionRecord loadSession(SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      try {
-        MasterCipher    cipher = new MasterCipher(masterSecret);
-        FileInputStream in     = new FileInputStream(getSessionFile(address));
+    return loadSession(getRecipientId(address.getName()), address.getDeviceId());
+  }
 
-        int versionMarker  = readInteger(in);
+  private SessionRecord loadSession(long recipientId, int deviceId) {
+    String name = getSessionName(recipientId, deviceId);
 
-        if (versionMarker > CURRENT_VERSION) {
-          throw new AssertionError("Unknown version: " + versionMarker);
-        }
+    synchronized (cache.getLock(name)) {
+      if (cache.isMissing(name)) {
+        return new SessionRecord();
+      }
 
-        byte[] serialized = cipher.decryptBytes(readBlob(in));
-        in.close();
+      try {
+        byte[] serialized = cache.getRecord(name);
 
-        if (versionMarker == SINGLE_STATE_VERSION) {
-          SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
-          SessionState     sessionState     = new SessionState(sessionStructure);
-          return new SessionRecord(sessionState);
-        } else if (versionMarker == ARCHIVE_STATES_VERSION) {
+        if (serialized != null) {
           return new SessionRecord(serialized);
-        } else {
-          throw new AssertionError("Unknown version: " + versionMarker);
         }
-      } catch (InvalidMessageException | IOException e) {
-        Log.w(TAG, "No existing session information found.");
-        return new SessionRecord();
+
+        serialized = database.getRecord(masterSecret, ProtocolStoreDatabase.TYPE_SESSION, recipientId, deviceId);
+
+        if (serialized == null) {
+          serialized = importSessionFile(recipientId, deviceId);
+        }
+
+        if (serialized != null) {
+          SessionRecord record = new SessionRecord(serialized);
+          cache.put(name, serialized, record.getSessionState().hasSenderChain());
+          return record;
+        }
+      } catch (IOException e) {
+        Log.w(TAG, e);
       }
+
+      Log.w(TAG, "No existing session information found.");
+      cache.putMissing(name);
+      return new SessionRecord();
     }
   }
 
   @Override
   public void storeSession(SignalProtocolAddress address, SessionRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
-        MasterCipher     masterCipher = new MasterCipher(masterSecret);
-        RandomAccessFile sessionFile  = new RandomAccessFile(getSessionFile(address), "rw");
-        FileChannel      out          = sessionFile.getChannel();
-
-        out.position(0);
-        writeInteger(CURRENT_VERSION, out);
-        writeBlob(masterCipher.encryptBytes(record.serialize()), out);
-        out.truncate(out.position());
-
-        sessionFile.close();
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
+    long   recipientId = getRecipientId(address.getName());
+    int    deviceId    = address.getDeviceId();
+    String name        = getSessionName(recipientId, deviceId);
+
+    synchronized (cache.getLock(name)) {
+      byte[]  serialized     = record.serialize();
+      boolean hasSenderChain = record.getSessionState().hasSenderChain();
+
+      cache.remove(name);
+      database.setRecord(masterSecret, new Record(ProtocolStoreDatabase.TYPE_SESSION, recipientId, deviceId,
+                                                  serialized, hasSenderChain));
+      deleteSessionFile(name);
+      cache.put(name, serialized, hasSenderChain);
     }
   }
 
   @Override
   public boolean containsSession(SignalProtocolAddress address) {
-    return getSessionFile(address).exists() &&
-           loadSession(address).getSessionState().hasSenderChain();
+    long    recipientId    = getRecipientId(address.getName());
+    String  name           = getSessionName(recipientId, address.getDeviceId());
+    Boolean hasSenderChain = cache.hasSenderChain(name);
+
+    if (hasSenderChain == null) {
+      synchronized (cache.getLock(name)) {
+        hasSenderChain = cache.hasSenderChain(name);
+
+        if (hasSenderChain == null) {
+          hasSenderChain = database.hasSenderChain(recipientId, address.getDeviceId());
+
+          if (hasSenderChain == null && getSessionFile(name).exists()) {
+            SessionRecord record = loadSession(recipientId, address.getDeviceId());
+            hasSenderChain = record.getSessionState().hasSenderChain();
+          } else if (hasSenderChain == null) {
+            cache.putMissing(name);
+          } else {
+            cache.putSenderChain(name, hasSenderChain);
+          }
+        }
+      }
+    }
+
+    return hasSenderChain != null && hasSenderChain;
   }
 
   @Override
   public void deleteSession(SignalProtocolAddress address) {
-    getSessionFile(address).delete();
+    long   recipientId = getRecipientId(address.getName());
+    String name        = getSessionName(recipientId, address.getDeviceId());
+
+    synchronized (cache.getLock(name)) {
+      database.deleteRecord(ProtocolStoreDatabase.TYPE_SESSION, recipientId, address.getDeviceId());
+      deleteSessionFile(name);
+      cache.putMissing(name);
+    }
   }
 
   @Override
   public void deleteAllSessions(String name) {
-    List<Integer> devices = getSubDeviceSessions(name);
+    long         recipientId = getRecipientId(name);
+    Set<Integer> devices     = new HashSet<>(database.getRecordIds(ProtocolStoreDatabase.TYPE_SESSION, recipientId));
 
-    deleteSession(new SignalProtocolAddress(name, 1));
+    devices.addAll(getSessionFileDevices(recipientId));
+    devices.add(1);
 
     for (int device : devices) {
-      deleteSession(new SignalProtocolAddress(name, device));
+      String sessionName = getSessionName(recipientId, device);
+
+      synchronized (cache.getLock(sessionName)) {
+        database.deleteRecord(ProtocolStoreDatabase.TYPE_SESSION, recipientId, device);
+        deleteSessionFile(sessionName);
+        cache.putMissing(sessionName);
+      }
     }
   }
 
   @Override
   public List<Integer> getSubDeviceSessions(String name) {
-    long          recipientId = RecipientFactory.getRecipientsFromString(context, name, true).getPrimaryRecipient().getRecipientId();
+    long          recipientId = getRecipientId(name);
     List<Integer> results     = new LinkedList<>();
-    File          parent      = getSessionDirectory();
-    String[]      children    = parent.list();
 
-    if (children == null) return results;
+    for (int device : database.getRecordIds(ProtocolStoreDatabase.TYPE_SESSION, recipientId)) {
+      if (device != 1) results.add(device);
+    }
 
-    for (String child : children) {
-      try {
-        String[] parts              = child.split("[.]", 2);
-        long     sessionRecipientId = Long.parseLong(parts[0]);
+    for (int device : getSessionFileDevices(recipientId)) {
+      if (device != 1 && !results.contains(device)) results.add(device);
+    }
+
+    return results;
+  }
 
-        if (sessionRecipientId == recipientId && parts.length > 1) {
-          results.add(Integer.parseInt(parts[1]));
+  /**
+   * Moves the sessions kept one file each in the sessions directory into
+   * the protocol store database, then deletes the files. Sessions that
+   * haven't been moved yet are still found in their files, so this can run
+   * at any point, alongside the session being used.
+   */
+  public void migrateSessionFiles() {
+    File   directory = new File(context.getFilesDir(), SESSIONS_DIRECTORY_V2);
+    File[] files     = directory.listFiles();
+    int    migrated  = 0;
+
+    if (files == null) return;
+
+    for (File file : files) {
+      String[] parts = file.getName().split("[.]", 2);
+
+      try {
+        long   recipientId = Long.parseLong(parts[0]);
+        int    deviceId    = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+        String name        = getSessionName(recipientId, deviceId);
+
+        synchronized (cache.getLock(name)) {
+          if (database.hasSenderChain(recipientId, deviceId) != null) {
+            deleteSessionFile(name);
+          } else if (importSessionFile(recipientId, deviceId) != null) {
+            migrated++;
+          }
+
+          cache.remove(name);
         }
       } catch (NumberFormatException e) {
         Log.w(TAG, e);
+        if (!file.delete()) Log.w(TAG, "Failed to delete " + file.getName());
       }
     }
 
-    return results;
+    directory.delete();
+
+    Log.w(TAG, "Migrated " + migrated + " of " + files.length + " session files.");
   }
 
-  private File getSessionFile(SignalProtocolAddress address) {
-    return new File(getSessionDirectory(), getSessionName(address));
+  private long getRecipientId(String name) {
+    return RecipientFactory.getRecipientsFromString(context, name, true).getPrimaryRecipient().getRecipientId();
   }
 
-  private File getSessionDirectory() {
-    File directory = new File(context.getFilesDir(), SESSIONS_DIRECTORY_V2);
+  private String getSessionName(long recipientId, int deviceId) {
+    return recipientId + (deviceId == 1 ? "" : "." + deviceId);
+  }
 
-    if (!directory.exists()) {
-      if (!directory.mkdirs()) {
-        Log.w(TAG, "Session directory creation failed!");
+  private File getSessionFile(String name) {
+    return new File(new File(context.getFilesDir(), SESSIONS_DIRECTORY_V2), name);
+  }
+
+  private void deleteSessionFile(String name) {
+    File file = getSessionFile(name);
+
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Failed to delete " + name);
+    }
+  }
+
+  /**
+   * @return the devices of the recipient that still have a session file.
+   */
+  private List<Integer> getSessionFileDevices(long recipientId) {
+    String[]      names   = new File(context.getFilesDir(), SESSIONS_DIRECTORY_V2).list();
+    String        prefix  = String.valueOf(recipientId);
+    List<Integer> results = new LinkedList<>();
+
+    if (names == null) return results;
+
+    for (String name : names) {
+      try {
+        if (name.equals(prefix))                results.add(1);
+        else if (name.startsWith(prefix + ".")) results.add(Integer.parseInt(name.substring(prefix.length() + 1)));
+      } catch (NumberFormatException e) {
+        Log.w(TAG, e);
       }
     }
 
-    return directory;
+    return results;
   }
 
-  private String getSessionName(SignalProtocolAddress axolotlAddress) {
-    Recipient recipient   = RecipientFactory.getRecipientsFromString(context, axolotlAddress.getName(), true)
-                                          .getPrimaryRecipient();
-    long      recipientId = recipient.getRecipientId();
-    int       deviceId    = axolotlAddress.getDeviceId();
+  /**
+   * Moves a session that hasn't been migrated yet from its file into the
+   * database. Must be called holding the session's lock.
+   *
+   * @return the serialized session, or null if there is no readable file.
+   */
+  private byte[] importSessionFile(long recipientId, int deviceId) {
+    String name = getSessionName(recipientId, deviceId);
+    File   file = getSessionFile(name);
+
+    if (!file.exists()) return null;
+
+    try {
+      byte[]        serialized = readSessionFile(file);
+      SessionRecord record     = new SessionRecord(serialized);
+
+      database.setRecord(masterSecret, new Record(ProtocolStoreDatabase.TYPE_SESSION, recipientId, deviceId,
+                                                  serialized, record.getSessionState().hasSenderChain()));
+      return serialized;
+    } catch (IOException | InvalidMessageException e) {
+      Log.w(TAG, e);
+      return null;
+    } finally {
+      deleteSessionFile(name);
+    }
+  }
 
-    return recipientId + (deviceId == 1 ? "" : "." + deviceId);
+  /**
+   * @return the decrypted session in the current serialization format.
+   */
+  private byte[] readSessionFile(File file) throws IOException, InvalidMessageException {
+    MasterCipher    cipher = MasterCipher.getInstance(masterSecret);
+    FileInputStream in     = new FileInputStream(file);
+
+    try {
+      int versionMarker = readInteger(in);
+
+      if (versionMarker > CURRENT_VERSION) {
+        throw new IOException("Unknown version: " + versionMarker);
+      }
+
+      byte[] serialized = cipher.decryptBytes(readBlob(in));
+
+      if (versionMarker == SINGLE_STATE_VERSION) {
+        SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
+        SessionState     sessionState     = new SessionState(sessionStructure);
+        return new SessionRecord(sessionState).serialize();
+      } else if (versionMarker == ARCHIVE_STATES_VERSION) {
+        return serialized;
+      } else {
+        throw new IOException("Unknown version: " + versionMarker);
+      }
+    } finally {
+      in.close();
+    }
   }
 
   private byte[] readBlob(FileInputStream in) throws IOException {
@@ -175,20 +328,10 @@ public class SilenceSessionStore implements SessionStore {
     return blobBytes;
   }
 
-  private void writeBlob(byte[] blobBytes, FileChannel out) throws IOException {
-    writeInteger(blobBytes.length, out);
-    out.write(ByteBuffer.wrap(blobBytes));
-  }
-
   private int readInteger(FileInputStream in) throws IOException {
     byte[] integer = new byte[4];
     in.read(integer, 0, integer.length);
     return Conversions.byteArrayToInt(integer);
   }
 
-  private void writeInteger(int value, FileChannel out) throws IOException {
-    byte[] valueBytes = Conversions.intToByteArray(value);
-    out.write(ByteBuffer.wrap(valueBytes));
-  }
-
 }
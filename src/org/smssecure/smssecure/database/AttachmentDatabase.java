@@ -232,6 +232,37 @@ public class AttachmentDatabase extends Database {
     database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId + ""});
   }
 
+  /**
+   * Deletes the attachment rows of every message selected by {@code mmsIdQuery},
+   * leaving their files for the caller to delete once the transaction commits.
+   *
+   * @return The data and thumbnail files that no longer have a row.
+   */
+  /*package*/ List<File> deleteAttachmentsForMessages(String mmsIdQuery, String[] args) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    String         where    = MMS_ID + " IN (" + mmsIdQuery + ")";
+    List<File>     orphans  = new LinkedList<>();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL}, where, args, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        String data      = cursor.getString(0);
+        String thumbnail = cursor.getString(1);
+
+        if (!TextUtils.isEmpty(data))      orphans.add(new File(data));
+        if (!TextUtils.isEmpty(thumbnail)) orphans.add(new File(thumbnail));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    database.delete(TABLE_NAME, where, args);
+    return orphans;
+  }
+
   @SuppressWarnings("ResultOfMethodCallIgnored")
   public void deleteAllAttachments() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
@@ -427,6 +458,76 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  /**
+   * Rewrites data and thumbnail files still stored in the original
+   * single-stream part format into the chunked format.
+   *
+   * @return The number of files that were rewritten.
+   */
+  public int upgradeLegacyPartFiles(@NonNull MasterSecret masterSecret) {
+    int upgraded = 0;
+
+    for (String column : new String[] {DATA, THUMBNAIL}) {
+      for (String path : getDataPaths(column)) {
+        try {
+          if (upgradeLegacyPartFile(masterSecret, column, new File(path))) {
+            upgraded++;
+          }
+        } catch (IOException | MmsException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }
+
+    return upgraded;
+  }
+
+  private @NonNull List<String> getDataPaths(@NonNull String column) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    List<String>   paths    = new LinkedList<>();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(true, TABLE_NAME, new String[] {column}, column + " IS NOT NULL",
+                              null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        paths.add(cursor.getString(0));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return paths;
+  }
+
+  private boolean upgradeLegacyPartFile(@NonNull MasterSecret masterSecret,
+                                        @NonNull String column,
+                                        @NonNull File legacyFile)
+      throws IOException, MmsException
+  {
+    if (!legacyFile.exists() || !DecryptingPartInputStream.isLegacyFormat(legacyFile)) {
+      return false;
+    }
+
+    Pair<File, Long> upgraded = setAttachmentData(masterSecret, new DecryptingPartInputStream(legacyFile, masterSecret));
+    ContentValues    values   = new ContentValues(1);
+
+    values.put(column, upgraded.first.getAbsolutePath());
+
+    int updated = databaseHelper.getWritableDatabase().update(TABLE_NAME, values, column + " = ?",
+                                                              new String[] {legacyFile.getAbsolutePath()});
+
+    if (updated > 0) {
+      legacyFile.delete();
+      return true;
+    } else {
+      upgraded.first.delete();
+      return false;
+    }
+  }
+
   DatabaseAttachment getAttachment(Cursor cursor) {
     return new DatabaseAttachment(new AttachmentId(cursor.getLong(cursor.getColumnIndexOrThrow(ATTACHMENT_ID_ALIAS)),
                                                    cursor.getLong(cursor.getColumnIndexOrThrow(UNIQUE_ID))),
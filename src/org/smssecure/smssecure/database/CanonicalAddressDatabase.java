@@ -25,42 +25,40 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.support.annotation.NonNull;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
-import android.util.Log;
 
-import org.smssecure.smssecure.util.LRUCache;
 import org.smssecure.smssecure.util.ShortCodeUtil;
 import org.smssecure.smssecure.util.SilencePreferences;
 import org.smssecure.smssecure.util.VisibleForTesting;
 import org.smssecure.smssecure.util.InvalidNumberException;
 import org.smssecure.smssecure.util.PhoneNumberFormatter;
 
-import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Locale;
 
 public class CanonicalAddressDatabase {
 
   private static final String TAG = CanonicalAddressDatabase.class.getSimpleName();
 
-  private static final int    DATABASE_VERSION = 1;
-  private static final String DATABASE_NAME    = "canonical_address.db";
-  private static final String TABLE            = "canonical_addresses";
-  private static final String ID_COLUMN        = "_id";
-  private static final String ADDRESS_COLUMN   = "address";
+  private static final int INTRODUCED_NORMALIZED_ADDRESS_VERSION = 2;
+  private static final int DATABASE_VERSION                      = 2;
 
-  private static final String DATABASE_CREATE  = "CREATE TABLE " + TABLE + " (" + ID_COLUMN + " integer PRIMARY KEY, " + ADDRESS_COLUMN + " TEXT NOT NULL);";
-  private static final String SELECTION_NUMBER = "PHONE_NUMBERS_EQUAL(" + ADDRESS_COLUMN + ", ?)";
-  private static final String SELECTION_OTHER  = ADDRESS_COLUMN + " = ? COLLATE NOCASE";
+  private static final String DATABASE_NAME     = "canonical_address.db";
+  private static final String TABLE             = "canonical_addresses";
+  private static final String ID_COLUMN         = "_id";
+  private static final String ADDRESS_COLUMN    = "address";
+  private static final String NORMALIZED_COLUMN = "normalized_address";
+
+  private static final String DATABASE_CREATE  = "CREATE TABLE " + TABLE + " (" + ID_COLUMN + " integer PRIMARY KEY, " + ADDRESS_COLUMN + " TEXT NOT NULL, " + NORMALIZED_COLUMN + " TEXT);";
+  private static final String INDEX_CREATE     = "CREATE INDEX IF NOT EXISTS canonical_addresses_normalized_index ON " + TABLE + " (" + NORMALIZED_COLUMN + ");";
+  private static final String SELECTION_NUMBER = NORMALIZED_COLUMN + " = ? AND PHONE_NUMBERS_EQUAL(" + ADDRESS_COLUMN + ", ?)";
+  private static final String SELECTION_OTHER  = NORMALIZED_COLUMN + " = ? AND " + ADDRESS_COLUMN + " = ? COLLATE NOCASE";
 
   private static CanonicalAddressDatabase instance;
   private        DatabaseHelper           databaseHelper;
   private final  Context                  context;
 
-  private final Map<String, Long>   addressCache          = new ConcurrentHashMap<>();
-  private final Map<Long, String>   idCache               = new ConcurrentHashMap<>();
-  private final Map<String, String> formattedAddressCache = Collections.synchronizedMap(new LRUCache<String, String>(100));
+  private final CanonicalAddressIndex index = new CanonicalAddressIndex();
 
   public synchronized static CanonicalAddressDatabase getInstance(Context context) {
     if (instance == null)
@@ -72,42 +70,22 @@ public class CanonicalAddressDatabase {
   private CanonicalAddressDatabase(Context context) {
     this.context        = context;
     this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
-
-    fillCache();
   }
 
   public void reset(Context context) {
     DatabaseHelper old  = this.databaseHelper;
     this.databaseHelper = new DatabaseHelper(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
     old.close();
-    fillCache();
-  }
-
-  private void fillCache() {
-    Cursor cursor = null;
-
-    try {
-      SQLiteDatabase db = databaseHelper.getReadableDatabase();
-      cursor            = db.query(TABLE, null, null, null, null, null, null);
-
-      while (cursor != null && cursor.moveToNext()) {
-        long   id      = cursor.getLong(cursor.getColumnIndexOrThrow(ID_COLUMN));
-        String address = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS_COLUMN));
-
-        if (address == null || address.trim().length() == 0)
-          address = "Anonymous";
-
-        idCache.put(id, address);
-        addressCache.put(address, id);
-      }
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
+    index.clear();
   }
 
+  /**
+   * Addresses are indexed lazily: the first lookup of an id or address is a
+   * primary key or normalized-column index seek, and later ones are served
+   * from memory.
+   */
   public @NonNull String getAddressFromId(long id) {
-    String cachedAddress = idCache.get(id);
+    String cachedAddress = index.getAddress(id);
 
     if (cachedAddress != null)
       return cachedAddress;
@@ -115,8 +93,6 @@ public class CanonicalAddressDatabase {
     Cursor cursor = null;
 
     try {
-      Log.w(TAG, "Hitting DB on query [ID].");
-
       SQLiteDatabase db = databaseHelper.getReadableDatabase();
       cursor            = db.query(TABLE, null, ID_COLUMN + " = ?", new String[] {id+""}, null, null, null);
 
@@ -128,7 +104,7 @@ public class CanonicalAddressDatabase {
       if (address == null || address.trim().equals("")) {
         return "Anonymous";
       } else {
-        idCache.put(id, address);
+        index.put(id, address);
         return address;
       }
     } finally {
@@ -144,30 +120,14 @@ public class CanonicalAddressDatabase {
 
   public long getCanonicalAddressId(@NonNull String address) {
     try {
-      long   canonicalAddressId;
-      String formattedAddress;
-
-      if ((formattedAddress = formattedAddressCache.get(address)) == null) {
-        String localNumber = SilencePreferences.getLocalNumber(context);
-
-        if (!isNumberAddress(address)                        ||
-            !SilencePreferences.isPushRegistered(context) ||
-            ShortCodeUtil.isShortCode(localNumber, address))
-        {
-          formattedAddress = address;
-        } else {
-          formattedAddress = PhoneNumberFormatter.formatNumber(address, localNumber);
-        }
-
-        formattedAddressCache.put(address, formattedAddress);
-      }
+      String formattedAddress   = getFormattedAddress(address);
+      long   canonicalAddressId = index.getId(formattedAddress);
 
-      if ((canonicalAddressId = getCanonicalAddressFromCache(formattedAddress)) == -1) {
+      if (canonicalAddressId == -1) {
         canonicalAddressId = getCanonicalAddressIdFromDatabase(formattedAddress);
       }
 
-      idCache.put(canonicalAddressId, formattedAddress);
-      addressCache.put(formattedAddress, canonicalAddressId);
+      index.put(canonicalAddressId, formattedAddress);
 
       return canonicalAddressId;
     } catch (InvalidNumberException e) {
@@ -175,6 +135,17 @@ public class CanonicalAddressDatabase {
     }
   }
 
+  private @NonNull String getFormattedAddress(@NonNull String address) throws InvalidNumberException {
+    if (!SilencePreferences.isPushRegistered(context) || !isNumberAddress(address)) {
+      return address;
+    }
+
+    String localNumber = SilencePreferences.getLocalNumber(context);
+
+    if (ShortCodeUtil.isShortCode(localNumber, address)) return address;
+    else                                                 return PhoneNumberFormatter.formatNumber(address, localNumber);
+  }
+
   public @NonNull List<Long> getCanonicalAddressIds(@NonNull List<String> addresses) {
     List<Long> addressList = new LinkedList<>();
 
@@ -185,38 +156,34 @@ public class CanonicalAddressDatabase {
     return addressList;
   }
 
-  private long getCanonicalAddressFromCache(String address) {
-    Long cachedAddress = addressCache.get(address);
-    return cachedAddress == null ? -1L : cachedAddress;
-  }
-
   private long getCanonicalAddressIdFromDatabase(@NonNull String address) {
-    Log.w(TAG, "Hitting DB on query [ADDRESS]");
-
     Cursor cursor = null;
 
     try {
       SQLiteDatabase db                 = databaseHelper.getWritableDatabase();
-      String[]       selectionArguments = new String[]{address};
       boolean        isNumber           = isNumberAddress(address);
+      String         normalizedAddress  = getNormalizedAddress(address, isNumber);
+      String[]       selectionArguments = new String[]{normalizedAddress, address};
 
       cursor = db.query(TABLE, null, isNumber ? SELECTION_NUMBER : SELECTION_OTHER,
                         selectionArguments, null, null, null);
 
       if (cursor.getCount() == 0 || !cursor.moveToFirst()) {
-        ContentValues contentValues = new ContentValues(1);
+        ContentValues contentValues = new ContentValues(2);
         contentValues.put(ADDRESS_COLUMN, address);
+        contentValues.put(NORMALIZED_COLUMN, normalizedAddress);
         return db.insert(TABLE, ADDRESS_COLUMN, contentValues);
       } else {
         long   canonicalId = cursor.getLong(cursor.getColumnIndexOrThrow(ID_COLUMN));
         String oldAddress  = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS_COLUMN));
 
         if (!address.equals(oldAddress)) {
-          ContentValues contentValues = new ContentValues(1);
+          ContentValues contentValues = new ContentValues(2);
           contentValues.put(ADDRESS_COLUMN, address);
+          contentValues.put(NORMALIZED_COLUMN, normalizedAddress);
           db.update(TABLE, contentValues, ID_COLUMN + " = ?", new String[]{canonicalId+""});
 
-          addressCache.remove(oldAddress);
+          index.removeAddress(oldAddress);
         }
 
         return canonicalId;
@@ -228,6 +195,17 @@ public class CanonicalAddressDatabase {
     }
   }
 
+  /**
+   * The lookup key stored alongside each address.  Numbers are keyed by their
+   * trailing digits, which every pair that PHONE_NUMBERS_EQUAL() accepts has in
+   * common, so the comparison only runs against a handful of indexed rows.
+   * Anything else is keyed by its lower-cased form.
+   */
+  private static @NonNull String getNormalizedAddress(@NonNull String address, boolean isNumber) {
+    if (isNumber) return PhoneNumberUtils.toCallerIDMinMatch(address);
+    else          return address.toLowerCase(Locale.US);
+  }
+
   @VisibleForTesting
   static boolean isNumberAddress(@NonNull String number) {
     if (number.contains("@"))             return false;
@@ -249,10 +227,40 @@ public class CanonicalAddressDatabase {
     @Override
     public void onCreate(SQLiteDatabase db) {
       db.execSQL(DATABASE_CREATE);
+      db.execSQL(INDEX_CREATE);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      db.beginTransaction();
+
+      try {
+        if (oldVersion < INTRODUCED_NORMALIZED_ADDRESS_VERSION) {
+          db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + NORMALIZED_COLUMN + " TEXT");
+
+          Cursor cursor = db.query(TABLE, new String[] {ID_COLUMN, ADDRESS_COLUMN}, null, null, null, null, null);
+
+          try {
+            while (cursor != null && cursor.moveToNext()) {
+              String address = cursor.getString(1);
+              if (address == null) continue;
+
+              ContentValues values = new ContentValues(1);
+              values.put(NORMALIZED_COLUMN, getNormalizedAddress(address, isNumberAddress(address)));
+              db.update(TABLE, values, ID_COLUMN + " = ?", new String[] {String.valueOf(cursor.getLong(0))});
+            }
+          } finally {
+            if (cursor != null)
+              cursor.close();
+          }
+
+          db.execSQL(INDEX_CREATE);
+        }
+
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
     }
 
   }
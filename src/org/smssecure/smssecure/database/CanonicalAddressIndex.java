@@ -0,0 +1,158 @@
+package org.smssecure.smssecure.database;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * An in-memory index of canonical addresses, held in two open-addressed
+ * tables of parallel primitive arrays: one keyed by id, one keyed by address.
+ * Addresses are interned so both tables share one copy of each string, and
+ * no boxed keys or map entries are allocated per address.
+ */
+class CanonicalAddressIndex {
+
+  private static final int   INITIAL_CAPACITY = 64;
+  private static final float LOAD_FACTOR      = 0.5f;
+
+  private long[]   ids           = new long[INITIAL_CAPACITY];
+  private String[] idAddresses   = new String[INITIAL_CAPACITY];
+  private int      idCount       = 0;
+
+  private String[] addresses     = new String[INITIAL_CAPACITY];
+  private long[]   addressIds    = new long[INITIAL_CAPACITY];
+  private int      addressCount  = 0;
+
+  public synchronized @Nullable String getAddress(long id) {
+    int slot = findIdSlot(ids, idAddresses, id);
+    return idAddresses[slot];
+  }
+
+  public synchronized long getId(@NonNull String address) {
+    int slot = findAddressSlot(addresses, address);
+    return addresses[slot] != null ? addressIds[slot] : -1L;
+  }
+
+  public synchronized void put(long id, @NonNull String address) {
+    address = address.intern();
+
+    if ((idCount + 1) > ids.length * LOAD_FACTOR) {
+      resizeIds(ids.length * 2);
+    }
+
+    int idSlot = findIdSlot(ids, idAddresses, id);
+    if (idAddresses[idSlot] == null) idCount++;
+
+    ids[idSlot]         = id;
+    idAddresses[idSlot] = address;
+
+    if ((addressCount + 1) > addresses.length * LOAD_FACTOR) {
+      resizeAddresses(addresses.length * 2);
+    }
+
+    int addressSlot = findAddressSlot(addresses, address);
+    if (addresses[addressSlot] == null) addressCount++;
+
+    addresses[addressSlot]  = address;
+    addressIds[addressSlot] = id;
+  }
+
+  /**
+   * Drops the address to id mapping for an address that has been rewritten,
+   * using backward-shift deletion so no tombstones are left behind.
+   */
+  public synchronized void removeAddress(@NonNull String address) {
+    int slot = findAddressSlot(addresses, address);
+    if (addresses[slot] == null) return;
+
+    int mask = addresses.length - 1;
+    int next = slot;
+
+    while (true) {
+      next = (next + 1) & mask;
+
+      if (addresses[next] == null) break;
+
+      int home = spread(addresses[next].hashCode()) & mask;
+
+      if ((next > slot && (home <= slot || home > next)) ||
+          (next < slot && (home <= slot && home > next)))
+      {
+        addresses[slot]  = addresses[next];
+        addressIds[slot] = addressIds[next];
+        slot             = next;
+      }
+    }
+
+    addresses[slot]  = null;
+    addressIds[slot] = 0;
+    addressCount--;
+  }
+
+  public synchronized void clear() {
+    ids          = new long[INITIAL_CAPACITY];
+    idAddresses  = new String[INITIAL_CAPACITY];
+    idCount      = 0;
+    addresses    = new String[INITIAL_CAPACITY];
+    addressIds   = new long[INITIAL_CAPACITY];
+    addressCount = 0;
+  }
+
+  private void resizeIds(int capacity) {
+    long[]   oldIds       = ids;
+    String[] oldAddresses = idAddresses;
+
+    ids         = new long[capacity];
+    idAddresses = new String[capacity];
+
+    for (int i = 0; i < oldIds.length; i++) {
+      if (oldAddresses[i] != null) {
+        int slot = findIdSlot(ids, idAddresses, oldIds[i]);
+        ids[slot]         = oldIds[i];
+        idAddresses[slot] = oldAddresses[i];
+      }
+    }
+  }
+
+  private void resizeAddresses(int capacity) {
+    String[] oldAddresses = addresses;
+    long[]   oldIds       = addressIds;
+
+    addresses  = new String[capacity];
+    addressIds = new long[capacity];
+
+    for (int i = 0; i < oldAddresses.length; i++) {
+      if (oldAddresses[i] != null) {
+        int slot = findAddressSlot(addresses, oldAddresses[i]);
+        addresses[slot]  = oldAddresses[i];
+        addressIds[slot] = oldIds[i];
+      }
+    }
+  }
+
+  private static int findIdSlot(long[] ids, String[] values, long id) {
+    int mask = ids.length - 1;
+    int slot = spread((int)(id ^ (id >>> 32))) & mask;
+
+    while (values[slot] != null && ids[slot] != id) {
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  private static int findAddressSlot(String[] addresses, String address) {
+    int mask = addresses.length - 1;
+    int slot = spread(address.hashCode()) & mask;
+
+    while (addresses[slot] != null && !addresses[slot].equals(address)) {
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  private static int spread(int hash) {
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -0,0 +1,137 @@
+package org.smssecure.smssecure.database;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Posts the ContentResolver change notifications that drive the cursor loaders.
+ *
+ * The first change to a URI is posted straight away, and any further changes
+ * within {@link #DEBOUNCE_MILLIS} collapse into a single trailing notification.
+ * Between {@link #beginDeferred()} and {@link #endDeferred()} the changes made
+ * by the calling thread are only collected, and each URI is posted once when
+ * the outermost block ends.
+ */
+public class ChangeNotifier {
+
+  private static final long DEBOUNCE_MILLIS = 200;
+
+  private static ChangeNotifier instance;
+
+  private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(@NonNull Runnable runnable) {
+      Thread thread = new Thread(runnable, "ChangeNotifier");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final Context          context;
+  private final Map<Uri, Long>   lastPosted = new HashMap<>();
+  private final Set<Uri>         scheduled  = new HashSet<>();
+
+  private final ThreadLocal<DeferredChanges> deferred = new ThreadLocal<DeferredChanges>() {
+    @Override
+    protected DeferredChanges initialValue() {
+      return new DeferredChanges();
+    }
+  };
+
+  public static synchronized ChangeNotifier getInstance(Context context) {
+    if (instance == null) {
+      instance = new ChangeNotifier(context.getApplicationContext());
+    }
+
+    return instance;
+  }
+
+  private ChangeNotifier(Context context) {
+    this.context = context;
+  }
+
+  public void notifyChange(@NonNull Uri uri) {
+    DeferredChanges changes = deferred.get();
+
+    if (changes.depth > 0) changes.uris.add(uri);
+    else                   post(uri);
+  }
+
+  /**
+   * Holds back change notifications from this thread, typically for the
+   * length of a transaction or bulk operation. Calls may be nested, and
+   * every call must be matched by a call to {@link #endDeferred()}.
+   */
+  public void beginDeferred() {
+    deferred.get().depth++;
+  }
+
+  public void endDeferred() {
+    DeferredChanges changes = deferred.get();
+
+    if (changes.depth == 0) {
+      throw new IllegalStateException("endDeferred() without beginDeferred()");
+    }
+
+    if (--changes.depth == 0) {
+      List<Uri> uris = new LinkedList<>(changes.uris);
+      changes.uris.clear();
+
+      for (Uri uri : uris) {
+        post(uri);
+      }
+    }
+  }
+
+  private void post(final @NonNull Uri uri) {
+    long delay;
+
+    synchronized (this) {
+      if (scheduled.contains(uri)) return;
+
+      long now  = SystemClock.elapsedRealtime();
+      Long last = lastPosted.get(uri);
+
+      delay = last == null ? 0 : Math.max(0, last + DEBOUNCE_MILLIS - now);
+
+      if (delay == 0) lastPosted.put(uri, now);
+      else            scheduled.add(uri);
+    }
+
+    if (delay == 0) {
+      context.getContentResolver().notifyChange(uri, null);
+      return;
+    }
+
+    executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (ChangeNotifier.this) {
+          scheduled.remove(uri);
+          lastPosted.put(uri, SystemClock.elapsedRealtime());
+        }
+
+        context.getContentResolver().notifyChange(uri, null);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private static class DeferredChanges {
+    private final Set<Uri> uris  = new LinkedHashSet<>();
+    private       int      depth = 0;
+  }
+}
@@ -29,6 +29,8 @@ public abstract class Database {
   private   static final String CONVERSATION_URI      = "content://textsecure/thread/";
   private   static final String CONVERSATION_LIST_URI = "content://textsecure/conversation-list";
 
+  private static final Uri CONVERSATION_LIST_CHANGE_URI = Uri.parse(CONVERSATION_LIST_URI);
+
   protected       SQLiteOpenHelper databaseHelper;
   protected final Context context;
 
@@ -43,11 +45,11 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(long threadId) {
-    context.getContentResolver().notifyChange(Uri.parse(CONVERSATION_URI + threadId), null);
+    ChangeNotifier.getInstance(context).notifyChange(Uri.parse(CONVERSATION_URI + threadId));
   }
 
   protected void notifyConversationListListeners() {
-    context.getContentResolver().notifyChange(Uri.parse(CONVERSATION_LIST_URI), null);
+    ChangeNotifier.getInstance(context).notifyChange(CONVERSATION_LIST_CHANGE_URI);
   }
 
   protected void setNotifyConverationListeners(Cursor cursor, long threadId) {
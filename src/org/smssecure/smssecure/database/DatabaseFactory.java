@@ -77,11 +77,15 @@ public class DatabaseFactory {
   private static final int INTRODUCED_NOTIFIED                             = 30;
 
   /*
-   * Yes, INTRODUCED_XMPP_TRANSPORT > DATABASE_VERSION to allow database
-   * downgrade when XMPP transport will be included in unstable branch.
+   * Version 31 belongs to the XMPP transport of the unstable branch and is
+   * skipped here. Downgrades leave the schema as it is, see onDowngrade().
    */
   private static final int INTRODUCED_XMPP_TRANSPORT                       = 31;
-  private static final int DATABASE_VERSION                                = 30;
+  private static final int INTRODUCED_MULTIPART_FRAGMENTS_VERSION          = 32;
+  private static final int INTRODUCED_THREAD_SNIPPET_DATE_VERSION          = 33;
+  private static final int INTRODUCED_PROTOCOL_STORE_VERSION               = 34;
+  private static final int INTRODUCED_SMS_PART_STATUS_VERSION              = 35;
+  private static final int DATABASE_VERSION                                = 35;
 
   private static final String DATABASE_NAME    = "messages.db";
   private static final Object lock             = new Object();
@@ -103,6 +107,9 @@ public class DatabaseFactory {
   private final DraftDatabase draftDatabase;
   private final RecipientPreferenceDatabase recipientPreferenceDatabase;
   private final ContactsDatabase contactsDatabase;
+  private final MultipartSmsFragmentDatabase multipartSmsFragmentDatabase;
+  private final ProtocolStoreDatabase protocolStoreDatabase;
+  private final SmsPartStatusDatabase smsPartStatusDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
     synchronized (lock) {
@@ -165,6 +172,18 @@ public class DatabaseFactory {
     return getInstance(context).contactsDatabase;
   }
 
+  public static MultipartSmsFragmentDatabase getMultipartSmsFragmentDatabase(Context context) {
+    return getInstance(context).multipartSmsFragmentDatabase;
+  }
+
+  public static ProtocolStoreDatabase getProtocolStoreDatabase(Context context) {
+    return getInstance(context).protocolStoreDatabase;
+  }
+
+  public static SmsPartStatusDatabase getSmsPartStatusDatabase(Context context) {
+    return getInstance(context).smsPartStatusDatabase;
+  }
+
   private DatabaseFactory(Context context) {
     this.databaseHelper              = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
     this.sms                         = new SmsDatabase(context, databaseHelper);
@@ -180,6 +199,9 @@ public class DatabaseFactory {
     this.draftDatabase               = new DraftDatabase(context, databaseHelper);
     this.recipientPreferenceDatabase = new RecipientPreferenceDatabase(context, databaseHelper);
     this.contactsDatabase            = new ContactsDatabase(context);
+    this.multipartSmsFragmentDatabase = new MultipartSmsFragmentDatabase(context, databaseHelper);
+    this.protocolStoreDatabase        = new ProtocolStoreDatabase(context, databaseHelper);
+    this.smsPartStatusDatabase        = new SmsPartStatusDatabase(context, databaseHelper);
   }
 
   public void reset(Context context) {
@@ -196,6 +218,9 @@ public class DatabaseFactory {
     this.identityDatabase.reset(databaseHelper);
     this.draftDatabase.reset(databaseHelper);
     this.recipientPreferenceDatabase.reset(databaseHelper);
+    this.multipartSmsFragmentDatabase.reset(databaseHelper);
+    this.protocolStoreDatabase.reset(databaseHelper);
+    this.smsPartStatusDatabase.reset(databaseHelper);
     old.close();
 
     this.address.reset(context);
@@ -506,6 +531,9 @@ public class DatabaseFactory {
       db.execSQL(IdentityDatabase.CREATE_TABLE);
       db.execSQL(DraftDatabase.CREATE_TABLE);
       db.execSQL(RecipientPreferenceDatabase.CREATE_TABLE);
+      db.execSQL(MultipartSmsFragmentDatabase.CREATE_TABLE);
+      db.execSQL(ProtocolStoreDatabase.CREATE_TABLE);
+      db.execSQL(SmsPartStatusDatabase.CREATE_TABLE);
 
       executeStatements(db, SmsDatabase.CREATE_INDEXS);
       executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -513,16 +541,18 @@ public class DatabaseFactory {
       executeStatements(db, ThreadDatabase.CREATE_INDEXS);
       executeStatements(db, MmsAddressDatabase.CREATE_INDEXS);
       executeStatements(db, DraftDatabase.CREATE_INDEXS);
+      executeStatements(db, MultipartSmsFragmentDatabase.CREATE_INDEXS);
     }
 
+    /**
+     * Keeps the schema as it is when an older build opens the database. The
+     * tables and columns added since are ignored by older builds, and every
+     * upgrade step tolerates finding them again when the database is
+     * upgraded once more.
+     */
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-      db.beginTransaction();
-
-      if (newVersion < INTRODUCED_XMPP_TRANSPORT) {}
-
-      db.setTransactionSuccessful();
-      db.endTransaction();
+      Log.w(TAG, "Downgrading database from " + oldVersion + " to " + newVersion);
     }
 
     @Override
@@ -841,10 +871,55 @@ public class DatabaseFactory {
         db.execSQL("CREATE INDEX IF NOT EXISTS mms_read_and_notified_and_thread_id_index ON mms(read,notified,thread_id)");
       }
 
+      if (oldVersion < INTRODUCED_MULTIPART_FRAGMENTS_VERSION) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS multipart_sms_fragments (_id INTEGER PRIMARY KEY, fragment_key TEXT NOT NULL, " +
+                   "fragment_count INTEGER, fragment_index INTEGER, data TEXT, date_received INTEGER, " +
+                   "UNIQUE(fragment_key, fragment_index) ON CONFLICT REPLACE);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS multipart_sms_fragments_date_index ON multipart_sms_fragments (date_received);");
+      }
+
+      if (oldVersion < INTRODUCED_THREAD_SNIPPET_DATE_VERSION) {
+        if (!hasColumn(db, "thread", "snippet_date_received")) {
+          db.execSQL("ALTER TABLE thread ADD COLUMN snippet_date_received INTEGER DEFAULT 0");
+        }
+
+        db.execSQL("UPDATE thread SET snippet_date_received = " +
+                   "MAX(IFNULL((SELECT MAX(date) FROM sms WHERE sms.thread_id = thread._id), 0), " +
+                   "IFNULL((SELECT MAX(date_received) FROM mms WHERE mms.thread_id = thread._id), 0))");
+      }
+
+      if (oldVersion < INTRODUCED_PROTOCOL_STORE_VERSION) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS protocol_records (_id INTEGER PRIMARY KEY, type INTEGER NOT NULL, " +
+                   "recipient_id INTEGER NOT NULL, record_id INTEGER NOT NULL, record BLOB NOT NULL, " +
+                   "sender_chain INTEGER DEFAULT 0, UNIQUE(type, recipient_id, record_id) ON CONFLICT REPLACE);");
+      }
+
+      if (oldVersion < INTRODUCED_SMS_PART_STATUS_VERSION) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS sms_part_status (message_id INTEGER PRIMARY KEY, attempt INTEGER DEFAULT 0, part_count INTEGER, " +
+                   "delivery_expected INTEGER DEFAULT 0, sent_count INTEGER DEFAULT 0, delivered_count INTEGER DEFAULT 0, " +
+                   "sent_complete INTEGER DEFAULT 0, date_created INTEGER);");
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
 
+    private boolean hasColumn(SQLiteDatabase db, String table, String column) {
+      Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+
+      try {
+        while (cursor != null && cursor.moveToNext()) {
+          if (column.equals(cursor.getString(cursor.getColumnIndexOrThrow("name")))) {
+            return true;
+          }
+        }
+
+        return false;
+      } finally {
+        if (cursor != null) cursor.close();
+      }
+    }
+
     private void executeStatements(SQLiteDatabase db, String[] statements) {
       for (String statement : statements)
         db.execSQL(statement);
@@ -0,0 +1,191 @@
+package org.smssecure.smssecure.database;
+
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.whispersystems.libsignal.InvalidMessageException;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decrypts the symmetric-encrypted bodies around a cursor position ahead of
+ * time, on a small worker pool, and publishes them into the {@link PlaintextCache}
+ * so that readers bound on the UI thread find them already decrypted.
+ *
+ * Only the ciphertext is read from the cursor, on the calling thread, since
+ * cursors can't be shared across threads.  The expensive part is handed off.
+ * Rows are decrypted in the order they were scheduled, which is the order a
+ * reader walking the cursor forward reaches them.
+ */
+public class DecryptionPrefetcher {
+
+  private static final String TAG = DecryptionPrefetcher.class.getSimpleName();
+
+  private static final int DEFAULT_WINDOW = 30;
+  private static final int THREAD_COUNT   = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+
+  private static final ExecutorService executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+                                                                         30, TimeUnit.SECONDS,
+                                                                         new LinkedBlockingQueue<Runnable>(),
+                                                                         new PrefetchThreadFactory());
+
+  static {
+    ((ThreadPoolExecutor)executor).allowCoreThreadTimeOut(true);
+  }
+
+  private static final Set<PlaintextCache.Key> inFlight =
+      Collections.newSetFromMap(new ConcurrentHashMap<PlaintextCache.Key, Boolean>());
+
+  private final MasterCipher   masterCipher;
+  private final PlaintextCache plaintextCache;
+  private final int            window;
+
+  public DecryptionPrefetcher(@NonNull MasterSecret masterSecret) {
+    this(masterSecret, DEFAULT_WINDOW);
+  }
+
+  public DecryptionPrefetcher(@NonNull MasterSecret masterSecret, int window) {
+    this.masterCipher   = MasterCipher.getInstance(masterSecret);
+    this.plaintextCache = PlaintextCache.getInstance();
+    this.window         = window;
+  }
+
+  /**
+   * Schedules decryption for the rows within the prefetch window around the
+   * cursor's current position, those ahead of it first.  The cursor's
+   * position is restored afterwards.
+   */
+  public void prefetchAround(@NonNull Cursor cursor) {
+    int position = cursor.getPosition();
+    prefetch(cursor, position, position + window);
+    prefetch(cursor, position - window, position - 1);
+  }
+
+  /**
+   * Schedules decryption for the rows in [from, to] of a cursor with the
+   * {@link MmsSmsDatabase} projection.  The cursor's position is restored afterwards.
+   */
+  public void prefetch(@NonNull Cursor cursor, int from, int to) {
+    if (cursor.isClosed()) return;
+
+    int original = cursor.getPosition();
+    int count    = cursor.getCount();
+
+    from = Math.max(0, from);
+    to   = Math.min(count - 1, to);
+
+    try {
+      int idColumn        = cursor.getColumnIndexOrThrow(MmsSmsColumns.ID);
+      int bodyColumn      = cursor.getColumnIndexOrThrow(MmsSmsColumns.BODY);
+      int transportColumn = cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT);
+      int smsTypeColumn   = cursor.getColumnIndexOrThrow(SmsDatabase.TYPE);
+      int mmsBoxColumn    = cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX);
+
+      for (int i = from; i <= to; i++) {
+        if (!cursor.moveToPosition(i)) break;
+
+        boolean mms        = MmsSmsDatabase.MMS_TRANSPORT.equals(cursor.getString(transportColumn));
+        String  table      = mms ? MmsDatabase.TABLE_NAME : SmsDatabase.TABLE_NAME;
+        long    id         = cursor.getLong(idColumn);
+        String  ciphertext = cursor.getString(bodyColumn);
+        long    type       = mms ? cursor.getLong(mmsBoxColumn) : cursor.getLong(smsTypeColumn);
+
+        if (!TextUtils.isEmpty(ciphertext) && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
+          schedule(table, id, ciphertext);
+        }
+      }
+    } finally {
+      cursor.moveToPosition(original);
+    }
+  }
+
+  /**
+   * Schedules decryption for the rows in [from, to] of a cursor over a single
+   * table, whose message type is held in {@code typeColumn}.  The cursor's
+   * position is restored afterwards.
+   */
+  public void prefetch(@NonNull Cursor cursor, @NonNull String table, @NonNull String typeColumn, int from, int to) {
+    if (cursor.isClosed()) return;
+
+    int original = cursor.getPosition();
+    int count    = cursor.getCount();
+
+    from = Math.max(0, from);
+    to   = Math.min(count - 1, to);
+
+    try {
+      int idColumn   = cursor.getColumnIndexOrThrow(MmsSmsColumns.ID);
+      int bodyColumn = cursor.getColumnIndexOrThrow(MmsSmsColumns.BODY);
+      int typeIndex  = cursor.getColumnIndexOrThrow(typeColumn);
+
+      for (int i = from; i <= to; i++) {
+        if (!cursor.moveToPosition(i)) break;
+
+        String ciphertext = cursor.getString(bodyColumn);
+
+        if (!TextUtils.isEmpty(ciphertext) && MmsSmsColumns.Types.isSymmetricEncryption(cursor.getLong(typeIndex))) {
+          schedule(table, cursor.getLong(idColumn), ciphertext);
+        }
+      }
+    } finally {
+      cursor.moveToPosition(original);
+    }
+  }
+
+  /**
+   * Drops the decryptions that haven't started yet. Called when the master
+   * secret is cleared, along with {@link PlaintextCache#clear()}, which keeps
+   * the ones already running from publishing their results.
+   */
+  public static void cancelAll() {
+    ((ThreadPoolExecutor)executor).getQueue().clear();
+    inFlight.clear();
+  }
+
+  private void schedule(final String table, final long id, final String ciphertext) {
+    final PlaintextCache.Key key        = new PlaintextCache.Key(table, id, ciphertext);
+    final int                generation = plaintextCache.getGeneration();
+
+    if (plaintextCache.contains(table, id, ciphertext) || !inFlight.add(key)) {
+      return;
+    }
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (plaintextCache.getGeneration() == generation && !plaintextCache.contains(table, id, ciphertext)) {
+            plaintextCache.put(table, id, ciphertext, masterCipher.decryptBody(ciphertext), generation);
+          }
+        } catch (InvalidMessageException e) {
+          Log.w(TAG, e);
+        } finally {
+          inFlight.remove(key);
+        }
+      }
+    });
+  }
+
+  private static class PrefetchThreadFactory implements ThreadFactory {
+    private final AtomicInteger counter = new AtomicInteger();
+
+    @Override
+    public Thread newThread(@NonNull Runnable runnable) {
+      Thread thread = new Thread(runnable, "DecryptionPrefetcher-" + counter.incrementAndGet());
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  }
+}
@@ -29,18 +29,13 @@ import org.smssecure.smssecure.database.model.DisplayRecord;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
 import org.smssecure.smssecure.sms.IncomingTextMessage;
 import org.smssecure.smssecure.sms.OutgoingTextMessage;
-import org.smssecure.smssecure.util.LRUCache;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.Map;
-
 public class EncryptingSmsDatabase extends SmsDatabase {
 
-  private final PlaintextCache plaintextCache = new PlaintextCache();
+  private final PlaintextCache plaintextCache = PlaintextCache.getInstance();
 
   public EncryptingSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -52,37 +47,53 @@ public class EncryptingSmsDatabase extends SmsDatabase {
   }
 
   private String getEncryptedBody(MasterSecret masterSecret, String body) {
-    MasterCipher bodyCipher = new MasterCipher(masterSecret);
-    String ciphertext       = bodyCipher.encryptBody(body);
-    plaintextCache.put(ciphertext, body);
+    MasterCipher bodyCipher = MasterCipher.getInstance(masterSecret);
+    return bodyCipher.encryptBody(body);
+  }
 
-    return ciphertext;
+  private void cachePlaintext(long messageId, String ciphertext, String plaintext) {
+    if (messageId > 0) {
+      plaintextCache.put(TABLE_NAME, messageId, ciphertext, plaintext);
+    }
   }
 
   public long insertMessageOutbox(MasterSecret masterSecret, long threadId,
                                   OutgoingTextMessage message, boolean forceSms,
                                   long timestamp)
   {
-    long type = Types.BASE_SENDING_TYPE;
-    message   = message.withBody(getEncryptedBody(masterSecret, message.getMessageBody()));
+    long   type      = Types.BASE_SENDING_TYPE;
+    String plaintext = message.getMessageBody();
+
+    message   = message.withBody(getEncryptedBody(masterSecret, plaintext));
     type     |= Types.ENCRYPTION_SYMMETRIC_BIT;
 
-    return insertMessageOutbox(threadId, message, type, forceSms, timestamp);
+    long messageId = insertMessageOutbox(threadId, message, type, forceSms, timestamp);
+    cachePlaintext(messageId, message.getMessageBody(), plaintext);
+
+    return messageId;
   }
 
   public Pair<Long, Long> insertMessageInbox(MasterSecret masterSecret,
                                              IncomingTextMessage message)
   {
-    long type = Types.BASE_INBOX_TYPE;
+    long   type      = Types.BASE_INBOX_TYPE;
+    String plaintext = null;
 
     if (masterSecret == null && message.isSecureMessage()) {
       type |= Types.ENCRYPTION_REMOTE_BIT;
     } else {
       type |= Types.ENCRYPTION_SYMMETRIC_BIT;
-      message = message.withMessageBody(getEncryptedBody(masterSecret, message.getMessageBody()));
+      plaintext = message.getMessageBody();
+      message   = message.withMessageBody(getEncryptedBody(masterSecret, plaintext));
     }
 
-    return insertMessageInbox(message, type);
+    Pair<Long, Long> messageAndThreadId = insertMessageInbox(message, type);
+
+    if (plaintext != null && messageAndThreadId != null) {
+      cachePlaintext(messageAndThreadId.first, message.getMessageBody(), plaintext);
+    }
+
+    return messageAndThreadId;
   }
 
   public Pair<Long, Long> insertMessageInbox(AsymmetricMasterSecret masterSecret,
@@ -102,18 +113,27 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
   public Pair<Long, Long> updateBundleMessageBody(MasterSecret masterSecret, long messageId, String body) {
     String encryptedBody = getEncryptedBody(masterSecret, body);
+    cachePlaintext(messageId, encryptedBody, body);
+
     return updateMessageBodyAndType(messageId, encryptedBody, Types.TOTAL_MASK,
                                     Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT | Types.SECURE_MESSAGE_BIT);
   }
 
   public void updateMessageBody(MasterSecret masterSecret, long messageId, String body) {
     String encryptedBody = getEncryptedBody(masterSecret, body);
+    cachePlaintext(messageId, encryptedBody, body);
+
     updateMessageBodyAndType(messageId, encryptedBody, Types.ENCRYPTION_MASK,
                              Types.ENCRYPTION_SYMMETRIC_BIT);
   }
 
-  public Reader getMessages(MasterSecret masterSecret, int skip, int limit) {
-    Cursor cursor = super.getMessages(skip, limit);
+  /**
+   * Returns up to {@code limit} messages with an id greater than {@code lastId}, in
+   * id order. Their bodies are decrypted ahead of the reader on the prefetch pool.
+   */
+  public Reader getMessagesAfter(MasterSecret masterSecret, long lastId, int limit) {
+    Cursor cursor = super.getMessagesAfter(lastId, limit);
+    new DecryptionPrefetcher(masterSecret).prefetch(cursor, TABLE_NAME, TYPE, 0, cursor.getCount() - 1);
     return new DecryptingReader(masterSecret, cursor);
   }
 
@@ -148,12 +168,13 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
     public DecryptingReader(MasterSecret masterSecret, Cursor cursor) {
       super(cursor);
-      this.masterCipher = new MasterCipher(masterSecret);
+      this.masterCipher = MasterCipher.getInstance(masterSecret);
     }
 
     @Override
     protected DisplayRecord.Body getBody(Cursor cursor) {
       long type         = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
+      long id           = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
       String ciphertext = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.BODY));
 
       if (ciphertext == null) {
@@ -162,14 +183,14 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
       try {
         if (SmsDatabase.Types.isSymmetricEncryption(type)) {
-          String plaintext = plaintextCache.get(ciphertext);
+          String plaintext = plaintextCache.get(TABLE_NAME, id, ciphertext);
 
           if (plaintext != null)
             return new DisplayRecord.Body(plaintext, true);
 
           plaintext = masterCipher.decryptBody(ciphertext);
 
-          plaintextCache.put(ciphertext, plaintext);
+          plaintextCache.put(TABLE_NAME, id, ciphertext, plaintext);
           return new DisplayRecord.Body(plaintext, true);
         } else {
           return new DisplayRecord.Body(ciphertext, true);
@@ -180,28 +201,4 @@ public class EncryptingSmsDatabase extends SmsDatabase {
       }
     }
   }
-
-  private static class PlaintextCache {
-    private static final int MAX_CACHE_SIZE = 2000;
-    private static final Map<String, SoftReference<String>> decryptedBodyCache =
-        Collections.synchronizedMap(new LRUCache<String, SoftReference<String>>(MAX_CACHE_SIZE));
-
-    public void put(String ciphertext, String plaintext) {
-      decryptedBodyCache.put(ciphertext, new SoftReference<String>(plaintext));
-    }
-
-    public String get(String ciphertext) {
-      SoftReference<String> plaintextReference = decryptedBodyCache.get(ciphertext);
-
-      if (plaintextReference != null) {
-        String plaintext = plaintextReference.get();
-
-        if (plaintext != null) {
-          return plaintext;
-        }
-      }
-
-      return null;
-    }
-  }
 }
@@ -33,6 +33,15 @@ import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class IdentityDatabase extends Database {
 
@@ -50,6 +59,21 @@ public class IdentityDatabase extends Database {
       IDENTITY_KEY + " TEXT, " +
       MAC + " TEXT);";
 
+  private static final int MAX_CACHED_IDENTITIES = 500;
+  private static final int MAX_QUERY_ARGUMENTS   = 500;
+
+  private static final VerifiedIdentity NONE = new VerifiedIdentity(null, false);
+
+  private final LinkedHashMap<Long, VerifiedIdentity> identityCache = new LinkedHashMap<Long, VerifiedIdentity>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, VerifiedIdentity> eldest) {
+      return size() > MAX_CACHED_IDENTITIES;
+    }
+  };
+
+  private MasterSecret cacheSecret;
+  private long         cacheVersion;
+
   public IdentityDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -68,46 +92,35 @@ public class IdentityDatabase extends Database {
                                  long recipientId,
                                  IdentityKey theirIdentity)
   {
-    SQLiteDatabase database   = databaseHelper.getReadableDatabase();
-    MasterCipher masterCipher = new MasterCipher(masterSecret);
-    Cursor cursor             = null;
-
-    try {
-      cursor = database.query(TABLE_NAME, null, RECIPIENT + " = ?",
-                              new String[] {recipientId+""}, null, null,null);
-
-      if (cursor != null && cursor.moveToFirst()) {
-        String serializedIdentity = cursor.getString(cursor.getColumnIndexOrThrow(IDENTITY_KEY));
-        String mac                = cursor.getString(cursor.getColumnIndexOrThrow(MAC));
-
-        if (!masterCipher.verifyMacFor(recipientId + serializedIdentity, Base64.decode(mac))) {
-          Log.w("IdentityDatabase", "MAC failed");
-          return false;
-        }
-
-        IdentityKey ourIdentity = new IdentityKey(Base64.decode(serializedIdentity), 0);
+    return getValidIdentities(masterSecret, Collections.singletonMap(recipientId, theirIdentity)).contains(recipientId);
+  }
 
-        return ourIdentity.equals(theirIdentity);
-      } else {
-        return true;
-      }
-    } catch (IOException e) {
-      Log.w("IdentityDatabase", e);
-      return false;
-    } catch (InvalidKeyException e) {
-      Log.w("IdentityDatabase", e);
-      return false;
-    } finally {
-      if (cursor != null) {
-        cursor.close();
+  /**
+   * Checks a set of identities at once, such as those of every recipient of
+   * a message, reading any that aren't cached yet with a single query.
+   *
+   * @return the recipient ids whose identity matches the one on record, or
+   *         who have none on record yet.
+   */
+  public Set<Long> getValidIdentities(MasterSecret masterSecret, Map<Long, IdentityKey> theirIdentities) {
+    Set<Long>                   valid    = new HashSet<>();
+    Map<Long, VerifiedIdentity> verified = getVerifiedIdentities(masterSecret, theirIdentities.keySet());
+
+    for (Map.Entry<Long, IdentityKey> entry : theirIdentities.entrySet()) {
+      VerifiedIdentity identity = verified.get(entry.getKey());
+
+      if (identity == null || identity.isValidFor(entry.getValue())) {
+        valid.add(entry.getKey());
       }
     }
+
+    return valid;
   }
 
   public void saveIdentity(MasterSecret masterSecret, long recipientId, IdentityKey identityKey)
   {
     SQLiteDatabase database   = databaseHelper.getWritableDatabase();
-    MasterCipher masterCipher = new MasterCipher(masterSecret);
+    MasterCipher masterCipher = MasterCipher.getInstance(masterSecret);
     String identityKeyString  = Base64.encodeBytes(identityKey.serialize());
     String macString          = Base64.encodeBytes(masterCipher.getMacFor(recipientId +
                                                                               identityKeyString));
@@ -119,14 +132,161 @@ public class IdentityDatabase extends Database {
 
     database.replace(TABLE_NAME, null, contentValues);
 
-    context.getContentResolver().notifyChange(CHANGE_URI, null);
+    synchronized (identityCache) {
+      cacheVersion++;
+
+      if (isCacheSecret(masterSecret)) {
+        identityCache.put(recipientId, new VerifiedIdentity(identityKey, true));
+      } else {
+        identityCache.remove(recipientId);
+      }
+    }
+
+    ChangeNotifier.getInstance(context).notifyChange(CHANGE_URI);
   }
 
   public void deleteIdentity(long id) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {id+""});
 
-    context.getContentResolver().notifyChange(CHANGE_URI, null);
+    synchronized (identityCache) {
+      cacheVersion++;
+      identityCache.clear();
+    }
+
+    ChangeNotifier.getInstance(context).notifyChange(CHANGE_URI);
+  }
+
+  /**
+   * @return the verified identity on record for each of the recipients that
+   *         has one, from the cache where possible. Identities read from the
+   *         database are only cached if none was saved or deleted meanwhile.
+   */
+  private Map<Long, VerifiedIdentity> getVerifiedIdentities(MasterSecret masterSecret, Collection<Long> recipientIds) {
+    Map<Long, VerifiedIdentity> results  = new HashMap<>();
+    List<Long>                  uncached = new LinkedList<>();
+    long                        version;
+
+    synchronized (identityCache) {
+      if (!isCacheSecret(masterSecret)) {
+        identityCache.clear();
+        cacheSecret = masterSecret;
+      }
+
+      for (long recipientId : recipientIds) {
+        VerifiedIdentity identity = identityCache.get(recipientId);
+
+        if      (identity == null)  uncached.add(recipientId);
+        else if (identity != NONE)  results.put(recipientId, identity);
+      }
+
+      version = cacheVersion;
+    }
+
+    if (uncached.isEmpty()) {
+      return results;
+    }
+
+    Map<Long, VerifiedIdentity> loaded = loadIdentities(masterSecret, uncached);
+
+    synchronized (identityCache) {
+      boolean current = isCacheSecret(masterSecret) && cacheVersion == version;
+
+      for (long recipientId : uncached) {
+        VerifiedIdentity identity = loaded.get(recipientId);
+
+        if (current) {
+          identityCache.put(recipientId, identity != null ? identity : NONE);
+        } else if (isCacheSecret(masterSecret) && identityCache.containsKey(recipientId)) {
+          identity = identityCache.get(recipientId);
+          if (identity == NONE) identity = null;
+        }
+
+        if (identity != null) {
+          results.put(recipientId, identity);
+        }
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Compares by key material, since the UI and the jobs hold different
+   * copies of the same secret.
+   */
+  private boolean isCacheSecret(MasterSecret masterSecret) {
+    return cacheSecret == masterSecret ||
+           (cacheSecret != null && masterSecret != null &&
+            cacheSecret.getEncryptionKey().equals(masterSecret.getEncryptionKey()) &&
+            cacheSecret.getMacKey().equals(masterSecret.getMacKey()));
+  }
+
+  private Map<Long, VerifiedIdentity> loadIdentities(MasterSecret masterSecret, List<Long> recipientIds) {
+    SQLiteDatabase              database     = databaseHelper.getReadableDatabase();
+    MasterCipher                masterCipher = MasterCipher.getInstance(masterSecret);
+    Map<Long, VerifiedIdentity> results      = new HashMap<>();
+
+    for (int offset = 0; offset < recipientIds.size(); offset += MAX_QUERY_ARGUMENTS) {
+      List<Long> batch = recipientIds.subList(offset, Math.min(recipientIds.size(), offset + MAX_QUERY_ARGUMENTS));
+      String[]   args  = new String[batch.size()];
+
+      for (int i = 0; i < args.length; i++) {
+        args[i] = String.valueOf(batch.get(i));
+      }
+
+      Cursor cursor = null;
+
+      try {
+        cursor = database.query(TABLE_NAME, new String[] {RECIPIENT, IDENTITY_KEY, MAC},
+                                RECIPIENT + " IN (" + getPlaceholders(args.length) + ")",
+                                args, null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          long   recipientId        = cursor.getLong(0);
+          String serializedIdentity = cursor.getString(1);
+          String mac                = cursor.getString(2);
+
+          results.put(recipientId, verifyIdentity(masterCipher, recipientId, serializedIdentity, mac));
+        }
+      } finally {
+        if (cursor != null) {
+          cursor.close();
+        }
+      }
+    }
+
+    return results;
+  }
+
+  private VerifiedIdentity verifyIdentity(MasterCipher masterCipher, long recipientId,
+                                          String serializedIdentity, String mac)
+  {
+    try {
+      if (!masterCipher.verifyMacFor(recipientId + serializedIdentity, Base64.decode(mac))) {
+        Log.w("IdentityDatabase", "MAC failed");
+        return new VerifiedIdentity(null, false);
+      }
+
+      return new VerifiedIdentity(new IdentityKey(Base64.decode(serializedIdentity), 0), true);
+    } catch (IOException e) {
+      Log.w("IdentityDatabase", e);
+      return new VerifiedIdentity(null, false);
+    } catch (InvalidKeyException e) {
+      Log.w("IdentityDatabase", e);
+      return new VerifiedIdentity(null, false);
+    }
+  }
+
+  private static String getPlaceholders(int count) {
+    StringBuilder builder = new StringBuilder();
+
+    for (int i = 0; i < count; i++) {
+      if (i > 0) builder.append(',');
+      builder.append('?');
+    }
+
+    return builder.toString();
   }
 
   public Reader readerFor(MasterSecret masterSecret, Cursor cursor) {
@@ -139,7 +299,7 @@ public class IdentityDatabase extends Database {
 
     public Reader(MasterSecret masterSecret, Cursor cursor) {
       this.cursor = cursor;
-      this.cipher = new MasterCipher(masterSecret);
+      this.cipher = MasterCipher.getInstance(masterSecret);
     }
 
     public Identity getCurrent() {
@@ -166,6 +326,23 @@ public class IdentityDatabase extends Database {
     }
   }
 
+  /**
+   * An identity on record whose MAC has been checked, or which failed the check.
+   */
+  private static class VerifiedIdentity {
+    private final IdentityKey identityKey;
+    private final boolean     macValid;
+
+    VerifiedIdentity(IdentityKey identityKey, boolean macValid) {
+      this.identityKey = identityKey;
+      this.macValid    = macValid;
+    }
+
+    boolean isValidFor(IdentityKey theirIdentity) {
+      return macValid && identityKey.equals(theirIdentity);
+    }
+  }
+
   public static class Identity {
     private final Recipients  recipients;
     private final IdentityKey identityKey;
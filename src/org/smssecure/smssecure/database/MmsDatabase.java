@@ -45,6 +45,7 @@ import org.smssecure.smssecure.database.model.DisplayRecord;
 import org.smssecure.smssecure.database.model.MediaMmsMessageRecord;
 import org.smssecure.smssecure.database.model.MessageRecord;
 import org.smssecure.smssecure.database.model.NotificationMmsMessageRecord;
+import org.smssecure.smssecure.jobs.PriorityJobManager;
 import org.smssecure.smssecure.jobs.TrimThreadJob;
 import org.smssecure.smssecure.mms.IncomingMediaMessage;
 import org.smssecure.smssecure.mms.OutgoingMediaMessage;
@@ -59,10 +60,10 @@ import org.smssecure.smssecure.util.JsonUtils;
 import org.smssecure.smssecure.util.ServiceUtil;
 import org.smssecure.smssecure.util.SilencePreferences;
 import org.smssecure.smssecure.util.Util;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -142,7 +143,7 @@ public class MmsDatabase extends MessagingDatabase {
 
   private static final String RAW_ID_WHERE = TABLE_NAME + "._id = ?";
 
-  private final JobManager jobManager;
+  private final PriorityJobManager jobManager;
 
   public MmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -154,6 +155,31 @@ public class MmsDatabase extends MessagingDatabase {
     return TABLE_NAME;
   }
 
+  public int getMessageCount() {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {"COUNT(*)"}, null, null, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getInt(0);
+      else                                        return 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * Returns the id, date, box, address, read state and raw body of up to
+   * {@code limit} messages with an id greater than {@code lastId}, in id order.
+   */
+  /*package*/ Cursor getMessagesAfter(long lastId, int limit) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.query(TABLE_NAME, new String[] {ID, DATE_RECEIVED, MESSAGE_BOX, ADDRESS, READ, BODY},
+                    ID + " > ?", new String[] {String.valueOf(lastId)}, null, null, ID, String.valueOf(limit));
+  }
+
   public int getMessageCountForThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     Cursor cursor     = null;
@@ -206,6 +232,22 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
+  private long getDateReceivedForMessage(long id) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {DATE_RECEIVED}, ID_WHERE, new String[] {id+""}, null, null, null);
+      if (cursor != null && cursor.moveToFirst())
+        return cursor.getLong(0);
+      else
+        return 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   private long getThreadIdFor(IncomingMediaMessage retrieved) throws RecipientFormattingException, MmsException {
     if (retrieved.getGroupId() != null) {
       Recipients groupRecipients = RecipientFactory.getRecipientsFromString(context, retrieved.getGroupId(), true);
@@ -678,6 +720,57 @@ public class MmsDatabase extends MessagingDatabase {
     return messageId;
   }
 
+  /**
+   * Inserts a message copied from the system MMS store.  The caller owns the
+   * surrounding transaction and is responsible for updating the thread once
+   * the whole conversation has been copied.  If the message can't be stored
+   * whole, what was inserted of it is deleted again before the exception is
+   * thrown, so that the transaction can still be committed.
+   */
+  /*package*/ long insertMigratedMessage(@NonNull MasterSecret masterSecret, long threadId, boolean inbox,
+                                         long dateSent, long dateReceived, boolean read,
+                                         @NonNull MmsAddresses addresses, @Nullable String body,
+                                         @NonNull List<Attachment> attachments)
+      throws MmsException
+  {
+    SQLiteDatabase db            = databaseHelper.getWritableDatabase();
+    ContentValues  contentValues = new ContentValues();
+
+    if (inbox) {
+      contentValues.put(MESSAGE_BOX, Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT);
+      contentValues.put(MESSAGE_TYPE, PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF);
+      contentValues.put(ADDRESS, addresses.getFrom());
+      contentValues.put(STATUS, Status.DOWNLOAD_INITIALIZED);
+    } else {
+      contentValues.put(MESSAGE_BOX, Types.BASE_SENT_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT);
+      contentValues.put(MESSAGE_TYPE, PduHeaders.MESSAGE_TYPE_SEND_REQ);
+    }
+
+    contentValues.put(THREAD_ID, threadId);
+    contentValues.put(DATE_SENT, dateSent);
+    contentValues.put(DATE_RECEIVED, dateReceived);
+    contentValues.put(READ, read ? 1 : 0);
+    contentValues.put(PART_COUNT, attachments.size());
+
+    if (!TextUtils.isEmpty(body)) {
+      contentValues.put(BODY, MasterCipher.getInstance(masterSecret).encryptBody(body));
+    }
+
+    long messageId = db.insert(TABLE_NAME, null, contentValues);
+
+    try {
+      DatabaseFactory.getMmsAddressDatabase(context).insertAddressesForId(messageId, addresses);
+      DatabaseFactory.getAttachmentDatabase(context).insertAttachmentsForMessage(masterSecret, messageId, attachments);
+    } catch (MmsException | RuntimeException e) {
+      DatabaseFactory.getAttachmentDatabase(context).deleteAttachmentsForMessage(messageId);
+      DatabaseFactory.getMmsAddressDatabase(context).deleteAddressesForId(messageId);
+      db.delete(TABLE_NAME, ID_WHERE, new String[] {String.valueOf(messageId)});
+      throw e;
+    }
+
+    return messageId;
+  }
+
   private @Nullable String getDecryptedBody(@NonNull MasterSecret masterSecret,
                                             @Nullable String body, long outboxType)
   {
@@ -733,6 +826,7 @@ public class MmsDatabase extends MessagingDatabase {
 
   public boolean delete(long messageId) {
     long               threadId           = getThreadIdForMessage(messageId);
+    long               dateReceived       = getDateReceivedForMessage(messageId);
     MmsAddressDatabase addrDatabase       = DatabaseFactory.getMmsAddressDatabase(context);
     AttachmentDatabase attachmentDatabase = DatabaseFactory.getAttachmentDatabase(context);
     attachmentDatabase.deleteAttachmentsForMessage(messageId);
@@ -740,7 +834,7 @@ public class MmsDatabase extends MessagingDatabase {
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDeletedMessage(threadId, dateReceived);
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
@@ -775,31 +869,33 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
-    Cursor cursor = null;
+  /**
+   * Deletes the messages of a thread older than {@code date}, along with their
+   * addresses and attachment rows, in one statement per table. The thread itself
+   * is not updated.
+   *
+   * @return The attachment files left without a row, to be deleted by the caller.
+   */
+  /*package*/ List<File> deleteMessagesInThreadBeforeDate(long threadId, long date) {
+    SQLiteDatabase db    = databaseHelper.getWritableDatabase();
+    StringBuilder  where = new StringBuilder(THREAD_ID + " = ? AND (CASE (" + MESSAGE_BOX + " & " + Types.BASE_TYPE_MASK + ") ");
 
-    try {
-      SQLiteDatabase db   = databaseHelper.getReadableDatabase();
-      StringBuilder where = new StringBuilder(THREAD_ID + " = ? AND (CASE (" + MESSAGE_BOX + " & " + Types.BASE_TYPE_MASK + ") ");
+    for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
+      where.append(" WHEN ").append(outgoingType).append(" THEN ").append(DATE_SENT).append(" < ").append(date);
+    }
 
-      for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
-        where.append(" WHEN ").append(outgoingType).append(" THEN ").append(DATE_SENT).append(" < ").append(date);
-      }
+    where.append(" ELSE " + DATE_RECEIVED + " < ").append(date).append(" END)");
 
-      where.append(" ELSE " + DATE_RECEIVED + " < ").append(date).append(" END)");
+    String   messages = "SELECT " + ID + " FROM " + TABLE_NAME + " WHERE " + where;
+    String[] args     = new String[] {threadId+""};
 
-      Log.w("MmsDatabase", "Executing trim query: " + where);
-      cursor = db.query(TABLE_NAME, new String[] {ID}, where.toString(), new String[] {threadId+""}, null, null, null);
+    Log.w(TAG, "Executing trim query: " + where);
 
-      while (cursor != null && cursor.moveToNext()) {
-        Log.w("MmsDatabase", "Trimming: " + cursor.getLong(0));
-        delete(cursor.getLong(0));
-      }
+    List<File> orphans = DatabaseFactory.getAttachmentDatabase(context).deleteAttachmentsForMessages(messages, args);
+    DatabaseFactory.getMmsAddressDatabase(context).deleteAddressesForMessages(messages, args);
+    db.delete(TABLE_NAME, where.toString(), args);
 
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
+    return orphans;
   }
 
 
@@ -872,7 +968,7 @@ public class MmsDatabase extends MessagingDatabase {
       this.cursor       = cursor;
       this.masterSecret = masterSecret;
 
-      if (masterSecret != null) masterCipher = new MasterCipher(masterSecret);
+      if (masterSecret != null) masterCipher = MasterCipher.getInstance(masterSecret);
       else                      masterCipher = null;
     }
 
@@ -998,7 +1094,15 @@ public class MmsDatabase extends MessagingDatabase {
         long box    = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
 
         if (!TextUtils.isEmpty(body) && masterCipher != null && Types.isSymmetricEncryption(box)) {
-          return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
+          long   id        = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.ID));
+          String plaintext = PlaintextCache.getInstance().get(TABLE_NAME, id, body);
+
+          if (plaintext == null) {
+            plaintext = masterCipher.decryptBody(body);
+            PlaintextCache.getInstance().put(TABLE_NAME, id, body, plaintext);
+          }
+
+          return new DisplayRecord.Body(plaintext, true);
         } else if (!TextUtils.isEmpty(body) && masterCipher == null && Types.isSymmetricEncryption(box)) {
           return new DisplayRecord.Body(body, false);
         } else {
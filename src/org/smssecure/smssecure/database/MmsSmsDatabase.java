@@ -40,6 +40,9 @@ public class MmsSmsDatabase extends Database {
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  private static final String EARLIER_PART_ID     = "earlier_part_id";
+  private static final String EARLIER_PART_MMS_ID = "earlier_part_mms_id";
+
   private static final String[] PROJECTION = {MmsSmsColumns.ID, MmsSmsColumns.UNIQUE_ROW_ID,
                                               SmsDatabase.BODY, SmsDatabase.TYPE,
                                               MmsSmsColumns.THREAD_ID,
@@ -83,6 +86,74 @@ public class MmsSmsDatabase extends Database {
     return getConversation(threadId, 0);
   }
 
+  /**
+   * Returns up to {@code pageSize} of the newest messages in a thread which were
+   * received strictly before {@code beforeDateReceived}, newest first. Each table
+   * is limited before the union, so the page is read from the (thread_id, date)
+   * indexes without scanning the rest of the thread.
+   */
+  public Cursor getConversationPage(long threadId, long beforeDateReceived, int pageSize) {
+    String order        = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
+    String smsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " +
+                          SmsDatabase.DATE_RECEIVED + " < " + beforeDateReceived;
+    String mmsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " +
+                          MmsDatabase.DATE_RECEIVED + " < " + beforeDateReceived;
+
+    Cursor cursor = queryTables(PROJECTION, smsSelection, mmsSelection, order, String.valueOf(pageSize), true);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Returns every message in a thread received at or after {@code sinceDateReceived},
+   * newest first.
+   */
+  public Cursor getConversationWindow(long threadId, long sinceDateReceived) {
+    String order        = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
+    String smsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " +
+                          SmsDatabase.DATE_RECEIVED + " >= " + sinceDateReceived;
+    String mmsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " +
+                          MmsDatabase.DATE_RECEIVED + " >= " + sinceDateReceived;
+
+    Cursor cursor = queryTables(PROJECTION, smsSelection, mmsSelection, order, null, false);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Returns the received date of the {@code length}th newest message in a thread,
+   * or -1 if the thread doesn't have more than {@code length} messages.
+   */
+  public long getTrimCutoff(long threadId, int length) {
+    String smsQuery = "SELECT " + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED +
+                      " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                      " ORDER BY " + SmsDatabase.DATE_RECEIVED + " DESC LIMIT " + (length + 1);
+    String mmsQuery = "SELECT " + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED +
+                      " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                      " ORDER BY " + MmsDatabase.DATE_RECEIVED + " DESC LIMIT " + (length + 1);
+    String query    = "SELECT " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " FROM" +
+                      " (SELECT * FROM (" + smsQuery + ") UNION ALL SELECT * FROM (" + mmsQuery + "))" +
+                      " ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC LIMIT 2 OFFSET " + (length - 1);
+
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.rawQuery(query, new String[] {String.valueOf(threadId), String.valueOf(threadId)});
+
+      if (cursor != null && cursor.getCount() == 2 && cursor.moveToFirst()) {
+        return cursor.getLong(0);
+      }
+
+      return -1;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
     String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
     String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.MISMATCHED_IDENTITIES + " IS NOT NULL";
@@ -107,6 +178,14 @@ public class MmsSmsDatabase extends Database {
     return queryTables(PROJECTION, selection, order, null);
   }
 
+  public Cursor getUnread(long threadId) {
+    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection       = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " +
+                             MmsSmsColumns.THREAD_ID + " = " + threadId;
+
+    return queryTables(PROJECTION, selection, order, null);
+  }
+
   public int getConversationCount(long threadId) {
     int count = DatabaseFactory.getSmsDatabase(context).getMessageCountForThread(threadId);
     count    += DatabaseFactory.getMmsDatabase(context).getMessageCountForThread(threadId);
@@ -115,6 +194,12 @@ public class MmsSmsDatabase extends Database {
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    return queryTables(projection, selection, selection, order, limit, false);
+  }
+
+  private Cursor queryTables(String[] projection, String smsSelection, String mmsSelection,
+                             String order, String limit, boolean limitEachTable)
+  {
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
@@ -170,17 +255,20 @@ public class MmsSmsDatabase extends Database {
     SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
     SQLiteQueryBuilder smsQueryBuilder = new SQLiteQueryBuilder();
 
-    mmsQueryBuilder.setDistinct(true);
-    smsQueryBuilder.setDistinct(true);
-
     smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME);
+
+    // Joins each MMS to its first part, by excluding any part that has an
+    // earlier part for the same message, instead of a sub-select per row.
     mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
                               AttachmentDatabase.TABLE_NAME +
-                              " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + " = " +
-                                  " (SELECT " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID +
-                                  " FROM " + AttachmentDatabase.TABLE_NAME + " WHERE " +
-                                  AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " +
-                                  MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " LIMIT 1)");
+                              " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " +
+                                  MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID +
+                              " LEFT OUTER JOIN (SELECT " + AttachmentDatabase.ROW_ID + " AS " + EARLIER_PART_ID + ", " +
+                                  AttachmentDatabase.MMS_ID + " AS " + EARLIER_PART_MMS_ID +
+                                  " FROM " + AttachmentDatabase.TABLE_NAME + ")" +
+                              " ON " + EARLIER_PART_MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID +
+                                  " AND " + EARLIER_PART_ID + " < " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID);
+    mmsQueryBuilder.appendWhere(EARLIER_PART_ID + " IS NULL");
 
 
     Set<String> mmsColumnsPresent = new HashSet<>();
@@ -233,9 +321,14 @@ public class MmsSmsDatabase extends Database {
     smsColumnsPresent.add(SmsDatabase.STATUS);
 
     @SuppressWarnings("deprecation")
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, null, null);
+    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, mmsSelection, null, null, null);
     @SuppressWarnings("deprecation")
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, selection, null, null, null);
+    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, smsSelection, null, null, null);
+
+    if (limitEachTable) {
+      mmsSubQuery = "SELECT * FROM (" + mmsSubQuery + " ORDER BY " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " DESC LIMIT " + limit + ")";
+      smsSubQuery = "SELECT * FROM (" + smsSubQuery + " ORDER BY " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " DESC LIMIT " + limit + ")";
+    }
 
     SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
     String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, limit);
@@ -0,0 +1,132 @@
+package org.smssecure.smssecure.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.smssecure.smssecure.util.Base64;
+
+import java.io.IOException;
+
+/**
+ * Durable store for the fragments of multipart transport messages that
+ * haven't been fully received yet, so that partial messages survive a
+ * process restart.
+ *
+ * Fragment payloads are the protocol-level ciphertext carried by the
+ * multipart transport, and are stored as received.
+ */
+public class MultipartSmsFragmentDatabase extends Database {
+
+  private static final String TAG = MultipartSmsFragmentDatabase.class.getSimpleName();
+
+  private static final String TABLE_NAME     = "multipart_sms_fragments";
+  private static final String ID             = "_id";
+  private static final String FRAGMENT_KEY   = "fragment_key";
+  private static final String FRAGMENT_COUNT = "fragment_count";
+  private static final String FRAGMENT_INDEX = "fragment_index";
+  private static final String DATA           = "data";
+  private static final String DATE_RECEIVED  = "date_received";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+                                            FRAGMENT_KEY + " TEXT NOT NULL, " + FRAGMENT_COUNT + " INTEGER, " +
+                                            FRAGMENT_INDEX + " INTEGER, " + DATA + " TEXT, " +
+                                            DATE_RECEIVED + " INTEGER, " +
+                                            "UNIQUE(" + FRAGMENT_KEY + ", " + FRAGMENT_INDEX + ") ON CONFLICT REPLACE);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE INDEX IF NOT EXISTS multipart_sms_fragments_date_index ON " + TABLE_NAME + " (" + DATE_RECEIVED + ");",
+  };
+
+  public MultipartSmsFragmentDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  /**
+   * Stores a fragment and, if it was the last one missing, removes and
+   * returns all of the fragments for its message in order.
+   *
+   * Fragments stored under the same key with a different count, or which
+   * were received before {@code expiredBefore}, belong to a stale message
+   * and are discarded first.
+   *
+   * @return The complete set of fragments, or null if some are still missing.
+   */
+  public @Nullable byte[][] addFragment(@NonNull String key, int count, int index,
+                                        @NonNull byte[] fragment, long expiredBefore)
+  {
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+    byte[][]       fragments = new byte[count][];
+    int            present   = 0;
+    boolean        stale     = false;
+
+    db.beginTransaction();
+
+    try {
+      Cursor cursor = db.query(TABLE_NAME, new String[] {FRAGMENT_COUNT, FRAGMENT_INDEX, DATA, DATE_RECEIVED},
+                               FRAGMENT_KEY + " = ?", new String[] {key}, null, null, null);
+
+      try {
+        while (cursor != null && cursor.moveToNext()) {
+          int  storedCount = cursor.getInt(0);
+          int  storedIndex = cursor.getInt(1);
+          long received    = cursor.getLong(3);
+
+          if (storedCount != count || received < expiredBefore || storedIndex >= count) {
+            stale = true;
+            break;
+          }
+
+          if (storedIndex != index && fragments[storedIndex] == null) {
+            fragments[storedIndex] = Base64.decode(cursor.getString(2));
+            present++;
+          }
+        }
+      } catch (IOException e) {
+        Log.w(TAG, e);
+        stale = true;
+      } finally {
+        if (cursor != null) cursor.close();
+      }
+
+      if (stale) {
+        Log.w(TAG, "Discarding stale fragments for " + key);
+        db.delete(TABLE_NAME, FRAGMENT_KEY + " = ?", new String[] {key});
+        fragments = new byte[count][];
+        present   = 0;
+      }
+
+      fragments[index] = fragment;
+      present++;
+
+      if (present == count) {
+        db.delete(TABLE_NAME, FRAGMENT_KEY + " = ?", new String[] {key});
+      } else {
+        ContentValues values = new ContentValues(5);
+        values.put(FRAGMENT_KEY, key);
+        values.put(FRAGMENT_COUNT, count);
+        values.put(FRAGMENT_INDEX, index);
+        values.put(DATA, Base64.encodeBytes(fragment));
+        values.put(DATE_RECEIVED, System.currentTimeMillis());
+
+        db.insert(TABLE_NAME, null, values);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    return present == count ? fragments : null;
+  }
+
+  public int deleteExpiredFragments(long expiredBefore) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    return db.delete(TABLE_NAME, DATE_RECEIVED + " < ?", new String[] {String.valueOf(expiredBefore)});
+  }
+}
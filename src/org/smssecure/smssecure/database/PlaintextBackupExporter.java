@@ -2,16 +2,33 @@ package org.smssecure.smssecure.database;
 
 
 import android.content.Context;
+import android.database.Cursor;
 import android.os.Environment;
+import android.text.TextUtils;
+import android.util.Log;
 
+import org.greenrobot.eventbus.EventBus;
+import org.smssecure.smssecure.attachments.DatabaseAttachment;
+import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
+import org.smssecure.smssecure.events.ExportProgressEvent;
+import org.smssecure.smssecure.util.Util;
+import org.whispersystems.libsignal.InvalidMessageException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import ws.com.google.android.mms.pdu.PduHeaders;
 
 public class PlaintextBackupExporter {
 
+  private static final String TAG = PlaintextBackupExporter.class.getSimpleName();
+
+  private static final int BATCH_SIZE = 500;
+
   public static void exportPlaintextToSd(Context context, MasterSecret masterSecret)
       throws NoExternalStorageException, IOException
   {
@@ -32,35 +49,157 @@ public class PlaintextBackupExporter {
   private static void exportPlaintext(Context context, MasterSecret masterSecret)
       throws IOException
   {
-    int count               = DatabaseFactory.getSmsDatabase(context).getMessageCount();
-    XmlBackup.Writer writer = new XmlBackup.Writer(getPlaintextExportDirectoryPath(), count);
-
+    int smsCount            = DatabaseFactory.getSmsDatabase(context).getMessageCount();
+    int mmsCount            = DatabaseFactory.getMmsDatabase(context).getMessageCount();
+    int total               = smsCount + mmsCount;
+    XmlBackup.Writer writer = new XmlBackup.Writer(getPlaintextExportDirectoryPath(), total);
+
+    try {
+      int exported = exportSms(context, masterSecret, writer, 0, total);
+      exportMms(context, masterSecret, writer, exported, total);
+    } finally {
+      writer.close();
+    }
+  }
 
-    SmsMessageRecord record;
-    EncryptingSmsDatabase.Reader reader = null;
-    int skip                            = 0;
-    int ROW_LIMIT                       = 500;
+  /**
+   * Walks the SMS table in id order, one keyset batch at a time, so every batch
+   * is an index seek rather than an OFFSET scan over everything already written.
+   */
+  private static int exportSms(Context context, MasterSecret masterSecret,
+                               XmlBackup.Writer writer, int exported, int total)
+      throws IOException
+  {
+    EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
+    long                  lastId   = 0;
+    int                   batch;
 
     do {
-      if (reader != null)
+      EncryptingSmsDatabase.Reader reader = database.getMessagesAfter(masterSecret, lastId, BATCH_SIZE);
+      SmsMessageRecord             record;
+
+      batch = 0;
+
+      try {
+        while ((record = reader.getNext()) != null) {
+          XmlBackup.XmlBackupItem item =
+              new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
+                                          record.getDateReceived(),
+                                          MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
+                                          null, record.getDisplayBody().toString(), null,
+                                          1, record.getDeliveryStatus());
+
+          writer.writeItem(item);
+          lastId = record.getId();
+          batch++;
+        }
+      } finally {
         reader.close();
+      }
+
+      exported += batch;
+      EventBus.getDefault().post(new ExportProgressEvent(exported, total));
+    } while (batch == BATCH_SIZE);
+
+    return exported;
+  }
+
+  private static int exportMms(Context context, MasterSecret masterSecret,
+                               XmlBackup.Writer writer, int exported, int total)
+      throws IOException
+  {
+    MmsDatabase          mmsDatabase        = DatabaseFactory.getMmsDatabase(context);
+    MmsAddressDatabase   addressDatabase    = DatabaseFactory.getMmsAddressDatabase(context);
+    AttachmentDatabase   attachmentDatabase = DatabaseFactory.getAttachmentDatabase(context);
+    DecryptionPrefetcher prefetcher         = new DecryptionPrefetcher(masterSecret);
+    long                 lastId             = 0;
+    int                  batch;
+
+    do {
+      Cursor cursor = mmsDatabase.getMessagesAfter(lastId, BATCH_SIZE);
 
-      reader = DatabaseFactory.getEncryptingSmsDatabase(context).getMessages(masterSecret, skip, ROW_LIMIT);
+      batch = 0;
 
-      while ((record = reader.getNext()) != null) {
-        XmlBackup.XmlBackupItem item =
-            new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
-                                        record.getDateReceived(),
-                                        MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
-                                        null, record.getDisplayBody().toString(), null,
-                                        1, record.getDeliveryStatus());
+      try {
+        prefetcher.prefetch(cursor, MmsDatabase.TABLE_NAME, MmsDatabase.MESSAGE_BOX, 0, cursor.getCount() - 1);
 
-        writer.writeItem(item);
+        while (cursor.moveToNext()) {
+          long   id   = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.ID));
+          long   date = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.DATE_RECEIVED));
+          long   box  = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
+          int    read = cursor.getInt(cursor.getColumnIndexOrThrow(MmsDatabase.READ));
+          String body = getMmsBody(masterSecret, id, box, cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.BODY)));
+
+          MmsAddresses addresses = addressDatabase.getAddressesForId(id);
+          String       address;
+          int          addressType;
+
+          if (MmsSmsColumns.Types.isInboxType(box)) {
+            address     = addresses.getFrom();
+            addressType = PduHeaders.FROM;
+          } else {
+            address     = Util.join(addresses.getTo(), "~");
+            addressType = PduHeaders.TO;
+          }
+
+          writer.openMms(date, MmsSmsColumns.Types.translateToSystemBaseType(box), address, read);
+
+          int seq = 0;
+
+          if (!TextUtils.isEmpty(body)) {
+            writer.writeMmsTextPart(seq++, body);
+          }
+
+          List<DatabaseAttachment> attachments = attachmentDatabase.getAttachmentsForMessage(id);
+
+          for (DatabaseAttachment attachment : attachments) {
+            if (!attachment.hasData()) continue;
+
+            InputStream in = null;
+
+            try {
+              in = attachmentDatabase.getAttachmentStream(masterSecret, attachment.getAttachmentId());
+              writer.writeMmsDataPart(seq++, attachment.getContentType(), in);
+            } catch (IOException e) {
+              Log.w(TAG, "Skipping unreadable attachment " + attachment.getAttachmentId(), e);
+            } finally {
+              if (in != null) in.close();
+            }
+          }
+
+          writer.closeMms(address, addressType);
+
+          lastId = id;
+          batch++;
+        }
+      } finally {
+        cursor.close();
       }
 
-      skip += ROW_LIMIT;
-    } while (reader.getCount() > 0);
+      exported += batch;
+      EventBus.getDefault().post(new ExportProgressEvent(exported, total));
+    } while (batch == BATCH_SIZE);
+
+    return exported;
+  }
+
+  private static String getMmsBody(MasterSecret masterSecret, long id, long box, String body) {
+    if (TextUtils.isEmpty(body) || !MmsSmsColumns.Types.isSymmetricEncryption(box)) {
+      return body;
+    }
+
+    PlaintextCache cache     = PlaintextCache.getInstance();
+    String         plaintext = cache.get(MmsDatabase.TABLE_NAME, id, body);
+
+    if (plaintext != null) return plaintext;
 
-    writer.close();
+    try {
+      plaintext = MasterCipher.getInstance(masterSecret).decryptBody(body);
+      cache.put(MmsDatabase.TABLE_NAME, id, body, plaintext);
+      return plaintext;
+    } catch (InvalidMessageException e) {
+      Log.w(TAG, e);
+      return null;
+    }
   }
 }
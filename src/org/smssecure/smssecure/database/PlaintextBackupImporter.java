@@ -4,24 +4,70 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.recipients.RecipientFactory;
-import org.smssecure.smssecure.recipients.RecipientFormattingException;
 import org.smssecure.smssecure.recipients.Recipients;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 public class PlaintextBackupImporter {
 
   private static final String TAG = PlaintextBackupImporter.class.getSimpleName();
+
+  private static final int ENCRYPT_BATCH_SIZE = 64;
+  private static final int TRANSACTION_SIZE   = 2000;
+  private static final int THREAD_COUNT       = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+  private static final int QUEUE_CAPACITY     = THREAD_COUNT * 4;
+
+  private static final Future<List<ImportRow>> END_OF_INPUT = new FutureTask<>(new Callable<List<ImportRow>>() {
+    @Override
+    public List<ImportRow> call() {
+      return null;
+    }
+  });
+
+  private static final ExecutorService executor;
+
+  static {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 30, TimeUnit.SECONDS,
+                                                     new LinkedBlockingQueue<Runnable>(),
+                                                     new ThreadFactory() {
+                                                       @Override
+                                                       public Thread newThread(@NonNull Runnable runnable) {
+                                                         Thread thread = new Thread(runnable, "PlaintextBackupImporter");
+                                                         thread.setDaemon(true);
+                                                         return thread;
+                                                       }
+                                                     });
+    pool.allowCoreThreadTimeOut(true);
+    executor = pool;
+  }
+
   private static String backupPath;
 
   public static void importPlaintextFromSd(Context context, MasterSecret masterSecret)
@@ -54,66 +100,291 @@ public class PlaintextBackupImporter {
     throw new NoExternalStorageException();
   }
 
+  /**
+   * Imports in three stages: this thread parses and filters the XML, a small
+   * pool encrypts bodies in batches, and a single writer thread inserts the
+   * batches in their original order, committing every
+   * {@link #TRANSACTION_SIZE} rows.  Address to thread mappings are memoized,
+   * and thread summaries are rebuilt once at the end, even if the import
+   * fails partway through.  The writer is always stopped and joined before
+   * this returns or throws.
+   */
   private static void importPlaintext(Context context, MasterSecret masterSecret, String path)
       throws IOException
   {
-    Log.w("PlaintextBackupImporter", "importPlaintext()");
-    SmsDatabase    db          = DatabaseFactory.getSmsDatabase(context);
-    SQLiteDatabase transaction = db.beginTransaction();
+    Log.w(TAG, "importPlaintext()");
+
+    XmlBackup backup;
 
     try {
-      ThreadDatabase threads         = DatabaseFactory.getThreadDatabase(context);
-      XmlBackup      backup          = new XmlBackup(path);
-      MasterCipher   masterCipher    = new MasterCipher(masterSecret);
-      Set<Long>      modifiedThreads = new HashSet<Long>();
-      XmlBackup.XmlBackupItem item;
+      backup = new XmlBackup(path);
+    } catch (XmlPullParserException e) {
+      Log.w(TAG, e);
+      throw new IOException("XML Parsing error!");
+    }
 
-      while ((item = backup.getNext()) != null) {
-        Recipients      recipients = RecipientFactory.getRecipientsFromString(context, item.getAddress(), false);
-        long            threadId   = threads.getThreadIdFor(recipients);
-        SQLiteStatement statement  = db.createInsertStatement(transaction);
+    BlockingQueue<Future<List<ImportRow>>> batches = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    ImportWriter                           writer  = new ImportWriter(context, batches);
+    MasterCipher                           cipher  = MasterCipher.getInstance(masterSecret);
 
+    writer.start();
+
+    boolean parsed = false;
+
+    try {
+      List<XmlBackup.XmlBackupItem> pending = new ArrayList<>(ENCRYPT_BATCH_SIZE);
+      XmlBackup.XmlBackupItem       item;
+
+      while ((item = backup.getNext()) != null && !writer.hasFailed()) {
         if (item.getAddress() == null || item.getAddress().equals("null"))
           continue;
 
         if (!isAppropriateTypeForImport(item.getType()))
           continue;
 
-        addStringToStatement(statement, 1, item.getAddress());
-        addNullToStatement(statement, 2);
-        addLongToStatement(statement, 3, item.getDate());
-        addLongToStatement(statement, 4, item.getDate());
-        addLongToStatement(statement, 5, item.getProtocol());
-        addLongToStatement(statement, 6, item.getRead());
-        addLongToStatement(statement, 7, item.getStatus());
-        addTranslatedTypeToStatement(statement, 8, item.getType());
-        addNullToStatement(statement, 9);
-        addStringToStatement(statement, 10, item.getSubject());
-        addEncryptedStingToStatement(masterCipher, statement, 11, item.getBody());
-        addStringToStatement(statement, 12, item.getServiceCenter());
-        addLongToStatement(statement, 13, threadId);
-        modifiedThreads.add(threadId);
-        statement.execute();
+        pending.add(item);
+
+        if (pending.size() == ENCRYPT_BATCH_SIZE) {
+          batches.put(executor.submit(new EncryptTask(cipher, pending)));
+          pending = new ArrayList<>(ENCRYPT_BATCH_SIZE);
+        }
       }
 
-      for (long threadId : modifiedThreads) {
-        threads.update(threadId, true);
+      if (!pending.isEmpty() && !writer.hasFailed()) {
+        batches.put(executor.submit(new EncryptTask(cipher, pending)));
       }
 
-      Log.w("PlaintextBackupImporter", "Exited loop");
+      parsed = true;
     } catch (XmlPullParserException e) {
-      Log.w("PlaintextBackupImporter", e);
+      Log.w(TAG, e);
       throw new IOException("XML Parsing error!");
+    } catch (InterruptedException e) {
+      throw new IOException(e);
     } finally {
-      db.endTransaction(transaction);
+      if (!parsed) writer.interrupt();
+
+      putUninterruptibly(batches, END_OF_INPUT);
+      joinUninterruptibly(writer);
+    }
+
+    if (writer.getError() != null) {
+      throw writer.getError();
     }
+
+    Log.w(TAG, "Imported " + writer.getImportedCount() + " messages");
   }
 
-  private static void addEncryptedStingToStatement(MasterCipher masterCipher, SQLiteStatement statement, int index, String value) {
-    if (value == null || value.equals("null")) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, masterCipher.encryptBody(value));
+  private static void putUninterruptibly(BlockingQueue<Future<List<ImportRow>>> queue,
+                                         Future<List<ImportRow>> value)
+  {
+    boolean interrupted = false;
+
+    while (true) {
+      try {
+        queue.put(value);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  /**
+   * Waits for the writer to roll back or commit and rebuild the threads,
+   * so nothing is still writing once the import returns or throws.
+   */
+  private static void joinUninterruptibly(Thread thread) {
+    boolean interrupted = false;
+
+    while (true) {
+      try {
+        thread.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  private static class ImportRow {
+    private final XmlBackup.XmlBackupItem item;
+    private final String                  encryptedBody;
+
+    private ImportRow(XmlBackup.XmlBackupItem item, String encryptedBody) {
+      this.item          = item;
+      this.encryptedBody = encryptedBody;
+    }
+  }
+
+  private static class EncryptTask implements Callable<List<ImportRow>> {
+    private final MasterCipher                  cipher;
+    private final List<XmlBackup.XmlBackupItem> items;
+
+    private EncryptTask(MasterCipher cipher, List<XmlBackup.XmlBackupItem> items) {
+      this.cipher = cipher;
+      this.items  = items;
+    }
+
+    @Override
+    public List<ImportRow> call() {
+      List<ImportRow> rows = new ArrayList<>(items.size());
+
+      for (XmlBackup.XmlBackupItem item : items) {
+        String body = item.getBody();
+
+        if (body == null || body.equals("null")) rows.add(new ImportRow(item, null));
+        else                                     rows.add(new ImportRow(item, cipher.encryptBody(body)));
+      }
+
+      return rows;
+    }
+  }
+
+  private static class ImportWriter extends Thread {
+    private final Context                                context;
+    private final BlockingQueue<Future<List<ImportRow>>> batches;
+    private final Map<String, Long>                      threadIds       = new HashMap<>();
+    private final Set<Long>                              modifiedThreads = new HashSet<>();
+
+    private volatile IOException error;
+    private volatile int         importedCount;
+
+    private ImportWriter(Context context, BlockingQueue<Future<List<ImportRow>>> batches) {
+      super("PlaintextBackupImporter");
+      this.context = context;
+      this.batches = batches;
+    }
+
+    @Override
+    public void run() {
+      SmsDatabase     db          = DatabaseFactory.getSmsDatabase(context);
+      ThreadDatabase  threads     = DatabaseFactory.getThreadDatabase(context);
+      SQLiteDatabase  transaction = db.beginTransaction();
+      SQLiteStatement statement   = db.createInsertStatement(transaction);
+      int             uncommitted = 0;
+
+      ChangeNotifier.getInstance(context).beginDeferred();
+
+      try {
+        Future<List<ImportRow>> batch;
+
+        while ((batch = batches.take()) != END_OF_INPUT) {
+          for (ImportRow row : batch.get()) {
+            insert(statement, row, getThreadIdFor(threads, row.item.getAddress()));
+            importedCount++;
+
+            if (++uncommitted >= TRANSACTION_SIZE) {
+              db.endTransaction(transaction);
+              transaction.beginTransaction();
+              uncommitted = 0;
+            }
+          }
+        }
+
+        db.endTransaction(transaction);
+        transaction = null;
+      } catch (InterruptedException e) {
+        Log.w(TAG, e);
+        error = new IOException("Import interrupted");
+      } catch (ExecutionException e) {
+        Log.w(TAG, e);
+        error = new IOException("Encryption failed");
+      } catch (RuntimeException e) {
+        Log.w(TAG, e);
+        error = new IOException("Insert failed");
+      } finally {
+        statement.close();
+
+        if (transaction != null) {
+          transaction.endTransaction();
+        }
+
+        updateThreads(threads);
+        ChangeNotifier.getInstance(context).endDeferred();
+        drain();
+      }
+    }
+
+    /**
+     * Rebuilds the count and snippet of every thread written to, including
+     * after a failure, since the batches committed before it are kept.
+     */
+    private void updateThreads(ThreadDatabase threads) {
+      try {
+        for (long threadId : modifiedThreads) {
+          threads.update(threadId, true);
+        }
+      } catch (RuntimeException e) {
+        Log.w(TAG, e);
+        if (error == null) error = new IOException("Thread update failed");
+      }
+    }
+
+    private long getThreadIdFor(ThreadDatabase threads, String address) {
+      Long threadId = threadIds.get(address);
+
+      if (threadId == null) {
+        Recipients recipients = RecipientFactory.getRecipientsFromString(context, address, false);
+        threadId = threads.getThreadIdFor(recipients);
+        threadIds.put(address, threadId);
+      }
+
+      modifiedThreads.add(threadId);
+      return threadId;
+    }
+
+    private void insert(SQLiteStatement statement, ImportRow row, long threadId) {
+      XmlBackup.XmlBackupItem item = row.item;
+
+      statement.clearBindings();
+      addStringToStatement(statement, 1, item.getAddress());
+      addNullToStatement(statement, 2);
+      addLongToStatement(statement, 3, item.getDate());
+      addLongToStatement(statement, 4, item.getDate());
+      addLongToStatement(statement, 5, item.getProtocol());
+      addLongToStatement(statement, 6, item.getRead());
+      addLongToStatement(statement, 7, item.getStatus());
+      addTranslatedTypeToStatement(statement, 8, item.getType());
+      addNullToStatement(statement, 9);
+      addStringToStatement(statement, 10, item.getSubject());
+      addStringToStatement(statement, 11, row.encryptedBody);
+      addStringToStatement(statement, 12, item.getServiceCenter());
+      addLongToStatement(statement, 13, threadId);
+      statement.executeInsert();
+    }
+
+    /**
+     * Keeps the parser from blocking on a full queue after a failure.
+     */
+    private void drain() {
+      if (error == null) return;
+
+      while (true) {
+        try {
+          Future<List<ImportRow>> batch = batches.take();
+
+          if (batch == END_OF_INPUT) return;
+          else                       batch.cancel(false);
+        } catch (InterruptedException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }
+
+    private boolean hasFailed() {
+      return error != null;
+    }
+
+    private @Nullable IOException getError() {
+      return error;
+    }
+
+    private int getImportedCount() {
+      return importedCount;
     }
   }
 
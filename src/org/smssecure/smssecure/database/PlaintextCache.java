@@ -0,0 +1,214 @@
+package org.smssecure.smssecure.database;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache of decrypted message bodies, shared by the SMS, MMS
+ * and thread snippet readers.
+ *
+ * Entries are keyed by (table, row id, ciphertext hash) rather than by the
+ * full Base64 ciphertext, and are weighed by the memory their plaintext
+ * occupies.  The cache is split into independently locked LRU segments so
+ * that concurrent readers and the decryption prefetcher rarely contend.
+ *
+ * Since it holds plaintext, it must be cleared whenever the master secret is.
+ * Each clear starts a new generation, so that work begun before it can't
+ * put plaintext back afterwards.
+ */
+public class PlaintextCache {
+
+  private static final int SEGMENT_COUNT    = 16;
+  private static final int MAX_TOTAL_WEIGHT = 1024 * 1024;
+  private static final int ENTRY_OVERHEAD   = 64;
+
+  private static final PlaintextCache instance = new PlaintextCache(MAX_TOTAL_WEIGHT);
+
+  private final Segment[]     segments;
+  private final AtomicInteger generation = new AtomicInteger();
+  private final AtomicLong    hits       = new AtomicLong();
+  private final AtomicLong    misses     = new AtomicLong();
+  private final AtomicLong    evictions  = new AtomicLong();
+
+  public static PlaintextCache getInstance() {
+    return instance;
+  }
+
+  PlaintextCache(int maxTotalWeight) {
+    this.segments = new Segment[SEGMENT_COUNT];
+
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment(Math.max(1, maxTotalWeight / SEGMENT_COUNT));
+    }
+  }
+
+  public @Nullable String get(@NonNull String table, long id, @NonNull String ciphertext) {
+    Key    key       = new Key(table, id, ciphertext);
+    String plaintext = segmentFor(key).get(key);
+
+    if (plaintext != null) hits.incrementAndGet();
+    else                   misses.incrementAndGet();
+
+    return plaintext;
+  }
+
+  public void put(@NonNull String table, long id, @NonNull String ciphertext, @NonNull String plaintext) {
+    put(table, id, ciphertext, plaintext, generation.get());
+  }
+
+  /**
+   * Stores the plaintext only if the cache hasn't been cleared since
+   * {@code generation} was read from {@link #getGeneration()}.
+   */
+  public void put(@NonNull String table, long id, @NonNull String ciphertext, @NonNull String plaintext,
+                  int generation)
+  {
+    Key key = new Key(table, id, ciphertext);
+    evictions.addAndGet(segmentFor(key).put(key, plaintext, generation, this.generation));
+  }
+
+  public int getGeneration() {
+    return generation.get();
+  }
+
+  public boolean contains(@NonNull String table, long id, @NonNull String ciphertext) {
+    Key key = new Key(table, id, ciphertext);
+    return segmentFor(key).contains(key);
+  }
+
+  public void clear() {
+    generation.incrementAndGet();
+
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public long getWeight() {
+    long weight = 0;
+
+    for (Segment segment : segments) {
+      weight += segment.getWeight();
+    }
+
+    return weight;
+  }
+
+  private Segment segmentFor(Key key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+
+    return segments[(hash & 0x7fffffff) % segments.length];
+  }
+
+  private static int weigh(String plaintext) {
+    return ENTRY_OVERHEAD + plaintext.length() * 2;
+  }
+
+  static final class Key {
+    private final String table;
+    private final long   id;
+    private final int    ciphertextHash;
+    private final int    ciphertextLength;
+
+    Key(@NonNull String table, long id, @NonNull String ciphertext) {
+      this.table            = table;
+      this.id               = id;
+      this.ciphertextHash   = ciphertext.hashCode();
+      this.ciphertextLength = ciphertext.length();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other)           return true;
+      if (!(other instanceof Key)) return false;
+
+      Key that = (Key)other;
+
+      return this.id == that.id                             &&
+             this.ciphertextHash == that.ciphertextHash     &&
+             this.ciphertextLength == that.ciphertextLength &&
+             this.table.equals(that.table);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = table.hashCode();
+      result = 31 * result + (int)(id ^ (id >>> 32));
+      result = 31 * result + ciphertextHash;
+      return result;
+    }
+  }
+
+  private static class Segment {
+    private final int                       maxWeight;
+    private final LinkedHashMap<Key,String> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int weight;
+
+    Segment(int maxWeight) {
+      this.maxWeight = maxWeight;
+    }
+
+    synchronized String get(Key key) {
+      return entries.get(key);
+    }
+
+    synchronized boolean contains(Key key) {
+      return entries.containsKey(key);
+    }
+
+    synchronized int put(Key key, String plaintext, int generation, AtomicInteger currentGeneration) {
+      int entryWeight = weigh(plaintext);
+
+      if (entryWeight > maxWeight || generation != currentGeneration.get()) {
+        return 0;
+      }
+
+      String previous = entries.put(key, plaintext);
+
+      if (previous != null) weight -= weigh(previous);
+      weight += entryWeight;
+
+      int                              evicted  = 0;
+      Iterator<Map.Entry<Key, String>> iterator = entries.entrySet().iterator();
+
+      while (weight > maxWeight && iterator.hasNext()) {
+        Map.Entry<Key, String> eldest = iterator.next();
+
+        weight -= weigh(eldest.getValue());
+        iterator.remove();
+        evicted++;
+      }
+
+      return evicted;
+    }
+
+    synchronized void clear() {
+      entries.clear();
+      weight = 0;
+    }
+
+    synchronized int getWeight() {
+      return weight;
+    }
+  }
+}
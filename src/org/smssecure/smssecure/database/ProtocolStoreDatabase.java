@@ -0,0 +1,227 @@
+package org.smssecure.smssecure.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.crypto.storage.SessionRecordCache;
+import org.whispersystems.libsignal.InvalidMessageException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Sessions, prekeys and signed prekeys, each row encrypted with the master
+ * secret.
+ *
+ * Rows are keyed by type, recipient id and record id. For a session the
+ * record id is the device id. Prekeys belong to the local user, so their
+ * recipient id is 0 and the record id is the key id. The unique key doubles
+ * as the index for every lookup, including enumerating a recipient's
+ * devices. Whether a session has a sender chain is kept in its own column so
+ * it can be checked without decrypting the record.
+ */
+public class ProtocolStoreDatabase extends Database {
+
+  private static final String TAG = ProtocolStoreDatabase.class.getSimpleName();
+
+  public static final int TYPE_SESSION       = 1;
+  public static final int TYPE_PREKEY        = 2;
+  public static final int TYPE_SIGNED_PREKEY = 3;
+
+  private static final String TABLE_NAME   = "protocol_records";
+  private static final String ID           = "_id";
+  private static final String TYPE         = "type";
+  private static final String RECIPIENT_ID = "recipient_id";
+  private static final String RECORD_ID    = "record_id";
+  private static final String RECORD       = "record";
+  private static final String SENDER_CHAIN = "sender_chain";
+
+  private static final String RECORD_WHERE = TYPE + " = ? AND " + RECIPIENT_ID + " = ? AND " + RECORD_ID + " = ?";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+                                            TYPE + " INTEGER NOT NULL, " + RECIPIENT_ID + " INTEGER NOT NULL, " +
+                                            RECORD_ID + " INTEGER NOT NULL, " + RECORD + " BLOB NOT NULL, " +
+                                            SENDER_CHAIN + " INTEGER DEFAULT 0, " +
+                                            "UNIQUE(" + TYPE + ", " + RECIPIENT_ID + ", " + RECORD_ID + ") ON CONFLICT REPLACE);";
+
+  public ProtocolStoreDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  @Override
+  public void reset(SQLiteOpenHelper databaseHelper) {
+    super.reset(databaseHelper);
+    SessionRecordCache.getInstance().clear();
+  }
+
+  /**
+   * @return the decrypted record, or null if there is none or it can't be
+   *         decrypted.
+   */
+  public @Nullable byte[] getRecord(@NonNull MasterSecret masterSecret, int type, long recipientId, int recordId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {RECORD}, RECORD_WHERE,
+                        new String[] {String.valueOf(type), String.valueOf(recipientId), String.valueOf(recordId)},
+                        null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return MasterCipher.getInstance(masterSecret).decryptBytes(cursor.getBlob(0));
+      }
+
+      return null;
+    } catch (InvalidMessageException e) {
+      Log.w(TAG, e);
+      return null;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  /**
+   * @return every decrypted record of a type belonging to the recipient,
+   *         skipping any that can't be decrypted.
+   */
+  public @NonNull List<byte[]> getRecords(@NonNull MasterSecret masterSecret, int type, long recipientId) {
+    SQLiteDatabase db      = databaseHelper.getReadableDatabase();
+    MasterCipher   cipher  = MasterCipher.getInstance(masterSecret);
+    List<byte[]>   results = new LinkedList<>();
+    Cursor         cursor  = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {RECORD}, TYPE + " = ? AND " + RECIPIENT_ID + " = ?",
+                        new String[] {String.valueOf(type), String.valueOf(recipientId)}, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        try {
+          results.add(cipher.decryptBytes(cursor.getBlob(0)));
+        } catch (InvalidMessageException e) {
+          Log.w(TAG, e);
+        }
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    return results;
+  }
+
+  /**
+   * @return the record ids of a type belonging to the recipient, which for
+   *         sessions are the recipient's device ids.
+   */
+  public @NonNull List<Integer> getRecordIds(int type, long recipientId) {
+    SQLiteDatabase db      = databaseHelper.getReadableDatabase();
+    List<Integer>  results = new LinkedList<>();
+    Cursor         cursor  = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {RECORD_ID}, TYPE + " = ? AND " + RECIPIENT_ID + " = ?",
+                        new String[] {String.valueOf(type), String.valueOf(recipientId)}, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getInt(0));
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    return results;
+  }
+
+  public boolean containsRecord(int type, long recipientId, int recordId) {
+    return hasSenderChain(type, recipientId, recordId) != null;
+  }
+
+  /**
+   * @return whether the session has a sender chain, or null if there is no
+   *         such session.
+   */
+  public @Nullable Boolean hasSenderChain(long recipientId, int deviceId) {
+    return hasSenderChain(TYPE_SESSION, recipientId, deviceId);
+  }
+
+  public void setRecord(@NonNull MasterSecret masterSecret, @NonNull Record record) {
+    setRecords(masterSecret, Collections.singletonList(record));
+  }
+
+  /**
+   * Encrypts and writes the records in a single transaction.
+   */
+  public void setRecords(@NonNull MasterSecret masterSecret, @NonNull Collection<Record> records) {
+    SQLiteDatabase db     = databaseHelper.getWritableDatabase();
+    MasterCipher   cipher = MasterCipher.getInstance(masterSecret);
+
+    db.beginTransaction();
+
+    try {
+      for (Record record : records) {
+        ContentValues values = new ContentValues(5);
+        values.put(TYPE, record.type);
+        values.put(RECIPIENT_ID, record.recipientId);
+        values.put(RECORD_ID, record.recordId);
+        values.put(RECORD, cipher.encryptBytes(record.serialized));
+        values.put(SENDER_CHAIN, record.hasSenderChain ? 1 : 0);
+
+        db.insert(TABLE_NAME, null, values);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  public void deleteRecord(int type, long recipientId, int recordId) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.delete(TABLE_NAME, RECORD_WHERE,
+              new String[] {String.valueOf(type), String.valueOf(recipientId), String.valueOf(recordId)});
+  }
+
+  private @Nullable Boolean hasSenderChain(int type, long recipientId, int recordId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {SENDER_CHAIN}, RECORD_WHERE,
+                        new String[] {String.valueOf(type), String.valueOf(recipientId), String.valueOf(recordId)},
+                        null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getInt(0) == 1;
+      }
+
+      return null;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  public static class Record {
+    private final int     type;
+    private final long    recipientId;
+    private final int     recordId;
+    private final byte[]  serialized;
+    private final boolean hasSenderChain;
+
+    public Record(int type, long recipientId, int recordId, @NonNull byte[] serialized, boolean hasSenderChain) {
+      this.type           = type;
+      this.recipientId    = recipientId;
+      this.recordId       = recordId;
+      this.serialized     = serialized;
+      this.hasSenderChain = hasSenderChain;
+    }
+  }
+}
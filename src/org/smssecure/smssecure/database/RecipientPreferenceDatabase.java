@@ -15,7 +15,15 @@ import org.smssecure.smssecure.recipients.Recipients;
 import org.smssecure.smssecure.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class RecipientPreferenceDatabase extends Database {
@@ -33,6 +41,8 @@ public class RecipientPreferenceDatabase extends Database {
   private static final String COLOR                   = "color";
   private static final String DEFAULT_SUBSCRIPTION_ID = "default_subscription_id";
 
+  private static final int MAX_QUERY_ARGS = 500;
+
   public enum VibrateState {
     DEFAULT(0), ENABLED(1), DISABLED(2);
 
@@ -62,10 +72,18 @@ public class RecipientPreferenceDatabase extends Database {
           COLOR + " TEXT DEFAULT NULL, " +
           DEFAULT_SUBSCRIPTION_ID + " INTEGER DEFAULT -1);";
 
+  private final ConcurrentHashMap<String, Optional<RecipientsPreferences>> snapshot = new ConcurrentHashMap<>();
+
   public RecipientPreferenceDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
+  @Override
+  public void reset(SQLiteOpenHelper databaseHelper) {
+    super.reset(databaseHelper);
+    snapshot.clear();
+  }
+
   public Cursor getBlocked() {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
 
@@ -76,40 +94,108 @@ public class RecipientPreferenceDatabase extends Database {
     return cursor;
   }
 
+  /**
+   * Returns the preferences for one set of recipients, answering from the
+   * in-memory snapshot when it has already seen that set.
+   */
   public Optional<RecipientsPreferences> getRecipientsPreferences(@NonNull long[] recipients) {
     Arrays.sort(recipients);
 
+    String                          key    = Util.join(recipients, " ");
+    Optional<RecipientsPreferences> cached = snapshot.get(key);
+
+    if (cached != null) return cached;
+
+    Optional<RecipientsPreferences> preferences = readRecipientsPreferences(key);
+    Optional<RecipientsPreferences> existing    = snapshot.putIfAbsent(key, preferences);
+
+    return existing != null ? existing : preferences;
+  }
+
+  /**
+   * Loads the preferences for many recipient sets with one query per
+   * {@link #MAX_QUERY_ARGS} sets, and keeps them in the snapshot so the
+   * single-set lookups that follow don't touch the database.
+   */
+  public @NonNull Map<String, RecipientsPreferences> getRecipientsPreferences(@NonNull Collection<long[]> recipientSets) {
+    Set<String> missing = new HashSet<>();
+
+    for (long[] recipients : recipientSets) {
+      long[] sorted = recipients.clone();
+      Arrays.sort(sorted);
+
+      String key = Util.join(sorted, " ");
+      if (!snapshot.containsKey(key)) missing.add(key);
+    }
+
+    if (!missing.isEmpty()) {
+      loadIntoSnapshot(new ArrayList<>(missing));
+    }
+
+    Map<String, RecipientsPreferences> results = new HashMap<>();
+
+    for (long[] recipients : recipientSets) {
+      long[] sorted = recipients.clone();
+      Arrays.sort(sorted);
+
+      String                          key         = Util.join(sorted, " ");
+      Optional<RecipientsPreferences> preferences = snapshot.get(key);
+
+      if (preferences != null && preferences.isPresent()) {
+        results.put(key, preferences.get());
+      }
+    }
+
+    return results;
+  }
+
+  private void loadIntoSnapshot(List<String> keys) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+
+    for (int start = 0; start < keys.size(); start += MAX_QUERY_ARGS) {
+      List<String>  chunk     = keys.subList(start, Math.min(keys.size(), start + MAX_QUERY_ARGS));
+      StringBuilder selection = new StringBuilder(RECIPIENT_IDS + " IN (");
+      Set<String>   found     = new HashSet<>();
+      Cursor        cursor    = null;
+
+      for (int i = 0; i < chunk.size(); i++) {
+        selection.append(i == 0 ? "?" : ", ?");
+      }
+
+      selection.append(")");
+
+      try {
+        cursor = database.query(TABLE_NAME, null, selection.toString(),
+                                chunk.toArray(new String[chunk.size()]),
+                                null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          String key = cursor.getString(cursor.getColumnIndexOrThrow(RECIPIENT_IDS));
+
+          snapshot.putIfAbsent(key, Optional.of(getRecipientsPreferences(cursor)));
+          found.add(key);
+        }
+      } finally {
+        if (cursor != null) cursor.close();
+      }
+
+      for (String key : chunk) {
+        if (!found.contains(key)) snapshot.putIfAbsent(key, Optional.<RecipientsPreferences>absent());
+      }
+    }
+  }
+
+  private Optional<RecipientsPreferences> readRecipientsPreferences(@NonNull String key) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     Cursor         cursor   = null;
 
     try {
       cursor = database.query(TABLE_NAME, null, RECIPIENT_IDS + " = ?",
-                              new String[] {Util.join(recipients, " ")},
+                              new String[] {key},
                               null, null, null);
 
       if (cursor != null && cursor.moveToNext()) {
-        boolean blocked               = cursor.getInt(cursor.getColumnIndexOrThrow(BLOCK))                == 1;
-        String  notification          = cursor.getString(cursor.getColumnIndexOrThrow(NOTIFICATION));
-        int     vibrateState          = cursor.getInt(cursor.getColumnIndexOrThrow(VIBRATE));
-        long    muteUntil             = cursor.getLong(cursor.getColumnIndexOrThrow(MUTE_UNTIL));
-        String  serializedColor       = cursor.getString(cursor.getColumnIndexOrThrow(COLOR));
-        Uri     notificationUri       = notification == null ? null : Uri.parse(notification);
-        int     defaultSubscriptionId = cursor.getInt(cursor.getColumnIndexOrThrow(DEFAULT_SUBSCRIPTION_ID));
-
-        MaterialColor color;
-
-        try {
-          color = serializedColor == null ? null : MaterialColor.fromSerialized(serializedColor);
-        } catch (MaterialColor.UnknownColorException e) {
-          Log.w(TAG, e);
-          color = null;
-        }
-
-        Log.w(TAG, "Muted until: " + muteUntil);
-
-        return Optional.of(new RecipientsPreferences(blocked, muteUntil,
-                                                     VibrateState.fromId(vibrateState),
-                                                     notificationUri, color, defaultSubscriptionId));
+        return Optional.of(getRecipientsPreferences(cursor));
       }
 
       return Optional.absent();
@@ -118,6 +204,29 @@ public class RecipientPreferenceDatabase extends Database {
     }
   }
 
+  private RecipientsPreferences getRecipientsPreferences(Cursor cursor) {
+    boolean blocked               = cursor.getInt(cursor.getColumnIndexOrThrow(BLOCK))                == 1;
+    String  notification          = cursor.getString(cursor.getColumnIndexOrThrow(NOTIFICATION));
+    int     vibrateState          = cursor.getInt(cursor.getColumnIndexOrThrow(VIBRATE));
+    long    muteUntil             = cursor.getLong(cursor.getColumnIndexOrThrow(MUTE_UNTIL));
+    String  serializedColor       = cursor.getString(cursor.getColumnIndexOrThrow(COLOR));
+    Uri     notificationUri       = notification == null ? null : Uri.parse(notification);
+    int     defaultSubscriptionId = cursor.getInt(cursor.getColumnIndexOrThrow(DEFAULT_SUBSCRIPTION_ID));
+
+    MaterialColor color;
+
+    try {
+      color = serializedColor == null ? null : MaterialColor.fromSerialized(serializedColor);
+    } catch (MaterialColor.UnknownColorException e) {
+      Log.w(TAG, e);
+      color = null;
+    }
+
+    return new RecipientsPreferences(blocked, muteUntil,
+                                     VibrateState.fromId(vibrateState),
+                                     notificationUri, color, defaultSubscriptionId);
+  }
+
   public void setColor(Recipients recipients, MaterialColor color) {
     ContentValues values = new ContentValues();
     values.put(COLOR, color.serialize());
@@ -158,21 +267,24 @@ public class RecipientPreferenceDatabase extends Database {
 
   private void updateOrInsert(Recipients recipients, ContentValues contentValues) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    String         key      = recipients.getSortedIdsString();
 
     database.beginTransaction();
 
     int updated = database.update(TABLE_NAME, contentValues, RECIPIENT_IDS + " = ?",
-                                  new String[] {String.valueOf(recipients.getSortedIdsString())});
+                                  new String[] {String.valueOf(key)});
 
     if (updated < 1) {
-      contentValues.put(RECIPIENT_IDS, recipients.getSortedIdsString());
+      contentValues.put(RECIPIENT_IDS, key);
       database.insert(TABLE_NAME, null, contentValues);
     }
 
     database.setTransactionSuccessful();
     database.endTransaction();
 
-    context.getContentResolver().notifyChange(Uri.parse(RECIPIENT_PREFERENCES_URI), null);
+    snapshot.put(key, readRecipientsPreferences(key));
+
+    ChangeNotifier.getInstance(context).notifyChange(Uri.parse(RECIPIENT_PREFERENCES_URI));
   }
 
   public static class RecipientsPreferences {
@@ -32,6 +32,7 @@ import org.smssecure.smssecure.database.documents.IdentityKeyMismatch;
 import org.smssecure.smssecure.database.documents.IdentityKeyMismatchList;
 import org.smssecure.smssecure.database.model.DisplayRecord;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
+import org.smssecure.smssecure.jobs.PriorityJobManager;
 import org.smssecure.smssecure.jobs.TrimThreadJob;
 import org.smssecure.smssecure.recipients.Recipient;
 import org.smssecure.smssecure.recipients.RecipientFactory;
@@ -42,7 +43,6 @@ import org.smssecure.smssecure.sms.IncomingTextMessage;
 import org.smssecure.smssecure.sms.OutgoingTextMessage;
 import org.smssecure.smssecure.util.InvalidNumberException;
 import org.smssecure.smssecure.util.JsonUtils;
-import org.whispersystems.jobqueue.JobManager;
 
 import java.io.IOException;
 import java.util.LinkedList;
@@ -99,7 +99,7 @@ public class SmsDatabase extends MessagingDatabase {
       NOTIFIED
   };
 
-  private final JobManager jobManager;
+  private final PriorityJobManager jobManager;
 
   public SmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -118,12 +118,34 @@ public class SmsDatabase extends MessagingDatabase {
                " SET " + TYPE + " = (" + TYPE + " & " + (Types.TOTAL_MASK - maskOff) + " | " + maskOn + " )" +
                " WHERE " + ID + " = ?", new String[] {id+""});
 
-    long threadId = getThreadIdForMessage(id);
-
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    long threadId = updateThreadForMessage(id, false);
     notifyConversationListeners(threadId);
   }
 
+  private long updateThreadForMessage(long messageId, boolean unarchive) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {THREAD_ID, BODY, DATE_SENT, DATE_RECEIVED, STATUS, TYPE},
+                        ID_WHERE, new String[] {String.valueOf(messageId)}, null, null, null);
+
+      if (cursor == null || !cursor.moveToFirst()) {
+        return -1;
+      }
+
+      long threadId = cursor.getLong(0);
+
+      DatabaseFactory.getThreadDatabase(context)
+                     .updateForChangedMessage(threadId, cursor.getString(1), cursor.getLong(2), cursor.getLong(3),
+                                              cursor.getInt(4), cursor.getLong(5), unarchive);
+      return threadId;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public long getThreadIdForMessage(long id) {
     String sql        = "SELECT " + THREAD_ID + " FROM " + TABLE_NAME + " WHERE " + ID + " = ?";
     String[] sqlArgs  = new String[] {id+""};
@@ -265,8 +287,7 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {id+""});
 
-    long threadId = getThreadIdForMessage(id);
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    long threadId = updateThreadForMessage(id, false);
     notifyConversationListeners(threadId);
   }
 
@@ -308,9 +329,8 @@ public class SmsDatabase extends MessagingDatabase {
                    "WHERE " + ID + " = ?",
                new String[] {body, messageId + ""});
 
-    long threadId = getThreadIdForMessage(messageId);
+    long threadId = updateThreadForMessage(messageId, true);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -325,7 +345,9 @@ public class SmsDatabase extends MessagingDatabase {
     contentValues.put(TYPE, (record.getType() & ~Types.BASE_TYPE_MASK) | Types.BASE_INBOX_TYPE);
     contentValues.put(ADDRESS, record.getIndividualRecipient().getNumber());
     contentValues.put(ADDRESS_DEVICE_ID, record.getRecipientDeviceId());
-    contentValues.put(DATE_RECEIVED, System.currentTimeMillis());
+    long dateReceived = System.currentTimeMillis();
+
+    contentValues.put(DATE_RECEIVED, dateReceived);
     contentValues.put(DATE_SENT, record.getDateSent());
     contentValues.put(DATE_DELIVERY_RECEIVED, record.getDateDeliveryReceived());
     contentValues.put(PROTOCOL, 31337);
@@ -333,10 +355,21 @@ public class SmsDatabase extends MessagingDatabase {
     contentValues.put(BODY, record.getBody().getBody());
     contentValues.put(THREAD_ID, record.getThreadId());
 
-    SQLiteDatabase db           = databaseHelper.getWritableDatabase();
-    long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    long newMessageId;
+
+    try {
+      newMessageId = db.insert(TABLE_NAME, null, contentValues);
+      DatabaseFactory.getThreadDatabase(context)
+                     .updateForInsertedMessage(record.getThreadId(), record.getBody().getBody(), record.getDateSent(),
+                                               dateReceived, Status.STATUS_NONE, contentValues.getAsLong(TYPE), true);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
-    DatabaseFactory.getThreadDatabase(context).update(record.getThreadId(), true);
     notifyConversationListeners(record.getThreadId());
 
     jobManager.add(new TrimThreadJob(context, record.getThreadId()));
@@ -396,10 +429,11 @@ public class SmsDatabase extends MessagingDatabase {
     if (groupRecipients == null) threadId = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(recipients);
     else                         threadId = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(groupRecipients);
 
-    ContentValues values = new ContentValues(6);
+    long          dateReceived = System.currentTimeMillis();
+    ContentValues values       = new ContentValues(6);
     values.put(ADDRESS, message.getSender());
     values.put(ADDRESS_DEVICE_ID,  message.getSenderDeviceId());
-    values.put(DATE_RECEIVED, System.currentTimeMillis());
+    values.put(DATE_RECEIVED, dateReceived);
     values.put(DATE_SENT, message.getSentTimestampMillis());
     values.put(PROTOCOL, message.getProtocol());
     values.put(READ, unread ? 0 : 1);
@@ -415,13 +449,25 @@ public class SmsDatabase extends MessagingDatabase {
     values.put(THREAD_ID, threadId);
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long messageId    = db.insert(TABLE_NAME, null, values);
+    db.beginTransaction();
 
-    if (unread) {
-      DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
+    long messageId;
+
+    try {
+      messageId = db.insert(TABLE_NAME, null, values);
+
+      if (unread) {
+        DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
+      }
+
+      DatabaseFactory.getThreadDatabase(context)
+                     .updateForInsertedMessage(threadId, message.getMessageBody(), message.getSentTimestampMillis(),
+                                               dateReceived, Status.STATUS_NONE, type, true);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
@@ -451,10 +497,21 @@ public class SmsDatabase extends MessagingDatabase {
     contentValues.put(TYPE, type);
     contentValues.put(SUBSCRIPTION_ID, message.getSubscriptionId());
 
-    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
-    long           messageId = db.insert(TABLE_NAME, ADDRESS, contentValues);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    long messageId;
+
+    try {
+      messageId = db.insert(TABLE_NAME, ADDRESS, contentValues);
+      DatabaseFactory.getThreadDatabase(context)
+                     .updateForInsertedMessage(threadId, message.getMessageBody(), date, date,
+                                               Status.STATUS_NONE, type, true);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
@@ -462,9 +519,10 @@ public class SmsDatabase extends MessagingDatabase {
     return messageId;
   }
 
-  Cursor getMessages(int skip, int limit) {
+  Cursor getMessagesAfter(long lastId, int limit) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, null, null, null, null, ID, skip + "," + limit);
+    return db.query(TABLE_NAME, MESSAGE_PROJECTION, ID + " > ?", new String[] {String.valueOf(lastId)},
+                    null, null, ID, String.valueOf(limit));
   }
 
   Cursor getOutgoingMessages() {
@@ -497,10 +555,26 @@ public class SmsDatabase extends MessagingDatabase {
 
   public boolean deleteMessage(long messageId) {
     Log.w("MessageDatabase", "Deleting: " + messageId);
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long threadId     = getThreadIdForMessage(messageId);
+    SQLiteDatabase db           = databaseHelper.getWritableDatabase();
+    long           threadId     = -1;
+    long           dateReceived = 0;
+    Cursor         cursor       = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {THREAD_ID, DATE_RECEIVED}, ID_WHERE,
+                        new String[] {messageId+""}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        threadId     = cursor.getLong(0);
+        dateReceived = cursor.getLong(1);
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDeletedMessage(threadId, dateReceived);
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
@@ -17,102 +17,116 @@
 package org.smssecure.smssecure.database;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
+import org.smssecure.smssecure.attachments.Attachment;
+import org.smssecure.smssecure.attachments.UriAttachment;
 import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.recipients.RecipientFactory;
-import org.smssecure.smssecure.recipients.RecipientFormattingException;
 import org.smssecure.smssecure.recipients.Recipients;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ws.com.google.android.mms.MmsException;
+import ws.com.google.android.mms.pdu.PduHeaders;
 
+/**
+ * Copies the system SMS and MMS stores into our own database.
+ *
+ * Conversations are migrated one at a time, each in its own transaction, and
+ * the system thread id is checkpointed once it commits so an interrupted
+ * migration picks up where it stopped.  Within a conversation, SMS bodies are
+ * read in batches and encrypted on a worker pool while the next batch is read.
+ */
 public class SmsMigrator {
 
   private static final String TAG = SmsMigrator.class.getSimpleName();
 
-  private static void addEncryptedStringToStatement(Context context, SQLiteStatement statement,
-                                                    Cursor cursor, MasterSecret masterSecret,
-                                                    int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
-
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, encrypt(masterSecret, cursor.getString(columnIndex)));
-    }
+  private static final String PREFERENCES_NAME      = "SecureSMS";
+  private static final String MIGRATED_PREF         = "migrated";
+  private static final String MIGRATED_THREADS_PREF = "migrated_threads";
+
+  private static final int BATCH_SIZE   = 128;
+  private static final int THREAD_COUNT = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+  private static final int MAX_PENDING  = THREAD_COUNT * 2;
+
+  private static final int MMS_BOX_INBOX = 1;
+  private static final int MMS_BOX_SENT  = 2;
+
+  private static final ExecutorService executor;
+
+  static {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 30, TimeUnit.SECONDS,
+                                                     new LinkedBlockingQueue<Runnable>(),
+                                                     new ThreadFactory() {
+                                                       @Override
+                                                       public Thread newThread(@NonNull Runnable runnable) {
+                                                         Thread thread = new Thread(runnable, "SmsMigrator");
+                                                         thread.setDaemon(true);
+                                                         return thread;
+                                                       }
+                                                     });
+    pool.allowCoreThreadTimeOut(true);
+    executor = pool;
   }
 
-  private static void addStringToStatement(SQLiteStatement statement, Cursor cursor,
-                                           int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
+  private static boolean isAppropriateTypeForMigration(long systemType) {
+    long ourType = SmsDatabase.Types.translateFromSystemBaseType(systemType);
 
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, cursor.getString(columnIndex));
-    }
+    return ourType == MmsSmsColumns.Types.BASE_INBOX_TYPE ||
+           ourType == MmsSmsColumns.Types.BASE_SENT_TYPE ||
+           ourType == MmsSmsColumns.Types.BASE_SENT_FAILED_TYPE;
   }
 
-  private static void addIntToStatement(SQLiteStatement statement, Cursor cursor,
-                                        int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
+  /**
+   * Loads the whole system canonical address table in one query, rather than
+   * one content provider round trip per recipient id.
+   */
+  private static Map<String, String> getCanonicalAddresses(Context context) {
+    Map<String, String> addresses = new HashMap<>();
+    Cursor              cursor    = null;
 
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindLong(index, cursor.getLong(columnIndex));
-    }
-  }
-
-  private static void addTranslatedTypeToStatement(SQLiteStatement statement, Cursor cursor,
-                                                   int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
+    try {
+      cursor = context.getContentResolver().query(Uri.parse("content://mms-sms/canonical-addresses"),
+                                                  null, null, null, null);
 
-    if (cursor.isNull(columnIndex)) {
-      statement.bindLong(index, SmsDatabase.Types.BASE_INBOX_TYPE | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
-    } else {
-      long theirType = cursor.getLong(columnIndex);
-      statement.bindLong(index, SmsDatabase.Types.translateFromSystemBaseType(theirType) | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
+      while (cursor != null && cursor.moveToNext()) {
+        addresses.put(cursor.getString(cursor.getColumnIndexOrThrow("_id")),
+                      cursor.getString(cursor.getColumnIndexOrThrow("address")));
+      }
+    } catch (IllegalStateException | IllegalArgumentException | SQLiteException e) {
+      Log.w(TAG, e);
+    } finally {
+      if (cursor != null)
+        cursor.close();
     }
-  }
-
-  private static boolean isAppropriateTypeForMigration(Cursor cursor, int columnIndex) {
-    long systemType = cursor.getLong(columnIndex);
-    long ourType    = SmsDatabase.Types.translateFromSystemBaseType(systemType);
-
-    return ourType == MmsSmsColumns.Types.BASE_INBOX_TYPE ||
-           ourType == MmsSmsColumns.Types.BASE_SENT_TYPE ||
-           ourType == MmsSmsColumns.Types.BASE_SENT_FAILED_TYPE;
-  }
 
-  private static void getContentValuesForRow(Context context, MasterSecret masterSecret,
-                                             Cursor cursor, long threadId,
-                                             SQLiteStatement statement)
-  {
-    addStringToStatement(statement, cursor, 1, SmsDatabase.ADDRESS);
-    addIntToStatement(statement, cursor, 2, SmsDatabase.PERSON);
-    addIntToStatement(statement, cursor, 3, SmsDatabase.DATE_RECEIVED);
-    addIntToStatement(statement, cursor, 4, SmsDatabase.DATE_RECEIVED);
-    addIntToStatement(statement, cursor, 5, SmsDatabase.PROTOCOL);
-    addIntToStatement(statement, cursor, 6, SmsDatabase.READ);
-    addIntToStatement(statement, cursor, 7, SmsDatabase.STATUS);
-    addTranslatedTypeToStatement(statement, cursor, 8, SmsDatabase.TYPE);
-    addIntToStatement(statement, cursor, 9, SmsDatabase.REPLY_PATH_PRESENT);
-    addStringToStatement(statement, cursor, 10, SmsDatabase.SUBJECT);
-    addEncryptedStringToStatement(context, statement, cursor, masterSecret, 11, SmsDatabase.BODY);
-    addStringToStatement(statement, cursor, 12, SmsDatabase.SERVICE_CENTER);
-
-    statement.bindLong(13, threadId);
+    return addresses;
   }
 
   private static String getTheirCanonicalAddress(Context context, String theirRecipientId) {
@@ -136,13 +150,18 @@ public class SmsMigrator {
     }
   }
 
-  private static Recipients getOurRecipients(Context context, String theirRecipients) {
+  private static Recipients getOurRecipients(Context context, Map<String, String> canonicalAddresses,
+                                             String theirRecipients)
+  {
     StringTokenizer tokenizer = new StringTokenizer(theirRecipients.trim(), " ");
     StringBuilder sb          = new StringBuilder();
 
     while (tokenizer.hasMoreTokens()) {
       String theirRecipientId = tokenizer.nextToken();
-      String address          = getTheirCanonicalAddress(context, theirRecipientId);
+      String address          = canonicalAddresses.get(theirRecipientId);
+
+      if (address == null)
+        address = getTheirCanonicalAddress(context, theirRecipientId);
 
       if (address == null)
         continue;
@@ -157,55 +176,252 @@ public class SmsMigrator {
     else                  return RecipientFactory.getRecipientsFromString(context, sb.toString(), true);
   }
 
-  private static String encrypt(MasterSecret masterSecret, String body)
+  /**
+   * Migrates one thread in a single transaction. If any of its SMS can't be
+   * encrypted, the transaction is rolled back and the thread isn't marked
+   * migrated, so that it is retried on the next run.
+   *
+   * @return true if the thread was migrated.
+   */
+  private static boolean migrateConversation(Context context, MasterSecret masterSecret,
+                                             SmsMigrationProgressListener listener,
+                                             ProgressDescription progress,
+                                             long theirThreadId, long ourThreadId)
   {
-    MasterCipher masterCipher = new MasterCipher(masterSecret);
-    return masterCipher.encryptBody(body);
+    SmsDatabase    ourSmsDatabase = DatabaseFactory.getSmsDatabase(context);
+    SQLiteDatabase transaction    = ourSmsDatabase.beginTransaction();
+    boolean        success        = false;
+
+    try {
+      migrateSms(context, masterSecret, listener, progress, theirThreadId, ourThreadId, transaction);
+      migrateMms(context, masterSecret, theirThreadId, ourThreadId);
+      DatabaseFactory.getThreadDatabase(context).update(ourThreadId, true);
+      transaction.setTransactionSuccessful();
+      success = true;
+    } catch (InterruptedException e) {
+      Log.w(TAG, "Interrupted migrating thread " + theirThreadId, e);
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      Log.w(TAG, "Failed migrating thread " + theirThreadId, e);
+    } finally {
+      transaction.endTransaction();
+    }
+
+    if (success) {
+      setThreadMigrated(context, theirThreadId);
+      DatabaseFactory.getThreadDatabase(context).notifyConversationListeners(ourThreadId);
+    }
+
+    return success;
   }
 
-  private static void migrateConversation(Context context, MasterSecret masterSecret,
-                                          SmsMigrationProgressListener listener,
-                                          ProgressDescription progress,
-                                          long theirThreadId, long ourThreadId)
+  private static void migrateSms(Context context, MasterSecret masterSecret,
+                                 SmsMigrationProgressListener listener,
+                                 ProgressDescription progress,
+                                 long theirThreadId, long ourThreadId,
+                                 SQLiteDatabase transaction)
+      throws InterruptedException, ExecutionException
   {
     SmsDatabase ourSmsDatabase = DatabaseFactory.getSmsDatabase(context);
-    Cursor cursor              = null;
+    Cursor      cursor;
 
     try {
       Uri uri = Uri.parse("content://sms/conversations/" + theirThreadId);
+      cursor  = context.getContentResolver().query(uri, null, null, null, null);
+    } catch (SQLiteException e) {
+      /// Work around for weird sony-specific (?) bug: #4309
+      Log.w(TAG, e);
+      return;
+    }
+
+    if (cursor == null) return;
+
+    SQLiteStatement                  statement = ourSmsDatabase.createInsertStatement(transaction);
+    MasterCipher                     cipher    = MasterCipher.getInstance(masterSecret);
+    LinkedList<Future<List<SmsRow>>> pending   = new LinkedList<>();
 
-      try {
-        cursor = context.getContentResolver().query(uri, null, null, null, null);
-      } catch (SQLiteException e) {
-        /// Work around for weird sony-specific (?) bug: #4309
-        Log.w(TAG, e);
-        return;
+    try {
+      List<SmsRow> batch = new ArrayList<>(BATCH_SIZE);
+
+      while (cursor.moveToNext()) {
+        SmsRow row = SmsRow.fromCursor(cursor);
+
+        if (row.type != null && !isAppropriateTypeForMigration(row.type))
+          continue;
+
+        batch.add(row);
+
+        if (batch.size() == BATCH_SIZE) {
+          pending.add(executor.submit(new EncryptTask(cipher, batch)));
+          batch = new ArrayList<>(BATCH_SIZE);
+        }
+
+        if (pending.size() >= MAX_PENDING) {
+          insertRows(statement, pending.removeFirst(), ourThreadId);
+          listener.progressUpdate(new ProgressDescription(progress, cursor.getCount(), cursor.getPosition()));
+        }
       }
 
-      SQLiteDatabase transaction = ourSmsDatabase.beginTransaction();
-      SQLiteStatement statement  = ourSmsDatabase.createInsertStatement(transaction);
+      if (!batch.isEmpty()) {
+        pending.add(executor.submit(new EncryptTask(cipher, batch)));
+      }
 
-      while (cursor != null && cursor.moveToNext()) {
-        int typeColumn = cursor.getColumnIndex(SmsDatabase.TYPE);
+      while (!pending.isEmpty()) {
+        insertRows(statement, pending.removeFirst(), ourThreadId);
+      }
+
+      listener.progressUpdate(new ProgressDescription(progress, cursor.getCount(), cursor.getCount()));
+    } finally {
+      for (Future<List<SmsRow>> future : pending) {
+        future.cancel(false);
+      }
 
-        if (cursor.isNull(typeColumn) || isAppropriateTypeForMigration(cursor, typeColumn)) {
-          getContentValuesForRow(context, masterSecret, cursor, ourThreadId, statement);
-          statement.execute();
+      statement.close();
+      cursor.close();
+    }
+  }
+
+  private static void insertRows(SQLiteStatement statement, Future<List<SmsRow>> future, long threadId)
+      throws InterruptedException, ExecutionException
+  {
+    for (SmsRow row : future.get()) {
+      row.bind(statement, threadId);
+      statement.executeInsert();
+    }
+  }
+
+  private static void migrateMms(Context context, MasterSecret masterSecret,
+                                 long theirThreadId, long ourThreadId)
+  {
+    MmsDatabase ourMmsDatabase = DatabaseFactory.getMmsDatabase(context);
+    Cursor      cursor         = null;
+
+    try {
+      cursor = context.getContentResolver().query(Uri.parse("content://mms"),
+                                                  new String[] {"_id", "msg_box", "date", "date_sent", "read"},
+                                                  "thread_id = ? AND (msg_box = ? OR msg_box = ?)",
+                                                  new String[] {String.valueOf(theirThreadId),
+                                                                String.valueOf(MMS_BOX_INBOX),
+                                                                String.valueOf(MMS_BOX_SENT)},
+                                                  "date ASC");
+
+      while (cursor != null && cursor.moveToNext()) {
+        long    theirMessageId = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
+        boolean inbox          = cursor.getInt(cursor.getColumnIndexOrThrow("msg_box")) == MMS_BOX_INBOX;
+        long    dateReceived   = cursor.getLong(cursor.getColumnIndexOrThrow("date")) * 1000;
+        long    dateSent       = cursor.getLong(cursor.getColumnIndexOrThrow("date_sent")) * 1000;
+        boolean read           = cursor.getInt(cursor.getColumnIndexOrThrow("read")) != 0;
+
+        MmsAddresses     addresses   = getMmsAddresses(context, theirMessageId);
+        StringBuilder    body        = new StringBuilder();
+        List<Attachment> attachments = new LinkedList<>();
+
+        if (inbox && addresses.getFrom() == null) continue;
+
+        getMmsParts(context, theirMessageId, body, attachments);
+
+        try {
+          ourMmsDatabase.insertMigratedMessage(masterSecret, ourThreadId, inbox,
+                                               dateSent == 0 ? dateReceived : dateSent, dateReceived, read,
+                                               addresses, body.toString(), attachments);
+        } catch (MmsException e) {
+          Log.w(TAG, "Skipping MMS " + theirMessageId, e);
         }
+      }
+    } catch (SQLiteException | IllegalArgumentException e) {
+      Log.w(TAG, e);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private static MmsAddresses getMmsAddresses(Context context, long theirMessageId) {
+    String       from   = null;
+    List<String> to     = new LinkedList<>();
+    List<String> cc     = new LinkedList<>();
+    List<String> bcc    = new LinkedList<>();
+    Cursor       cursor = null;
+
+    try {
+      cursor = context.getContentResolver().query(Uri.parse("content://mms/" + theirMessageId + "/addr"),
+                                                  new String[] {"address", "type"}, null, null, null);
 
-        listener.progressUpdate(new ProgressDescription(progress, cursor.getCount(), cursor.getPosition()));
+      while (cursor != null && cursor.moveToNext()) {
+        String address = cursor.getString(0);
+        int    type    = cursor.getInt(1);
+
+        if (TextUtils.isEmpty(address) || "insert-address-token".equals(address)) continue;
+
+        switch (type) {
+          case PduHeaders.FROM: from = address; break;
+          case PduHeaders.TO:   to.add(address);  break;
+          case PduHeaders.CC:   cc.add(address);  break;
+          case PduHeaders.BCC:  bcc.add(address); break;
+        }
       }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
 
-      ourSmsDatabase.endTransaction(transaction);
-      DatabaseFactory.getThreadDatabase(context).update(ourThreadId, true);
-      DatabaseFactory.getThreadDatabase(context).notifyConversationListeners(ourThreadId);
+    return new MmsAddresses(from, to, cc, bcc);
+  }
+
+  private static void getMmsParts(Context context, long theirMessageId,
+                                  StringBuilder body, List<Attachment> attachments)
+  {
+    Cursor cursor = null;
+
+    try {
+      cursor = context.getContentResolver().query(Uri.parse("content://mms/part"),
+                                                  new String[] {"_id", "ct", "text"},
+                                                  "mid = ?", new String[] {String.valueOf(theirMessageId)},
+                                                  "seq ASC");
+
+      while (cursor != null && cursor.moveToNext()) {
+        long   partId      = cursor.getLong(0);
+        String contentType = cursor.getString(1);
 
+        if (contentType == null || "application/smil".equals(contentType)) {
+          continue;
+        }
+
+        if ("text/plain".equals(contentType) && !cursor.isNull(2)) {
+          if (body.length() != 0) body.append('\n');
+          body.append(cursor.getString(2));
+        } else {
+          attachments.add(new UriAttachment(Uri.parse("content://mms/part/" + partId), contentType,
+                                            AttachmentDatabase.TRANSFER_PROGRESS_DONE));
+        }
+      }
     } finally {
       if (cursor != null)
         cursor.close();
     }
   }
 
+  private static Set<String> getMigratedThreads(Context context) {
+    String      serialized = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                                    .getString(MIGRATED_THREADS_PREF, "");
+    Set<String> threads    = new HashSet<>();
+
+    for (String threadId : serialized.split(",")) {
+      if (!TextUtils.isEmpty(threadId)) threads.add(threadId);
+    }
+
+    return threads;
+  }
+
+  private static void setThreadMigrated(Context context, long theirThreadId) {
+    SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    String            serialized  = preferences.getString(MIGRATED_THREADS_PREF, "");
+
+    preferences.edit()
+               .putString(MIGRATED_THREADS_PREF, serialized + theirThreadId + ",")
+               .commit();
+  }
+
   public static void migrateDatabase(Context context,
                                      MasterSecret masterSecret,
                                      SmsMigrationProgressListener listener)
@@ -213,24 +429,37 @@ public class SmsMigrator {
 //    if (context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).getBoolean("migrated", false))
 //      return;
 
-    ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
-    Cursor cursor                 = null;
+    ThreadDatabase      threadDatabase     = DatabaseFactory.getThreadDatabase(context);
+    Map<String, String> canonicalAddresses = getCanonicalAddresses(context);
+    Set<String>         migratedThreads    = getMigratedThreads(context);
+    Cursor              cursor             = null;
+    boolean             complete           = true;
+
+    ChangeNotifier.getInstance(context).beginDeferred();
 
     try {
       Uri threadListUri = Uri.parse("content://mms-sms/conversations?simple=true");
       cursor            = context.getContentResolver().query(threadListUri, null, null, null, "date ASC");
 
       while (cursor != null && cursor.moveToNext()) {
+        if (Thread.currentThread().isInterrupted()) {
+          complete = false;
+          break;
+        }
+
         long   theirThreadId         = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
         String theirRecipients       = cursor.getString(cursor.getColumnIndexOrThrow("recipient_ids"));
-        Recipients ourRecipients     = getOurRecipients(context, theirRecipients);
         ProgressDescription progress = new ProgressDescription(cursor.getCount(), cursor.getPosition(), 100, 0);
 
-        if (ourRecipients != null) {
-          long ourThreadId = threadDatabase.getThreadIdFor(ourRecipients);
-          migrateConversation(context, masterSecret,
-                              listener, progress,
-                              theirThreadId, ourThreadId);
+        if (!migratedThreads.contains(String.valueOf(theirThreadId))) {
+          Recipients ourRecipients = getOurRecipients(context, canonicalAddresses, theirRecipients);
+
+          if (ourRecipients != null) {
+            long ourThreadId = threadDatabase.getThreadIdFor(ourRecipients);
+            complete &= migrateConversation(context, masterSecret,
+                                            listener, progress,
+                                            theirThreadId, ourThreadId);
+          }
         }
 
         progress.incrementPrimaryComplete();
@@ -239,10 +468,124 @@ public class SmsMigrator {
     } finally {
       if (cursor != null)
         cursor.close();
+
+      ChangeNotifier.getInstance(context).endDeferred();
+    }
+
+    if (!complete) {
+      Log.w(TAG, "Some threads weren't migrated, keeping progress for the next run.");
+      return;
+    }
+
+    context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+      .putBoolean(MIGRATED_PREF, true)
+      .remove(MIGRATED_THREADS_PREF)
+      .apply();
+  }
+
+  private static class SmsRow {
+    private String address;
+    private Long   person;
+    private Long   date;
+    private Long   protocol;
+    private Long   read;
+    private Long   status;
+    private Long   type;
+    private Long   replyPathPresent;
+    private String subject;
+    private String body;
+    private String serviceCenter;
+
+    private static SmsRow fromCursor(Cursor cursor) {
+      SmsRow row = new SmsRow();
+
+      row.address          = getString(cursor, SmsDatabase.ADDRESS);
+      row.person           = getLong(cursor, SmsDatabase.PERSON);
+      row.date             = getLong(cursor, SmsDatabase.DATE_RECEIVED);
+      row.protocol         = getLong(cursor, SmsDatabase.PROTOCOL);
+      row.read             = getLong(cursor, SmsDatabase.READ);
+      row.status           = getLong(cursor, SmsDatabase.STATUS);
+      row.type             = getLong(cursor, SmsDatabase.TYPE);
+      row.replyPathPresent = getLong(cursor, SmsDatabase.REPLY_PATH_PRESENT);
+      row.subject          = getString(cursor, SmsDatabase.SUBJECT);
+      row.body             = getString(cursor, SmsDatabase.BODY);
+      row.serviceCenter    = getString(cursor, SmsDatabase.SERVICE_CENTER);
+
+      return row;
     }
 
-    context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).edit()
-      .putBoolean("migrated", true).apply();
+    private void bind(SQLiteStatement statement, long threadId) {
+      statement.clearBindings();
+      bindString(statement, 1, address);
+      bindLong(statement, 2, person);
+      bindLong(statement, 3, date);
+      bindLong(statement, 4, date);
+      bindLong(statement, 5, protocol);
+      bindLong(statement, 6, read);
+      bindLong(statement, 7, status);
+
+      if (type == null) {
+        statement.bindLong(8, SmsDatabase.Types.BASE_INBOX_TYPE | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
+      } else {
+        statement.bindLong(8, SmsDatabase.Types.translateFromSystemBaseType(type) | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
+      }
+
+      bindLong(statement, 9, replyPathPresent);
+      bindString(statement, 10, subject);
+      bindString(statement, 11, body);
+      bindString(statement, 12, serviceCenter);
+      statement.bindLong(13, threadId);
+    }
+
+    private static @Nullable String getString(Cursor cursor, String key) {
+      int columnIndex = cursor.getColumnIndexOrThrow(key);
+      return cursor.isNull(columnIndex) ? null : cursor.getString(columnIndex);
+    }
+
+    private static @Nullable Long getLong(Cursor cursor, String key) {
+      int columnIndex = cursor.getColumnIndexOrThrow(key);
+      return cursor.isNull(columnIndex) ? null : cursor.getLong(columnIndex);
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, @Nullable String value) {
+      if (value == null) statement.bindNull(index);
+      else               statement.bindString(index, value);
+    }
+
+    private static void bindLong(SQLiteStatement statement, int index, @Nullable Long value) {
+      if (value == null) statement.bindNull(index);
+      else               statement.bindLong(index, value);
+    }
+  }
+
+  private static class EncryptTask implements Callable<List<SmsRow>> {
+    private final MasterCipher cipher;
+    private final List<SmsRow> rows;
+
+    private EncryptTask(MasterCipher cipher, List<SmsRow> rows) {
+      this.cipher = cipher;
+      this.rows   = rows;
+    }
+
+    /**
+     * @return the rows that could be encrypted. The others are logged and
+     *         skipped rather than failing the whole migration.
+     */
+    @Override
+    public List<SmsRow> call() {
+      List<SmsRow> encrypted = new ArrayList<>(rows.size());
+
+      for (SmsRow row : rows) {
+        try {
+          if (row.body != null) row.body = cipher.encryptBody(row.body);
+          encrypted.add(row);
+        } catch (RuntimeException e) {
+          Log.w(TAG, "Skipping SMS from " + row.date, e);
+        }
+      }
+
+      return encrypted;
+    }
   }
 
   public interface SmsMigrationProgressListener {
@@ -0,0 +1,159 @@
+package org.smssecure.smssecure.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * How many parts of each outgoing SMS have been reported sent or delivered
+ * so far, so that the per-part callbacks can be folded into one status
+ * update even if the process is restarted while they arrive.
+ */
+public class SmsPartStatusDatabase extends Database {
+
+  private static final String TABLE_NAME        = "sms_part_status";
+  private static final String MESSAGE_ID        = "message_id";
+  private static final String ATTEMPT           = "attempt";
+  private static final String PART_COUNT        = "part_count";
+  private static final String DELIVERY_EXPECTED = "delivery_expected";
+  private static final String SENT_COUNT        = "sent_count";
+  private static final String DELIVERED_COUNT   = "delivered_count";
+  private static final String SENT_COMPLETE     = "sent_complete";
+  private static final String DATE_CREATED      = "date_created";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + MESSAGE_ID + " INTEGER PRIMARY KEY, " + ATTEMPT + " INTEGER DEFAULT 0, " +
+                                            PART_COUNT + " INTEGER, " + DELIVERY_EXPECTED + " INTEGER DEFAULT 0, " +
+                                            SENT_COUNT + " INTEGER DEFAULT 0, " + DELIVERED_COUNT + " INTEGER DEFAULT 0, " +
+                                            SENT_COMPLETE + " INTEGER DEFAULT 0, " + DATE_CREATED + " INTEGER);";
+
+  public SmsPartStatusDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public void insert(@NonNull PartStatus status) {
+    ContentValues values = new ContentValues(8);
+    values.put(MESSAGE_ID, status.messageId);
+    values.put(ATTEMPT, status.attempt);
+    values.put(PART_COUNT, status.partCount);
+    values.put(DELIVERY_EXPECTED, status.deliveryExpected ? 1 : 0);
+    values.put(SENT_COUNT, status.sentCount);
+    values.put(DELIVERED_COUNT, status.deliveredCount);
+    values.put(SENT_COMPLETE, status.sentComplete ? 1 : 0);
+    values.put(DATE_CREATED, status.dateCreated);
+
+    databaseHelper.getWritableDatabase().replace(TABLE_NAME, null, values);
+  }
+
+  public void update(@NonNull PartStatus status) {
+    ContentValues values = new ContentValues(3);
+    values.put(SENT_COUNT, status.sentCount);
+    values.put(DELIVERED_COUNT, status.deliveredCount);
+    values.put(SENT_COMPLETE, status.sentComplete ? 1 : 0);
+
+    databaseHelper.getWritableDatabase().update(TABLE_NAME, values, MESSAGE_ID + " = ?",
+                                                new String[] {String.valueOf(status.messageId)});
+  }
+
+  public @Nullable PartStatus get(long messageId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {ATTEMPT, PART_COUNT, DELIVERY_EXPECTED, SENT_COUNT, DELIVERED_COUNT,
+                                                  SENT_COMPLETE, DATE_CREATED},
+                        MESSAGE_ID + " = ?", new String[] {String.valueOf(messageId)}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return new PartStatus(messageId, cursor.getInt(0), cursor.getInt(1), cursor.getInt(2) == 1,
+                              cursor.getInt(3), cursor.getInt(4), cursor.getInt(5) == 1, cursor.getLong(6));
+      }
+
+      return null;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  public void delete(long messageId) {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, MESSAGE_ID + " = ?",
+                                                new String[] {String.valueOf(messageId)});
+  }
+
+  public void deleteOlderThan(long timestamp) {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, DATE_CREATED + " < ?",
+                                                new String[] {String.valueOf(timestamp)});
+  }
+
+  public static class PartStatus {
+    private final long    messageId;
+    private final int     attempt;
+    private final int     partCount;
+    private final boolean deliveryExpected;
+    private final long    dateCreated;
+
+    private int     sentCount;
+    private int     deliveredCount;
+    private boolean sentComplete;
+
+    public PartStatus(long messageId, int attempt, int partCount, boolean deliveryExpected, long dateCreated) {
+      this(messageId, attempt, partCount, deliveryExpected, 0, 0, false, dateCreated);
+    }
+
+    private PartStatus(long messageId, int attempt, int partCount, boolean deliveryExpected, int sentCount,
+                       int deliveredCount, boolean sentComplete, long dateCreated)
+    {
+      this.messageId        = messageId;
+      this.attempt          = attempt;
+      this.partCount        = partCount;
+      this.deliveryExpected = deliveryExpected;
+      this.sentCount        = sentCount;
+      this.deliveredCount   = deliveredCount;
+      this.sentComplete     = sentComplete;
+      this.dateCreated      = dateCreated;
+    }
+
+    public int getAttempt() {
+      return attempt;
+    }
+
+    public int getPartCount() {
+      return partCount;
+    }
+
+    public boolean isDeliveryExpected() {
+      return deliveryExpected;
+    }
+
+    public long getDateCreated() {
+      return dateCreated;
+    }
+
+    public int getSentCount() {
+      return sentCount;
+    }
+
+    public int getDeliveredCount() {
+      return deliveredCount;
+    }
+
+    public boolean isSentComplete() {
+      return sentComplete;
+    }
+
+    public void incrementSentCount() {
+      sentCount++;
+    }
+
+    public void incrementDeliveredCount() {
+      deliveredCount++;
+    }
+
+    public void setSentComplete() {
+      sentComplete = true;
+    }
+  }
+}
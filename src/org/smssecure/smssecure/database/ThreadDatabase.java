@@ -23,6 +23,7 @@ import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
@@ -38,19 +39,34 @@ import org.smssecure.smssecure.mms.SlideDeck;
 import org.smssecure.smssecure.recipients.Recipient;
 import org.smssecure.smssecure.recipients.RecipientFactory;
 import org.smssecure.smssecure.recipients.Recipients;
+import org.smssecure.smssecure.util.SilencePreferences;
 import org.smssecure.smssecure.util.Util;
 import org.whispersystems.libsignal.InvalidMessageException;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class ThreadDatabase extends Database {
 
   private static final String TAG = ThreadDatabase.class.getSimpleName();
 
+  private static final ExecutorService fileSweeper = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(@NonNull Runnable runnable) {
+      Thread thread = new Thread(runnable, "OrphanedFileSweeper");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  });
+
           static final String TABLE_NAME      = "thread";
   public  static final String ID              = "_id";
   public  static final String DATE            = "date";
@@ -66,6 +82,7 @@ public class ThreadDatabase extends Database {
   public  static final String ARCHIVED        = "archived";
   public  static final String STATUS          = "status";
   public  static final String LAST_SEEN       = "last_seen";
+  private static final String SNIPPET_DATE    = "snippet_date_received";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("                    +
     ID + " INTEGER PRIMARY KEY, " + DATE + " INTEGER DEFAULT 0, "                                  +
@@ -74,7 +91,7 @@ public class ThreadDatabase extends Database {
     TYPE + " INTEGER DEFAULT 0, " + ERROR + " INTEGER DEFAULT 0, "                                 +
     SNIPPET_TYPE + " INTEGER DEFAULT 0, " + SNIPPET_URI + " TEXT DEFAULT NULL, "                   +
     ARCHIVED + " INTEGER DEFAULT 0, " + STATUS + " INTEGER DEFAULT 0, "                            +
-    LAST_SEEN + " INTEGER DEFAULT 0);";
+    LAST_SEEN + " INTEGER DEFAULT 0, " + SNIPPET_DATE + " INTEGER DEFAULT 0);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + RECIPIENT_IDS + ");",
@@ -132,13 +149,14 @@ public class ThreadDatabase extends Database {
   }
 
   private void updateThread(long threadId, long count, String body, @Nullable Uri attachment,
-                            long date, int status, long type, boolean unarchive)  {
-    ContentValues contentValues = new ContentValues(6);
+                            long date, long dateReceived, int status, long type, boolean unarchive)  {
+    ContentValues contentValues = new ContentValues(7);
     contentValues.put(DATE, date - date % 1000);
     contentValues.put(MESSAGE_COUNT, count);
     contentValues.put(SNIPPET, body);
     contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
     contentValues.put(SNIPPET_TYPE, type);
+    contentValues.put(SNIPPET_DATE, dateReceived);
     contentValues.put(STATUS, status);
 
     if (unarchive) {
@@ -194,53 +212,87 @@ public class ThreadDatabase extends Database {
   }
 
   public void trimAllThreads(int length, ProgressListener listener) {
-    Cursor cursor   = null;
-    int threadCount = 0;
-    int complete    = 0;
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    List<Long>     threadIds = new LinkedList<>();
+    List<File>     orphans   = new LinkedList<>();
+    Cursor         cursor    = null;
+    int            complete  = 0;
 
     try {
-      cursor = this.getConversationList();
-
-      if (cursor != null)
-        threadCount = cursor.getCount();
+      cursor = db.query(TABLE_NAME, new String[] {ID}, MESSAGE_COUNT + " > ?",
+                        new String[] {String.valueOf(length)}, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
-        long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-        trimThread(threadId, length);
-
-        listener.onProgress(++complete, threadCount);
+        threadIds.add(cursor.getLong(0));
       }
     } finally {
       if (cursor != null)
         cursor.close();
     }
+
+    ChangeNotifier.getInstance(context).beginDeferred();
+
+    try {
+      for (long threadId : threadIds) {
+        orphans.addAll(trimThreadMessages(threadId, length));
+        listener.onProgress(++complete, threadIds.size());
+      }
+    } finally {
+      ChangeNotifier.getInstance(context).endDeferred();
+    }
+
+    deleteOrphanedFiles(orphans);
   }
 
   public void trimThread(long threadId, int length) {
-    Log.w("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length);
-    Cursor cursor = null;
+    deleteOrphanedFiles(trimThreadMessages(threadId, length));
+  }
 
-    try {
-      cursor = DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+  private List<File> trimThreadMessages(long threadId, int length) {
+    if (length <= 0) return new LinkedList<>();
 
-      if (cursor != null && length > 0 && cursor.getCount() > length) {
-        Log.w("ThreadDatabase", "Cursor count is greater than length!");
-        cursor.moveToPosition(length - 1);
+    long cutoff = DatabaseFactory.getMmsSmsDatabase(context).getTrimCutoff(threadId, length);
 
-        long lastTweetDate = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+    if (cutoff == -1) return new LinkedList<>();
 
-        Log.w("ThreadDatabase", "Cut off tweet date: " + lastTweetDate);
+    Log.w(TAG, "Trimming thread: " + threadId + " to: " + length + ", cut off date: " + cutoff);
 
-        DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
-        DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    List<File>     orphans;
 
-        update(threadId, false);
-        notifyConversationListeners(threadId);
-      }
+    db.beginTransaction();
+
+    try {
+      DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, cutoff);
+      orphans = DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, cutoff);
+
+      update(threadId, false);
+      db.setTransactionSuccessful();
     } finally {
-      if (cursor != null)
-        cursor.close();
+      db.endTransaction();
     }
+
+    notifyConversationListeners(threadId);
+    return orphans;
+  }
+
+  /**
+   * Deletes the attachment files of trimmed messages on the sweeper thread,
+   * so the trim itself only waits for the database.
+   */
+  private void deleteOrphanedFiles(final List<File> files) {
+    if (files.isEmpty()) return;
+
+    fileSweeper.execute(new Runnable() {
+      @Override
+      public void run() {
+        for (File file : files) {
+          if (!file.delete()) Log.w(TAG, "Failed to delete " + file);
+        }
+
+        Log.w(TAG, "Swept " + files.size() + " orphaned attachment files");
+      }
+    });
   }
 
   public void setAllThreadsRead() {
@@ -248,10 +300,18 @@ public class ThreadDatabase extends Database {
     ContentValues contentValues = new ContentValues(1);
     contentValues.put(READ, 1);
 
-    db.update(TABLE_NAME, contentValues, null, null);
+    db.beginTransaction();
+
+    try {
+      db.update(TABLE_NAME, contentValues, null, null);
+
+      DatabaseFactory.getSmsDatabase(context).setAllMessagesRead();
+      DatabaseFactory.getMmsDatabase(context).setAllMessagesRead();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
-    DatabaseFactory.getSmsDatabase(context).setAllMessagesRead();
-    DatabaseFactory.getMmsDatabase(context).setAllMessagesRead();
     notifyConversationListListeners();
   }
 
@@ -409,7 +469,6 @@ public class ThreadDatabase extends Database {
     DatabaseFactory.getDraftDatabase(context).clearDrafts(threadId);
     deleteThread(threadId);
     notifyConversationListeners(threadId);
-    notifyConversationListListeners();
   }
 
   public void deleteConversations(Set<Long> selectedConversations) {
@@ -418,7 +477,6 @@ public class ThreadDatabase extends Database {
     DatabaseFactory.getDraftDatabase(context).clearDrafts(selectedConversations);
     deleteThreads(selectedConversations);
     notifyConversationListeners(selectedConversations);
-    notifyConversationListListeners();
   }
 
   public void deleteAllConversations() {
@@ -493,13 +551,102 @@ public class ThreadDatabase extends Database {
     return null;
   }
 
+  /**
+   * Accounts for a message that was just added to a thread, without reading the
+   * rest of the conversation. The count is incremented and the snippet replaced
+   * if the message is at least as recent as the current one.
+   */
+  public void updateForInsertedMessage(long threadId, String body, long dateSent, long dateReceived,
+                                       int status, long type, boolean unarchive)
+  {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1" +
+               (unarchive ? ", " + ARCHIVED + " = 0" : "") + " WHERE " + ID + " = ?",
+               new String[] {String.valueOf(threadId)});
+
+    updateSnippetIfNewest(db, threadId, body, dateSent, dateReceived, status, type);
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Accounts for a change to the body, type or status of a message, which only
+   * matters to the thread if that message is its snippet.
+   */
+  public void updateForChangedMessage(long threadId, String body, long dateSent, long dateReceived,
+                                      int status, long type, boolean unarchive)
+  {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    if (unarchive) {
+      ContentValues contentValues = new ContentValues(1);
+      contentValues.put(ARCHIVED, 0);
+      db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(threadId)});
+    }
+
+    if (updateSnippetIfNewest(db, threadId, body, dateSent, dateReceived, status, type) || unarchive) {
+      notifyConversationListListeners();
+    }
+  }
+
+  /**
+   * Accounts for a message removed from a thread. Only deleting the snippet
+   * message, or the last message, falls back to a full {@link #update(long, boolean)}.
+   *
+   * @return true if the thread was deleted.
+   */
+  public boolean updateForDeletedMessage(long threadId, long dateReceived) {
+    SQLiteDatabase db     = databaseHelper.getWritableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT, SNIPPET_DATE}, ID_WHERE,
+                        new String[] {String.valueOf(threadId)}, null, null, null);
+
+      if (cursor == null || !cursor.moveToFirst() ||
+          cursor.getLong(0) <= 1 || dateReceived >= cursor.getLong(1))
+      {
+        return update(threadId, false);
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " - 1" +
+               " WHERE " + ID + " = ?", new String[] {String.valueOf(threadId)});
+    notifyConversationListListeners();
+    return false;
+  }
+
+  private boolean updateSnippetIfNewest(SQLiteDatabase db, long threadId, String body, long dateSent,
+                                        long dateReceived, int status, long type)
+  {
+    long          date          = SilencePreferences.showSentTime(context) ? dateSent : dateReceived;
+    ContentValues contentValues = new ContentValues(6);
+
+    contentValues.put(DATE, date - date % 1000);
+    contentValues.put(SNIPPET, body);
+    contentValues.putNull(SNIPPET_URI);
+    contentValues.put(SNIPPET_TYPE, type);
+    contentValues.put(SNIPPET_DATE, dateReceived);
+    contentValues.put(STATUS, status);
+
+    return db.update(TABLE_NAME, contentValues, ID + " = ? AND " + SNIPPET_DATE + " <= ?",
+                     new String[] {String.valueOf(threadId), String.valueOf(dateReceived)}) > 0;
+  }
+
+  /**
+   * Recomputes a thread's count and snippet from its messages. This is the
+   * repair path for anything the incremental updates above don't cover.
+   *
+   * @return true if the thread was deleted because it no longer has messages.
+   */
   public boolean update(long threadId, boolean unarchive) {
     MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
     long count                    = mmsSmsDatabase.getConversationCount(threadId);
 
     if (count == 0) {
       deleteThread(threadId);
-      notifyConversationListListeners();
       return true;
     }
 
@@ -511,12 +658,11 @@ public class ThreadDatabase extends Database {
 
       if (reader != null && (record = reader.getNext()) != null) {
         updateThread(threadId, count, record.getBody().getBody(), getAttachmentUriFor(record),
-                     record.getTimestamp(), record.getDeliveryStatus(), record.getType(), unarchive);
-        notifyConversationListListeners();
+                     record.getTimestamp(), record.getDateReceived(), record.getDeliveryStatus(),
+                     record.getType(), unarchive);
         return false;
       } else {
         deleteThread(threadId);
-        notifyConversationListListeners();
         return true;
       }
     } finally {
@@ -566,6 +712,56 @@ public class ThreadDatabase extends Database {
       return getCurrent();
     }
 
+    /**
+     * Loads the recipient preferences for every thread in the cursor, and for
+     * each of their members, in bulk so that binding rows doesn't query them
+     * one at a time.  The cursor's position is left unchanged.
+     */
+    public void warmRecipientPreferences() {
+      if (cursor == null) return;
+
+      List<long[]> recipientSets = new LinkedList<>();
+      Set<Long>    members       = new HashSet<>();
+      int          position      = cursor.getPosition();
+
+      try {
+        int column = cursor.getColumnIndexOrThrow(ThreadDatabase.RECIPIENT_IDS);
+
+        cursor.moveToPosition(-1);
+
+        while (cursor.moveToNext()) {
+          String serialized = cursor.getString(column);
+          if (TextUtils.isEmpty(serialized)) continue;
+
+          List<String> parts = Util.split(serialized.trim(), " ");
+          long[]       ids   = new long[parts.size()];
+
+          try {
+            for (int i = 0; i < ids.length; i++) {
+              ids[i] = Long.parseLong(parts.get(i));
+            }
+          } catch (NumberFormatException e) {
+            Log.w(TAG, e);
+            continue;
+          }
+
+          if (ids.length == 0 || ids[0] < 0) continue;
+
+          recipientSets.add(ids);
+
+          for (long id : ids) members.add(id);
+        }
+      } finally {
+        cursor.moveToPosition(position);
+      }
+
+      for (long member : members) {
+        recipientSets.add(new long[] {member});
+      }
+
+      DatabaseFactory.getRecipientPreferenceDatabase(context).getRecipientsPreferences(recipientSets);
+    }
+
     public ThreadRecord getCurrent() {
       long       threadId    = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.ID));
       String     recipientId = cursor.getString(cursor.getColumnIndexOrThrow(ThreadDatabase.RECIPIENT_IDS));
@@ -592,7 +788,15 @@ public class ThreadDatabase extends Database {
         String body = cursor.getString(cursor.getColumnIndexOrThrow(SNIPPET));
 
         if (!TextUtils.isEmpty(body) && masterCipher != null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
-          return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
+          long   threadId  = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.ID));
+          String plaintext = PlaintextCache.getInstance().get(TABLE_NAME, threadId, body);
+
+          if (plaintext == null) {
+            plaintext = masterCipher.decryptBody(body);
+            PlaintextCache.getInstance().put(TABLE_NAME, threadId, body, plaintext);
+          }
+
+          return new DisplayRecord.Body(plaintext, true);
         } else if (!TextUtils.isEmpty(body) && masterCipher == null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
           return new DisplayRecord.Body(body, false);
         } else {
@@ -1,18 +1,19 @@
 package org.smssecure.smssecure.database;
 
-import android.text.TextUtils;
-
+import org.smssecure.smssecure.util.Base64;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 
 public class XmlBackup {
 
@@ -28,6 +29,13 @@ public class XmlBackup {
   private static final String TOA            = "toa";
   private static final String SC_TOA         = "sc_toa";
   private static final String LOCKED         = "locked";
+  private static final String MSG_BOX        = "msg_box";
+  private static final String SEQ            = "seq";
+  private static final String CONTENT_TYPE   = "ct";
+  private static final String CHARSET        = "chset";
+  private static final String ADDR_CHARSET   = "charset";
+  private static final String TEXT           = "text";
+  private static final String DATA           = "data";
 
   private final XmlPullParser parser;
 
@@ -148,16 +156,27 @@ public class XmlBackup {
     private static final String  OPEN_TAG_SMSES  = "<smses count=\"%d\">";
     private static final String  CLOSE_TAG_SMSES = "</smses>";
     private static final String  OPEN_TAG_SMS    = " <sms ";
+    private static final String  OPEN_TAG_MMS    = " <mms ";
+    private static final String  CLOSE_TAG_MMS   = " </mms>";
+    private static final String  OPEN_TAG_PARTS  = "  <parts>";
+    private static final String  CLOSE_TAG_PARTS = "  </parts>";
+    private static final String  OPEN_TAG_PART   = "   <part ";
+    private static final String  OPEN_TAG_ADDRS  = "  <addrs>";
+    private static final String  CLOSE_TAG_ADDRS = "  </addrs>";
+    private static final String  OPEN_TAG_ADDR   = "   <addr ";
+    private static final String  CLOSE_TAG       = ">";
     private static final String  CLOSE_EMPTYTAG  = "/>";
     private static final String  OPEN_ATTRIBUTE  = "=\"";
     private static final String  CLOSE_ATTRIBUTE = "\" ";
 
-    private static final Pattern PATTERN         = Pattern.compile("[^\u0020-\uD7FF]");
+    private static final int     CHARSET_UTF8    = 106;
 
+    private final OutputStream   outputStream;
     private final BufferedWriter bufferedWriter;
 
     public Writer(String path, int count) throws IOException {
-      bufferedWriter = new BufferedWriter(new FileWriter(path, false));
+      outputStream   = new BufferedOutputStream(new FileOutputStream(path, false));
+      bufferedWriter = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
 
       bufferedWriter.write(XML_HEADER);
       bufferedWriter.newLine();
@@ -167,29 +186,107 @@ public class XmlBackup {
     }
 
     public void writeItem(XmlBackupItem item) throws IOException {
-      StringBuilder stringBuilder = new StringBuilder();
-
-      stringBuilder.append(OPEN_TAG_SMS);
-      appendAttribute(stringBuilder, PROTOCOL, item.getProtocol());
-      appendAttribute(stringBuilder, ADDRESS, escapeXML(item.getAddress()));
-      appendAttribute(stringBuilder, DATE, item.getDate());
-      appendAttribute(stringBuilder, TYPE, item.getType());
-      appendAttribute(stringBuilder, SUBJECT, escapeXML(item.getSubject()));
-      appendAttribute(stringBuilder, BODY, escapeXML(item.getBody()));
-      appendAttribute(stringBuilder, TOA, "null");
-      appendAttribute(stringBuilder, SC_TOA, "null");
-      appendAttribute(stringBuilder, SERVICE_CENTER, item.getServiceCenter());
-      appendAttribute(stringBuilder, READ, item.getRead());
-      appendAttribute(stringBuilder, STATUS, item.getStatus());
-      appendAttribute(stringBuilder, LOCKED, 0);
-      stringBuilder.append(CLOSE_EMPTYTAG);
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_SMS);
+      writeAttribute(PROTOCOL, item.getProtocol());
+      writeEscapedAttribute(ADDRESS, item.getAddress());
+      writeAttribute(DATE, item.getDate());
+      writeAttribute(TYPE, item.getType());
+      writeEscapedAttribute(SUBJECT, item.getSubject());
+      writeEscapedAttribute(BODY, item.getBody());
+      writeAttribute(TOA, "null");
+      writeAttribute(SC_TOA, "null");
+      writeAttribute(SERVICE_CENTER, item.getServiceCenter());
+      writeAttribute(READ, item.getRead());
+      writeAttribute(STATUS, item.getStatus());
+      writeAttribute(LOCKED, 0);
+      bufferedWriter.write(CLOSE_EMPTYTAG);
+    }
 
+    /**
+     * Opens an mms element and its parts. Parts are then written with
+     * {@link #writeMmsTextPart} and {@link #writeMmsDataPart}, and the element
+     * finished with {@link #closeMms}.
+     */
+    public void openMms(long date, int messageBox, String address, int read) throws IOException {
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_MMS);
+      writeAttribute(DATE, date);
+      writeAttribute(MSG_BOX, messageBox);
+      writeEscapedAttribute(ADDRESS, address);
+      writeAttribute(READ, read);
+      writeAttribute(LOCKED, 0);
+      bufferedWriter.write(CLOSE_TAG);
       bufferedWriter.newLine();
-      bufferedWriter.write(stringBuilder.toString());
+      bufferedWriter.write(OPEN_TAG_PARTS);
     }
 
-    private <T> void appendAttribute(StringBuilder stringBuilder, String name, T value) {
-      stringBuilder.append(name).append(OPEN_ATTRIBUTE).append(value).append(CLOSE_ATTRIBUTE);
+    public void writeMmsTextPart(int seq, String text) throws IOException {
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_PART);
+      writeAttribute(SEQ, seq);
+      writeAttribute(CONTENT_TYPE, "text/plain");
+      writeAttribute(CHARSET, CHARSET_UTF8);
+      writeEscapedAttribute(TEXT, text);
+      bufferedWriter.write(CLOSE_EMPTYTAG);
+    }
+
+    /**
+     * Writes a part whose content is read from {@code data} and Base64 encoded
+     * straight into the file, without holding the attachment in memory.
+     */
+    public void writeMmsDataPart(int seq, String contentType, InputStream data) throws IOException {
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_PART);
+      writeAttribute(SEQ, seq);
+      writeEscapedAttribute(CONTENT_TYPE, contentType);
+      bufferedWriter.write(DATA);
+      bufferedWriter.write(OPEN_ATTRIBUTE);
+      bufferedWriter.flush();
+
+      Base64.OutputStream encoder = new Base64.OutputStream(outputStream, Base64.ENCODE);
+      byte[]              buffer  = new byte[4096];
+      int                 read;
+
+      while ((read = data.read(buffer)) != -1) {
+        encoder.write(buffer, 0, read);
+      }
+
+      encoder.flushBase64();
+
+      bufferedWriter.write(CLOSE_ATTRIBUTE);
+      bufferedWriter.write(CLOSE_EMPTYTAG);
+    }
+
+    public void closeMms(String address, int addressType) throws IOException {
+      bufferedWriter.newLine();
+      bufferedWriter.write(CLOSE_TAG_PARTS);
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_ADDRS);
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_ADDR);
+      writeEscapedAttribute(ADDRESS, address);
+      writeAttribute(TYPE, addressType);
+      writeAttribute(ADDR_CHARSET, CHARSET_UTF8);
+      bufferedWriter.write(CLOSE_EMPTYTAG);
+      bufferedWriter.newLine();
+      bufferedWriter.write(CLOSE_TAG_ADDRS);
+      bufferedWriter.newLine();
+      bufferedWriter.write(CLOSE_TAG_MMS);
+    }
+
+    private <T> void writeAttribute(String name, T value) throws IOException {
+      bufferedWriter.write(name);
+      bufferedWriter.write(OPEN_ATTRIBUTE);
+      bufferedWriter.write(String.valueOf(value));
+      bufferedWriter.write(CLOSE_ATTRIBUTE);
+    }
+
+    private void writeEscapedAttribute(String name, String value) throws IOException {
+      bufferedWriter.write(name);
+      bufferedWriter.write(OPEN_ATTRIBUTE);
+      writeEscaped(bufferedWriter, value);
+      bufferedWriter.write(CLOSE_ATTRIBUTE);
     }
 
     public void close() throws IOException {
@@ -198,25 +295,42 @@ public class XmlBackup {
       bufferedWriter.close();
     }
 
-    private String escapeXML(String s) {
-      if (TextUtils.isEmpty(s)) return s;
+    /**
+     * Escapes markup characters, and anything outside of U+0020 to U+D7FF as a
+     * numeric character reference, in a single pass over the string. Runs of
+     * characters that need no escaping are written in one call.
+     */
+    static void writeEscaped(java.io.Writer out, String s) throws IOException {
+      if (s == null) {
+        out.write("null");
+        return;
+      }
 
-      Matcher matcher = PATTERN.matcher( s.replace("&",  "&amp;")
-                                          .replace("<",  "&lt;")
-                                          .replace(">",  "&gt;")
-                                          .replace("\"", "&quot;")
-                                          .replace("'",  "&apos;"));
-      StringBuffer st = new StringBuffer();
+      int length = s.length();
+      int start  = 0;
+
+      for (int i=0;i<length;i++) {
+        char   ch          = s.charAt(i);
+        String replacement = null;
+
+        switch (ch) {
+          case '&':  replacement = "&amp;";  break;
+          case '<':  replacement = "&lt;";   break;
+          case '>':  replacement = "&gt;";   break;
+          case '"':  replacement = "&quot;"; break;
+          case '\'': replacement = "&apos;"; break;
+          default:
+            if (ch < '\u0020' || ch > '\uD7FF') replacement = "&#" + (int) ch + ";";
+        }
 
-      while (matcher.find()) {
-        StringBuilder escaped = new StringBuilder();
-        for (char ch: matcher.group(0).toCharArray()) {
-          escaped.append("&#").append((int) ch).append(";");
+        if (replacement != null) {
+          if (i > start) out.write(s, start, i - start);
+          out.write(replacement);
+          start = i + 1;
         }
-        matcher.appendReplacement(st, escaped.toString());
       }
-      matcher.appendTail(st);
-      return st.toString();
+
+      if (start < length) out.write(s, start, length - start);
     }
 
   }
@@ -26,9 +26,15 @@ public class ConversationListLoader extends AbstractCursorLoader {
 
   @Override
   public Cursor getCursor() {
-    if      (filter != null && filter.trim().length() != 0) return getFilteredConversationList(filter);
-    else if (!archived)                                     return getUnarchivedConversationList();
-    else                                                    return getArchivedConversationList();
+    Cursor cursor;
+
+    if      (filter != null && filter.trim().length() != 0) cursor = getFilteredConversationList(filter);
+    else if (!archived)                                     cursor = getUnarchivedConversationList();
+    else                                                    cursor = getArchivedConversationList();
+
+    DatabaseFactory.getThreadDatabase(context).readerFor(cursor, null).warmRecipientPreferences();
+
+    return cursor;
   }
 
   private Cursor getUnarchivedConversationList() {
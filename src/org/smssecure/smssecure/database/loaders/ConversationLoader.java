@@ -4,22 +4,38 @@ import android.content.Context;
 import android.database.Cursor;
 
 import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.MmsSmsColumns;
+import org.smssecure.smssecure.database.MmsSmsDatabase;
 import org.smssecure.smssecure.util.AbstractCursorLoader;
 
+/**
+ * Loads a conversation one page at a time. The first load reads the newest page;
+ * a loader created with the oldest date already loaded extends that window by a
+ * page. Reloads after content changes requery the same window, so their cost
+ * depends on how far the user has scrolled rather than on the thread size.
+ */
 public class ConversationLoader extends AbstractCursorLoader {
-  private final long threadId;
-  private       long limit;
-  private       long lastSeen;
+  private final    long    threadId;
+  private final    int     pageSize;
+  private final    long    loadedSince;
+  private          long    lastSeen;
+  private volatile long    oldestDateReceived = -1;
+  private volatile boolean hasMore;
 
-  public ConversationLoader(Context context, long threadId, long limit, long lastSeen) {
+  public ConversationLoader(Context context, long threadId, int pageSize, long loadedSince, long lastSeen) {
     super(context);
-    this.threadId = threadId;
-    this.limit    = limit;
-    this.lastSeen = lastSeen;
+    this.threadId    = threadId;
+    this.pageSize    = pageSize;
+    this.loadedSince = loadedSince;
+    this.lastSeen    = lastSeen;
   }
 
-  public boolean hasLimit() {
-    return limit > 0;
+  public boolean hasMore() {
+    return hasMore;
+  }
+
+  public long getOldestDateReceived() {
+    return oldestDateReceived;
   }
 
   public long getLastSeen() {
@@ -32,6 +48,27 @@ public class ConversationLoader extends AbstractCursorLoader {
       this.lastSeen = DatabaseFactory.getThreadDatabase(context).getLastSeen(threadId);
     }
 
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId, limit);
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+
+    if (oldestDateReceived == -1) {
+      Cursor page = database.getConversationPage(threadId, loadedSince == -1 ? Long.MAX_VALUE : loadedSince, pageSize);
+
+      this.hasMore = page.getCount() >= pageSize;
+
+      if (hasMore && page.moveToLast()) {
+        this.oldestDateReceived = page.getLong(page.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+      } else {
+        this.oldestDateReceived = 0;
+      }
+
+      if (loadedSince == -1) {
+        page.moveToPosition(-1);
+        return page;
+      }
+
+      page.close();
+    }
+
+    return database.getConversationWindow(threadId, oldestDateReceived);
   }
 }
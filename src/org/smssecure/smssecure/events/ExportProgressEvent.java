@@ -0,0 +1,12 @@
+package org.smssecure.smssecure.events;
+
+public class ExportProgressEvent {
+
+  public final int complete;
+  public final int total;
+
+  public ExportProgressEvent(int complete, int total) {
+    this.complete = complete;
+    this.total    = total;
+  }
+}
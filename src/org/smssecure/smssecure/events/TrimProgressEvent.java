@@ -0,0 +1,30 @@
+package org.smssecure.smssecure.events;
+
+public class TrimProgressEvent {
+
+  public final int     complete;
+  public final int     total;
+  public final boolean failed;
+
+  public TrimProgressEvent(int complete, int total) {
+    this(complete, total, false);
+  }
+
+  private TrimProgressEvent(int complete, int total, boolean failed) {
+    this.complete = complete;
+    this.total    = total;
+    this.failed   = failed;
+  }
+
+  public static TrimProgressEvent finished() {
+    return new TrimProgressEvent(0, 0);
+  }
+
+  public static TrimProgressEvent failed() {
+    return new TrimProgressEvent(0, 0, true);
+  }
+
+  public boolean isFinished() {
+    return complete >= total;
+  }
+}
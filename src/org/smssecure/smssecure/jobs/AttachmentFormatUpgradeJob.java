@@ -0,0 +1,52 @@
+package org.smssecure.smssecure.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
+import org.smssecure.smssecure.util.SilencePreferences;
+import org.whispersystems.jobqueue.JobParameters;
+
+/**
+ * Rewrites attachments stored in the original single-stream part format
+ * into the chunked format, in the background.  Safe to run more than once.
+ *
+ * It is added on every start until a run has completed, so it isn't
+ * persisted and doesn't depend on which version the app was upgraded from.
+ */
+public class AttachmentFormatUpgradeJob extends MasterSecretJob {
+
+  private static final String TAG = AttachmentFormatUpgradeJob.class.getSimpleName();
+
+  public AttachmentFormatUpgradeJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withRequirement(new MasterSecretRequirement(context))
+                                .withGroupId(AttachmentFormatUpgradeJob.class.getSimpleName())
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {
+
+  }
+
+  @Override
+  public void onRun(MasterSecret masterSecret) {
+    int upgraded = DatabaseFactory.getAttachmentDatabase(context).upgradeLegacyPartFiles(masterSecret);
+    Log.w(TAG, "Upgraded " + upgraded + " legacy part files.");
+
+    SilencePreferences.setChunkedPartsUpgraded(context, true);
+  }
+
+  @Override
+  public boolean onShouldRetryThrowable(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Attachment format upgrade canceled.");
+  }
+}
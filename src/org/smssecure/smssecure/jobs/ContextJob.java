@@ -8,13 +8,45 @@ import org.whispersystems.jobqueue.dependencies.ContextDependent;
 
 public abstract class ContextJob extends Job implements ContextDependent {
 
+  private static final long serialVersionUID = 1627905472932594333L;
+
   protected transient Context context;
 
+  private transient PriorityJobManager jobManager;
+
   protected ContextJob(Context context, JobParameters parameters) {
     super(parameters);
     this.context = context;
   }
 
+  /**
+   * Runs the job, letting the {@link PriorityJobManager} that queued it
+   * track it on the consumer thread.
+   */
+  @Override
+  public final void onRun() throws Exception {
+    if (jobManager == null) {
+      execute();
+      return;
+    }
+
+    if (!jobManager.onStarted(this)) {
+      return;
+    }
+
+    try {
+      execute();
+    } finally {
+      jobManager.onFinished(this);
+    }
+  }
+
+  protected abstract void execute() throws Exception;
+
+  void setJobManager(PriorityJobManager jobManager) {
+    this.jobManager = jobManager;
+  }
+
   public void setContext(Context context) {
     this.context = context;
   }
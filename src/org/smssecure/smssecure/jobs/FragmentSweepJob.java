@@ -0,0 +1,43 @@
+package org.smssecure.smssecure.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.smssecure.smssecure.sms.MultipartSmsMessageHandler;
+import org.whispersystems.jobqueue.JobParameters;
+
+/**
+ * Deletes multipart SMS fragments whose message never completed. Incoming
+ * fragments sweep as they arrive, but that never happens again if no other
+ * multipart message comes in, so the sweep also runs once on every start.
+ */
+public class FragmentSweepJob extends ContextJob {
+
+  private static final String TAG = FragmentSweepJob.class.getSimpleName();
+
+  public FragmentSweepJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(FragmentSweepJob.class.getSimpleName())
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {
+
+  }
+
+  @Override
+  protected void execute() {
+    MultipartSmsMessageHandler.deleteExpiredFragments(context);
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Fragment sweep canceled.");
+  }
+}
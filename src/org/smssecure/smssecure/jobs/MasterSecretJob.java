@@ -8,12 +8,14 @@ import org.whispersystems.jobqueue.JobParameters;
 
 public abstract class MasterSecretJob extends ContextJob {
 
+  private static final long serialVersionUID = 718434765879305055L;
+
   public MasterSecretJob(Context context, JobParameters parameters) {
     super(context, parameters);
   }
 
   @Override
-  public void onRun() throws Exception {
+  protected void execute() throws Exception {
     MasterSecret masterSecret = getMasterSecret();
     onRun(masterSecret);
   }
@@ -18,6 +18,7 @@ import org.smssecure.smssecure.database.MmsDatabase;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.jobs.requirements.MediaNetworkRequirement;
 import org.smssecure.smssecure.mms.ApnUnavailableException;
+import org.smssecure.smssecure.mms.BlobPartDataSink;
 import org.smssecure.smssecure.mms.CompatMmsConnection;
 import org.smssecure.smssecure.mms.IncomingLollipopMmsConnection;
 import org.smssecure.smssecure.mms.IncomingMediaMessage;
@@ -56,6 +57,8 @@ import ws.com.google.android.mms.pdu.RetrieveConf;
 
 public class MmsDownloadJob extends MasterSecretJob {
 
+  private static final long serialVersionUID = 1467242364750179310L;
+
   private static final String TAG = MmsDownloadJob.class.getSimpleName();
 
   private final long    messageId;
@@ -68,7 +71,7 @@ public class MmsDownloadJob extends MasterSecretJob {
                                 .withRequirement(new MasterSecretRequirement(context))
                                 .withRequirement(new NetworkRequirement(context))
                                 .withRequirement(new MediaNetworkRequirement(context, messageId, automatic))
-                                .withGroupId("mms-operation")
+                                .withGroupId("mms-download-" + threadId)
                                 .withWakeLock(true, 30, TimeUnit.SECONDS)
                                 .create());
 
@@ -89,6 +92,7 @@ public class MmsDownloadJob extends MasterSecretJob {
   public void onRun(MasterSecret masterSecret) {
     MmsDatabase                              database     = DatabaseFactory.getMmsDatabase(context);
     Optional<Pair<NotificationInd, Integer>> notification = database.getNotification(messageId);
+    BlobPartDataSink                         partSink     = new BlobPartDataSink(context, masterSecret);
 
     if (!notification.isPresent()) {
       Log.w(TAG, "No notification for ID: " + messageId);
@@ -112,7 +116,7 @@ public class MmsDownloadJob extends MasterSecretJob {
         throw new MmsException("Invalid content location: "+contentLocation);
       }
 
-      RetrieveConf retrieveConf = new CompatMmsConnection(context).retrieve(contentLocation, transactionId, notification.get().second);
+      RetrieveConf retrieveConf = new CompatMmsConnection(context).retrieve(contentLocation, transactionId, notification.get().second, partSink);
 
       if (retrieveConf == null) {
         throw new MmsException("RetrieveConf was null");
@@ -122,9 +126,9 @@ public class MmsDownloadJob extends MasterSecretJob {
         MmsCipher    mmsCipher    = new MmsCipher(new SilenceSignalProtocolStore(context, masterSecret));
         RetrieveConf plaintextPdu = (RetrieveConf) mmsCipher.decrypt(context, retrieveConf);
 
-        storeRetrievedMms(masterSecret, contentLocation, messageId, threadId, plaintextPdu, true, notification.get().second);
+        storeRetrievedMms(masterSecret, contentLocation, messageId, threadId, plaintextPdu, true, notification.get().second, partSink);
       } else {
-        storeRetrievedMms(masterSecret, contentLocation, messageId, threadId, retrieveConf, false, notification.get().second);
+        storeRetrievedMms(masterSecret, contentLocation, messageId, threadId, retrieveConf, false, notification.get().second, partSink);
       }
     } catch (ApnUnavailableException e) {
       Log.w(TAG, e);
@@ -152,6 +156,8 @@ public class MmsDownloadJob extends MasterSecretJob {
     } catch (InvalidMessageException e) {
       Log.w(TAG, e);
       database.markAsDecryptFailed(messageId, threadId);
+    } finally {
+      partSink.release();
     }
   }
 
@@ -173,7 +179,8 @@ public class MmsDownloadJob extends MasterSecretJob {
 
   private void storeRetrievedMms(MasterSecret masterSecret, String contentLocation,
                                  long messageId, long threadId, RetrieveConf retrieved,
-                                 boolean isSecure, int subscriptionId)
+                                 boolean isSecure, int subscriptionId,
+                                 BlobPartDataSink partSink)
       throws MmsException, NoSessionException, DuplicateMessageException, InvalidMessageException,
              LegacyMessageException
   {
@@ -213,6 +220,10 @@ public class MmsDownloadJob extends MasterSecretJob {
           attachments.add(new UriAttachment(uri, Util.toIsoString(part.getContentType()),
                                             AttachmentDatabase.TRANSFER_PROGRESS_DONE,
                                             part.getData().length));
+        } else if (part.getDataUri() != null) {
+          attachments.add(new UriAttachment(part.getDataUri(), Util.toIsoString(part.getContentType()),
+                                            AttachmentDatabase.TRANSFER_PROGRESS_DONE,
+                                            partSink.getSize(part.getDataUri())));
         }
       }
     }
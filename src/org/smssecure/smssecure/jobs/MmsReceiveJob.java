@@ -45,7 +45,7 @@ public class MmsReceiveJob extends ContextJob {
   }
 
   @Override
-  public void onRun() {
+  protected void execute() {
     if (data == null) {
       Log.w(TAG, "Received NULL pdu, ignoring...");
       return;
@@ -7,6 +7,7 @@ import android.util.Log;
 import org.smssecure.smssecure.attachments.Attachment;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.crypto.MmsCipher;
+import org.smssecure.smssecure.crypto.storage.SilenceSessionStore;
 import org.smssecure.smssecure.crypto.storage.SilenceSignalProtocolStore;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.MmsDatabase;
@@ -17,7 +18,7 @@ import org.smssecure.smssecure.mms.CompatMmsConnection;
 import org.smssecure.smssecure.mms.MediaConstraints;
 import org.smssecure.smssecure.mms.MmsSendResult;
 import org.smssecure.smssecure.mms.OutgoingMediaMessage;
-import org.smssecure.smssecure.mms.PartAuthority;
+import org.smssecure.smssecure.mms.PartAuthorityDataSource;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.recipients.Recipient;
 import org.smssecure.smssecure.recipients.Recipients;
@@ -30,11 +31,16 @@ import org.smssecure.smssecure.util.TelephonyUtil;
 import org.smssecure.smssecure.util.Util;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.requirements.NetworkRequirement;
+import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.NoSessionException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionStore;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.MmsException;
@@ -57,7 +63,7 @@ public class MmsSendJob extends SendJob {
 
   public MmsSendJob(Context context, long messageId) {
     super(context, JobParameters.newBuilder()
-                                .withGroupId("mms-operation")
+                                .withGroupId(PriorityJobManager.MMS_SEND_GROUP_ID)
                                 .withRequirement(new NetworkRequirement(context))
                                 .withRequirement(new MasterSecretRequirement(context))
                                 .withPersistence()
@@ -84,19 +90,20 @@ public class MmsSendJob extends SendJob {
 
       if (message.isSecure()) {
         Log.w(TAG, "Encrypting MMS...");
+        verifyIdentities(masterSecret, message.getRecipients());
         pdu = getEncryptedMessage(masterSecret, pdu);
         upgradedSecure = true;
       }
 
       validateDestinations(message, pdu);
 
-      final byte[]        pduBytes = getPduBytes(masterSecret, pdu);
-      final SendConf      sendConf = new CompatMmsConnection(context).send(pduBytes, message.getSubscriptionId());
+      final PduComposer   composer = getPduComposer(masterSecret, pdu);
+      final SendConf      sendConf = new CompatMmsConnection(context).send(composer, message.getSubscriptionId());
       final MmsSendResult result   = getSendResult(sendConf, pdu, upgradedSecure);
 
       database.markAsSent(messageId, result.isUpgradedSecure());
       markAttachmentsUploaded(messageId, message.getAttachments());
-    } catch (UndeliverableMessageException | IOException e) {
+    } catch (UndeliverableMessageException e) {
       Log.w(TAG, e);
       database.markAsSentFailed(messageId);
       notifyMediaMessageDeliveryFailed(context, messageId);
@@ -114,9 +121,7 @@ public class MmsSendJob extends SendJob {
     notifyMediaMessageDeliveryFailed(context, messageId);
   }
 
-  private byte[] getPduBytes(MasterSecret masterSecret, SendReq message)
-      throws IOException, UndeliverableMessageException
-  {
+  private PduComposer getPduComposer(MasterSecret masterSecret, SendReq message) {
     String number = TelephonyUtil.getManager(context).getLine1Number();
 
     message.setBody(SmilUtil.getSmilBody(message.getBody()));
@@ -125,13 +130,10 @@ public class MmsSendJob extends SendJob {
       message.setFrom(new EncodedStringValue(number));
     }
 
-    byte[] pduBytes = new PduComposer(context, message).make();
-
-    if (pduBytes == null) {
-      throw new UndeliverableMessageException("PDU composition failed, null payload");
-    }
+    PduComposer composer = new PduComposer(context, message);
+    composer.setPartDataSource(new PartAuthorityDataSource(context, masterSecret));
 
-    return pduBytes;
+    return composer;
   }
 
   private MmsSendResult getSendResult(SendConf conf, SendReq message, boolean upgradedSecure)
@@ -153,7 +155,7 @@ public class MmsSendJob extends SendJob {
   {
     try {
       MmsCipher cipher = new MmsCipher(new SilenceSignalProtocolStore(context, masterSecret));
-      return cipher.encrypt(context, pdu);
+      return cipher.encrypt(context, pdu, new PartAuthorityDataSource(context, masterSecret));
     } catch (NoSessionException e) {
       throw new UndeliverableMessageException(e);
     } catch (RecipientFormattingException e) {
@@ -161,6 +163,34 @@ public class MmsSendJob extends SendJob {
     }
   }
 
+  /**
+   * Checks the identity of every recipient we have a session with in one
+   * batch, rather than one lookup per recipient.
+   */
+  private void verifyIdentities(MasterSecret masterSecret, Recipients recipients)
+      throws UndeliverableMessageException
+  {
+    SessionStore           sessionStore = new SilenceSessionStore(context, masterSecret);
+    Map<Long, IdentityKey> identities   = new HashMap<>();
+
+    for (Recipient recipient : recipients.getRecipientsList()) {
+      SignalProtocolAddress address = new SignalProtocolAddress(recipient.getNumber(), 1);
+
+      if (sessionStore.containsSession(address)) {
+        IdentityKey identityKey = sessionStore.loadSession(address).getSessionState().getRemoteIdentityKey();
+        if (identityKey != null) identities.put(recipient.getRecipientId(), identityKey);
+      }
+    }
+
+    if (identities.isEmpty()) return;
+
+    int trusted = DatabaseFactory.getIdentityDatabase(context).getValidIdentities(masterSecret, identities).size();
+
+    if (trusted != identities.size()) {
+      throw new UndeliverableMessageException("Untrusted identity for " + (identities.size() - trusted) + " recipient(s)");
+    }
+  }
+
   private boolean isInconsistentResponse(SendReq message, SendConf response) {
     Log.w(TAG, "Comparing: " + Hex.toString(message.getTransactionId()));
     Log.w(TAG, "With:      " + Hex.toString(response.getTransactionId()));
@@ -223,7 +253,7 @@ public class MmsSendJob extends SendJob {
         if (attachment.getDataUri() == null) throw new IOException("Assertion failed, attachment for outgoing MMS has no data!");
 
         PduPart part = new PduPart();
-        part.setData(Util.readFully(PartAuthority.getAttachmentStream(context, masterSecret, attachment.getDataUri())));
+        part.setDataUri(attachment.getDataUri());
         part.setContentType(Util.toIsoBytes(attachment.getContentType()));
         part.setContentId((System.currentTimeMillis() + "").getBytes());
         part.setName((System.currentTimeMillis() + "").getBytes());
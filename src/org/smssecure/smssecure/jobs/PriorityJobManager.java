@@ -0,0 +1,318 @@
+package org.smssecure.smssecure.jobs;
+
+import android.content.Context;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.JobManager;
+import org.whispersystems.jobqueue.dependencies.ContextDependent;
+import org.whispersystems.jobqueue.dependencies.DependencyInjector;
+import org.whispersystems.jobqueue.persistence.JavaJobSerializer;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Spreads jobs over one {@link JobManager} per {@link Lane}, so that a slow
+ * MMS download or a thread trim never holds up a message the user is
+ * sending or reading. Each lane has its own consumer threads and queue, and
+ * group ids only order jobs within the lane they run on.
+ *
+ * Every lane keeps {@link LaneMetrics} on how many jobs are waiting and
+ * running and how long they waited before their first run. Each lane's
+ * dependency injector sees every job the lane queues, whether added or
+ * restored from storage, and {@link ContextJob} reports when a job starts
+ * and finishes. A job restored into a lane it doesn't belong to, such as an
+ * MMS download left in the old single queue, is handed to its own lane when
+ * it first runs.
+ *
+ * Lanes restore and start their jobs while the manager is being built, so
+ * the injector hands every job its manager directly, and jobs that start
+ * before the last lane exists wait for it.
+ */
+public class PriorityJobManager {
+
+  private static final String TAG = PriorityJobManager.class.getSimpleName();
+
+  public enum Lane {
+    /** Sending, receiving and decrypting messages, MMS sends included. */
+    INTERACTIVE("SilenceJobs", 3, Process.THREAD_PRIORITY_DEFAULT),
+
+    /** MMS downloads. */
+    BACKGROUND("SilenceBackgroundJobs", 2, Process.THREAD_PRIORITY_BACKGROUND),
+
+    /** Housekeeping such as trimming threads and upgrading stored data. */
+    MAINTENANCE("SilenceMaintenanceJobs", 1, Process.THREAD_PRIORITY_LOWEST);
+
+    private final String name;
+    private final int    consumerThreads;
+    private final int    threadPriority;
+
+    Lane(String name, int consumerThreads, int threadPriority) {
+      this.name            = name;
+      this.consumerThreads = consumerThreads;
+      this.threadPriority  = threadPriority;
+    }
+
+    /**
+     * @return the name of the lane's job store. The interactive lane keeps
+     *         the name of the old single queue so that its jobs are restored.
+     */
+    public String getName() {
+      return name;
+    }
+
+    public int getConsumerThreads() {
+      return consumerThreads;
+    }
+  }
+
+  public interface JobManagerFactory {
+    /**
+     * @param injector the injector the lane's job manager must be built with
+     */
+    @NonNull JobManager create(@NonNull Lane lane, @NonNull DependencyInjector injector);
+  }
+
+  /**
+   * Keeps MMS sends in the order they were queued. The network transactions
+   * of sends and downloads are serialized by
+   * {@link org.smssecure.smssecure.mms.CompatMmsConnection} itself, so a send
+   * only waits for a download while the radio is actually in use.
+   */
+  public static final String MMS_SEND_GROUP_ID = "mms-send";
+
+  private final Context                context;
+  private final Map<Lane, JobManager>  jobManagers = new EnumMap<>(Lane.class);
+  private final Map<Lane, LaneMetrics> metrics     = new EnumMap<>(Lane.class);
+  private final Map<Job, Lane>         queuedLanes = new WeakHashMap<>();
+  private final CountDownLatch         built       = new CountDownLatch(1);
+
+  public PriorityJobManager(@NonNull Context context,
+                            @NonNull DependencyInjector injector,
+                            @NonNull JobManagerFactory factory)
+  {
+    this.context = context.getApplicationContext();
+
+    for (Lane lane : Lane.values()) {
+      metrics.put(lane, new LaneMetrics());
+    }
+
+    for (Lane lane : Lane.values()) {
+      jobManagers.put(lane, factory.create(lane, new LaneInjector(lane, injector)));
+    }
+
+    built.countDown();
+  }
+
+  public void add(@NonNull Job job) {
+    Lane lane = getLane(job);
+
+    onQueued(lane, job);
+    jobManagers.get(lane).add(job);
+  }
+
+  public @NonNull LaneMetrics getMetrics(@NonNull Lane lane) {
+    return metrics.get(lane);
+  }
+
+  /**
+   * Called on the consumer thread before a job runs.
+   *
+   * @return false if the job was handed to its own lane and must not run here.
+   */
+  boolean onStarted(@NonNull Job job) {
+    awaitBuilt();
+
+    Lane queuedLane = getQueuedLane(job);
+    Lane lane       = getLane(job);
+
+    if (queuedLane != lane && reroute(job, queuedLane, lane)) {
+      return false;
+    }
+
+    Process.setThreadPriority(queuedLane.threadPriority);
+    metrics.get(queuedLane).onStarted(job);
+    return true;
+  }
+
+  /**
+   * Called on the consumer thread after a job that was started has run,
+   * whether or not it succeeded.
+   */
+  void onFinished(@NonNull Job job) {
+    metrics.get(getQueuedLane(job)).onFinished();
+  }
+
+  static @NonNull Lane getLane(@NonNull Job job) {
+    if (job instanceof MmsDownloadJob) {
+      return Lane.BACKGROUND;
+    } else if (job instanceof TrimThreadJob || job instanceof AttachmentFormatUpgradeJob ||
+               job instanceof FragmentSweepJob)
+    {
+      return Lane.MAINTENANCE;
+    } else {
+      return Lane.INTERACTIVE;
+    }
+  }
+
+  private void awaitBuilt() {
+    boolean interrupted = false;
+
+    while (true) {
+      try {
+        built.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void onQueued(@NonNull Lane lane, @NonNull Job job) {
+    synchronized (queuedLanes) {
+      queuedLanes.put(job, lane);
+    }
+
+    metrics.get(lane).onQueued(job);
+  }
+
+  private @NonNull Lane getQueuedLane(@NonNull Job job) {
+    synchronized (queuedLanes) {
+      Lane lane = queuedLanes.get(job);
+      return lane != null ? lane : getLane(job);
+    }
+  }
+
+  /**
+   * Adds a copy of the job to its own lane, so that the lane it was restored
+   * into can drop the original once it returns.
+   */
+  private boolean reroute(@NonNull Job job, @NonNull Lane from, @NonNull Lane to) {
+    try {
+      JavaJobSerializer serializer = new JavaJobSerializer();
+      Job               copy       = serializer.deserialize(null, false, serializer.serialize(job));
+
+      if (copy instanceof ContextDependent) {
+        ((ContextDependent) copy).setContext(context);
+      }
+
+      Log.w(TAG, "Moving " + job.getClass().getSimpleName() + " from " + from + " to " + to);
+
+      metrics.get(from).onRerouted(job);
+      add(copy);
+      return true;
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return false;
+    }
+  }
+
+  private class LaneInjector implements DependencyInjector {
+
+    private final Lane               lane;
+    private final DependencyInjector delegate;
+
+    private LaneInjector(@NonNull Lane lane, @NonNull DependencyInjector delegate) {
+      this.lane     = lane;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void injectDependencies(Object object) {
+      delegate.injectDependencies(object);
+
+      if (object instanceof ContextJob) {
+        ((ContextJob) object).setJobManager(PriorityJobManager.this);
+      }
+
+      if (object instanceof Job) {
+        onQueued(lane, (Job) object);
+      }
+    }
+  }
+
+  /**
+   * Queue depth, running jobs and wait times of one lane. Jobs restored from
+   * storage are counted from the time they were restored.
+   */
+  public static class LaneMetrics {
+
+    private final Map<Job, Long> waiting = new WeakHashMap<>();
+
+    private int  runningCount;
+    private long startedCount;
+    private long totalWait;
+    private long maxWait;
+
+    synchronized void onQueued(@NonNull Job job) {
+      if (!waiting.containsKey(job)) {
+        waiting.put(job, System.currentTimeMillis());
+      }
+    }
+
+    synchronized void onStarted(@NonNull Job job) {
+      Long queuedAt = waiting.remove(job);
+
+      runningCount++;
+
+      if (queuedAt != null) {
+        long wait = System.currentTimeMillis() - queuedAt;
+
+        startedCount++;
+        totalWait += wait;
+        maxWait    = Math.max(maxWait, wait);
+      }
+    }
+
+    synchronized void onFinished() {
+      runningCount--;
+    }
+
+    synchronized void onRerouted(@NonNull Job job) {
+      waiting.remove(job);
+    }
+
+    /**
+     * @return the number of jobs that are queued but haven't started.
+     */
+    public synchronized int getQueueDepth() {
+      return waiting.size();
+    }
+
+    public synchronized int getRunningCount() {
+      return runningCount;
+    }
+
+    public synchronized long getStartedCount() {
+      return startedCount;
+    }
+
+    /**
+     * @return the average time in milliseconds between a job being queued
+     *         and its first run.
+     */
+    public synchronized long getAverageWait() {
+      return startedCount > 0 ? totalWait / startedCount : 0;
+    }
+
+    public synchronized long getMaxWait() {
+      return maxWait;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return "depth: " + waiting.size() + ", running: " + runningCount + ", started: " + startedCount +
+             ", average wait: " + getAverageWait() + "ms, max wait: " + maxWait + "ms";
+    }
+  }
+}
@@ -29,8 +29,6 @@ public class SmsReceiveJob extends ContextJob {
 
   private static final String TAG = SmsReceiveJob.class.getSimpleName();
 
-  private static MultipartSmsMessageHandler multipartMessageHandler = new MultipartSmsMessageHandler();
-
   private final Object[] pdus;
   private final int      subscriptionId;
 
@@ -48,7 +46,7 @@ public class SmsReceiveJob extends ContextJob {
   public void onAdded() {}
 
   @Override
-  public void onRun() {
+  protected void execute() {
     MasterSecret masterSecret = KeyCachingService.getMasterSecret(context);
     Optional<IncomingTextMessage> message = assembleMessageFragments(pdus, subscriptionId, masterSecret);
 
@@ -127,6 +125,7 @@ public class SmsReceiveJob extends ContextJob {
     IncomingTextMessage message = new IncomingTextMessage(messages);
 
     if (WirePrefix.isPrefixedMessage(message.getMessageBody())) {
+      MultipartSmsMessageHandler multipartMessageHandler = new MultipartSmsMessageHandler(context);
       return Optional.fromNullable(multipartMessageHandler.processPotentialMultipartMessage(message));
     } else {
       return Optional.of(message);
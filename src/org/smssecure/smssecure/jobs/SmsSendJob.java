@@ -25,6 +25,7 @@ import org.smssecure.smssecure.recipients.Recipients;
 import org.smssecure.smssecure.service.SmsDeliveryListener;
 import org.smssecure.smssecure.sms.MultipartSmsMessageHandler;
 import org.smssecure.smssecure.sms.OutgoingTextMessage;
+import org.smssecure.smssecure.sms.SmsStatusAggregator;
 import org.smssecure.smssecure.transport.UndeliverableMessageException;
 import org.smssecure.smssecure.util.NumberUtil;
 import org.smssecure.smssecure.util.SilencePreferences;
@@ -35,12 +36,14 @@ import java.util.ArrayList;
 
 public class SmsSendJob extends SendJob {
 
+  private static final long serialVersionUID = -94163383172239049L;
+
   private static final String TAG = SmsSendJob.class.getSimpleName();
 
   private final long messageId;
 
-  public SmsSendJob(Context context, long messageId, String name) {
-    super(context, constructParameters(context, name));
+  public SmsSendJob(Context context, long messageId, Recipients recipients) {
+    super(context, constructParameters(context, getRecipientsGroupId(recipients)));
     this.messageId = messageId;
   }
 
@@ -103,7 +106,7 @@ public class SmsSendJob extends SendJob {
       recipient = PhoneNumberUtils.stripSeparators(PhoneNumberUtils.convertKeypadLettersToDigits(recipient));
     }
 
-    MultipartSmsMessageHandler multipartMessageHandler = new MultipartSmsMessageHandler();
+    MultipartSmsMessageHandler multipartMessageHandler = new MultipartSmsMessageHandler(context);
     OutgoingTextMessage        transportMessage        = OutgoingTextMessage.from(message);
 
     if (message.isSecure() || message.isEndSession()) {
@@ -111,8 +114,10 @@ public class SmsSendJob extends SendJob {
     }
 
     ArrayList<String> messages                = SmsManager.getDefault().divideMessage(multipartMessageHandler.getEncodedMessage(transportMessage));
-    ArrayList<PendingIntent> sentIntents      = constructSentIntents(message.getId(), message.getType(), messages, message.isSecure());
-    ArrayList<PendingIntent> deliveredIntents = constructDeliveredIntents(message.getId(), message.getType(), messages);
+    boolean                  deliveryExpected = SilencePreferences.isSmsDeliveryReportsEnabled(context);
+    int                      attempt          = SmsStatusAggregator.getInstance(context).expect(message.getId(), messages.size(), deliveryExpected);
+    ArrayList<PendingIntent> sentIntents      = constructSentIntents(message.getId(), message.getType(), attempt, messages, message.isSecure());
+    ArrayList<PendingIntent> deliveredIntents = deliveryExpected ? constructDeliveredIntents(message.getId(), message.getType(), attempt, messages) : null;
 
     Log.w("SmsTransport", "Secure divide into message parts: " + messages.size());
 
@@ -147,8 +152,10 @@ public class SmsSendJob extends SendJob {
     }
 
     ArrayList<String> messages                = SmsManager.getDefault().divideMessage(message.getBody().getBody());
-    ArrayList<PendingIntent> sentIntents      = constructSentIntents(message.getId(), message.getType(), messages, false);
-    ArrayList<PendingIntent> deliveredIntents = constructDeliveredIntents(message.getId(), message.getType(), messages);
+    boolean                  deliveryExpected = SilencePreferences.isSmsDeliveryReportsEnabled(context);
+    int                      attempt          = SmsStatusAggregator.getInstance(context).expect(message.getId(), messages.size(), deliveryExpected);
+    ArrayList<PendingIntent> sentIntents      = constructSentIntents(message.getId(), message.getType(), attempt, messages, false);
+    ArrayList<PendingIntent> deliveredIntents = deliveryExpected ? constructDeliveredIntents(message.getId(), message.getType(), attempt, messages) : null;
 
     // NOTE 11/04/14 -- There's apparently a bug where for some unknown recipients
     // and messages, this will throw an NPE.  We have no idea why, so we're just
@@ -185,54 +192,54 @@ public class SmsSendJob extends SendJob {
     }
   }
 
-  private ArrayList<PendingIntent> constructSentIntents(long messageId, long type,
+  private ArrayList<PendingIntent> constructSentIntents(long messageId, long type, int attempt,
                                                         ArrayList<String> messages, boolean secure)
   {
     ArrayList<PendingIntent> sentIntents = new ArrayList<>(messages.size());
 
     for (String ignored : messages) {
       sentIntents.add(PendingIntent.getBroadcast(context, 0,
-                                                 constructSentIntent(context, messageId, type, secure),
+                                                 constructSentIntent(context, messageId, type, attempt, secure),
                                                  0));
     }
 
     return sentIntents;
   }
 
-  private ArrayList<PendingIntent> constructDeliveredIntents(long messageId, long type, ArrayList<String> messages) {
-    if (!SilencePreferences.isSmsDeliveryReportsEnabled(context)) {
-      return null;
-    }
-
+  private ArrayList<PendingIntent> constructDeliveredIntents(long messageId, long type, int attempt,
+                                                             ArrayList<String> messages)
+  {
     ArrayList<PendingIntent> deliveredIntents = new ArrayList<>(messages.size());
 
     for (String ignored : messages) {
       deliveredIntents.add(PendingIntent.getBroadcast(context, 0,
-                                                      constructDeliveredIntent(context, messageId, type),
+                                                      constructDeliveredIntent(context, messageId, type, attempt),
                                                       0));
     }
 
     return deliveredIntents;
   }
 
-  private Intent constructSentIntent(Context context, long messageId, long type, boolean secure) {
+  private Intent constructSentIntent(Context context, long messageId, long type, int attempt, boolean secure) {
     Intent pending = new Intent(SmsDeliveryListener.SENT_SMS_ACTION,
                                 Uri.parse("custom://" + messageId + System.currentTimeMillis()),
                                 context, SmsDeliveryListener.class);
 
     pending.putExtra("type", type);
     pending.putExtra("message_id", messageId);
+    pending.putExtra("attempt", attempt);
     pending.putExtra("secure", secure);
 
     return pending;
   }
 
-  private Intent constructDeliveredIntent(Context context, long messageId, long type) {
+  private Intent constructDeliveredIntent(Context context, long messageId, long type, int attempt) {
     Intent pending = new Intent(SmsDeliveryListener.DELIVERED_SMS_ACTION,
                                 Uri.parse("custom://" + messageId + System.currentTimeMillis()),
                                 context, SmsDeliveryListener.class);
     pending.putExtra("type", type);
     pending.putExtra("message_id", messageId);
+    pending.putExtra("attempt", attempt);
 
     return pending;
   }
@@ -245,12 +252,20 @@ public class SmsSendJob extends SendJob {
     }
   }
 
-  private static JobParameters constructParameters(Context context, String name) {
+  /**
+   * @return the group id that keeps sends to the same recipients in the
+   *         order they were queued.
+   */
+  private static String getRecipientsGroupId(Recipients recipients) {
+    return "send-" + recipients.getSortedIdsString();
+  }
+
+  private static JobParameters constructParameters(Context context, String groupId) {
     JobParameters.Builder builder = JobParameters.newBuilder()
                                                  .withPersistence()
                                                  .withRequirement(new MasterSecretRequirement(context))
                                                  .withRetryCount(15)
-                                                 .withGroupId(name);
+                                                 .withGroupId(groupId);
 
     if (SilencePreferences.isWifiSmsEnabled(context)) {
       builder.withRequirement(new NetworkOrServiceRequirement(context));
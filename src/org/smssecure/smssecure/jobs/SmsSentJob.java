@@ -16,25 +16,34 @@ import org.smssecure.smssecure.database.model.SmsMessageRecord;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.service.SmsDeliveryListener;
+import org.smssecure.smssecure.sms.SmsStatusAggregator;
 import org.smssecure.smssecure.util.SilencePreferences;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.libsignal.state.SessionStore;
 
 public class SmsSentJob extends MasterSecretJob {
 
+  private static final long serialVersionUID = -2062754936232101957L;
+
   private static final String TAG = SmsSentJob.class.getSimpleName();
 
+  // TP-Status ranges of a status report, see 3GPP TS 23.040 9.2.3.15.
+  private static final int STATUS_PENDING = 0x20;
+  private static final int STATUS_FAILED  = 0x40;
+
   private final long   messageId;
+  private final int    attempt;
   private final String action;
   private final int    result;
 
-  public SmsSentJob(Context context, long messageId, String action, int result) {
+  public SmsSentJob(Context context, long messageId, int attempt, String action, int result) {
     super(context, JobParameters.newBuilder()
                                 .withPersistence()
                                 .withRequirement(new MasterSecretRequirement(context))
                                 .create());
 
     this.messageId = messageId;
+    this.attempt   = attempt;
     this.action    = action;
     this.result    = result;
   }
@@ -48,12 +57,28 @@ public class SmsSentJob extends MasterSecretJob {
   public void onRun(MasterSecret masterSecret) {
     Log.w(TAG, "Got SMS callback: " + action + " , " + result);
 
+    SmsStatusAggregator aggregator = SmsStatusAggregator.getInstance(context);
+
     switch (action) {
       case SmsDeliveryListener.SENT_SMS_ACTION:
-        handleSentResult(masterSecret, messageId, result);
+        Integer sentResult = aggregator.onSent(messageId, attempt, result);
+
+        if (sentResult != null) {
+          handleSentResult(masterSecret, messageId, sentResult);
+        }
         break;
       case SmsDeliveryListener.DELIVERED_SMS_ACTION:
-        handleDeliveredResult(masterSecret, messageId, result);
+        if (result >= STATUS_FAILED) {
+          Log.w(TAG, "Delivery of " + messageId + " failed: " + result);
+          break;
+        } else if (result >= STATUS_PENDING) {
+          Log.w(TAG, "Delivery of " + messageId + " still pending: " + result);
+          break;
+        }
+
+        if (aggregator.onDelivered(messageId, attempt)) {
+          handleDeliveredResult(masterSecret, messageId, result);
+        }
         break;
     }
   }
@@ -105,7 +130,7 @@ public class SmsSentJob extends MasterSecretJob {
           Log.w(TAG, "Service connectivity problem, requeuing...");
           ApplicationContext.getInstance(context)
               .getJobManager()
-              .add(new SmsSendJob(context, messageId, record.getIndividualRecipient().getNumber()));
+              .add(new SmsSendJob(context, messageId, record.getRecipients()));
 
           break;
         default:
@@ -19,22 +19,39 @@ package org.smssecure.smssecure.jobs;
 import android.content.Context;
 import android.util.Log;
 
+import org.greenrobot.eventbus.EventBus;
 import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.ThreadDatabase;
+import org.smssecure.smssecure.events.TrimProgressEvent;
 import org.smssecure.smssecure.util.SilencePreferences;
-import org.whispersystems.jobqueue.Job;
 import org.whispersystems.jobqueue.JobParameters;
 
-public class TrimThreadJob extends Job {
+public class TrimThreadJob extends ContextJob {
 
   private static final String TAG = TrimThreadJob.class.getSimpleName();
 
-  private final Context context;
-  private final long    threadId;
+  private static final long ALL_THREADS = -1;
+
+  private final long threadId;
+  private final int  threadLengthLimit;
 
   public TrimThreadJob(Context context, long threadId) {
-    super(JobParameters.newBuilder().withGroupId(TrimThreadJob.class.getSimpleName()).create());
-    this.context  = context;
-    this.threadId = threadId;
+    this(context, threadId, -1);
+  }
+
+  /**
+   * Trims every thread to {@code threadLengthLimit} messages, whether or not
+   * automatic trimming is enabled, posting a {@link TrimProgressEvent} as each
+   * thread completes and a final one once all have, or once trimming fails.
+   */
+  public static TrimThreadJob forAllThreads(Context context, int threadLengthLimit) {
+    return new TrimThreadJob(context, ALL_THREADS, threadLengthLimit);
+  }
+
+  private TrimThreadJob(Context context, long threadId, int threadLengthLimit) {
+    super(context, JobParameters.newBuilder().withGroupId(TrimThreadJob.class.getSimpleName()).create());
+    this.threadId          = threadId;
+    this.threadLengthLimit = threadLengthLimit;
   }
 
   @Override
@@ -43,7 +60,12 @@ public class TrimThreadJob extends Job {
   }
 
   @Override
-  public void onRun() {
+  protected void execute() {
+    if (threadId == ALL_THREADS) {
+      trimAllThreads();
+      return;
+    }
+
     boolean trimmingEnabled   = SilencePreferences.isThreadLengthTrimmingEnabled(context);
     int     threadLengthLimit = SilencePreferences.getThreadTrimLength(context);
 
@@ -53,6 +75,24 @@ public class TrimThreadJob extends Job {
     DatabaseFactory.getThreadDatabase(context).trimThread(threadId, threadLengthLimit);
   }
 
+  private void trimAllThreads() {
+    final EventBus eventBus = EventBus.getDefault();
+
+    try {
+      DatabaseFactory.getThreadDatabase(context).trimAllThreads(threadLengthLimit, new ThreadDatabase.ProgressListener() {
+        @Override
+        public void onProgress(int complete, int total) {
+          if (complete < total) eventBus.post(new TrimProgressEvent(complete, total));
+        }
+      });
+    } catch (RuntimeException e) {
+      eventBus.post(TrimProgressEvent.failed());
+      throw e;
+    }
+
+    eventBus.post(TrimProgressEvent.finished());
+  }
+
   @Override
   public boolean onShouldRetry(Exception exception) {
     return false;
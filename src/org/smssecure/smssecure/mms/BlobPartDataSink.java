@@ -0,0 +1,63 @@
+package org.smssecure.smssecure.mms;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.providers.PersistentBlobProvider;
+import org.smssecure.smssecure.util.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import ws.com.google.android.mms.pdu.PduParser;
+import ws.com.google.android.mms.pdu.PduPart;
+
+/**
+ * Streams large media parts of a downloading MMS straight into encrypted
+ * blobs, so their bodies never have to be held on the heap. The blobs only
+ * live until the message has been stored, see {@link #release()}.
+ */
+public class BlobPartDataSink implements PduParser.PartDataSink {
+
+  private static final int MIN_STREAMED_LENGTH = 16 * 1024;
+
+  private final Context        context;
+  private final MasterSecret   masterSecret;
+  private final Map<Uri, Long> blobs = new HashMap<>();
+
+  public BlobPartDataSink(@NonNull Context context, @NonNull MasterSecret masterSecret) {
+    this.context      = context.getApplicationContext();
+    this.masterSecret = masterSecret;
+  }
+
+  @Override
+  public boolean accept(PduPart part, int dataLength) {
+    return dataLength >= MIN_STREAMED_LENGTH && PartParser.isDisplayableMedia(part);
+  }
+
+  @Override
+  public Uri write(PduPart part, InputStream data, int dataLength) throws IOException {
+    Uri uri = PersistentBlobProvider.getInstance(context)
+                                    .createSynchronously(masterSecret, data, Util.toIsoString(part.getContentType()));
+
+    blobs.put(uri, (long) dataLength);
+    return uri;
+  }
+
+  public long getSize(@NonNull Uri uri) {
+    Long size = blobs.get(uri);
+    return size != null ? size : 0;
+  }
+
+  public void release() {
+    for (Uri uri : blobs.keySet()) {
+      PersistentBlobProvider.getInstance(context).delete(uri);
+    }
+
+    blobs.clear();
+  }
+}
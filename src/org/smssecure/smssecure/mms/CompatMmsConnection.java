@@ -12,12 +12,24 @@ import org.smssecure.smssecure.transport.UndeliverableMessageException;
 import java.io.IOException;
 
 import ws.com.google.android.mms.MmsException;
+import ws.com.google.android.mms.pdu.PduComposer;
+import ws.com.google.android.mms.pdu.PduParser.PartDataSink;
 import ws.com.google.android.mms.pdu.RetrieveConf;
 import ws.com.google.android.mms.pdu.SendConf;
 
+/**
+ * Sends and retrieves MMS through the Lollipop API where it is available,
+ * falling back to the legacy connections. Only one transaction runs at a
+ * time: the Lollipop connections wait for their result on a fixed broadcast
+ * action and pending intent, and the legacy connections share
+ * {@link MmsRadio}, so concurrent transactions would pick up each other's
+ * results.
+ */
 public class CompatMmsConnection implements OutgoingMmsConnection, IncomingMmsConnection {
   private static final String TAG = CompatMmsConnection.class.getSimpleName();
 
+  private static final Object TRANSACTION_LOCK = new Object();
+
   private Context context;
 
   public CompatMmsConnection(Context context) {
@@ -26,59 +38,64 @@ public class CompatMmsConnection implements OutgoingMmsConnection, IncomingMmsCo
 
   @Nullable
   @Override
-  public SendConf send(@NonNull byte[] pduBytes, int subscriptionId)
+  public SendConf send(@NonNull PduComposer composer, int subscriptionId)
       throws UndeliverableMessageException
   {
-    if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP) {
-      try {
-        return sendLollipop(context, pduBytes, subscriptionId);
-      } catch (UndeliverableMessageException ume) {
-        Log.w(TAG, ume);
+    synchronized (TRANSACTION_LOCK) {
+      if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP) {
+        try {
+          return sendLollipop(context, composer, subscriptionId);
+        } catch (UndeliverableMessageException ume) {
+          Log.w(TAG, ume);
+          try {
+            return sendLegacy(context, composer, subscriptionId);
+          } catch (UndeliverableMessageException | ApnUnavailableException e) {
+            throw new UndeliverableMessageException(e);
+          }
+        }
+      } else {
         try {
-          return sendLegacy(context, pduBytes, subscriptionId);
+          return sendLegacy(context, composer, subscriptionId);
         } catch (UndeliverableMessageException | ApnUnavailableException e) {
           throw new UndeliverableMessageException(e);
         }
       }
-    } else {
-      try {
-        return sendLegacy(context, pduBytes, subscriptionId);
-      } catch (UndeliverableMessageException | ApnUnavailableException e) {
-        throw new UndeliverableMessageException(e);
-      }
     }
   }
 
-  private static SendConf sendLollipop(Context context, @NonNull byte[] pduBytes, int subscriptionId)
+  private static SendConf sendLollipop(Context context, @NonNull PduComposer composer, int subscriptionId)
     throws UndeliverableMessageException
   {
     Log.w(TAG, "Sending via Lollipop API");
-    return new OutgoingLollipopMmsConnection(context).send(pduBytes, subscriptionId);
+    return new OutgoingLollipopMmsConnection(context).send(composer, subscriptionId);
   }
 
-  private static SendConf sendLegacy(Context context, @NonNull byte[] pduBytes, int subscriptionId)
+  private static SendConf sendLegacy(Context context, @NonNull PduComposer composer, int subscriptionId)
     throws UndeliverableMessageException, ApnUnavailableException
   {
     Log.w(TAG, "Sending via legacy connection");
-    return new OutgoingLegacyMmsConnection(context).send(pduBytes, subscriptionId);
+    return new OutgoingLegacyMmsConnection(context).send(composer, subscriptionId);
   }
 
   @Nullable
   @Override
   public RetrieveConf retrieve(@NonNull String contentLocation,
                                byte[] transactionId,
-                               int subscriptionId)
+                               int subscriptionId,
+                               @Nullable PartDataSink partDataSink)
       throws MmsException, MmsRadioException, ApnUnavailableException, IOException
   {
-    if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP) {
-      Log.w(TAG, "Receiving via Lollipop API");
-      return new IncomingLollipopMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId);
-    } else {
-      try {
-        Log.w(TAG, "Receiving via legacy connection");
-        return new IncomingLegacyMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId);
-      } catch (MmsRadioException | IOException | ApnUnavailableException e) {
-        throw e;
+    synchronized (TRANSACTION_LOCK) {
+      if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP) {
+        Log.w(TAG, "Receiving via Lollipop API");
+        return new IncomingLollipopMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId, partDataSink);
+      } else {
+        try {
+          Log.w(TAG, "Receiving via legacy connection");
+          return new IncomingLegacyMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId, partDataSink);
+        } catch (MmsRadioException | IOException | ApnUnavailableException e) {
+          throw e;
+        }
       }
     }
   }
@@ -27,14 +27,14 @@ import android.telephony.SmsManager;
 import android.util.Log;
 
 import org.smssecure.smssecure.providers.MmsBodyProvider;
-import org.smssecure.smssecure.util.Util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.TimeoutException;
 
 import ws.com.google.android.mms.MmsException;
 import ws.com.google.android.mms.pdu.PduParser;
+import ws.com.google.android.mms.pdu.PduParser.PartDataSink;
 import ws.com.google.android.mms.pdu.RetrieveConf;
 
 public class IncomingLollipopMmsConnection extends LollipopMmsConnection implements IncomingMmsConnection {
@@ -59,7 +59,9 @@ public class IncomingLollipopMmsConnection extends LollipopMmsConnection impleme
   @TargetApi(VERSION_CODES.LOLLIPOP)
   public synchronized @Nullable RetrieveConf retrieve(@NonNull String contentLocation,
                                                       byte[] transactionId,
-                                                      int subscriptionId) throws MmsException
+                                                      int subscriptionId,
+                                                      @Nullable PartDataSink partDataSink)
+      throws MmsException
   {
     beginTransaction();
 
@@ -84,11 +86,17 @@ public class IncomingLollipopMmsConnection extends LollipopMmsConnection impleme
 
       waitForResult();
 
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      Util.copy(pointer.getInputStream(), baos);
-      pointer.close();
+      InputStream pduStream = pointer.getInputStream();
 
-      return (RetrieveConf) new PduParser(baos.toByteArray()).parse();
+      try {
+        PduParser parser = new PduParser(pduStream, -1);
+        parser.setPartDataSink(partDataSink);
+
+        return (RetrieveConf) parser.parse();
+      } finally {
+        pduStream.close();
+        pointer.close();
+      }
     } catch (IOException | TimeoutException e) {
       Log.w(TAG, e);
       throw new MmsException(e);
@@ -34,6 +34,7 @@ import org.smssecure.smssecure.transport.UndeliverableMessageException;
 
 import java.io.IOException;
 
+import ws.com.google.android.mms.pdu.PduComposer;
 import ws.com.google.android.mms.pdu.PduParser;
 import ws.com.google.android.mms.pdu.SendConf;
 
@@ -72,7 +73,13 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
   }
 
   @Override
-  public @Nullable SendConf send(@NonNull byte[] pduBytes, int subscriptionId) throws UndeliverableMessageException {
+  public @Nullable SendConf send(@NonNull PduComposer composer, int subscriptionId) throws UndeliverableMessageException {
+    byte[] pduBytes = composer.make();
+
+    if (pduBytes == null) {
+      throw new UndeliverableMessageException("PDU composition failed, null payload");
+    }
+
     try {
       MmsRadio radio = MmsRadio.getInstance(context);
 
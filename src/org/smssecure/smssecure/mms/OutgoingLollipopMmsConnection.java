@@ -28,12 +28,12 @@ import android.util.Log;
 
 import org.smssecure.smssecure.providers.MmsBodyProvider;
 import org.smssecure.smssecure.transport.UndeliverableMessageException;
-import org.smssecure.smssecure.util.Util;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.concurrent.TimeoutException;
 
+import ws.com.google.android.mms.pdu.PduComposer;
 import ws.com.google.android.mms.pdu.PduParser;
 import ws.com.google.android.mms.pdu.SendConf;
 
@@ -59,13 +59,21 @@ public class OutgoingLollipopMmsConnection extends LollipopMmsConnection impleme
 
   @Override
   @TargetApi(VERSION_CODES.LOLLIPOP)
-  public @Nullable synchronized SendConf send(@NonNull byte[] pduBytes, int subscriptionId)
+  public @Nullable synchronized SendConf send(@NonNull PduComposer composer, int subscriptionId)
       throws UndeliverableMessageException
   {
     beginTransaction();
     try {
       MmsBodyProvider.Pointer pointer = MmsBodyProvider.makeTemporaryPointer(getContext());
-      Util.copy(new ByteArrayInputStream(pduBytes), pointer.getOutputStream());
+      OutputStream            out     = pointer.getOutputStream();
+
+      try {
+        if (!composer.make(out)) {
+          throw new UndeliverableMessageException("PDU composition failed, null payload");
+        }
+      } finally {
+        out.close();
+      }
 
       SmsManager smsManager;
 
@@ -7,6 +7,7 @@ import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import org.smssecure.smssecure.attachments.AttachmentId;
+import org.smssecure.smssecure.attachments.DatabaseAttachment;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.providers.PersistentBlobProvider;
@@ -62,6 +63,25 @@ public class PartAuthority {
     }
   }
 
+  /**
+   * @return the plaintext size recorded for the attachment behind a part uri,
+   *         or -1 if the uri isn't a part or no size is known for it.
+   */
+  public static long getAttachmentSize(@NonNull Context context, @NonNull Uri uri) {
+    if (uriMatcher.match(uri) != PART_ROW) {
+      return -1;
+    }
+
+    PartUriParser      partUri    = new PartUriParser(uri);
+    DatabaseAttachment attachment = DatabaseFactory.getAttachmentDatabase(context).getAttachment(partUri.getPartId());
+
+    if (attachment == null || !attachment.hasData() || attachment.getSize() <= 0) {
+      return -1;
+    }
+
+    return attachment.getSize();
+  }
+
   public static Uri getAttachmentPublicUri(Uri uri) {
     PartUriParser partUri = new PartUriParser(uri);
     return PartProvider.getContentUri(partUri.getPartId());
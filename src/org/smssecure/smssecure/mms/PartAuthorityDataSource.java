@@ -0,0 +1,39 @@
+package org.smssecure.smssecure.mms;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import org.smssecure.smssecure.crypto.MasterSecret;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import ws.com.google.android.mms.pdu.PduComposer;
+import ws.com.google.android.mms.pdu.PduPart;
+
+/**
+ * Lets the {@link PduComposer} read attachment data through the
+ * {@link PartAuthority}, decrypting it as it is written into the PDU. The
+ * part lengths come from the sizes stored with the attachments, so each
+ * part is only decrypted once.
+ */
+public class PartAuthorityDataSource implements PduComposer.PartDataSource {
+
+  private final Context      context;
+  private final MasterSecret masterSecret;
+
+  public PartAuthorityDataSource(@NonNull Context context, @NonNull MasterSecret masterSecret) {
+    this.context      = context.getApplicationContext();
+    this.masterSecret = masterSecret;
+  }
+
+  @Override
+  public InputStream open(PduPart part) throws IOException {
+    return PartAuthority.getAttachmentStream(context, masterSecret, part.getDataUri());
+  }
+
+  @Override
+  public long getLength(PduPart part) {
+    return PartAuthority.getAttachmentSize(context, part.getDataUri());
+  }
+}
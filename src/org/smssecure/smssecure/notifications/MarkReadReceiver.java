@@ -39,7 +39,7 @@ public class MarkReadReceiver extends MasterSecretBroadcastReceiver {
             DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
           }
 
-          MessageNotifier.updateNotification(context, masterSecret);
+          MessageNotifier.updateNotificationForThreads(context, masterSecret, threadIds);
           return null;
         }
       }.execute();
@@ -58,8 +58,13 @@ import org.smssecure.smssecure.util.ServiceUtil;
 import org.smssecure.smssecure.util.SpanUtil;
 import org.smssecure.smssecure.util.SilencePreferences;
 
+import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -77,8 +82,27 @@ public class MessageNotifier {
   private static final int    SUMMARY_NOTIFICATION_ID   = 1338;
   private static final String NOTIFICATION_GROUP        = "messages";
 
+  private static final long RENDER_DELAY_MILLIS = 250;
+
   private volatile static long visibleThread = -1;
 
+  private static final NotificationStateCache   stateCache     = new NotificationStateCache();
+  private static final ScheduledExecutorService renderExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(@NonNull Runnable runnable) {
+      Thread thread = new Thread(runnable, "MessageNotifier");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private static final Object       pendingLock             = new Object();
+  private static       boolean      renderPending           = false;
+  private static       int          pendingFlags            = 0;
+  private static       int          pendingReminderCount    = 0;
+  private static       MasterSecret pendingMasterSecret     = null;
+  private static       boolean      multipleThreadsRendered = false;
+
   public static final  String EXTRA_REMOTE_REPLY = "extra_remote_reply";
 
   public static void setVisibleThread(long threadId) {
@@ -157,8 +181,8 @@ public class MessageNotifier {
           boolean validNotification = false;
 
           if (notification.getId() != SUMMARY_NOTIFICATION_ID) {
-            for (NotificationItem item : notificationState.getNotifications()) {
-              if (notification.getId() == (SUMMARY_NOTIFICATION_ID + item.getThreadId())) {
+            for (long threadId : notificationState.getThreads()) {
+              if (notification.getId() == (SUMMARY_NOTIFICATION_ID + threadId)) {
                 validNotification = true;
                 break;
               }
@@ -177,11 +201,13 @@ public class MessageNotifier {
   }
 
   private static void updateNotificationWithFlags(Context context, MasterSecret masterSecret, int flags) {
+    stateCache.invalidate();
+
     if (!SilencePreferences.isNotificationsEnabled(context)) {
       return;
     }
 
-    updateNotification(context, masterSecret, flags, 0);
+    scheduleRender(context, masterSecret, flags, 0);
   }
 
   public static void updateNotification(Context context, MasterSecret masterSecret) {
@@ -199,6 +225,8 @@ public class MessageNotifier {
       threads.setRead(threadId);
     }
 
+    stateCache.markChanged(threadId);
+
     if (!SilencePreferences.isNotificationsEnabled(context) ||
         (recipients != null && recipients.isMuted()))
     {
@@ -208,50 +236,134 @@ public class MessageNotifier {
     if (isVisible) {
       sendInThreadNotification(context, threads.getRecipientsForThreadId(threadId));
     } else {
-      updateNotification(context, masterSecret, MNF_DEFAULTS, 0);
+      scheduleRender(context, masterSecret, MNF_DEFAULTS, 0);
     }
   }
 
-  private static void updateNotification(Context context, MasterSecret masterSecret, int flags, int reminderCount) {
-    Cursor telcoCursor = null;
-    Cursor pushCursor  = null;
+  /**
+   * Refreshes notifications after the given threads were read or had
+   * messages removed, without re-reading any other thread.
+   */
+  public static void updateNotificationForThreads(Context context, MasterSecret masterSecret, long... threadIds) {
+    for (long threadId : threadIds) {
+      stateCache.markChanged(threadId);
+    }
 
-    try {
-      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
+    if (!SilencePreferences.isNotificationsEnabled(context)) {
+      return;
+    }
 
-      if ((telcoCursor == null || telcoCursor.isAfterLast()) &&
-          (pushCursor == null || pushCursor.isAfterLast()))
-      {
-        cancelActiveNotifications(context);
-        updateBadge(context, 0);
-        clearReminder(context);
+    scheduleRender(context, masterSecret, MNF_LIGHTS_KEEP, 0);
+  }
+
+  private static void scheduleRender(final Context context, MasterSecret masterSecret, int flags, int reminderCount) {
+    synchronized (pendingLock) {
+      pendingMasterSecret = masterSecret;
+
+      if (renderPending) {
+        pendingFlags         |= flags;
+        pendingReminderCount  = Math.min(pendingReminderCount, reminderCount);
         return;
       }
 
-      NotificationState notificationState = constructNotificationState(context, masterSecret, telcoCursor);
+      renderPending        = true;
+      pendingFlags         = flags;
+      pendingReminderCount = reminderCount;
+    }
+
+    renderExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        render(context.getApplicationContext());
+      }
+    }, RENDER_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private static void render(Context context) {
+    MasterSecret masterSecret;
+    int          flags;
+    int          reminderCount;
+
+    synchronized (pendingLock) {
+      masterSecret  = pendingMasterSecret;
+      flags         = pendingFlags;
+      reminderCount = pendingReminderCount;
+      renderPending = false;
+    }
 
-      if (notificationState.hasMultipleThreads()) {
-        if (Build.VERSION.SDK_INT >= 23) {
-          for (long threadId : notificationState.getThreads()) {
+    Set<Long>              changedThreads = refreshState(context, masterSecret);
+    List<NotificationItem> items          = stateCache.getItems();
+
+    if (items.isEmpty()) {
+      cancelActiveNotifications(context);
+      updateBadge(context, 0);
+      clearReminder(context);
+      multipleThreadsRendered = false;
+      return;
+    }
+
+    NotificationState notificationState = new NotificationState(items);
+
+    if (notificationState.hasMultipleThreads()) {
+      if (Build.VERSION.SDK_INT >= 23) {
+        for (long threadId : notificationState.getThreads()) {
+          if (changedThreads == null || !multipleThreadsRendered || changedThreads.contains(threadId)) {
             sendSingleThreadNotification(context, masterSecret, new NotificationState(notificationState.getNotificationsForThread(threadId)), 0, true);
           }
         }
+      }
+
+      sendMultipleThreadNotification(context, notificationState, flags);
+    } else {
+      sendSingleThreadNotification(context, masterSecret, notificationState, flags, false);
+    }
+
+    multipleThreadsRendered = notificationState.hasMultipleThreads();
+
+    cancelOrphanedNotifications(context, notificationState);
+    updateBadge(context, notificationState.getMessageCount());
 
-        sendMultipleThreadNotification(context, notificationState, flags);
-      } else {
-        sendSingleThreadNotification(context, masterSecret, notificationState, flags, false);
+    if (newNotificationRequested(flags)) {
+      scheduleReminder(context, reminderCount);
+    }
+  }
+
+  /**
+   * Brings the cached state up to date, re-reading only the threads marked
+   * as changed unless the cache was invalidated.
+   *
+   * @return the threads that were re-read, or null if everything was.
+   */
+  private static @Nullable Set<Long> refreshState(Context context, MasterSecret masterSecret) {
+    MmsSmsDatabase database       = DatabaseFactory.getMmsSmsDatabase(context);
+    Set<Long>      changedThreads = stateCache.takeChangedThreads();
+
+    if (!stateCache.isLoaded(masterSecret != null)) {
+      int    generation = stateCache.getGeneration();
+      Cursor cursor     = null;
+
+      try {
+        cursor = database.getUnread();
+        stateCache.reset(readNotificationEntries(context, masterSecret, cursor), masterSecret != null, generation);
+      } finally {
+        if (cursor != null) cursor.close();
       }
 
-      cancelOrphanedNotifications(context, notificationState);
-      updateBadge(context, notificationState.getMessageCount());
+      return null;
+    }
+
+    for (long threadId : changedThreads) {
+      Cursor cursor = null;
 
-      if (newNotificationRequested(flags)) {
-        scheduleReminder(context, reminderCount);
+      try {
+        cursor = database.getUnread(threadId);
+        stateCache.replaceThread(threadId, readNotificationEntries(context, masterSecret, cursor));
+      } finally {
+        if (cursor != null) cursor.close();
       }
-    } finally {
-      if (telcoCursor != null) telcoCursor.close();
-      if (pushCursor != null)  pushCursor.close();
     }
+
+    return changedThreads;
   }
 
   private static void triggerNotificationAlarms(AbstractNotificationBuilder builder, NotificationState notificationState, int flags) {
@@ -400,14 +512,16 @@ public class MessageNotifier {
     ringtone.play();
   }
 
-  private static NotificationState constructNotificationState(Context context,
-                                                              MasterSecret masterSecret,
-                                                              Cursor cursor)
+  private static List<NotificationStateCache.Entry> readNotificationEntries(Context context,
+                                                                          MasterSecret masterSecret,
+                                                                          @Nullable Cursor cursor)
   {
-    NotificationState notificationState = new NotificationState();
+    List<NotificationStateCache.Entry> entries = new LinkedList<>();
     MessageRecord record;
     MmsSmsDatabase.Reader reader;
 
+    if (cursor == null) return entries;
+
     if (masterSecret == null) reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
     else                      reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor, masterSecret);
 
@@ -439,12 +553,12 @@ public class MessageNotifier {
       }
 
       if (threadRecipients == null || !threadRecipients.isMuted()) {
-        notificationState.addNotification(new NotificationItem(id, mms, recipient, recipients, threadRecipients, threadId, body, timestamp, slideDeck));
+        entries.add(new NotificationStateCache.Entry(record.getDateReceived(),
+                                                     new NotificationItem(id, mms, recipient, recipients, threadRecipients, threadId, body, timestamp, slideDeck)));
       }
     }
 
-    reader.close();
-    return notificationState;
+    return entries;
   }
 
   private static void scheduleReminder(Context context, int count) {
@@ -480,7 +594,7 @@ public class MessageNotifier {
         protected Void doInBackground(Void... params) {
           MasterSecret masterSecret  = KeyCachingService.getMasterSecret(context);
           int          reminderCount = intent.getIntExtra("reminder_count", 0);
-          MessageNotifier.updateNotification(context, masterSecret, MNF_DEFAULTS, reminderCount + 1);
+          MessageNotifier.scheduleRender(context, masterSecret, MNF_DEFAULTS, reminderCount + 1);
 
           return null;
         }
@@ -0,0 +1,122 @@
+package org.smssecure.smssecure.notifications;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The unread notification items currently on display, grouped by thread.
+ * Threads are replaced individually as they change, so a new message only
+ * costs a re-read of its own thread instead of a scan of every unread message.
+ */
+class NotificationStateCache {
+
+  private final Map<Long, List<Entry>> threads        = new HashMap<>();
+  private final Set<Long>              changedThreads = new HashSet<>();
+
+  private boolean loaded;
+  private boolean decrypted;
+  private int     generation;
+
+  /**
+   * @return true if the cache holds the full unread set, read with or
+   *         without the master secret as requested.
+   */
+  public synchronized boolean isLoaded(boolean decrypted) {
+    return loaded && this.decrypted == decrypted;
+  }
+
+  public synchronized void invalidate() {
+    loaded = false;
+    generation++;
+  }
+
+  public synchronized int getGeneration() {
+    return generation;
+  }
+
+  public synchronized void markChanged(long threadId) {
+    changedThreads.add(threadId);
+  }
+
+  public synchronized Set<Long> takeChangedThreads() {
+    Set<Long> changed = new HashSet<>(changedThreads);
+    changedThreads.clear();
+    return changed;
+  }
+
+  /**
+   * Replaces the whole cache with a fresh read of the unread set. If the cache
+   * was invalidated again while that read was running it stays unloaded.
+   */
+  public synchronized void reset(@NonNull Collection<Entry> entries, boolean decrypted, int generation) {
+    threads.clear();
+
+    for (Entry entry : entries) {
+      List<Entry> thread = threads.get(entry.item.getThreadId());
+
+      if (thread == null) {
+        thread = new LinkedList<>();
+        threads.put(entry.item.getThreadId(), thread);
+      }
+
+      thread.add(entry);
+    }
+
+    this.loaded    = this.generation == generation;
+    this.decrypted = decrypted;
+  }
+
+  public synchronized void replaceThread(long threadId, @NonNull List<Entry> entries) {
+    if (entries.isEmpty()) threads.remove(threadId);
+    else                   threads.put(threadId, new LinkedList<>(entries));
+  }
+
+  /**
+   * @return every cached item across all threads, in ascending order of
+   *         date received so it can be fed straight into a {@link NotificationState}.
+   */
+  public synchronized List<NotificationItem> getItems() {
+    List<Entry> entries = new ArrayList<>();
+
+    for (List<Entry> thread : threads.values()) {
+      entries.addAll(thread);
+    }
+
+    Collections.sort(entries, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry lhs, Entry rhs) {
+        if (lhs.dateReceived < rhs.dateReceived) return -1;
+        if (lhs.dateReceived > rhs.dateReceived) return 1;
+        return 0;
+      }
+    });
+
+    List<NotificationItem> items = new ArrayList<>(entries.size());
+
+    for (Entry entry : entries) {
+      items.add(entry.item);
+    }
+
+    return items;
+  }
+
+  public static class Entry {
+    private final long             dateReceived;
+    private final NotificationItem item;
+
+    public Entry(long dateReceived, @NonNull NotificationItem item) {
+      this.dateReceived = dateReceived;
+      this.item         = item;
+    }
+  }
+}
@@ -90,7 +90,7 @@ public class RemoteReplyReceiver extends MasterSecretBroadcastReceiver {
           DatabaseFactory.getThreadDatabase(context).setRead(threadId);
           DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
 
-          MessageNotifier.updateNotification(context, masterSecret);
+          MessageNotifier.updateNotificationForThreads(context, masterSecret, threadId);
 
           return null;
         }
@@ -79,8 +79,39 @@ public class PersistentBlobProvider {
     return create(masterSecret, input, System.currentTimeMillis(), mimeType);
   }
 
+  /**
+   * Persists the blob before returning, for input that is only valid for
+   * the length of the call.
+   */
+  public Uri createSynchronously(@NonNull MasterSecret masterSecret,
+                                 @NonNull InputStream input,
+                                 @NonNull String mimeType)
+      throws IOException
+  {
+    long id = System.currentTimeMillis();
+    File file;
+
+    while (!(file = getFile(id)).createNewFile()) id++;
+
+    OutputStream output = new EncryptingPartOutputStream(file, masterSecret);
+
+    try {
+      Util.copy(input, output);
+    } catch (IOException e) {
+      output.close();
+      file.delete();
+      throw e;
+    }
+
+    return getUri(id, mimeType);
+  }
+
   private Uri create(MasterSecret masterSecret, InputStream input, long id, String mimeType) {
     persistToDisk(masterSecret, id, input);
+    return getUri(id, mimeType);
+  }
+
+  private Uri getUri(long id, String mimeType) {
     final Uri uniqueUri = CONTENT_URI.buildUpon()
                                      .appendPath(mimeType)
                                      .appendEncodedPath(String.valueOf(System.currentTimeMillis()))
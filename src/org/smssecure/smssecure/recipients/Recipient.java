@@ -42,10 +42,10 @@ public class Recipient {
 
   private final long recipientId;
 
-  private String  number;
-  private String  name;
-  private boolean stale;
-  private boolean resolving;
+  private          String  number;
+  private          String  name;
+  private volatile boolean stale;
+  private          boolean resolving;
 
   private ContactPhoto contactPhoto;
   private Uri          contactUri;
@@ -126,6 +126,14 @@ public class Recipient {
     notifyListeners();
   }
 
+  void setContactPhoto(@NonNull ContactPhoto contactPhoto) {
+    synchronized (this) {
+      this.contactPhoto = contactPhoto;
+    }
+
+    notifyListeners();
+  }
+
   public String getNumber() {
     return number;
   }
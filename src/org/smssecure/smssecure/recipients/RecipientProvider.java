@@ -16,16 +16,19 @@
  */
 package org.smssecure.smssecure.recipients;
 
+import android.content.ContentUris;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
-import org.smssecure.smssecure.R;
 import org.smssecure.smssecure.color.MaterialColor;
 import org.smssecure.smssecure.contacts.avatars.ContactColors;
 import org.smssecure.smssecure.contacts.avatars.ContactPhoto;
@@ -33,27 +36,43 @@ import org.smssecure.smssecure.contacts.avatars.ContactPhotoFactory;
 import org.smssecure.smssecure.database.CanonicalAddressDatabase;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.RecipientPreferenceDatabase.RecipientsPreferences;
-import org.smssecure.smssecure.util.LRUCache;
+import org.smssecure.smssecure.util.FutureTaskListener;
+import org.smssecure.smssecure.util.LinkedBlockingLifoQueue;
 import org.smssecure.smssecure.util.ListenableFutureTask;
 import org.smssecure.smssecure.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
 
-import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class RecipientProvider {
 
   private static final String TAG = RecipientProvider.class.getSimpleName();
 
-  private static final RecipientCache  recipientCache         = new RecipientCache();
-  private static final RecipientsCache recipientsCache        = new RecipientsCache();
-  private static final ExecutorService asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final int MAX_BATCH_SIZE      = 50;
+  private static final int BULK_LOOKUP_MINIMUM = 5;
+  private static final int NUMBER_MATCH_LENGTH = 7;
+
+  private static final WeightedCache<Long, Recipient>          recipientCache         = new WeightedCache<>(1000);
+  private static final WeightedCache<RecipientIds, Recipients> recipientsCache        = new WeightedCache<>(2000);
+  private static final ExecutorService                         asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final ExecutorService                         asyncAvatarLoader      = Util.newSingleThreadedLifoExecutor();
+
+  private static final BlockingQueue<PendingLookup> pendingLookups   = new LinkedBlockingLifoQueue<>();
+  private static final AtomicBoolean                drainScheduled   = new AtomicBoolean(false);
+  private static final AtomicBoolean                observerAttached = new AtomicBoolean(false);
 
   private static final String[] CALLER_ID_PROJECTION = new String[] {
     PhoneLookup.DISPLAY_NAME,
@@ -62,6 +81,13 @@ class RecipientProvider {
     PhoneLookup.NUMBER
   };
 
+  private static final String[] PHONE_PROJECTION = new String[] {
+    Phone.DISPLAY_NAME,
+    Phone.LOOKUP_KEY,
+    Phone.CONTACT_ID,
+    Phone.NUMBER
+  };
+
   private static final Map<String, RecipientDetails> STATIC_DETAILS = new HashMap<String, RecipientDetails>() {{
     put("262966", new RecipientDetails("Amazon", "262966", null,
                                        ContactPhotoFactory.getDefaultGroupPhoto(),
@@ -74,15 +100,19 @@ class RecipientProvider {
       return cachedRecipient;
     }
 
+    attachContactObserver(context);
+
     String number = CanonicalAddressDatabase.getInstance(context).getAddressFromId(recipientId);
 
     if (asynchronous) {
-      cachedRecipient = new Recipient(recipientId, number, cachedRecipient, getRecipientDetailsAsync(context, recipientId, number));
+      ListenableFutureTask<RecipientDetails> future = getRecipientDetailsAsync(context, recipientId, number);
+      cachedRecipient = new Recipient(recipientId, number, cachedRecipient, future);
+      loadAvatarWhenResolved(context, cachedRecipient, future);
     } else {
       cachedRecipient = new Recipient(recipientId, getIndividualRecipientDetails(context, recipientId, number));
     }
 
-    recipientCache.set(recipientId, cachedRecipient);
+    recipientCache.put(recipientId, cachedRecipient, 1);
     return cachedRecipient;
   }
 
@@ -101,49 +131,165 @@ class RecipientProvider {
     if (asynchronous) cachedRecipients = new Recipients(recipientList, cachedRecipients, getRecipientsPreferencesAsync(context, recipientIds));
     else              cachedRecipients = new Recipients(recipientList, getRecipientsPreferencesSync(context, recipientIds));
 
-    recipientsCache.set(new RecipientIds(recipientIds), cachedRecipients);
+    recipientsCache.put(new RecipientIds(recipientIds), cachedRecipients, Math.max(1, recipientIds.length));
     return cachedRecipients;
   }
 
   void clearCache() {
-    recipientCache.reset();
-    recipientsCache.reset();
+    for (Recipient recipient : recipientCache.values()) {
+      recipient.setStale();
+    }
+
+    for (Recipients recipients : recipientsCache.values()) {
+      recipients.setStale();
+    }
   }
 
+  /**
+   * Marks everything stale whenever the system contacts change, so cached
+   * names and avatars are re-resolved on their next lookup.
+   */
+  private void attachContactObserver(Context context) {
+    if (!observerAttached.compareAndSet(false, true)) return;
+
+    try {
+      context.getApplicationContext().getContentResolver()
+             .registerContentObserver(Contacts.CONTENT_URI, true, new ContentObserver(null) {
+               @Override
+               public void onChange(boolean selfChange) {
+                 clearCache();
+               }
+             });
+    } catch (SecurityException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  /**
+   * Queues a lookup for the batch resolver.  Lookups that arrive while a batch
+   * is being resolved are picked up together by the next one, newest first.
+   */
   private @NonNull ListenableFutureTask<RecipientDetails> getRecipientDetailsAsync(final Context context,
                                                                                    final long recipientId,
                                                                                    final @NonNull String number)
   {
-    Callable<RecipientDetails> task = new Callable<RecipientDetails>() {
+    final PendingLookup lookup = new PendingLookup(recipientId, number);
+
+    lookup.future = new ListenableFutureTask<>(new Callable<RecipientDetails>() {
       @Override
       public RecipientDetails call() throws Exception {
-        return getIndividualRecipientDetails(context, recipientId, number);
+        return lookup.details;
       }
-    };
+    });
 
-    ListenableFutureTask<RecipientDetails> future = new ListenableFutureTask<>(task);
-    asyncRecipientResolver.submit(future);
-    return future;
+    pendingLookups.offer(lookup);
+
+    if (drainScheduled.compareAndSet(false, true)) {
+      asyncRecipientResolver.execute(new Runnable() {
+        @Override
+        public void run() {
+          drainPendingLookups(context.getApplicationContext());
+        }
+      });
+    }
+
+    return lookup.future;
+  }
+
+  private void drainPendingLookups(Context context) {
+    while (true) {
+      List<PendingLookup> batch = new LinkedList<>();
+      PendingLookup       lookup;
+
+      while (batch.size() < MAX_BATCH_SIZE && (lookup = pendingLookups.poll()) != null) {
+        batch.add(lookup);
+      }
+
+      if (batch.isEmpty()) {
+        drainScheduled.set(false);
+
+        if (pendingLookups.isEmpty() || !drainScheduled.compareAndSet(false, true)) {
+          return;
+        }
+
+        continue;
+      }
+
+      try {
+        resolveBatch(context, batch);
+      } catch (RuntimeException e) {
+        Log.w(TAG, e);
+
+        for (PendingLookup failed : batch) {
+          if (failed.details == null) {
+            failed.details = new RecipientDetails(null, failed.number, null,
+                                                  ContactPhotoFactory.getDefaultContactPhoto(null), null);
+          }
+        }
+      }
+
+      for (PendingLookup resolved : batch) {
+        resolved.future.run();
+      }
+    }
+  }
+
+  private void resolveBatch(Context context, List<PendingLookup> batch) {
+    Set<String>  numbers    = new HashSet<>();
+    List<long[]> recipients = new LinkedList<>();
+
+    for (PendingLookup lookup : batch) {
+      numbers.add(lookup.number);
+      recipients.add(new long[] {lookup.recipientId});
+    }
+
+    DatabaseFactory.getRecipientPreferenceDatabase(context).getRecipientsPreferences(recipients);
+
+    Map<String, ContactMatch> matches = numbers.size() >= BULK_LOOKUP_MINIMUM
+                                        ? findContactsInBulk(context, numbers)
+                                        : null;
+
+    for (PendingLookup lookup : batch) {
+      ContactMatch match = matches != null ? matches.get(lookup.number)
+                                           : findContact(context, lookup.number);
+
+      lookup.details = getRecipientDetails(context, lookup.recipientId, lookup.number, match, false);
+    }
   }
 
   private @NonNull RecipientDetails getIndividualRecipientDetails(Context context, long recipientId, @NonNull String number) {
+    return getRecipientDetails(context, recipientId, number, findContact(context, number), true);
+  }
+
+  private @NonNull RecipientDetails getRecipientDetails(Context context, long recipientId, @NonNull String number,
+                                                        @Nullable ContactMatch match, boolean loadAvatar)
+  {
     Optional<RecipientsPreferences> preferences = DatabaseFactory.getRecipientPreferenceDatabase(context).getRecipientsPreferences(new long[]{recipientId});
     MaterialColor                   color       = preferences.isPresent() ? preferences.get().getColor() : null;
-    Uri                             uri         = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
-    Cursor                          cursor      = context.getContentResolver().query(uri, CALLER_ID_PROJECTION,
-                                                                                     null, null, null);
+
+    if (match != null) {
+      Uri          contactUri   = Contacts.getLookupUri(match.contactId, match.lookupKey);
+      String       name         = match.number.equals(match.displayName) ? null : match.displayName;
+      ContactPhoto contactPhoto = loadAvatar ? ContactPhotoFactory.getContactPhoto(context, getPhotoUri(match.contactId), name)
+                                             : ContactPhotoFactory.getDefaultContactPhoto(name);
+
+      return new RecipientDetails(match.displayName, match.number, contactUri, contactPhoto, color);
+    }
+
+    if (STATIC_DETAILS.containsKey(number)) return STATIC_DETAILS.get(number);
+    else                                    return new RecipientDetails(null, number, null, ContactPhotoFactory.getDefaultContactPhoto(null), color);
+  }
+
+  private @Nullable ContactMatch findContact(Context context, @NonNull String number) {
+    Uri    uri    = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
+    Cursor cursor = context.getContentResolver().query(uri, CALLER_ID_PROJECTION,
+                                                       null, null, null);
 
     try {
       if (cursor != null && cursor.moveToFirst()) {
         final String resultNumber = cursor.getString(3);
         if (resultNumber != null) {
-          Uri          contactUri   = Contacts.getLookupUri(cursor.getLong(2), cursor.getString(1));
-          String       name         = resultNumber.equals(cursor.getString(0)) ? null : cursor.getString(0);
-          ContactPhoto contactPhoto = ContactPhotoFactory.getContactPhoto(context,
-                                                                          Uri.withAppendedPath(Contacts.CONTENT_URI, cursor.getLong(2) + ""),
-                                                                          name);
-
-          return new RecipientDetails(cursor.getString(0), resultNumber, contactUri, contactPhoto, color);
+          return new ContactMatch(cursor.getString(0), resultNumber, cursor.getLong(2), cursor.getString(1));
         } else {
           Log.w(TAG, "resultNumber is null");
         }
@@ -153,8 +299,105 @@ class RecipientProvider {
         cursor.close();
     }
 
-    if (STATIC_DETAILS.containsKey(number)) return STATIC_DETAILS.get(number);
-    else                                    return new RecipientDetails(null, number, null, ContactPhotoFactory.getDefaultContactPhoto(null), color);
+    return null;
+  }
+
+  /**
+   * Matches a whole batch of numbers against the address book with a single
+   * query over the phone data table, comparing candidates that share a
+   * trailing digit run the same way the PhoneLookup filter does.
+   */
+  private @NonNull Map<String, ContactMatch> findContactsInBulk(Context context, @NonNull Set<String> numbers) {
+    Map<String, List<String>> wanted  = new HashMap<>();
+    Map<String, ContactMatch> matches = new HashMap<>();
+
+    for (String number : numbers) {
+      String key = getMatchKey(number);
+      if (key == null) continue;
+
+      List<String> bucket = wanted.get(key);
+
+      if (bucket == null) {
+        bucket = new LinkedList<>();
+        wanted.put(key, bucket);
+      }
+
+      bucket.add(number);
+    }
+
+    if (wanted.isEmpty()) return matches;
+
+    Cursor cursor = context.getContentResolver().query(Phone.CONTENT_URI, PHONE_PROJECTION,
+                                                       Phone.NUMBER + " IS NOT NULL", null, null);
+
+    try {
+      while (cursor != null && cursor.moveToNext()) {
+        String       contactNumber = cursor.getString(3);
+        List<String> bucket        = wanted.get(getMatchKey(contactNumber));
+
+        if (bucket == null) continue;
+
+        for (String number : bucket) {
+          if (!matches.containsKey(number) && PhoneNumberUtils.compare(number, contactNumber)) {
+            matches.put(number, new ContactMatch(cursor.getString(0), contactNumber, cursor.getLong(2), cursor.getString(1)));
+          }
+        }
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return matches;
+  }
+
+  private static @Nullable String getMatchKey(@Nullable String number) {
+    if (number == null) return null;
+
+    StringBuilder digits = new StringBuilder(NUMBER_MATCH_LENGTH);
+
+    for (int i = number.length() - 1; i >= 0 && digits.length() < NUMBER_MATCH_LENGTH; i--) {
+      char c = number.charAt(i);
+      if (Character.isDigit(c)) digits.append(c);
+    }
+
+    return digits.length() == 0 ? null : digits.toString();
+  }
+
+  private static Uri getPhotoUri(long contactId) {
+    return Uri.withAppendedPath(Contacts.CONTENT_URI, String.valueOf(contactId));
+  }
+
+  /**
+   * Loads the avatar on its own queue once the name has been resolved, so a
+   * slow photo decode never holds up the names of other recipients.
+   */
+  private void loadAvatarWhenResolved(final Context context, final Recipient recipient,
+                                      ListenableFutureTask<RecipientDetails> future)
+  {
+    future.addListener(new FutureTaskListener<RecipientDetails>() {
+      @Override
+      public void onSuccess(final RecipientDetails result) {
+        if (result == null || result.contactUri == null) return;
+
+        asyncAvatarLoader.execute(new Runnable() {
+          @Override
+          public void run() {
+            long contactId = ContentUris.parseId(result.contactUri);
+            if (contactId < 0) return;
+
+            recipient.setContactPhoto(ContactPhotoFactory.getContactPhoto(context.getApplicationContext(),
+                                                                          getPhotoUri(contactId),
+                                                                          recipient.getName()));
+          }
+        });
+      }
+
+      @Override
+      public void onFailure(Throwable error) {
+        Log.w(TAG, error);
+      }
+    });
   }
 
   private @Nullable RecipientsPreferences getRecipientsPreferencesSync(Context context, long[] recipientIds) {
@@ -195,6 +438,33 @@ class RecipientProvider {
     }
   }
 
+  private static class ContactMatch {
+    private final String displayName;
+    private final String number;
+    private final long   contactId;
+    private final String lookupKey;
+
+    private ContactMatch(String displayName, String number, long contactId, String lookupKey) {
+      this.displayName = displayName;
+      this.number      = number;
+      this.contactId   = contactId;
+      this.lookupKey   = lookupKey;
+    }
+  }
+
+  private static class PendingLookup {
+    private final long   recipientId;
+    private final String number;
+
+    private ListenableFutureTask<RecipientDetails> future;
+    private volatile RecipientDetails              details;
+
+    private PendingLookup(long recipientId, String number) {
+      this.recipientId = recipientId;
+      this.number      = number;
+    }
+  }
+
   private static class RecipientIds {
     private final long[] ids;
 
@@ -212,46 +482,70 @@ class RecipientProvider {
     }
   }
 
-  private static class RecipientCache {
+  /**
+   * A size-bounded cache whose reads never block.  Entries are evicted in
+   * insertion order once the total weight passes the limit, which is close
+   * enough to LRU for recipients, since a hit on a stale entry re-inserts it.
+   */
+  private static class WeightedCache<K, V> {
 
-    private final Map<Long,Recipient> cache = new LRUCache<>(1000);
+    private final ConcurrentHashMap<K, Entry<K, V>>  cache  = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry<K, V>> order  = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger                      weight = new AtomicInteger(0);
+    private final int                                maxWeight;
 
-    public synchronized Recipient get(long recipientId) {
-      return cache.get(recipientId);
+    private WeightedCache(int maxWeight) {
+      this.maxWeight = maxWeight;
     }
 
-    public synchronized void set(long recipientId, Recipient recipient) {
-      cache.put(recipientId, recipient);
+    public @Nullable V get(K key) {
+      Entry<K, V> entry = cache.get(key);
+      return entry != null ? entry.value : null;
     }
 
-    public synchronized void reset() {
-      for (Recipient recipient : cache.values()) {
-        recipient.setStale();
-      }
-    }
+    public void put(K key, V value, int entryWeight) {
+      Entry<K, V> entry    = new Entry<>(key, value, entryWeight);
+      Entry<K, V> previous = cache.put(key, entry);
 
-  }
+      if (previous != null) {
+        order.remove(previous);
+        weight.addAndGet(-previous.weight);
+      }
 
-  private static class RecipientsCache {
+      order.add(entry);
+      weight.addAndGet(entryWeight);
 
-    private final Map<RecipientIds,Recipients> cache = new LRUCache<>(1000);
+      while (weight.get() > maxWeight) {
+        Entry<K, V> eldest = order.poll();
+        if (eldest == null) break;
 
-    public synchronized Recipients get(RecipientIds ids) {
-      return cache.get(ids);
+        if (cache.remove(eldest.key, eldest)) {
+          weight.addAndGet(-eldest.weight);
+        }
+      }
     }
 
-    public synchronized void set(RecipientIds ids, Recipients recipients) {
-      cache.put(ids, recipients);
-    }
+    public Iterable<V> values() {
+      List<V> values = new LinkedList<>();
 
-    public synchronized void reset() {
-      for (Recipients recipients : cache.values()) {
-        recipients.setStale();
+      for (Entry<K, V> entry : cache.values()) {
+        values.add(entry.value);
       }
-    }
 
-  }
+      return values;
+    }
 
+    private static class Entry<K, V> {
+      private final K   key;
+      private final V   value;
+      private final int weight;
 
+      private Entry(K key, V value, int weight) {
+        this.key    = key;
+        this.value  = value;
+        this.weight = weight;
+      }
+    }
+  }
 
 }
@@ -50,11 +50,11 @@ public class Recipients implements Iterable<Recipient>, RecipientModifiedListene
   private final Set<RecipientsModifiedListener> listeners = Collections.newSetFromMap(new WeakHashMap<RecipientsModifiedListener, Boolean>());
   private final List<Recipient> recipients;
 
-  private Uri          ringtone   = null;
-  private long         mutedUntil = 0;
-  private boolean      blocked    = false;
-  private VibrateState vibrate    = VibrateState.DEFAULT;
-  private boolean      stale      = false;
+  private          Uri          ringtone   = null;
+  private          long         mutedUntil = 0;
+  private          boolean      blocked    = false;
+  private          VibrateState vibrate    = VibrateState.DEFAULT;
+  private volatile boolean      stale      = false;
 
   Recipients() {
     this(new LinkedList<Recipient>(), null);
@@ -38,8 +38,12 @@ import org.smssecure.smssecure.DatabaseUpgradeActivity;
 import org.smssecure.smssecure.DummyActivity;
 import org.smssecure.smssecure.R;
 import org.smssecure.smssecure.crypto.InvalidPassphraseException;
+import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.crypto.MasterSecretUtil;
+import org.smssecure.smssecure.crypto.storage.SessionRecordCache;
+import org.smssecure.smssecure.database.DecryptionPrefetcher;
+import org.smssecure.smssecure.database.PlaintextCache;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.util.DynamicLanguage;
 import org.smssecure.smssecure.util.ParcelUtil;
@@ -190,6 +194,10 @@ public class KeyCachingService extends Service {
   private void handleClearKey() {
     Log.w("KeyCachingService", "handleClearKey()");
     KeyCachingService.masterSecret = null;
+    MasterCipher.clearInstance();
+    PlaintextCache.getInstance().clear();
+    DecryptionPrefetcher.cancelAll();
+    SessionRecordCache.getInstance().clear();
     stopForeground(true);
 
     Intent intent = new Intent(CLEAR_KEY_EVENT);
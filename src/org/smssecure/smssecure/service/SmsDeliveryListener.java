@@ -7,8 +7,8 @@ import android.telephony.SmsMessage;
 import android.util.Log;
 
 import org.smssecure.smssecure.ApplicationContext;
+import org.smssecure.smssecure.jobs.PriorityJobManager;
 import org.smssecure.smssecure.jobs.SmsSentJob;
-import org.whispersystems.jobqueue.JobManager;
 
 public class SmsDeliveryListener extends BroadcastReceiver {
 
@@ -19,14 +19,15 @@ public class SmsDeliveryListener extends BroadcastReceiver {
 
   @Override
   public void onReceive(Context context, Intent intent) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
-    long       messageId  = intent.getLongExtra("message_id", -1);
+    PriorityJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    long               messageId  = intent.getLongExtra("message_id", -1);
+    int                attempt    = intent.getIntExtra("attempt", 0);
 
     switch (intent.getAction()) {
       case SENT_SMS_ACTION:
         int result = getResultCode();
 
-        jobManager.add(new SmsSentJob(context, messageId, SENT_SMS_ACTION, result));
+        jobManager.add(new SmsSentJob(context, messageId, attempt, SENT_SMS_ACTION, result));
         break;
       case DELIVERED_SMS_ACTION:
         byte[] pdu = intent.getByteArrayExtra("pdu");
@@ -43,7 +44,7 @@ public class SmsDeliveryListener extends BroadcastReceiver {
           break;
         }
 
-        jobManager.add(new SmsSentJob(context, messageId, DELIVERED_SMS_ACTION, message.getStatus()));
+        jobManager.add(new SmsSentJob(context, messageId, attempt, DELIVERED_SMS_ACTION, message.getStatus()));
         break;
       default:
         Log.w(TAG, "Unknown action: " + intent.getAction());
@@ -29,6 +29,7 @@ import org.smssecure.smssecure.database.NotInDirectoryException;
 import org.smssecure.smssecure.database.ThreadDatabase;
 import org.smssecure.smssecure.database.model.MessageRecord;
 import org.smssecure.smssecure.jobs.MmsSendJob;
+import org.smssecure.smssecure.jobs.PriorityJobManager;
 import org.smssecure.smssecure.jobs.SmsSendJob;
 import org.smssecure.smssecure.mms.OutgoingMediaMessage;
 import org.smssecure.smssecure.recipients.Recipient;
@@ -36,7 +37,6 @@ import org.smssecure.smssecure.recipients.Recipients;
 import org.smssecure.smssecure.util.InvalidNumberException;
 import org.smssecure.smssecure.util.SilencePreferences;
 import org.smssecure.smssecure.util.Util;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.IOException;
@@ -121,13 +121,13 @@ public class MessageSender {
   private static void sendMediaMessage(Context context, long messageId)
       throws MmsException
   {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    PriorityJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
     jobManager.add(new MmsSendJob(context, messageId));
   }
 
   private static void sendTextMessage(Context context, Recipients recipients, long messageId)
   {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
-    jobManager.add(new SmsSendJob(context, messageId, recipients.getPrimaryRecipient().getName()));
+    PriorityJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    jobManager.add(new SmsSendJob(context, messageId, recipients));
   }
 }
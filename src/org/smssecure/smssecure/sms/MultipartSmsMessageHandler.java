@@ -16,50 +16,66 @@
  */
 package org.smssecure.smssecure.sms;
 
+import android.content.Context;
 import android.util.Log;
 
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.MultipartSmsFragmentDatabase;
 import org.smssecure.smssecure.util.Base64;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Reassembles multipart transport messages. Fragments are kept in
+ * {@link MultipartSmsFragmentDatabase} until their message is complete,
+ * so a partially received message survives the process being killed.
+ */
 public class MultipartSmsMessageHandler {
 
   private static final String TAG = MultipartSmsMessageHandler.class.getSimpleName();
 
-  private final HashMap<String, MultipartSmsTransportMessageFragments> partialMessages = new HashMap<>();
+  private static final long VALID_TIME     = 60 * 60 * 1000; // 1 Hour
+  private static final long SWEEP_INTERVAL = 10 * 60 * 1000;
+  private static final int  LOCK_STRIPES   = 16;
+
+  private static final Object[]   locks     = new Object[LOCK_STRIPES];
+  private static final AtomicLong lastSweep = new AtomicLong(0);
+
+  static {
+    for (int i=0;i<locks.length;i++) locks[i] = new Object();
+  }
+
+  private final Context context;
+
+  public MultipartSmsMessageHandler(Context context) {
+    this.context = context.getApplicationContext();
+  }
 
-  private IncomingTextMessage processLegacyMultipartMessage(MultipartSmsTransportMessage message)
-    throws IOException
-  {
+  private IncomingTextMessage processMultipartMessage(MultipartSmsTransportMessage message) {
     Log.w(TAG, "Processing multipart message...");
     Log.w(TAG, "Multipart Count: " + message.getMultipartCount());
     Log.w(TAG, "Multipart ID: " + message.getIdentifier());
     Log.w(TAG, "Multipart Key: " + message.getKey());
-    MultipartSmsTransportMessageFragments container = partialMessages.get(message.getKey());
 
-    Log.w(TAG, "Found multipart container: " + container);
+    MultipartSmsFragmentDatabase database      = DatabaseFactory.getMultipartSmsFragmentDatabase(context);
+    long                         expiredBefore = System.currentTimeMillis() - VALID_TIME;
+    byte[][]                     fragments;
 
-    if (container == null || container.getSize() != message.getMultipartCount() || container.isExpired()) {
-      Log.w(TAG, "Constructing new container...");
-      container = new MultipartSmsTransportMessageFragments(message.getMultipartCount());
-      partialMessages.put(message.getKey(), container);
+    synchronized (getLock(message.getKey())) {
+      fragments = database.addFragment(message.getKey(), message.getMultipartCount(),
+                                       message.getMultipartIndex(), message.getStrippedMessage(),
+                                       expiredBefore);
     }
 
-    container.add(message);
+    sweepExpiredFragments(database, expiredBefore);
 
-    Log.w(TAG, "Filled buffer at index: " + message.getMultipartIndex());
-
-    if (!container.isComplete()) {
-      Log.w(TAG, "Container found, assuming wire prefix is incorrect...");
-      message.redecodeWirePrefix(message.getWireType());
-      return processLegacyMultipartMessage(message);
+    if (fragments == null) {
+      Log.w(TAG, "Stored fragment " + message.getMultipartIndex() + ", message still incomplete");
+      return message.getBaseMessage();
     }
 
-
-    partialMessages.remove(message.getKey());
-    String strippedMessage = Base64.encodeBytesWithoutPadding(container.getJoined());
+    String strippedMessage = Base64.encodeBytesWithoutPadding(join(fragments));
 
     if (message.getWireType() == MultipartSmsTransportMessage.WIRETYPE_KEY) {
       return new IncomingKeyExchangeMessage(message.getBaseMessage(), strippedMessage);
@@ -70,6 +86,53 @@ public class MultipartSmsMessageHandler {
     }
   }
 
+  private void sweepExpiredFragments(MultipartSmsFragmentDatabase database, long expiredBefore) {
+    long now  = System.currentTimeMillis();
+    long last = lastSweep.get();
+
+    if (now - last >= SWEEP_INTERVAL && lastSweep.compareAndSet(last, now)) {
+      deleteExpiredFragments(database, expiredBefore);
+    }
+  }
+
+  /**
+   * Deletes the fragments of every message that has stopped arriving, for
+   * when no new fragment comes in to trigger the sweep.
+   */
+  public static void deleteExpiredFragments(Context context) {
+    long now = System.currentTimeMillis();
+
+    lastSweep.set(now);
+    deleteExpiredFragments(DatabaseFactory.getMultipartSmsFragmentDatabase(context), now - VALID_TIME);
+  }
+
+  private static void deleteExpiredFragments(MultipartSmsFragmentDatabase database, long expiredBefore) {
+    int deleted = database.deleteExpiredFragments(expiredBefore);
+    if (deleted > 0) Log.w(TAG, "Deleted " + deleted + " expired fragments");
+  }
+
+  private static Object getLock(String key) {
+    return locks[(key.hashCode() & 0x7fffffff) % locks.length];
+  }
+
+  private static byte[] join(byte[][] fragments) {
+    int totalMessageLength = 0;
+
+    for (byte[] fragment : fragments) {
+      totalMessageLength += fragment.length;
+    }
+
+    byte[] totalMessage       = new byte[totalMessageLength];
+    int    totalMessageOffset = 0;
+
+    for (byte[] fragment : fragments) {
+      System.arraycopy(fragment, 0, totalMessage, totalMessageOffset, fragment.length);
+      totalMessageOffset += fragment.length;
+    }
+
+    return totalMessage;
+  }
+
   private IncomingTextMessage processMessage(MultipartSmsTransportMessage message) {
     Log.w(TAG, "Processing message...");
     String strippedMessage = Base64.encodeBytesWithoutPadding(message.getStrippedMessage());
@@ -87,21 +150,20 @@ public class MultipartSmsMessageHandler {
     }
   }
 
-  public synchronized IncomingTextMessage processPotentialMultipartMessage(IncomingTextMessage message) {
+  public IncomingTextMessage processPotentialMultipartMessage(IncomingTextMessage message) {
     try {
       MultipartSmsTransportMessage transportMessage = new MultipartSmsTransportMessage(message);
 
       if      (transportMessage.isInvalid())    return message;
       else if (transportMessage.isSinglePart()) return processMessage(transportMessage);
-      else                                      return processLegacyMultipartMessage(transportMessage);
-      //return processSinglePartMessage(transportMessage);
+      else                                      return processMultipartMessage(transportMessage);
     } catch (IOException e) {
       Log.w(TAG, e);
       return message;
     }
   }
 
-  public synchronized String getEncodedMessage(OutgoingTextMessage message) {
+  public String getEncodedMessage(OutgoingTextMessage message) {
     String number     = message.getRecipients().getPrimaryRecipient().getNumber();
     byte   identifier = MultipartSmsIdentifier.getInstance().getIdForRecipient(number);
     return MultipartSmsTransportMessage.getEncodedMessage(message, identifier);
@@ -0,0 +1,175 @@
+package org.smssecure.smssecure.sms;
+
+import android.app.Activity;
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.SmsPartStatusDatabase;
+import org.smssecure.smssecure.database.SmsPartStatusDatabase.PartStatus;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Folds the sent and delivered callbacks the radio makes for every part of
+ * a multipart SMS into one result per message, so the message, its thread
+ * and the notifications are only updated once rather than once per part.
+ *
+ * A message counts as sent when every part has been sent, or as failed as
+ * soon as any part fails. It counts as delivered once every part has been
+ * delivered. Progress is kept in memory and written through to
+ * {@link SmsPartStatusDatabase}, so it survives the process being restarted
+ * between parts. A failed message stays tracked until it is sent again or
+ * ages out, so the callbacks of its remaining parts are swallowed. Callbacks
+ * for messages that were never registered with {@link #expect} are passed
+ * straight through. Every call to {@link #expect} starts a new attempt, and
+ * late callbacks that carry the number of an earlier attempt are dropped so
+ * they can't be counted against a retry. The callbacks are folded in by
+ * {@link org.smssecure.smssecure.jobs.SmsSentJob}, so that the database is
+ * never written from the receiver on the main thread.
+ */
+public class SmsStatusAggregator {
+
+  private static final String TAG = SmsStatusAggregator.class.getSimpleName();
+
+  private static final long MAX_AGE = TimeUnit.DAYS.toMillis(7);
+
+  private static SmsStatusAggregator instance;
+
+  private final SmsPartStatusDatabase database;
+  private final Map<Long, PartStatus> messages = new HashMap<>();
+
+  public static synchronized SmsStatusAggregator getInstance(Context context) {
+    if (instance == null) {
+      instance = new SmsStatusAggregator(DatabaseFactory.getSmsPartStatusDatabase(context));
+    }
+
+    return instance;
+  }
+
+  private SmsStatusAggregator(@NonNull SmsPartStatusDatabase database) {
+    this.database = database;
+  }
+
+  /**
+   * Starts tracking a message that is about to be handed to the radio,
+   * replacing whatever was left from an earlier attempt to send it.
+   *
+   * @return the attempt number the sent and delivered intents must carry.
+   */
+  public synchronized int expect(long messageId, int partCount, boolean deliveryExpected) {
+    long       now      = System.currentTimeMillis();
+    PartStatus previous = getStatus(messageId);
+    int        attempt  = previous == null ? 1 : previous.getAttempt() + 1;
+    PartStatus status   = new PartStatus(messageId, attempt, partCount, deliveryExpected, now);
+
+    pruneOlderThan(now - MAX_AGE);
+
+    messages.put(messageId, status);
+    database.insert(status);
+
+    return attempt;
+  }
+
+  /**
+   * @return the result to record for the whole message, or null while parts
+   *         are still outstanding or the result has already been reported.
+   */
+  public synchronized @Nullable Integer onSent(long messageId, int attempt, int result) {
+    PartStatus status = getStatus(messageId);
+
+    if (status == null)                      return result;
+    if (isStale(messageId, attempt, status)) return null;
+    if (status.isSentComplete())             return null;
+
+    if (result != Activity.RESULT_OK) {
+      Log.w(TAG, "Part of " + messageId + " failed: " + result);
+      status.setSentComplete();
+      update(messageId, status);
+      return result;
+    }
+
+    status.incrementSentCount();
+
+    if (status.getSentCount() >= status.getPartCount()) {
+      status.setSentComplete();
+      update(messageId, status);
+      return Activity.RESULT_OK;
+    }
+
+    update(messageId, status);
+    return null;
+  }
+
+  /**
+   * Called only for reports whose status is final and successful.
+   *
+   * @return true if this was the last outstanding delivery report for the
+   *         message.
+   */
+  public synchronized boolean onDelivered(long messageId, int attempt) {
+    PartStatus status = getStatus(messageId);
+
+    if (status == null)                      return true;
+    if (isStale(messageId, attempt, status)) return false;
+
+    if (status.getDeliveredCount() >= status.getPartCount()) {
+      return false;
+    }
+
+    status.incrementDeliveredCount();
+    update(messageId, status);
+
+    return status.getDeliveredCount() >= status.getPartCount();
+  }
+
+  private @Nullable PartStatus getStatus(long messageId) {
+    PartStatus status = messages.get(messageId);
+
+    if (status == null) {
+      status = database.get(messageId);
+      if (status != null) messages.put(messageId, status);
+    }
+
+    return status;
+  }
+
+  private boolean isStale(long messageId, int attempt, @NonNull PartStatus status) {
+    if (attempt != status.getAttempt()) {
+      Log.w(TAG, "Dropping callback of attempt " + attempt + " for " + messageId +
+                 ", now on attempt " + status.getAttempt());
+      return true;
+    }
+
+    return false;
+  }
+
+  private void update(long messageId, @NonNull PartStatus status) {
+    boolean delivered = status.getDeliveredCount() >= status.getPartCount();
+    boolean failed    = status.isSentComplete() && status.getSentCount() < status.getPartCount();
+
+    if (status.isSentComplete() && !failed && (delivered || !status.isDeliveryExpected())) {
+      messages.remove(messageId);
+      database.delete(messageId);
+    } else {
+      database.update(status);
+    }
+  }
+
+  private void pruneOlderThan(long timestamp) {
+    Iterator<PartStatus> iterator = messages.values().iterator();
+
+    while (iterator.hasNext()) {
+      if (iterator.next().getDateCreated() < timestamp) {
+        iterator.remove();
+      }
+    }
+
+    database.deleteOlderThan(timestamp);
+  }
+}
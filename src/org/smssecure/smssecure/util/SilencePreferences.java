@@ -100,6 +100,8 @@ public class SilencePreferences {
 
   public  static final String INCOGNITO_KEYBORAD_PREF          = "pref_incognito_keyboard";
 
+  private static final String CHUNKED_PARTS_UPGRADED_PREF      = "pref_chunked_parts_upgraded";
+
   public static boolean isIncognitoKeyboardEnabled(Context context) {
     return getBooleanPreference(context, INCOGNITO_KEYBORAD_PREF, true);
   }
@@ -157,6 +159,14 @@ public class SilencePreferences {
     setBooleanPreference(context, SIGNED_PREKEY_REGISTERED_PREF, value);
   }
 
+  public static boolean isChunkedPartsUpgraded(Context context) {
+    return getBooleanPreference(context, CHUNKED_PARTS_UPGRADED_PREF, false);
+  }
+
+  public static void setChunkedPartsUpgraded(Context context, boolean value) {
+    setBooleanPreference(context, CHUNKED_PARTS_UPGRADED_PREF, value);
+  }
+
   public static void setGcmRegistrationId(Context context, String registrationId) {
     setStringPreference(context, GCM_REGISTRATION_ID_PREF, registrationId);
     setIntegerPrefrence(context, GCM_REGISTRATION_ID_VERSION_PREF, Util.getCurrentApkReleaseVersion(context));
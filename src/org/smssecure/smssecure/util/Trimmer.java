@@ -2,64 +2,70 @@ package org.smssecure.smssecure.util;
 
 import android.app.ProgressDialog;
 import android.content.Context;
-import android.os.AsyncTask;
+import android.content.DialogInterface;
 import android.widget.Toast;
 
+import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.Subscribe;
+import org.greenrobot.eventbus.ThreadMode;
+import org.smssecure.smssecure.ApplicationContext;
 import org.smssecure.smssecure.R;
-import org.smssecure.smssecure.database.DatabaseFactory;
-import org.smssecure.smssecure.database.ThreadDatabase;
+import org.smssecure.smssecure.events.TrimProgressEvent;
+import org.smssecure.smssecure.jobs.TrimThreadJob;
 
 public class Trimmer {
 
   public static void trimAllThreads(Context context, int threadLengthLimit) {
-    new TrimmingProgressTask(context).execute(threadLengthLimit);
+    new TrimmingProgressDialog(context).show();
+    ApplicationContext.getInstance(context)
+                      .getJobManager()
+                      .add(TrimThreadJob.forAllThreads(context, threadLengthLimit));
   }
 
-  private static class TrimmingProgressTask extends AsyncTask<Integer, Integer, Void> implements ThreadDatabase.ProgressListener {
-    private ProgressDialog progressDialog;
-    private Context context;
+  public static class TrimmingProgressDialog {
+    private final Context        context;
+    private final ProgressDialog progressDialog;
 
-    public TrimmingProgressTask(Context context) {
-      this.context = context;
-    }
-
-    @Override
-    protected void onPreExecute() {
-      progressDialog = new ProgressDialog(context);
+    public TrimmingProgressDialog(Context context) {
+      this.context        = context;
+      this.progressDialog = new ProgressDialog(context);
       progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
       progressDialog.setCancelable(false);
       progressDialog.setIndeterminate(false);
       progressDialog.setTitle(R.string.trimmer__deleting);
       progressDialog.setMessage(context.getString(R.string.trimmer__deleting_old_messages));
       progressDialog.setMax(100);
-      progressDialog.show();
-    }
-
-    @Override
-    protected Void doInBackground(Integer... params) {
-      DatabaseFactory.getThreadDatabase(context).trimAllThreads(params[0], this);
-      return null;
+      progressDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+        @Override
+        public void onDismiss(DialogInterface dialog) {
+          EventBus.getDefault().unregister(TrimmingProgressDialog.this);
+        }
+      });
     }
 
-    @Override
-    protected void onProgressUpdate(Integer... progress) {
-      double count = progress[1];
-      double index = progress[0];
-
-      progressDialog.setProgress((int)Math.round((index / count) * 100.0));
+    public void show() {
+      EventBus.getDefault().register(this);
+      progressDialog.show();
     }
 
-    @Override
-    protected void onPostExecute(Void result) {
-      progressDialog.dismiss();
-      Toast.makeText(context,
-                     R.string.trimmer__old_messages_successfully_deleted,
-                     Toast.LENGTH_LONG).show();
-    }
+    @Subscribe(threadMode = ThreadMode.MAIN)
+    public void onEventMainThread(TrimProgressEvent event) {
+      if (event.failed) {
+        progressDialog.dismiss();
+        Toast.makeText(context,
+                       R.string.trimmer__old_messages_could_not_be_deleted,
+                       Toast.LENGTH_LONG).show();
+      } else if (event.isFinished()) {
+        progressDialog.dismiss();
+        Toast.makeText(context,
+                       R.string.trimmer__old_messages_successfully_deleted,
+                       Toast.LENGTH_LONG).show();
+      } else {
+        double count = event.total;
+        double index = event.complete;
 
-    @Override
-    public void onProgress(int complete, int total) {
-      this.publishProgress(complete, total);
+        progressDialog.setProgress((int)Math.round((index / count) * 100.0));
+      }
     }
   }
 }
@@ -26,8 +26,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 public class PduComposer {
     /**
@@ -107,6 +110,27 @@ public class PduComposer {
      */
     private final ContentResolver mResolver;
 
+    /**
+     * Opens the data of parts that only have a data uri.
+     */
+    private PartDataSource mPartDataSource = null;
+
+    /**
+     * The composed message: header chunks (byte[]) interleaved with the
+     * part bodies (PartData) that are streamed in when it's written out.
+     */
+    private List<Object> mSegments = null;
+
+    /**
+     * Total length of the composed message.
+     */
+    private long mLength = 0;
+
+    /**
+     * Result of the first pass, PDU_COMPOSE_SUCCESS once composed.
+     */
+    private int mComposeResult = -1;
+
     /**
      * Header of this pdu.
      */
@@ -149,38 +173,247 @@ public class PduComposer {
      *         the PDU is invalid.
      */
     public byte[] make() {
+        if (!compose()) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) mLength);
+
+        try {
+            writeSegments(out);
+        } catch (IOException e) {
+            Log.w("PduComposer", e);
+            return null;
+        }
+
+        Log.w("PduComposer", "Returning: " + out.size() + " bytes...");
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Make the message and write it to a stream, reading the body of each
+     * part only as it is written so that no part is held in memory. May be
+     * called again to write the same message once more.
+     *
+     * @param out the stream to write to, left open
+     * @return false if the PDU is invalid
+     * @throws IOException if part data can't be read or the stream can't be written
+     */
+    public boolean make(OutputStream out) throws IOException {
+        if (!compose()) {
+            return false;
+        }
+
+        Log.w("PduComposer", "Writing: " + mLength + " bytes...");
+
+        writeSegments(out);
+        return true;
+    }
+
+    /**
+     * Set the source to read the data of parts that have a data uri but no
+     * data from. Without one, the data uri is opened through the content
+     * resolver.
+     */
+    public void setPartDataSource(PartDataSource source) {
+        mPartDataSource = source;
+    }
+
+    /**
+     * Opens the data of a part for the composer.
+     */
+    public interface PartDataSource {
+        InputStream open(PduPart part) throws IOException;
+
+        /**
+         * @return the length of the data {@link #open} returns, or -1 if it
+         *         isn't known without reading the data.
+         */
+        long getLength(PduPart part);
+    }
+
+    /**
+     * First pass: encode the headers and work out the length of every part,
+     * without keeping any part data.
+     */
+    private boolean compose() {
+        if (mComposeResult != -1) {
+            return mComposeResult == PDU_COMPOSE_SUCCESS;
+        }
+
+        mSegments = new ArrayList<Object>();
+
         // Get Message-type.
         int type = mPdu.getMessageType();
 
         /* make the message */
         switch (type) {
             case PduHeaders.MESSAGE_TYPE_SEND_REQ:
-                if (makeSendReqPdu() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
+                mComposeResult = makeSendReqPdu();
                 break;
             case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
-                if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
+                mComposeResult = makeNotifyResp();
                 break;
             case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
-                if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
+                mComposeResult = makeAckInd();
                 break;
             case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
-                if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
+                mComposeResult = makeReadRecInd();
                 break;
             default:
-                return null;
+                mComposeResult = PDU_COMPOSE_FIELD_NOT_SUPPORTED;
+        }
+
+        if (mComposeResult != PDU_COMPOSE_SUCCESS) {
+            mSegments = null;
+            return false;
         }
 
-        Log.w("PduComposer", "Returning: " + mMessage.size() + " bytes...");
+        endSegment();
+        mMessage = null;
 
-        return mMessage.toByteArray();
+        return true;
+    }
+
+    /**
+     * Second pass: write out the header chunks and stream in the part data.
+     */
+    private void writeSegments(OutputStream out) throws IOException {
+        byte[] buffer = null;
+
+        for (Object segment : mSegments) {
+            if (segment instanceof byte[]) {
+                out.write((byte[]) segment);
+                continue;
+            }
+
+            PartData partData = (PartData) segment;
+            byte[]   data     = partData.part.getData();
+
+            if (data != null) {
+                out.write(data);
+                continue;
+            }
+
+            if (buffer == null) {
+                buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            }
+
+            InputStream in      = openPartData(partData.part);
+            long        written = 0;
+
+            try {
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    written += len;
+                    if (written > partData.length) {
+                        break;
+                    }
+                    out.write(buffer, 0, len);
+                }
+            } finally {
+                in.close();
+            }
+
+            if (written != partData.length) {
+                throw new IOException("Part data changed length while composing");
+            }
+        }
+    }
+
+    /**
+     * Close the header chunk being built and start a new one.
+     */
+    private void endSegment() {
+        if (mMessage.size() > 0) {
+            mSegments.add(mMessage.toByteArray());
+            mLength += mMessage.size();
+        }
+
+        mMessage = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Add a part body to the message. It is only read when the message is
+     * written out, so this has to happen at the top level of the buffer stack.
+     */
+    private void appendPartData(PduPart part, long dataLength) {
+        if (mStack.stackSize != 0) {
+            throw new RuntimeException("BUG: Part data appended inside a length record");
+        }
+
+        endSegment();
+        mSegments.add(new PartData(part, dataLength));
+        mLength   += dataLength;
+        mPosition += dataLength;
+    }
+
+    private InputStream openPartData(PduPart part) throws IOException {
+        InputStream in = (mPartDataSource != null) ? mPartDataSource.open(part)
+                                                   : mResolver.openInputStream(part.getDataUri());
+
+        if (in == null) {
+            throw new FileNotFoundException("No data for part " + part.getDataUri());
+        }
+
+        return in;
+    }
+
+    /**
+     * @return the length of the part data, taken from the part data source
+     *         when it knows it and otherwise by reading the data through
+     *         once, or -1 if it can't be read.
+     */
+    private long getPartDataLength(PduPart part) {
+        byte[] partData = part.getData();
+
+        if (partData != null) {
+            return partData.length;
+        }
+
+        if (mPartDataSource != null) {
+            long length = mPartDataSource.getLength(part);
+            if (length >= 0) {
+                return length;
+            }
+        }
+
+        try {
+            InputStream in     = openPartData(part);
+            byte[]      buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            long        length = 0;
+
+            try {
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    length += len;
+                }
+            } finally {
+                in.close();
+            }
+
+            return length;
+        } catch (IOException e) {
+            Log.w("PduComposer", e);
+            return -1;
+        } catch (RuntimeException e) {
+            Log.w("PduComposer", e);
+            return -1;
+        }
+    }
+
+    /**
+     * A part body, by reference.
+     */
+    static private class PartData {
+        final PduPart part;
+        final long length;
+
+        PartData(PduPart part, long length) {
+            this.part = part;
+            this.length = length;
+        }
     }
 
     /**
@@ -983,40 +1216,18 @@ public class PduComposer {
             // content
             int headerLength = attachment.getLength();
 
-            int dataLength = 0; // Just for safety...
-            byte[] partData = part.getData();
-
-            if (partData != null) {
-                arraycopy(partData, 0, partData.length);
-                dataLength = partData.length;
-            } else {
-                InputStream cr;
-                try {
-                    byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
-                    cr = mResolver.openInputStream(part.getDataUri());
-                    int len = 0;
-                    while ((len = cr.read(buffer)) != -1) {
-                        mMessage.write(buffer, 0, len);
-                        mPosition += len;
-                        dataLength += len;
-                    }
-                } catch (FileNotFoundException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
-                } catch (IOException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
-                } catch (RuntimeException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
-                }
-            }
-
-            if (dataLength != (attachment.getLength() - headerLength)) {
-                throw new RuntimeException("BUG: Length sanity check failed");
+            // Only the length is needed now, the data is written out later.
+            long dataLength = getPartDataLength(part);
+            if (dataLength < 0) {
+                return PDU_COMPOSE_CONTENT_ERROR;
             }
 
             mStack.pop();
             appendUintvarInteger(headerLength);
             appendUintvarInteger(dataLength);
             mStack.copy();
+
+            appendPartData(part, dataLength);
         }
 
         return PDU_COMPOSE_SUCCESS;
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2007-2008 Esmertec AG.
+ * Copyright (C) 2007-2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.com.google.android.mms.pdu;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered input for {@link PduParser} over any InputStream.
+ *
+ * Behaves like the ByteArrayInputStream the parser was written against:
+ * reads never throw, mark/reset is always honoured for short look-aheads,
+ * and available() counts down as bytes are consumed, so the parser can keep
+ * using it to measure how far it has read. An I/O error is logged, remembered
+ * and then reported as end of stream.
+ */
+public class PduInputStream extends InputStream {
+
+    private static final String LOG_TAG = "PduInputStream";
+
+    private static final int BUFFER_SIZE    = 8192;
+    private static final int MIN_MARK_LIMIT = 1024;
+
+    private final InputStream mIn;
+    private final long        mLength;
+
+    private byte[] mBuffer    = new byte[BUFFER_SIZE];
+    private int    mPos       = 0;
+    private int    mCount     = 0;
+    private int    mMarkPos   = -1;
+    private int    mMarkLimit = 0;
+    private long   mPosition  = 0;
+    private long   mMarkPosition;
+
+    private IOException mError;
+
+    /**
+     * @param in     the PDU data
+     * @param length the number of bytes in the PDU, or -1 if unknown
+     */
+    public PduInputStream(InputStream in, long length) {
+        mIn     = in;
+        mLength = length;
+    }
+
+    /**
+     * @return the I/O error that ended the stream early, or null if none.
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * @return the number of bytes consumed so far.
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public int read() {
+        if (mPos >= mCount && !fill()) {
+            return -1;
+        }
+
+        mPosition++;
+        return mBuffer[mPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (mPos >= mCount && !fill()) {
+            return -1;
+        }
+
+        int read = Math.min(len, mCount - mPos);
+        System.arraycopy(mBuffer, mPos, b, off, read);
+
+        mPos      += read;
+        mPosition += read;
+        return read;
+    }
+
+    /**
+     * Reads until len bytes have been read or the stream ends.
+     *
+     * @return the number of bytes read
+     */
+    public int readFully(byte[] b, int off, int len) {
+        int total = 0;
+
+        while (total < len) {
+            int read = read(b, off + total, len - total);
+            if (read == -1) break;
+            total += read;
+        }
+
+        return total;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = 0;
+
+        while (skipped < n) {
+            if (mPos >= mCount && !fill()) {
+                break;
+            }
+
+            int step = (int) Math.min(n - skipped, mCount - mPos);
+            mPos      += step;
+            mPosition += step;
+            skipped   += step;
+        }
+
+        return skipped;
+    }
+
+    /**
+     * Returns the bytes left in the PDU. When the length isn't known this is
+     * zero at the end of the stream and otherwise a large value that still
+     * decreases by one for every byte read.
+     */
+    @Override
+    public int available() {
+        if (mLength >= 0) {
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE, mLength - mPosition));
+        }
+
+        if (mPos >= mCount && !fill()) {
+            return 0;
+        }
+
+        return (int) Math.max(1, Integer.MAX_VALUE - mPosition);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        mMarkPos      = mPos;
+        mMarkLimit    = Math.max(readLimit, MIN_MARK_LIMIT);
+        mMarkPosition = mPosition;
+    }
+
+    @Override
+    public void reset() {
+        if (mMarkPos < 0) {
+            throw new IllegalStateException("Mark invalid or not set");
+        }
+
+        mPos      = mMarkPos;
+        mPosition = mMarkPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private boolean fill() {
+        if (mError != null) {
+            return false;
+        }
+
+        if (mMarkPos < 0 || mPos - mMarkPos >= mMarkLimit) {
+            mMarkPos = -1;
+            mPos     = 0;
+            mCount   = 0;
+        } else if (mMarkPos > 0) {
+            System.arraycopy(mBuffer, mMarkPos, mBuffer, 0, mCount - mMarkPos);
+            mCount  -= mMarkPos;
+            mPos    -= mMarkPos;
+            mMarkPos = 0;
+        } else if (mCount == mBuffer.length) {
+            byte[] grown = new byte[mBuffer.length * 2];
+            System.arraycopy(mBuffer, 0, grown, 0, mCount);
+            mBuffer = grown;
+        }
+
+        try {
+            int read = mIn.read(mBuffer, mCount, mBuffer.length - mCount);
+
+            if (read <= 0) {
+                return false;
+            }
+
+            mCount += read;
+            return true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+            mError = e;
+            return false;
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package ws.com.google.android.mms.pdu;
 
 import android.content.res.Resources;
+import android.net.Uri;
 import android.util.Log;
 
 import ws.com.google.android.mms.ContentType;
@@ -25,6 +26,8 @@ import ws.com.google.android.mms.InvalidHeaderValueException;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -57,7 +60,12 @@ public class PduParser {
     /**
      * The pdu data.
      */
-    private ByteArrayInputStream mPduDataStream = null;
+    private PduInputStream mPduDataStream = null;
+
+    /**
+     * Receives large part bodies as they are read, if set.
+     */
+    private PartDataSink mPartDataSink = null;
 
     /**
      * Store pdu headers
@@ -72,12 +80,12 @@ public class PduParser {
     /**
      * Store the "type" parameter in "Content-Type" header field.
      */
-    private static byte[] mTypeParam = null;
+    private byte[] mTypeParam = null;
 
     /**
      * Store the "start" parameter in "Content-Type" header field.
      */
-    private static byte[] mStartParam = null;
+    private byte[] mStartParam = null;
 
     /**
      * The log tag.
@@ -91,7 +99,29 @@ public class PduParser {
      * @param pduDataStream pdu data to be parsed
      */
     public PduParser(byte[] pduDataStream) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        this(new ByteArrayInputStream(pduDataStream), pduDataStream.length);
+    }
+
+    /**
+     * Constructor for parsing a pdu as it is read, without first copying it
+     * into memory.
+     *
+     * @param pduDataStream pdu data to be parsed
+     * @param length length of the pdu in bytes, or -1 if unknown
+     */
+    public PduParser(InputStream pduDataStream, long length) {
+        mPduDataStream = new PduInputStream(pduDataStream, length);
+    }
+
+    /**
+     * Set a sink to stream part bodies into instead of reading them into
+     * memory. The sink is offered each part that isn't multipart and has
+     * no content transfer encoding.
+     *
+     * @param sink the sink, or null to keep all part data in memory
+     */
+    public void setPartDataSink(PartDataSink sink) {
+        mPartDataSink = sink;
     }
 
     /**
@@ -106,6 +136,16 @@ public class PduParser {
             return null;
         }
 
+        GenericPdu pdu = parsePdu();
+
+        if (null == pdu && null != mPduDataStream.getError()) {
+            log("Reading the pdu failed: " + mPduDataStream.getError());
+        }
+
+        return pdu;
+    }
+
+    private GenericPdu parsePdu() {
         /* parse headers */
         mHeaders = parseHeaders(mPduDataStream);
         if (null == mHeaders) {
@@ -202,7 +242,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return headers in PduHeaders structure, null when parse fail
      */
-    protected PduHeaders parseHeaders(ByteArrayInputStream pduDataStream){
+    protected PduHeaders parseHeaders(PduInputStream pduDataStream){
         if (pduDataStream == null) {
             return null;
         }
@@ -734,7 +774,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return parts in PduBody structure
      */
-    protected static PduBody parseParts(ByteArrayInputStream pduDataStream) {
+    protected PduBody parseParts(PduInputStream pduDataStream) {
         if (pduDataStream == null) {
             return null;
         }
@@ -799,15 +839,29 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
                 if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
-                    // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
+                    // parse "multipart/vnd.wap.multipart.alternative" in place.
+                    int dataStart = pduDataStream.available();
+                    PduBody childBody = parseParts(pduDataStream);
+                    int consumed = dataStart - pduDataStream.available();
+                    if ((null == childBody) || (consumed > dataLength) ||
+                            (pduDataStream.skip(dataLength - consumed) < dataLength - consumed)) {
+                        return null;
+                    }
                     // take the first part of children.
                     part = childBody.getPart(0);
+                } else if ((null == part.getContentTransferEncoding()) &&
+                        (null != mPartDataSink) && mPartDataSink.accept(part, dataLength)) {
+                    // Stream the body out rather than holding it on the heap.
+                    if (false == streamPartData(pduDataStream, part, dataLength)) {
+                        return null;
+                    }
                 } else {
+                    byte[] partData = new byte[dataLength];
+                    if (pduDataStream.readFully(partData, 0, dataLength) < dataLength) {
+                        log("Part data is truncated!");
+                    }
                     // Check Content-Transfer-Encoding.
                     byte[] partDataEncoding = part.getContentTransferEncoding();
                     if (null != partDataEncoding) {
@@ -843,6 +897,93 @@ public class PduParser {
         return body;
     }
 
+    /**
+     * Hand a part body to the part data sink.
+     *
+     * @param pduDataStream pdu data input stream, positioned at the part body
+     * @param part the part the body belongs to
+     * @param dataLength length of the part body
+     * @return true if the whole body was stored, false otherwise
+     */
+    private boolean streamPartData(PduInputStream pduDataStream, PduPart part, int dataLength) {
+        int dataStart = pduDataStream.available();
+
+        try {
+            part.setDataUri(mPartDataSink.write(part, new PartDataInputStream(pduDataStream, dataLength), dataLength));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+            return false;
+        }
+
+        int consumed = dataStart - pduDataStream.available();
+        return pduDataStream.skip(dataLength - consumed) == dataLength - consumed;
+    }
+
+    /**
+     * Receives part bodies from the parser as they are read.
+     */
+    public interface PartDataSink {
+        /**
+         * @return true if the body of this part should be streamed to {@link #write}
+         */
+        boolean accept(PduPart part, int dataLength);
+
+        /**
+         * Store a part body. The stream is only valid for the length of the call.
+         *
+         * @return the uri the body can be read back from
+         */
+        Uri write(PduPart part, InputStream data, int dataLength) throws IOException;
+    }
+
+    /**
+     * A view of the next bytes of the pdu, limited to a single part body.
+     */
+    private static class PartDataInputStream extends InputStream {
+        private final PduInputStream mPduDataStream;
+        private int mRemaining;
+
+        PartDataInputStream(PduInputStream pduDataStream, int length) {
+            mPduDataStream = pduDataStream;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+
+            int b = mPduDataStream.read();
+            if (b == -1) {
+                throw new IOException("Part data is truncated");
+            }
+
+            mRemaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+
+            int read = mPduDataStream.read(b, off, Math.min(len, mRemaining));
+            if (read == -1) {
+                throw new IOException("Part data is truncated");
+            }
+
+            mRemaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return mRemaining;
+        }
+    }
+
     /**
      * Log status.
      *
@@ -860,7 +1001,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer, -1 when failed
      */
-    protected static int parseUnsignedInt(ByteArrayInputStream pduDataStream) {
+    protected static int parseUnsignedInt(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * The maximum size of a uintvar is 32 bits.
@@ -894,7 +1035,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer
      */
-    protected static int parseValueLength(ByteArrayInputStream pduDataStream) {
+    protected static int parseValueLength(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Value-length = Short-length | (Length-quote Length)
@@ -923,7 +1064,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the EncodedStringValue
      */
-    protected static EncodedStringValue parseEncodedStringValue(ByteArrayInputStream pduDataStream){
+    protected static EncodedStringValue parseEncodedStringValue(PduInputStream pduDataStream){
         /**
          * From OMA-TS-MMS-ENC-V1_3-20050927-C.pdf
          * Encoded-string-value = Text-string | Value-length Char-set Text-string
@@ -968,7 +1109,7 @@ public class PduParser {
      * @param stringType TYPE_TEXT_STRING or TYPE_QUOTED_STRING
      * @return the string without End-of-string in byte array
      */
-    protected static byte[] parseWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseWapString(PduInputStream pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
         /**
@@ -1090,7 +1231,7 @@ public class PduParser {
         return false;
     }
 
-    protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] getWapString(PduInputStream pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -1125,7 +1266,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int extractByteValue(ByteArrayInputStream pduDataStream) {
+    protected static int extractByteValue(PduInputStream pduDataStream) {
         assert(null != pduDataStream);
         int temp = pduDataStream.read();
         assert(-1 != temp);
@@ -1138,7 +1279,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int parseShortInteger(ByteArrayInputStream pduDataStream) {
+    protected static int parseShortInteger(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Short-integer = OCTET
@@ -1158,7 +1299,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseLongInteger(ByteArrayInputStream pduDataStream) {
+    protected static long parseLongInteger(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Long-integer = Short-length Multi-octet-integer
@@ -1196,7 +1337,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseIntegerValue(ByteArrayInputStream pduDataStream) {
+    protected static long parseIntegerValue(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Integer-Value = Short-integer | Long-integer
@@ -1220,14 +1361,13 @@ public class PduParser {
      * @param length area size
      * @return the values in this area
      */
-    protected static int skipWapValue(ByteArrayInputStream pduDataStream, int length) {
+    protected static int skipWapValue(PduInputStream pduDataStream, int length) {
         assert(null != pduDataStream);
-        byte[] area = new byte[length];
-        int readLen = pduDataStream.read(area, 0, length);
-        if (readLen < length) { //The actually read length is lower than the length
+        long skipLen = pduDataStream.skip(length);
+        if (skipLen < length) { //The actually skipped length is lower than the length
             return -1;
         } else {
-            return readLen;
+            return (int) skipLen;
         }
     }
 
@@ -1239,7 +1379,7 @@ public class PduParser {
      * @param map to store parameters of Content-Type field
      * @param length length of all the parameters
      */
-    protected static void parseContentTypeParams(ByteArrayInputStream pduDataStream,
+    protected static void parseContentTypeParams(PduInputStream pduDataStream,
             HashMap<Integer, Object> map, Integer length) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1422,7 +1562,7 @@ public class PduParser {
      * @param map to store parameters in Content-Type header field
      * @return Content-Type value
      */
-    protected static byte[] parseContentType(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseContentType(PduInputStream pduDataStream,
             HashMap<Integer, Object> map) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1493,7 +1633,7 @@ public class PduParser {
      * @param length length of the headers
      * @return true if parse successfully, false otherwise
      */
-    protected static boolean parsePartHeaders(ByteArrayInputStream pduDataStream,
+    protected static boolean parsePartHeaders(PduInputStream pduDataStream,
             PduPart part, int length) {
         assert(null != pduDataStream);
         assert(null != part);
@@ -1609,8 +1749,7 @@ public class PduParser {
                                 thisEndPos = pduDataStream.available();
                                 if (thisStartPos - thisEndPos < len) {
                                     int last = len - (thisStartPos - thisEndPos);
-                                    byte[] temp = new byte[last];
-                                    pduDataStream.read(temp, 0, last);
+                                    pduDataStream.skip(last);
                                 }
                             }
 
@@ -1670,7 +1809,7 @@ public class PduParser {
      * @return part position, THE_FIRST_PART when it's the
      * first one, THE_LAST_PART when it's the last one.
      */
-    private static int checkPartPosition(PduPart part) {
+    private int checkPartPosition(PduPart part) {
         assert(null != part);
         if ((null == mTypeParam) &&
                 (null == mStartParam)) {
@@ -0,0 +1,202 @@
+package org.smssecure.smssecure.components.emoji.parsing;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.smssecure.smssecure.components.emoji.EmojiPageModel;
+import org.smssecure.smssecure.components.emoji.EmojiPages;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EmojiParserTest {
+
+  private static final String GRINNING = "\ud83d\ude00";
+  private static final String THUMBS   = "\ud83d\udc4d";
+  private static final String TONE_5   = "\ud83c\udffe";
+  private static final String FLAG_US  = "\ud83c\uddfa\ud83c\uddf8";
+  private static final String SMILE    = "\u263a";
+
+  private EmojiTree       tree;
+  private ReferenceParser reference;
+
+  @Before public void setUp() {
+    tree      = new EmojiTree();
+    reference = new ReferenceParser();
+
+    for (EmojiPageModel page : EmojiPages.PAGES) {
+      if (!page.hasSpriteMap()) continue;
+
+      for (int i = 0; i < page.getEmoji().length; i++) {
+        EmojiDrawInfo drawInfo = new EmojiDrawInfo(null, i);
+
+        tree.add(page.getEmoji()[i], drawInfo);
+        reference.add(page.getEmoji()[i], drawInfo);
+      }
+    }
+  }
+
+  @Test public void testPlainText() {
+    assertTrue(new EmojiParser(tree).findCandidates(null).isEmpty());
+    assertTrue(new EmojiParser(tree).findCandidates("").isEmpty());
+    assertTrue(new EmojiParser(tree).findCandidates("no emoji here, 123").isEmpty());
+  }
+
+  @Test public void testCandidates() {
+    String                      text       = "a" + GRINNING + "bc" + THUMBS + TONE_5 + FLAG_US + " " + SMILE;
+    List<EmojiParser.Candidate> candidates = new EmojiParser(tree).findCandidates(text);
+
+    assertEquals(4, candidates.size());
+    assertCandidate(candidates.get(0), 1, 3, GRINNING);
+    assertCandidate(candidates.get(1), 5, 9, THUMBS);
+    assertCandidate(candidates.get(2), 9, 13, FLAG_US);
+    assertCandidate(candidates.get(3), 14, 15, SMILE);
+  }
+
+  @Test public void testLoneHalves() {
+    assertTrue(new EmojiParser(tree).findCandidates("\ud83d").isEmpty());
+    assertTrue(new EmojiParser(tree).findCandidates("\ud83c\uddfa").isEmpty());
+    assertNull(tree.getEmoji("\ud83d", 0, 1));
+  }
+
+  @Test public void testMatchesReference() {
+    String text = buildText(2000);
+
+    assertEquals(describe(reference.findCandidates(text)), describe(new EmojiParser(tree).findCandidates(text)));
+  }
+
+  /**
+   * Checks the parser is no slower than the one it replaced. Timings aren't
+   * reliable enough for the normal suite, so it is only run by hand.
+   */
+  @Ignore("benchmark, run by hand")
+  @Test public void testBenchmark() {
+    String      text   = buildText(4000);
+    EmojiParser parser = new EmojiParser(tree);
+
+    for (int i = 0; i < 50; i++) {
+      parser.findCandidates(text);
+      reference.findCandidates(text);
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < 200; i++) parser.findCandidates(text);
+    long trie = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < 200; i++) reference.findCandidates(text);
+    long hashMap = System.nanoTime() - start;
+
+    assertTrue("EmojiParser: " + (trie / 200 / 1000) + "us per parse, " +
+               "previous parser: " + (hashMap / 200 / 1000) + "us per parse", trie <= hashMap);
+  }
+
+  private void assertCandidate(EmojiParser.Candidate candidate, int start, int end, String emoji) {
+    assertEquals(start, candidate.getStartIndex());
+    assertEquals(end, candidate.getEndIndex());
+    assertSame(tree.getEmoji(emoji, 0, emoji.length()), candidate.getDrawInfo());
+  }
+
+  private String buildText(int parts) {
+    String[]      emoji   = EmojiPages.PAGES.get(1).getEmoji();
+    StringBuilder builder = new StringBuilder();
+
+    for (int i = 0; i < parts; i++) {
+      switch (i % 4) {
+        case 0:  builder.append("some text, "); break;
+        case 1:  builder.append(emoji[i % emoji.length]); break;
+        case 2:  builder.append(THUMBS).append(TONE_5); break;
+        default: builder.append(FLAG_US).append(SMILE).append(' '); break;
+      }
+    }
+
+    return builder.toString();
+  }
+
+  private static String describe(List<EmojiParser.Candidate> candidates) {
+    StringBuilder builder = new StringBuilder();
+
+    for (EmojiParser.Candidate candidate : candidates) {
+      builder.append(candidate.getStartIndex()).append('-')
+             .append(candidate.getEndIndex()).append(':')
+             .append(candidate.getDrawInfo().getIndex()).append(' ');
+    }
+
+    return builder.toString();
+  }
+
+  /**
+   * The HashMap tree and per-offset probing this parser replaced.
+   */
+  private static class ReferenceParser {
+
+    private final Node root = new Node();
+
+    void add(String emoji, EmojiDrawInfo drawInfo) {
+      Node node = root;
+
+      for (char c : emoji.toCharArray()) {
+        if (!node.children.containsKey(c)) node.children.put(c, new Node());
+        node = node.children.get(c);
+      }
+
+      node.drawInfo = drawInfo;
+    }
+
+    List<EmojiParser.Candidate> findCandidates(CharSequence text) {
+      List<EmojiParser.Candidate> results = new LinkedList<>();
+
+      for (int i = 0; i < text.length(); i++) {
+        int emojiEnd = getEmojiEndPos(text, i);
+
+        if (emojiEnd != -1) {
+          EmojiDrawInfo drawInfo = walk(text, i, emojiEnd).drawInfo;
+
+          if (emojiEnd + 2 <= text.length() && Fitzpatrick.fitzpatrickFromUnicode(text, emojiEnd) != null) {
+            emojiEnd += 2;
+          }
+
+          results.add(new EmojiParser.Candidate(i, emojiEnd, drawInfo));
+          i = emojiEnd - 1;
+        }
+      }
+
+      return results;
+    }
+
+    private int getEmojiEndPos(CharSequence text, int start) {
+      int best = -1;
+
+      for (int j = start + 1; j <= text.length(); j++) {
+        Node node = walk(text, start, j);
+
+        if      (node == null)          return best;
+        else if (node.drawInfo != null) best = j;
+      }
+
+      return best;
+    }
+
+    private Node walk(CharSequence text, int start, int end) {
+      Node node = root;
+
+      for (int i = start; i < end && node != null; i++) {
+        node = node.children.get(text.charAt(i));
+      }
+
+      return node;
+    }
+
+    private static class Node {
+      private final Map<Character, Node> children = new HashMap<>();
+      private       EmojiDrawInfo        drawInfo;
+    }
+  }
+}
@@ -6,6 +6,12 @@ import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.smssecure.smssecure.BaseUnitTest;
 import org.whispersystems.libsignal.InvalidMessageException;
 
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
 @PowerMockIgnore("javax.crypto.*")
 public class MasterCipherTest extends BaseUnitTest {
   private MasterCipher masterCipher;
@@ -21,4 +27,40 @@ public class MasterCipherTest extends BaseUnitTest {
   public void testEncryptBytesWithZeroBody() throws Exception {
     masterCipher.decryptBytes(new byte[]{});
   }
+
+  @Test
+  public void testEncryptDecryptRoundTrip() throws Exception {
+    byte[] plaintext = "a message longer than a single cipher block".getBytes();
+    byte[] encrypted = masterCipher.encryptBytes(plaintext);
+
+    assertTrue(Arrays.equals(plaintext, masterCipher.decryptBytes(encrypted)));
+  }
+
+  @Test
+  public void testDecryptIntoSuppliedBuffer() throws Exception {
+    byte[] plaintext = "hello".getBytes();
+    byte[] encrypted = masterCipher.encryptBytes(plaintext);
+    byte[] input     = new byte[encrypted.length + 3];
+    byte[] output    = new byte[MasterCipher.getMaxDecryptedLength(encrypted.length) + 2];
+
+    System.arraycopy(encrypted, 0, input, 3, encrypted.length);
+
+    int length = masterCipher.decryptBytes(input, 3, encrypted.length, output, 2);
+
+    assertEquals(plaintext.length, length);
+    assertTrue(Arrays.equals(plaintext, Arrays.copyOfRange(output, 2, 2 + length)));
+  }
+
+  @Test(expected = InvalidMessageException.class)
+  public void testDecryptWithBadMac() throws Exception {
+    byte[] encrypted = masterCipher.encryptBytes("hello".getBytes());
+    encrypted[encrypted.length - 1] ^= 0x01;
+
+    masterCipher.decryptBytes(encrypted);
+  }
+
+  @Test
+  public void testSharedInstance() {
+    assertSame(MasterCipher.getInstance(masterSecret), MasterCipher.getInstance(masterSecret));
+  }
 }
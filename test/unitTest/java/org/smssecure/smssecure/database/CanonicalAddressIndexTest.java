@@ -0,0 +1,54 @@
+package org.smssecure.smssecure.database;
+
+import org.junit.Test;
+import org.smssecure.smssecure.BaseUnitTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CanonicalAddressIndexTest extends BaseUnitTest {
+
+  @Test public void testLookupBothWays() {
+    CanonicalAddressIndex index = new CanonicalAddressIndex();
+
+    assertNull(index.getAddress(1));
+    assertEquals(-1L, index.getId("+15555550101"));
+
+    index.put(1, "+15555550101");
+    index.put(2, "a@b.com");
+
+    assertEquals("+15555550101", index.getAddress(1));
+    assertEquals("a@b.com", index.getAddress(2));
+    assertEquals(1L, index.getId("+15555550101"));
+    assertEquals(2L, index.getId("a@b.com"));
+  }
+
+  @Test public void testGrowsAndRemoves() {
+    CanonicalAddressIndex index = new CanonicalAddressIndex();
+
+    for (int i = 1; i <= 5000; i++) {
+      index.put(i, "+1555" + i);
+    }
+
+    for (int i = 1; i <= 5000; i += 2) {
+      index.removeAddress("+1555" + i);
+    }
+
+    for (int i = 1; i <= 5000; i++) {
+      assertEquals("+1555" + i, index.getAddress(i));
+      assertEquals(i % 2 == 0 ? i : -1L, index.getId("+1555" + i));
+    }
+  }
+
+  @Test public void testRewrittenAddress() {
+    CanonicalAddressIndex index = new CanonicalAddressIndex();
+
+    index.put(7, "222-3333");
+    index.removeAddress("222-3333");
+    index.put(7, "+49 444 222 3333");
+
+    assertEquals("+49 444 222 3333", index.getAddress(7));
+    assertEquals(-1L, index.getId("222-3333"));
+    assertEquals(7L, index.getId("+49 444 222 3333"));
+  }
+}
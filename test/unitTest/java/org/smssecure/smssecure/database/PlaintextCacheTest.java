@@ -0,0 +1,46 @@
+package org.smssecure.smssecure.database;
+
+import org.junit.Test;
+import org.smssecure.smssecure.BaseUnitTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlaintextCacheTest extends BaseUnitTest {
+
+  @Test public void testHitAndMiss() {
+    PlaintextCache cache = new PlaintextCache(64 * 1024);
+
+    assertNull(cache.get("sms", 1, "ciphertext"));
+    cache.put("sms", 1, "ciphertext", "plaintext");
+
+    assertEquals("plaintext", cache.get("sms", 1, "ciphertext"));
+    assertNull(cache.get("mms", 1, "ciphertext"));
+    assertNull(cache.get("sms", 1, "other ciphertext"));
+
+    assertEquals(1, cache.getHitCount());
+    assertEquals(3, cache.getMissCount());
+  }
+
+  @Test public void testWeightBound() {
+    PlaintextCache cache = new PlaintextCache(16 * 1024);
+
+    for (int i = 0; i < 1000; i++) {
+      cache.put("sms", i, "ciphertext" + i, "a reasonably long plaintext body " + i);
+    }
+
+    assertTrue(cache.getWeight() <= 16 * 1024);
+    assertTrue(cache.getEvictionCount() > 0);
+  }
+
+  @Test public void testClear() {
+    PlaintextCache cache = new PlaintextCache(64 * 1024);
+
+    cache.put("thread", 7, "ciphertext", "plaintext");
+    cache.clear();
+
+    assertNull(cache.get("thread", 7, "ciphertext"));
+    assertEquals(0, cache.getWeight());
+  }
+}